@@ -0,0 +1,74 @@
+package benchmarks;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import springapp.Demo2Application;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * demo2 on one box without network: a throwaway PostgreSQL started from the embedded binaries and the in-memory
+ * object store. The real schema, queries and services run; only S3 is replaced.
+ */
+final class BenchmarkEnvironment implements AutoCloseable {
+
+    private final EmbeddedPostgres postgres;
+    private final ConfigurableApplicationContext context;
+
+    private BenchmarkEnvironment(EmbeddedPostgres postgres, ConfigurableApplicationContext context) {
+        this.postgres = postgres;
+        this.context = context;
+    }
+
+    /**
+     * @param port HTTP port, or -1 for no web server (service level benchmarks)
+     * @param extraArgs further --property=value arguments, applied last
+     */
+    static BenchmarkEnvironment start(int port, String... extraArgs) throws IOException {
+        EmbeddedPostgres postgres = EmbeddedPostgres.builder().start();
+        try {
+            Path spool = Files.createTempDirectory("demo2-bench-spool");
+            List<String> args = new ArrayList<>(List.of(
+                    "--spring.datasource.url=" + postgres.getJdbcUrl("postgres", "postgres") + "&reWriteBatchedInserts=true",
+                    "--spring.datasource.username=postgres",
+                    "--spring.datasource.password=",
+                    "--spring.jpa.show-sql=false",
+                    "--storage.backend=memory",
+                    "--storage.cache.enabled=false",
+                    // the load driver is one user, which the per-user limits would throttle
+                    "--admission.enabled=false",
+                    "--upload.spool.dir=" + spool,
+                    "--logging.level.root=WARN"));
+            if (port >= 0) {
+                args.add("--server.port=" + port);
+            }
+            args.addAll(List.of(extraArgs));
+            ConfigurableApplicationContext context = new SpringApplicationBuilder(Demo2Application.class)
+                    .web(port >= 0 ? WebApplicationType.SERVLET : WebApplicationType.NONE)
+                    .run(args.toArray(String[]::new));
+            return new BenchmarkEnvironment(postgres, context);
+        } catch (IOException | RuntimeException e) {
+            postgres.close();
+            throw e;
+        }
+    }
+
+    <T> T bean(Class<T> type) {
+        return context.getBean(type);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            context.close();
+        } finally {
+            postgres.close();
+        }
+    }
+}
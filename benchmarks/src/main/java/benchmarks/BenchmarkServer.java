@@ -0,0 +1,36 @@
+package benchmarks;
+
+import springapp.model.User;
+import springapp.repository.UserRespository;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Starts demo2 against embedded PostgreSQL and in-memory storage for TransferLoadDriver, creates the user the
+ * driver uploads as and prints its id. Runs until interrupted.
+ *
+ * Options: --port (default 8080), followed by any --property=value for demo2 itself.
+ */
+public class BenchmarkServer {
+
+    public static void main(String[] args) throws Exception {
+        int port = 8080;
+        String[] appArgs = args;
+        if (args.length > 0 && args[0].startsWith("--port=")) {
+            port = Integer.parseInt(args[0].substring("--port=".length()));
+            appArgs = Arrays.copyOfRange(args, 1, args.length);
+        }
+        BenchmarkEnvironment environment = BenchmarkEnvironment.start(port, appArgs);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                environment.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }));
+        User user = environment.bean(UserRespository.class).save(new User(null, "loaddriver", "load.driver@example.com"));
+        System.out.println("demo2 listening on port " + port + ", load driver user: --userId=" + user.getId());
+        new CountDownLatch(1).await();
+    }
+}
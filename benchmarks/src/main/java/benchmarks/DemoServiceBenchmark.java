@@ -0,0 +1,175 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import springapp.model.User;
+import springapp.model.UserAttachment;
+import springapp.repository.AttachmentRepository;
+import springapp.repository.UserRespository;
+import springapp.service.BlobService;
+import springapp.service.DemoService;
+import springapp.storage.StoredObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * DemoService end to end below HTTP: real queries against embedded PostgreSQL, objects in the in-memory store.
+ * The user owns seedCount attachments, all sharing one blob of the benchmarked size, so listings have rows to page
+ * through and downloads have something to read without seeding gigabytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DemoServiceBenchmark {
+
+    private static final Pattern ATTACHMENT_ID = Pattern.compile("Attachment ID: (\\d+)");
+    private static final int PAGE_SIZE = 50;
+
+    @Param({"4096", "262144", "4194304"})
+    public int size;
+
+    @Param({"1000"})
+    public int seedCount;
+
+    private BenchmarkEnvironment environment;
+    private DemoService demoService;
+    private AttachmentRepository attachmentRepo;
+    private BlobService blobService;
+    private Long userId;
+    private Long downloadId;
+    private String downloadName;
+    private String deepCursor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        environment = BenchmarkEnvironment.start(-1);
+        demoService = environment.bean(DemoService.class);
+        attachmentRepo = environment.bean(AttachmentRepository.class);
+        blobService = environment.bean(BlobService.class);
+        userId = environment.bean(UserRespository.class)
+                .save(new User(null, "benchuser", "bench.user@example.com")).getId();
+
+        byte[] content = new byte[size];
+        new Random(42).nextBytes(content);
+        for (int i = 0; i < seedCount; i++) {
+            String fileName = "seed-" + i + ".png";
+            downloadId = attachmentId(demoService.uploadFileAndCreateAttachment(
+                    new BytesMultipartFile(fileName, "image/png", content), userId));
+            downloadName = fileName;
+        }
+
+        // the cursor after most of the rows, so the keyset benchmark seeks deep into the listing
+        String cursor = null;
+        for (int page = 0; page < seedCount / PAGE_SIZE - 1; page++) {
+            cursor = (String) body(demoService.getFilesAfter(userId, cursor, PAGE_SIZE, false)).get("nextCursor");
+        }
+        deepCursor = cursor;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        environment.close();
+    }
+
+    // every upload gets its own bytes, so each one hashes and writes a new blob instead of taking a reference
+    @State(Scope.Thread)
+    public static class Upload {
+
+        private byte[] content;
+        private long sequence;
+        private String result;
+
+        @Setup(Level.Trial)
+        public void setUp(DemoServiceBenchmark benchmark) {
+            content = new byte[benchmark.size];
+            new Random(Thread.currentThread().threadId()).nextBytes(content);
+        }
+
+        BytesMultipartFile next() {
+            ByteBuffer.wrap(content).putLong(0, sequence++);
+            return new BytesMultipartFile("upload-" + sequence + ".png", "image/png", content);
+        }
+
+        // keeps the in-memory store from growing with the number of invocations; not part of the measurement
+        @TearDown(Level.Invocation)
+        public void delete(DemoServiceBenchmark benchmark) {
+            if (result == null) {
+                return;
+            }
+            UserAttachment attachment = benchmark.attachmentRepo.findById(attachmentId(result)).orElseThrow();
+            benchmark.attachmentRepo.delete(attachment);
+            benchmark.blobService.release(attachment.getBlobHash());
+            result = null;
+        }
+    }
+
+    @Benchmark
+    public String upload(Upload upload) throws IOException {
+        upload.result = demoService.uploadFileAndCreateAttachment(upload.next(), userId);
+        return upload.result;
+    }
+
+    @Benchmark
+    public Object listOffsetFirstPage() {
+        return demoService.getFiles(userId, 1, PAGE_SIZE).getBody();
+    }
+
+    @Benchmark
+    public Object listOffsetDeepPage() {
+        return demoService.getFiles(userId, seedCount / PAGE_SIZE, PAGE_SIZE).getBody();
+    }
+
+    @Benchmark
+    public Object listKeysetFirstPage() {
+        return demoService.getFilesAfter(userId, null, PAGE_SIZE, false).getBody();
+    }
+
+    @Benchmark
+    public Object listKeysetDeepPage() {
+        return demoService.getFilesAfter(userId, deepCursor, PAGE_SIZE, false).getBody();
+    }
+
+    @Benchmark
+    public long download() throws IOException {
+        ResponseEntity<Object> response = demoService.downloadFileForUser(downloadName, userId, downloadId, new HttpHeaders());
+        try (StoredObject object = (StoredObject) response.getBody()) {
+            return object.getContent().transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    private static Long attachmentId(String uploadResult) {
+        Matcher matcher = ATTACHMENT_ID.matcher(uploadResult);
+        if (!matcher.find()) {
+            throw new IllegalStateException("Unexpected upload result: " + uploadResult);
+        }
+        return Long.parseLong(matcher.group(1));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> body(ResponseEntity<Object> response) {
+        return (Map<String, Object>) response.getBody();
+    }
+}
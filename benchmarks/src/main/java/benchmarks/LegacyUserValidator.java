@@ -0,0 +1,152 @@
+package benchmarks;
+
+/**
+ * The username and email checks of UserService as they were before UserValidator: one String.matches per
+ * regex rule, each compiling its pattern again. Kept only as the baseline of {@link UserValidatorBenchmark}.
+ */
+final class LegacyUserValidator {
+
+    private LegacyUserValidator() {
+    }
+
+    static void validate(String username, String email) {
+        if (!hasText(username)) {
+            throw new IllegalArgumentException("Username cannot be empty.");
+        }
+
+        if (!hasText(email)) {
+            throw new IllegalArgumentException("Email cannot be empty.");
+        }
+
+        if (username.length() < 3 || username.length() > 20) {
+            throw new IllegalArgumentException("Username must be between 3 and 20 characters.");
+        }
+
+        if (!isValidEmailFormat(email)) {
+            throw new IllegalArgumentException("Invalid email format.");
+        }
+
+        if (containsWhitespace(email)) {
+            throw new IllegalArgumentException("Email cannot contain whitespace.");
+        }
+
+        if (hasMultipleAtSymbols(email)) {
+            throw new IllegalArgumentException("Email cannot contain more than one '@' symbol.");
+        }
+
+        if (isInvalidEmailDomain(email)) {
+            throw new IllegalArgumentException("Email domain is invalid.");
+        }
+
+        if (email.length() > 254) {
+            throw new IllegalArgumentException("Email is too long. Maximum length is 254 characters.");
+        }
+
+        if (startsWithNumber(email)) {
+            throw new IllegalArgumentException("Email cannot start with a number.");
+        }
+
+        if (emailContainsSequentialRepeatingCharacters(email)) {
+            throw new IllegalArgumentException("Email cannot contain sequential repeating characters (e.g., 'aaa').");
+        }
+
+        if (emailContainsConsecutiveDots(email)) {
+            throw new IllegalArgumentException("Email cannot have consecutive dots (e.g., 'john..doe@example.com').");
+        }
+
+        if (containsSpaces(username)) {
+            throw new IllegalArgumentException("Username cannot contain spaces.");
+        }
+
+        if (containsSpecialCharacters(username)) {
+            throw new IllegalArgumentException("Username cannot contain special characters.");
+        }
+
+        if (!startsWithLetter(username)) {
+            throw new IllegalArgumentException("Username must start with a letter.");
+        }
+
+        if (usernameContainsConsecutiveRepeatingCharacters(username)) {
+            throw new IllegalArgumentException("Username cannot contain sequential repeating characters (e.g., 'aaa').");
+        }
+
+        if (usernameContainsDigitsOnly(username)) {
+            throw new IllegalArgumentException("Username cannot contain only numbers.");
+        }
+
+        if (usernameContainsUnderscoreAtStartOrEnd(username)) {
+            throw new IllegalArgumentException("Username cannot start or end with an underscore.");
+        }
+    }
+
+    // Validate email format using regex
+    private static boolean isValidEmailFormat(String email) {
+        String emailRegex = "^[A-Za-z][A-Za-z0-9._%+-]*@[A-Za-z0-9.-]+\\.[A-Za-z]{2,}$";
+        return email.matches(emailRegex);
+    }
+
+    private static boolean containsWhitespace(String email) {
+        return email.contains(" ");
+    }
+
+    private static boolean hasMultipleAtSymbols(String email) {
+        int atCount = email.length() - email.replace("@", "").length();
+        return atCount > 1;
+    }
+
+    private static boolean isInvalidEmailDomain(String email) {
+        String domainPart = email.substring(email.indexOf('@') + 1);
+        return !domainPart.contains(".");
+    }
+
+    private static boolean startsWithNumber(String email) {
+        String localPart = email.split("@")[0];
+        return localPart.length() > 0 && Character.isDigit(localPart.charAt(0));
+    }
+
+    private static boolean emailContainsSequentialRepeatingCharacters(String email) {
+        return email.matches(".*(.)\\1{2,}.*");
+    }
+
+    private static boolean emailContainsConsecutiveDots(String email) {
+        return email.contains("..");
+    }
+
+    private static boolean containsSpaces(String username) {
+        return username.contains(" ");
+    }
+
+    private static boolean containsSpecialCharacters(String username) {
+        String specialCharacters = "[^a-zA-Z0-9_]";
+        return username.matches(".*" + specialCharacters + ".*");
+    }
+
+    private static boolean startsWithLetter(String username) {
+        return Character.isLetter(username.charAt(0));
+    }
+
+    private static boolean usernameContainsConsecutiveRepeatingCharacters(String username) {
+        return username.matches(".*(.)\\1{2,}.*");
+    }
+
+    private static boolean usernameContainsDigitsOnly(String username) {
+        return username.matches("\\d+");
+    }
+
+    private static boolean usernameContainsUnderscoreAtStartOrEnd(String username) {
+        return username.startsWith("_") || username.endsWith("_");
+    }
+
+    // StringUtils.hasText, so the baseline does not need Spring on its own
+    private static boolean hasText(String value) {
+        if (value == null) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isWhitespace(value.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
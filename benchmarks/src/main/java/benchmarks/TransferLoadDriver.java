@@ -0,0 +1,400 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Drives concurrent uploads, downloads and listings against a running demo2 instance and reports throughput and
+ * p50/p99 latency per operation and concurrency level. File sizes are drawn from a weighted mix. Clients run on
+ * virtual threads, so the driver itself is never the thread-bound side of the measurement.
+ */
+public class TransferLoadDriver {
+
+    private static final Pattern ATTACHMENT_ID = Pattern.compile("Attachment ID: (\\d+)");
+    private static final String[] OPERATIONS = {"upload", "download", "list"};
+    // download targets seeded per size; clients share them round robin
+    private static final int MAX_SEEDED_PER_SIZE = 64;
+
+    private record Target(long attachmentId, String fileName) {
+    }
+
+    // weighted choice among values; "4096:70,262144:25,4194304:5" or a single "1048576"
+    private record Mix<T>(List<T> values, int[] cumulativeWeights) {
+
+        static Mix<String> parse(String spec) {
+            List<String> values = new ArrayList<>();
+            List<Integer> weights = new ArrayList<>();
+            for (String part : spec.split(",")) {
+                String[] valueAndWeight = part.trim().split(":");
+                values.add(valueAndWeight[0]);
+                weights.add(valueAndWeight.length > 1 ? Integer.parseInt(valueAndWeight[1]) : 1);
+            }
+            int[] cumulative = new int[weights.size()];
+            int total = 0;
+            for (int i = 0; i < cumulative.length; i++) {
+                total += weights.get(i);
+                cumulative[i] = total;
+            }
+            return new Mix<>(values, cumulative);
+        }
+
+        int pick() {
+            int draw = ThreadLocalRandom.current().nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+            int index = Arrays.binarySearch(cumulativeWeights, draw + 1);
+            return index >= 0 ? index : -index - 1;
+        }
+    }
+
+    private record Result(String label, String mode, String sizes, int concurrency, String operation, long operations,
+                          long errors, double seconds, long p50Micros, long p99Micros, long bytes) {
+
+        double opsPerSecond() {
+            return operations / seconds;
+        }
+
+        double megabytesPerSecond() {
+            return bytes / seconds / (1024 * 1024);
+        }
+
+        String csv() {
+            return String.join(",", label, mode, sizes, Integer.toString(concurrency), operation,
+                    Long.toString(operations), Long.toString(errors), String.format("%.3f", seconds),
+                    Long.toString(p50Micros), Long.toString(p99Micros), Long.toString(bytes));
+        }
+
+        static Result parse(String line) {
+            String[] f = line.split(",");
+            if (f.length != 11) {
+                return null;
+            }
+            return new Result(f[0], f[1], f[2], Integer.parseInt(f[3]), f[4], Long.parseLong(f[5]), Long.parseLong(f[6]),
+                    Double.parseDouble(f[7]), Long.parseLong(f[8]), Long.parseLong(f[9]), Long.parseLong(f[10]));
+        }
+    }
+
+    private final HttpClient client;
+    private final String baseUrl;
+    private final long userId;
+    private final int[] sizes;
+    private final Mix<String> sizeMix;
+    private final byte[][] payloads;
+
+    TransferLoadDriver(String baseUrl, long userId, Mix<String> sizeMix) {
+        this.baseUrl = baseUrl;
+        this.userId = userId;
+        this.sizeMix = sizeMix;
+        this.sizes = sizeMix.values().stream().mapToInt(Integer::parseInt).toArray();
+        this.payloads = new byte[sizes.length][];
+        Random random = new Random(42);
+        for (int i = 0; i < sizes.length; i++) {
+            payloads[i] = new byte[sizes[i]];
+            random.nextBytes(payloads[i]);
+        }
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        Path out = Path.of(options.getOrDefault("out", "transfer-results.csv"));
+        if (options.containsKey("report")) {
+            printReport(out);
+            return;
+        }
+        String label = options.getOrDefault("label", "run");
+        String mode = options.getOrDefault("mode", "mixed");
+        String sizeSpec = options.getOrDefault("sizes", options.getOrDefault("size", "1048576"));
+        Mix<String> operationMix = Mix.parse(switch (mode) {
+            case "upload", "download", "list" -> mode;
+            case "mixed" -> options.getOrDefault("mix", "upload:1,download:1");
+            default -> throw new IllegalArgumentException("Unknown mode " + mode);
+        });
+        long userId = Long.parseLong(require(options, "userId"));
+        int duration = Integer.parseInt(options.getOrDefault("duration", "30"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        int[] levels = Arrays.stream(options.getOrDefault("concurrency", "16,64,256").split(","))
+                .mapToInt(level -> Integer.parseInt(level.trim()))
+                .toArray();
+
+        TransferLoadDriver driver = new TransferLoadDriver(options.getOrDefault("baseUrl", "http://localhost:8080"),
+                userId, Mix.parse(sizeSpec));
+        // the CSV is comma separated, so the size mix is recorded with slashes
+        String sizes = sizeSpec.replace(',', '/');
+        List<Target>[] targets = driver.seed(Arrays.stream(levels).max().orElse(1), operationMix);
+        System.out.printf("%-14s %-8s %8s %-9s %11s %10s %10s %10s %10s %8s%n",
+                "label", "mode", "clients", "op", "ops", "ops/s", "MiB/s", "p50 ms", "p99 ms", "errors");
+        for (int concurrency : levels) {
+            driver.run(operationMix, concurrency, targets, warmup);
+            Measurement measurement = driver.run(operationMix, concurrency, targets, duration);
+            for (Result result : measurement.results(label, mode, sizes, concurrency)) {
+                System.out.printf("%-14s %-8s %8d %-9s %11d %10.1f %10.1f %10.2f %10.2f %8d%n",
+                        label, mode, concurrency, result.operation(), result.operations(), result.opsPerSecond(),
+                        result.megabytesPerSecond(), result.p50Micros() / 1000.0, result.p99Micros() / 1000.0,
+                        result.errors());
+                append(out, result);
+            }
+        }
+    }
+
+    // download targets per size, so concurrent downloads do not all hit the same key
+    @SuppressWarnings("unchecked")
+    private List<Target>[] seed(int clients, Mix<String> operationMix) throws Exception {
+        List<Target>[] targets = new List[sizes.length];
+        boolean downloads = operationMix.values().contains("download");
+        for (int size = 0; size < sizes.length; size++) {
+            targets[size] = new ArrayList<>();
+            for (int i = 0; downloads && i < Math.min(clients, MAX_SEEDED_PER_SIZE); i++) {
+                targets[size].add(upload("bench-seed-" + sizes[size] + "-" + i + ".png", size));
+            }
+        }
+        return targets;
+    }
+
+    private Measurement run(Mix<String> operationMix, int concurrency, List<Target>[] targets, int seconds)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(seconds).toNanos();
+        Measurement measurement = new Measurement(seconds);
+        try (ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int worker = 0; worker < concurrency; worker++) {
+                int id = worker;
+                workers.submit(() -> {
+                    Recorder recorder = new Recorder();
+                    long iteration = 0;
+                    while (System.nanoTime() < deadline) {
+                        String operation = operationMix.values().get(operationMix.pick());
+                        int size = sizeMix.pick();
+                        long start = System.nanoTime();
+                        try {
+                            long bytes = switch (operation) {
+                                case "upload" -> {
+                                    upload("bench-" + id + "-" + iteration + ".png", size);
+                                    yield sizes[size];
+                                }
+                                case "download" -> download(targets[size].get(id % targets[size].size()));
+                                default -> list();
+                            };
+                            recorder.record(operation, (System.nanoTime() - start) / 1000, bytes);
+                        } catch (Exception e) {
+                            recorder.error(operation);
+                        }
+                        iteration++;
+                    }
+                    measurement.add(recorder);
+                });
+            }
+        }
+        return measurement;
+    }
+
+    private Target upload(String fileName, int size) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/upload/stream?userId=" + userId
+                        + "&fileName=" + URLEncoder.encode(fileName, StandardCharsets.UTF_8)))
+                .header("Content-Type", "image/png")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(payloads[size]))
+                .build();
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        Matcher matcher = ATTACHMENT_ID.matcher(response.body());
+        if (response.statusCode() != 200 || !matcher.find()) {
+            throw new IOException("upload failed with " + response.statusCode() + ": " + response.body());
+        }
+        return new Target(Long.parseLong(matcher.group(1)), fileName);
+    }
+
+    private long download(Target target) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/download/"
+                        + URLEncoder.encode(target.fileName(), StandardCharsets.UTF_8)
+                        + "?userId=" + userId + "&attachmentId=" + target.attachmentId()))
+                .GET()
+                .build();
+        return drain(client.send(request, HttpResponse.BodyHandlers.ofInputStream()), "download");
+    }
+
+    // first keyset page of the user's listing
+    private long list() throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/list?userId=" + userId + "&size=50&cursor="))
+                .GET()
+                .build();
+        return drain(client.send(request, HttpResponse.BodyHandlers.ofInputStream()), "list");
+    }
+
+    private static long drain(HttpResponse<InputStream> response, String operation) throws IOException {
+        long read;
+        try (InputStream body = response.body()) {
+            read = body.transferTo(OutputStream.nullOutputStream());
+        }
+        if (response.statusCode() != 200) {
+            throw new IOException(operation + " failed with " + response.statusCode() + " after " + read + " bytes");
+        }
+        return read;
+    }
+
+    // one client's latencies, bytes and errors per operation; merged once the client stops
+    private static final class Recorder {
+
+        private final Map<String, long[]> latencies = new HashMap<>();
+        private final Map<String, Integer> counts = new HashMap<>();
+        private final Map<String, Long> bytes = new HashMap<>();
+        private final Map<String, Long> errors = new HashMap<>();
+
+        void record(String operation, long micros, long transferred) {
+            int count = counts.getOrDefault(operation, 0);
+            long[] values = latencies.computeIfAbsent(operation, key -> new long[1024]);
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+                latencies.put(operation, values);
+            }
+            values[count] = micros;
+            counts.put(operation, count + 1);
+            bytes.merge(operation, transferred, Long::sum);
+        }
+
+        void error(String operation) {
+            errors.merge(operation, 1L, Long::sum);
+        }
+    }
+
+    private static final class Measurement {
+
+        private final List<Recorder> recorders = new ArrayList<>();
+        private final int seconds;
+
+        Measurement(int seconds) {
+            this.seconds = seconds;
+        }
+
+        synchronized void add(Recorder recorder) {
+            recorders.add(recorder);
+        }
+
+        // one result per operation that ran, then "all" across them
+        List<Result> results(String label, String mode, String sizes, int concurrency) {
+            List<Result> results = new ArrayList<>();
+            List<String> ran = new ArrayList<>();
+            for (String operation : OPERATIONS) {
+                if (recorders.stream().anyMatch(r -> r.counts.containsKey(operation) || r.errors.containsKey(operation))) {
+                    ran.add(operation);
+                    results.add(result(label, mode, sizes, concurrency, operation, List.of(operation)));
+                }
+            }
+            if (ran.size() > 1) {
+                results.add(result(label, mode, sizes, concurrency, "all", ran));
+            }
+            return results;
+        }
+
+        private Result result(String label, String mode, String sizes, int concurrency, String name, List<String> operations) {
+            long[] all = recorders.stream()
+                    .flatMapToLong(r -> operations.stream().flatMapToLong(operation ->
+                            Arrays.stream(r.latencies.getOrDefault(operation, new long[0]), 0, r.counts.getOrDefault(operation, 0))))
+                    .sorted()
+                    .toArray();
+            long bytes = 0;
+            long errors = 0;
+            for (Recorder recorder : recorders) {
+                for (String operation : operations) {
+                    bytes += recorder.bytes.getOrDefault(operation, 0L);
+                    errors += recorder.errors.getOrDefault(operation, 0L);
+                }
+            }
+            return new Result(label, mode, sizes, concurrency, name, all.length, errors, seconds,
+                    percentile(all, 0.50), percentile(all, 0.99), bytes);
+        }
+
+        private static long percentile(long[] sorted, double quantile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            return sorted[Math.min(sorted.length - 1, (int) Math.ceil(quantile * sorted.length) - 1)];
+        }
+    }
+
+    private static void append(Path out, Result result) throws IOException {
+        Files.writeString(out, result.csv() + System.lineSeparator(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    // ops/s and p50/p99 per label side by side, one row per mode, size mix, concurrency level and operation
+    private static void printReport(Path out) throws IOException {
+        Map<String, Map<String, Result>> rows = new TreeMap<>();
+        List<String> labels = new ArrayList<>();
+        for (String line : Files.readAllLines(out, StandardCharsets.UTF_8)) {
+            Result result = line.isBlank() ? null : Result.parse(line);
+            // rows written before per-operation results have a different shape
+            if (result == null) {
+                continue;
+            }
+            if (!labels.contains(result.label())) {
+                labels.add(result.label());
+            }
+            String row = String.format("%-8s %-28s %8d %-9s", result.mode(), result.sizes(), result.concurrency(), result.operation());
+            // the latest run of a label wins
+            rows.computeIfAbsent(row, key -> new HashMap<>()).put(result.label(), result);
+        }
+        StringBuilder header = new StringBuilder(String.format("%-8s %-28s %8s %-9s", "mode", "sizes", "clients", "op"));
+        for (String label : labels) {
+            header.append(String.format(" %36s", label + " ops/s MiB/s (p50/p99 ms)"));
+        }
+        System.out.println(header);
+        for (Map.Entry<String, Map<String, Result>> row : rows.entrySet()) {
+            StringBuilder line = new StringBuilder(row.getKey());
+            for (String label : labels) {
+                Result result = row.getValue().get(label);
+                line.append(result == null ? String.format(" %36s", "-")
+                        : String.format(" %9.1f %8.1f (%7.1f/%7.1f)", result.opsPerSecond(), result.megabytesPerSecond(),
+                        result.p50Micros() / 1000.0, result.p99Micros() / 1000.0));
+            }
+            System.out.println(line);
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument " + arg);
+            }
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                options.put(arg.substring(2), "true");
+            } else {
+                options.put(arg.substring(2, equals), arg.substring(equals + 1));
+            }
+        }
+        return options;
+    }
+
+    private static String require(Map<String, String> options, String name) {
+        String value = options.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("--" + name + " is required");
+        }
+        return value;
+    }
+}
@@ -0,0 +1,75 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import springapp.service.UserValidator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The /addUser validation before and after UserValidator. "valid" passes every rule, "invalid" fails on the
+ * last username rule so every check runs, and "pathological" is a long address whose domain never ends in a
+ * valid top-level part, which makes the old email regex backtrack over every dot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserValidatorBenchmark {
+
+    @Param({"valid", "invalid", "pathological"})
+    public String input;
+
+    private String username;
+    private String email;
+
+    @Setup
+    public void setUp() {
+        switch (input) {
+            case "valid" -> {
+                username = "jane_doe42";
+                email = "jane.doe+news@mail.example.com";
+            }
+            case "invalid" -> {
+                username = "jane_doe_";
+                email = "jane.doe+news@mail.example.com";
+            }
+            case "pathological" -> {
+                username = "jane_doe42";
+                email = "j@" + "ab.".repeat(2000) + "c1";
+            }
+            default -> throw new IllegalArgumentException("Unknown input " + input);
+        }
+    }
+
+    @Benchmark
+    public String legacy() {
+        try {
+            LegacyUserValidator.validate(username, email);
+            return null;
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+    }
+
+    @Benchmark
+    public String singlePass() {
+        try {
+            UserValidator.validate(username, email);
+            return null;
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package springapp.config;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.PathContainer;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.pattern.PathPattern;
+import org.springframework.web.util.pattern.PathPatternParser;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Admission control in front of the transfer endpoints. A request is either admitted at once or turned away at once
+ * with Retry-After, never queued, and it is turned away before its body is read or a multipart file is spooled:
+ * - 429 when its user has used up their request rate, or has too many transfers running;
+ * - 503 when the bytes in flight to and from storage, over all users, would pass the global cap.
+ *
+ * The rate limit is a token bucket kept as one timestamp (GCRA) and updated by compare-and-set, so a request takes
+ * no lock. Rate buckets are kept in a bounded Caffeine map, whose table is locked per bin rather than as a whole, and
+ * are forgotten when idle. Running transfers are counted in a separate map whose entry goes away when the count
+ * drops to zero, so it only ever holds users with a transfer running and eviction can never lose a count. The user is the userId query parameter, or the client address when there is none; the query
+ * string is parsed here because asking the container for a parameter would make it read a multipart body.
+ *
+ * Only requests that move file data are counted. The servlet URL patterns it is registered under also reach the
+ * status, presign, signed URL and thumbnail endpoints next to the transfers, and those pass straight through.
+ */
+public class AdmissionControlFilter extends OncePerRequestFilter {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    // the endpoints whose request or response body is a file
+    private static final List<PathPattern> TRANSFERS = List.of(
+            "/upload", "/upload/async", "/upload/batch", "/upload/stream",
+            "/uploads/{sessionId}/chunks/{partNumber}", "/download/{filename}", "/archive").stream()
+            .map(PathPatternParser.defaultInstance::parse)
+            .toList();
+
+    private static final class UserAdmission {
+        // theoretical arrival time: when the bucket would be full again if no other request came
+        final AtomicLong arrivalTime = new AtomicLong(Long.MIN_VALUE);
+    }
+
+    private final long emissionInterval;
+    private final long burstTolerance;
+    private final int maxConcurrentPerUser;
+    private final long maxInFlightBytes;
+    private final long unknownSizeReservation;
+    private final Cache<String, UserAdmission> users;
+    private final Map<String, Integer> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong inFlightBytes = new AtomicLong();
+    private final Counter admitted;
+    private final Counter rateLimited;
+    private final Counter concurrencyLimited;
+    private final Counter overloaded;
+
+    public AdmissionControlFilter(MeterRegistry registry, double requestsPerSecond, int burst, int maxConcurrentPerUser,
+                                  long maxInFlightBytes, long unknownSizeReservation, long maxTrackedUsers,
+                                  Duration idleTimeout) {
+        this.emissionInterval = (long) (NANOS_PER_SECOND / requestsPerSecond);
+        // a full bucket admits burst requests back to back
+        this.burstTolerance = emissionInterval * (Math.max(burst, 1) - 1);
+        this.maxConcurrentPerUser = maxConcurrentPerUser;
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.unknownSizeReservation = unknownSizeReservation;
+        this.users = Caffeine.newBuilder()
+                .maximumSize(maxTrackedUsers)
+                .expireAfterAccess(idleTimeout)
+                .build();
+        this.admitted = outcomeCounter(registry, "admitted");
+        this.rateLimited = outcomeCounter(registry, "rate_limited");
+        this.concurrencyLimited = outcomeCounter(registry, "concurrency_limited");
+        this.overloaded = outcomeCounter(registry, "overloaded");
+        Gauge.builder("http.server.admission.inflight.bytes", inFlightBytes, AtomicLong::get)
+                .description("Bytes reserved by admitted transfers that are still running")
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("http.server.admission.users", users, Cache::estimatedSize)
+                .description("Users with a rate limit bucket")
+                .register(registry);
+    }
+
+    private static Counter outcomeCounter(MeterRegistry registry, String outcome) {
+        return Counter.builder("http.server.admission")
+                .description("Transfer requests admitted and turned away")
+                .tag("outcome", outcome)
+                .register(registry);
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        PathContainer path = PathContainer.parsePath(
+                request.getRequestURI().substring(request.getContextPath().length()));
+        return TRANSFERS.stream().noneMatch(pattern -> pattern.matches(path));
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        String userId = userId(request.getQueryString());
+        String key = userId != null ? userId : "ip:" + request.getRemoteAddr();
+        UserAdmission user = users.get(key, k -> new UserAdmission());
+
+        // the checks that can be undone come first, so a request turned away by them does not use up a token
+        if (!enter(key)) {
+            concurrencyLimited.increment();
+            reject(response, HttpStatus.TOO_MANY_REQUESTS, 1,
+                    "More than " + maxConcurrentPerUser + " transfers are running for this user");
+            return;
+        }
+        long contentLength = request.getContentLengthLong();
+        long reservation = contentLength > 0 ? contentLength : unknownSizeReservation;
+        long reserved = inFlightBytes.addAndGet(reservation);
+        // one transfer is always let through on its own, so a file larger than the cap can still be uploaded
+        if (reserved > maxInFlightBytes && reserved != reservation) {
+            inFlightBytes.addAndGet(-reservation);
+            leave(key);
+            overloaded.increment();
+            reject(response, HttpStatus.SERVICE_UNAVAILABLE, 1, "The server is busy with other transfers");
+            return;
+        }
+        long wait = acquireToken(user, System.nanoTime());
+        if (wait > 0) {
+            inFlightBytes.addAndGet(-reservation);
+            leave(key);
+            rateLimited.increment();
+            reject(response, HttpStatus.TOO_MANY_REQUESTS, (wait + NANOS_PER_SECOND - 1) / NANOS_PER_SECOND,
+                    "Too many requests for this user");
+            return;
+        }
+
+        admitted.increment();
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            inFlightBytes.addAndGet(-reservation);
+            leave(key);
+        }
+    }
+
+    // counts the transfer and returns true when the user has fewer than maxConcurrentPerUser running
+    private boolean enter(String key) {
+        boolean[] entered = new boolean[1];
+        inFlight.compute(key, (k, running) -> {
+            int count = running != null ? running : 0;
+            entered[0] = count < maxConcurrentPerUser;
+            return entered[0] ? Integer.valueOf(count + 1) : running;
+        });
+        return entered[0];
+    }
+
+    private void leave(String key) {
+        inFlight.computeIfPresent(key, (k, running) -> running > 1 ? running - 1 : null);
+    }
+
+    // 0 when a token was taken, otherwise how many nanoseconds until the next one
+    private long acquireToken(UserAdmission user, long now) {
+        while (true) {
+            long arrivalTime = user.arrivalTime.get();
+            long start = Math.max(arrivalTime, now);
+            long wait = start - now - burstTolerance;
+            if (wait > 0) {
+                return wait;
+            }
+            if (user.arrivalTime.compareAndSet(arrivalTime, start + emissionInterval)) {
+                return 0;
+            }
+        }
+    }
+
+    private static void reject(HttpServletResponse response, HttpStatus status, long retryAfterSeconds, String message)
+            throws IOException {
+        response.setStatus(status.value());
+        response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(Math.max(retryAfterSeconds, 1)));
+        response.setContentType(MediaType.TEXT_PLAIN_VALUE);
+        response.getWriter().write(message);
+    }
+
+    // the userId parameter in canonical form, or null when it is missing or not a number; any other text would give
+    // a script a fresh bucket per spelling
+    private static String userId(String query) {
+        if (query == null) {
+            return null;
+        }
+        int start = 0;
+        while (start < query.length()) {
+            int end = query.indexOf('&', start);
+            if (end < 0) {
+                end = query.length();
+            }
+            if (query.startsWith("userId=", start)) {
+                try {
+                    return Long.toString(Long.parseLong(query, start + "userId=".length(), end, 10));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+            start = end + 1;
+        }
+        return null;
+    }
+}
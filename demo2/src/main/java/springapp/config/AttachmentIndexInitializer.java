@@ -0,0 +1,60 @@
+package springapp.config;
+
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+// Indexes on user_attachment, built concurrently so a first deploy against a large table does not block writes to it
+// (see OnlineIndexes); that is why the two matching the keyset order of /list are here rather than left to ddl-auto,
+// which cannot create the partial and expression ones at all. The thumbnail backlog one only holds stored images
+// without thumbnails, so it stays near empty and the periodic sweep reads it instead of the table; the upload expiry
+// one does the same for direct uploads that were never completed.
+// The search ones serve /search: a "C" collated B-tree seeks a name prefix and returns the rows already in name order,
+// and a trigram GIN index narrows substring and similarity matches to one user's candidates. The trigram one needs the
+// pg_trgm and btree_gin extensions, which are created if missing; without them it is skipped, substring search scans
+// the user's rows instead and similarity search is unavailable. Reconciliation reads all rows in object key order,
+// and finds the attachments of a missing blob, through the object key and blob hash ones.
+@Component
+@DependsOn("entityManagerFactory")
+public class AttachmentIndexInitializer implements InitializingBean {
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public AttachmentIndexInitializer(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        OnlineIndexes.create(jdbcTemplate, "idx_user_attachment_user_recent", "create index concurrently if not exists"
+                + " idx_user_attachment_user_recent on user_attachment (user_id, last_updated_on desc, id desc)");
+        OnlineIndexes.create(jdbcTemplate, "idx_user_attachment_recent", "create index concurrently if not exists"
+                + " idx_user_attachment_recent on user_attachment (last_updated_on desc, id desc)");
+        OnlineIndexes.create(jdbcTemplate, "idx_user_attachment_thumbnail_backlog", "create index concurrently if not exists"
+                + " idx_user_attachment_thumbnail_backlog on user_attachment (id)"
+                + " where thumbnails is null and status = 'STORED' and file_type in ('image/jpeg', 'image/png')");
+        OnlineIndexes.create(jdbcTemplate, "idx_user_attachment_upload_expiry", "create index concurrently if not exists"
+                + " idx_user_attachment_upload_expiry on user_attachment (upload_expires_on)"
+                + " where status = 'UPLOADING' and upload_expires_on is not null");
+        OnlineIndexes.create(jdbcTemplate, "idx_user_attachment_name_prefix", "create index concurrently if not exists"
+                + " idx_user_attachment_name_prefix on user_attachment (user_id, (lower(file_name) collate \"C\"), id)"
+                + " where status = 'STORED'");
+        OnlineIndexes.create(jdbcTemplate, "idx_user_attachment_object_key", "create index concurrently if not exists"
+                + " idx_user_attachment_object_key on user_attachment (((id::text || '_' || file_name) collate \"C\"))");
+        OnlineIndexes.create(jdbcTemplate, "idx_user_attachment_blob_hash", "create index concurrently if not exists"
+                + " idx_user_attachment_blob_hash on user_attachment (blob_hash) where blob_hash is not null");
+        if (!OnlineIndexes.hasExtension(jdbcTemplate, "pg_trgm") || !OnlineIndexes.hasExtension(jdbcTemplate, "btree_gin")) {
+            try {
+                jdbcTemplate.execute("create extension if not exists pg_trgm");
+                jdbcTemplate.execute("create extension if not exists btree_gin");
+            } catch (DataAccessException e) {
+                return;
+            }
+        }
+        OnlineIndexes.create(jdbcTemplate, "idx_user_attachment_name_trgm", "create index concurrently if not exists"
+                + " idx_user_attachment_name_trgm on user_attachment using gin (user_id, file_name gin_trgm_ops)"
+                + " where status = 'STORED'");
+    }
+}
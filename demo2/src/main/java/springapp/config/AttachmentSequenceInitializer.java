@@ -0,0 +1,29 @@
+package springapp.config;
+
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+// user_attachment ids used to come from the IDENTITY column, so a sequence created next to existing rows starts
+// below their ids. Moves it past max(id) plus one allocation block before anything is inserted; never moves it back.
+// Runs after the entity manager factory, which is where ddl-auto creates the sequence.
+@Component
+@DependsOn("entityManagerFactory")
+public class AttachmentSequenceInitializer implements InitializingBean {
+
+    private static final int ALLOCATION_SIZE = 50;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public AttachmentSequenceInitializer(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        jdbcTemplate.queryForObject("select setval('user_attachment_seq', greatest("
+                + "(select coalesce(max(id), 0) from user_attachment) + " + ALLOCATION_SIZE + ", "
+                + "(select last_value from user_attachment_seq)))", Long.class);
+    }
+}
@@ -0,0 +1,33 @@
+package springapp.config;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+
+// Builds indexes on tables that may already hold many rows without blocking writes to them: create index concurrently
+// only takes a lock that lets inserts, updates and deletes go on. It cannot run in a transaction, and the initializers
+// call it outside one, on an auto-commit connection. A concurrent build that is interrupted leaves an invalid index
+// behind, which "if not exists" would then keep forever, so one found invalid is dropped and built again.
+final class OnlineIndexes {
+
+    private OnlineIndexes() {
+    }
+
+    /**
+     * @param createStatement "create [unique] index concurrently if not exists {name} on ..."
+     */
+    static void create(JdbcTemplate jdbcTemplate, String name, String createStatement) {
+        Boolean valid = jdbcTemplate.query("select i.indisvalid from pg_index i join pg_class c on c.oid = i.indexrelid"
+                + " where c.relname = ? and pg_table_is_visible(c.oid)", rs -> rs.next() ? rs.getBoolean(1) : null, name);
+        if (Boolean.TRUE.equals(valid)) {
+            return;
+        }
+        if (valid != null) {
+            jdbcTemplate.execute("drop index concurrently if exists " + name);
+        }
+        jdbcTemplate.execute(createStatement);
+    }
+
+    static boolean hasExtension(JdbcTemplate jdbcTemplate, String extension) {
+        return Boolean.TRUE.equals(jdbcTemplate.queryForObject(
+                "select exists (select 1 from pg_extension where extname = ?)", Boolean.class, extension));
+    }
+}
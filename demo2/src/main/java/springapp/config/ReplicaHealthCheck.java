@@ -0,0 +1,66 @@
+package springapp.config;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sql.DataSource;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Decides whether read-only transactions may use the replica. It starts out unusable and is checked periodically:
+ * it must answer within the timeout and replay no further behind the primary than the lag limit. A failed connection
+ * attempt in between takes it out at once, until the next check finds it healthy again.
+ *
+ * Lag is the age of the last replayed transaction, and only while the replica has received WAL it has not yet
+ * replayed; a caught-up replica of an idle primary has lag 0. A server that is not a standby reports 0 as well.
+ */
+public class ReplicaHealthCheck {
+
+    private static final String LAG_QUERY = "select case when not pg_is_in_recovery() then 0"
+            + " when pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() then 0"
+            + " else coalesce(extract(epoch from now() - pg_last_xact_replay_timestamp()), 0) end";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final double maxLagSeconds;
+    private volatile boolean usable;
+    // NaN until the first successful check
+    private final AtomicReference<Double> lagSeconds = new AtomicReference<>(Double.NaN);
+
+    public ReplicaHealthCheck(DataSource replica, double maxLagSeconds, int timeoutSeconds, MeterRegistry registry) {
+        this.jdbcTemplate = new JdbcTemplate(replica);
+        this.jdbcTemplate.setQueryTimeout(timeoutSeconds);
+        this.maxLagSeconds = maxLagSeconds;
+        Gauge.builder("datasource.replica.usable", this, check -> check.usable ? 1 : 0)
+                .description("Whether read-only transactions go to the replica")
+                .register(registry);
+        Gauge.builder("datasource.replica.lag", lagSeconds, AtomicReference::get)
+                .description("How far the replica's replay is behind, as of the last check")
+                .baseUnit("seconds")
+                .register(registry);
+    }
+
+    public boolean isUsable() {
+        return usable;
+    }
+
+    // a connection to the replica failed; reads use the primary until the next check
+    public void markDown() {
+        usable = false;
+    }
+
+    @Scheduled(fixedDelayString = "${datasource.replica.check-interval-ms:5000}")
+    public void check() {
+        try {
+            Double lag = jdbcTemplate.queryForObject(LAG_QUERY, Double.class);
+            lagSeconds.set(lag);
+            usable = lag != null && lag <= maxLagSeconds;
+        } catch (DataAccessException e) {
+            usable = false;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package springapp.config;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Sends read-only transactions to the replica while its health check passes, and everything else to the primary.
+ * The choice is made when a connection is taken, so this sits behind a LazyConnectionDataSourceProxy: the transaction
+ * manager asks for a connection before it marks the transaction read-only, the proxy only takes one at the first
+ * statement. A replica that refuses a connection is marked down and the primary serves the transaction instead.
+ */
+public class ReplicaRoutingDataSource extends AbstractRoutingDataSource {
+
+    private static final String PRIMARY = "primary";
+    private static final String REPLICA = "replica";
+
+    private final DataSource primary;
+    private final DataSource replica;
+    private final ReplicaHealthCheck health;
+
+    public ReplicaRoutingDataSource(DataSource primary, DataSource replica, ReplicaHealthCheck health) {
+        this.primary = primary;
+        this.replica = replica;
+        this.health = health;
+        setTargetDataSources(Map.of(PRIMARY, primary, REPLICA, replica));
+        setDefaultTargetDataSource(primary);
+        afterPropertiesSet();
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        return TransactionSynchronizationManager.isCurrentTransactionReadOnly() && health.isUsable() ? REPLICA : PRIMARY;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (determineTargetDataSource() != replica) {
+            return primary.getConnection();
+        }
+        try {
+            return replica.getConnection();
+        } catch (SQLException e) {
+            health.markDown();
+            return primary.getConnection();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package springapp.config;
+
+import org.hibernate.SessionEventListener;
+
+/**
+ * Adds the JDBC statements a Hibernate session executes, and the time spent in them, to the statistics of the
+ * request on the current thread. Registered through hibernate.session.events.auto, so Hibernate creates one per
+ * session; work a request hands to other threads is not attributed to it.
+ */
+public class RequestStatementListener implements SessionEventListener {
+
+    // one holder per thread, reset at the start of each request
+    static final class Statistics {
+
+        int statements;
+        long nanos;
+
+        void reset() {
+            statements = 0;
+            nanos = 0;
+        }
+    }
+
+    static final ThreadLocal<Statistics> CURRENT = ThreadLocal.withInitial(Statistics::new);
+
+    private long statementStart;
+    private long batchStart;
+
+    @Override
+    public void jdbcExecuteStatementStart() {
+        statementStart = System.nanoTime();
+    }
+
+    @Override
+    public void jdbcExecuteStatementEnd() {
+        Statistics statistics = CURRENT.get();
+        statistics.statements++;
+        statistics.nanos += System.nanoTime() - statementStart;
+    }
+
+    @Override
+    public void jdbcExecuteBatchStart() {
+        batchStart = System.nanoTime();
+    }
+
+    // a JDBC batch is one round trip, so it counts as one statement
+    @Override
+    public void jdbcExecuteBatchEnd() {
+        Statistics statistics = CURRENT.get();
+        statistics.statements++;
+        statistics.nanos += System.nanoTime() - batchStart;
+    }
+}
@@ -0,0 +1,60 @@
+package springapp.config;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+// records the statements each request ran, and the time it spent in them, per URI pattern
+public class RequestStatementMetricsInterceptor implements HandlerInterceptor {
+
+    private record Meters(DistributionSummary statements, Timer time) {
+    }
+
+    private final MeterRegistry registry;
+    // meters are registered once per pattern, so recording a request allocates nothing
+    private final Map<String, Meters> metersByUri = new ConcurrentHashMap<>();
+
+    public RequestStatementMetricsInterceptor(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        RequestStatementListener.CURRENT.get().reset();
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        String uri = pattern != null ? pattern.toString() : "UNKNOWN";
+        Meters meters = metersByUri.get(uri);
+        if (meters == null) {
+            meters = metersByUri.computeIfAbsent(uri, this::register);
+        }
+        RequestStatementListener.Statistics statistics = RequestStatementListener.CURRENT.get();
+        meters.statements().record(statistics.statements);
+        meters.time().record(statistics.nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private Meters register(String uri) {
+        return new Meters(
+                DistributionSummary.builder("http.server.requests.db.statements")
+                        .description("JDBC statements run by one request")
+                        .tag("uri", uri)
+                        .register(registry),
+                Timer.builder("http.server.requests.db.time")
+                        .description("Time one request spent executing JDBC statements")
+                        .tag("uri", uri)
+                        .register(registry));
+    }
+}
@@ -0,0 +1,69 @@
+package springapp.config;
+
+import java.nio.file.Path;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import springapp.storage.CachingObjectStorage;
+import springapp.storage.FileSystemObjectStorage;
+import springapp.storage.InMemoryObjectStorage;
+import springapp.storage.InstrumentedObjectStorage;
+import springapp.storage.ObjectStorage;
+import springapp.storage.S3AsyncObjectStorage;
+import springapp.storage.S3ObjectStorage;
+
+// picks the attachment object store from storage.backend: s3 (default), s3-async, filesystem or memory;
+// every backend is timed by InstrumentedObjectStorage, below the cache, so the timers only see real backend calls
+@Configuration
+public class StorageConfiguration {
+
+    @Bean
+    @Qualifier("backend")
+    @ConditionalOnProperty(name = "storage.backend", havingValue = "s3", matchIfMissing = true)
+    public ObjectStorage s3ObjectStorage(S3Client s3Client, @Value("${aws.s3.bucket.name}") String bucketName,
+                                         MeterRegistry meterRegistry) {
+        return new InstrumentedObjectStorage(new S3ObjectStorage(s3Client, bucketName), meterRegistry, "s3");
+    }
+
+    @Bean
+    @Qualifier("backend")
+    @ConditionalOnProperty(name = "storage.backend", havingValue = "s3-async")
+    public ObjectStorage s3AsyncObjectStorage(S3AsyncClient s3AsyncClient, @Value("${aws.s3.bucket.name}") String bucketName,
+                                              MeterRegistry meterRegistry) {
+        return new InstrumentedObjectStorage(new S3AsyncObjectStorage(s3AsyncClient, bucketName), meterRegistry, "s3-async");
+    }
+
+    @Bean
+    @Qualifier("backend")
+    @ConditionalOnProperty(name = "storage.backend", havingValue = "filesystem")
+    public ObjectStorage fileSystemObjectStorage(@Value("${storage.filesystem.root}") String root, MeterRegistry meterRegistry) {
+        return new InstrumentedObjectStorage(new FileSystemObjectStorage(Path.of(root)), meterRegistry, "filesystem");
+    }
+
+    @Bean
+    @Qualifier("backend")
+    @ConditionalOnProperty(name = "storage.backend", havingValue = "memory")
+    public ObjectStorage inMemoryObjectStorage(MeterRegistry meterRegistry) {
+        return new InstrumentedObjectStorage(new InMemoryObjectStorage(), meterRegistry, "memory");
+    }
+
+    // read-through disk cache in front of whichever backend is configured; takes over as the ObjectStorage
+    // everything else injects
+    @Bean
+    @Primary
+    @ConditionalOnProperty(name = "storage.cache.enabled", havingValue = "true")
+    public CachingObjectStorage cachingObjectStorage(@Qualifier("backend") ObjectStorage backend,
+                                                     @Value("${storage.cache.dir}") String cacheDir,
+                                                     @Value("${storage.cache.max-bytes}") long maxBytes,
+                                                     @Value("${storage.cache.max-entry-bytes}") long maxEntryBytes) {
+        return new CachingObjectStorage(backend, Path.of(cacheDir), maxBytes, maxEntryBytes);
+    }
+}
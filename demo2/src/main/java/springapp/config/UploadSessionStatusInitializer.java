@@ -0,0 +1,25 @@
+package springapp.config;
+
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+// Hibernate creates a check constraint listing the enum values when it creates upload_session, and ddl-auto=update
+// never widens it, so tables created before COMPLETING existed would reject it. The enum is the only writer of the
+// column, so the constraint is dropped rather than kept in step by hand.
+@Component
+@DependsOn("entityManagerFactory")
+public class UploadSessionStatusInitializer implements InitializingBean {
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public UploadSessionStatusInitializer(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        jdbcTemplate.execute("alter table upload_session drop constraint if exists upload_session_status_check");
+    }
+}
@@ -0,0 +1,29 @@
+package springapp.config;
+
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+// Usernames and emails are unique regardless of case. ddl-auto cannot create expression indexes, so they are created
+// here, concurrently so writes to users go on meanwhile (see OnlineIndexes); the bulk import upserts against the
+// username one (ON CONFLICT needs a unique index to infer). Creation fails, and with it startup, if existing rows
+// already differ only in case.
+@Component
+@DependsOn("entityManagerFactory")
+public class UserIndexInitializer implements InitializingBean {
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public UserIndexInitializer(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        OnlineIndexes.create(jdbcTemplate, "ux_users_lower_username",
+                "create unique index concurrently if not exists ux_users_lower_username on users (lower(username))");
+        OnlineIndexes.create(jdbcTemplate, "ux_users_lower_email",
+                "create unique index concurrently if not exists ux_users_lower_email on users (lower(email))");
+    }
+}
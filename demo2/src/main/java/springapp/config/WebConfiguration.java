@@ -0,0 +1,56 @@
+package springapp.config;
+
+import java.time.Duration;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+import springapp.storage.StoredObjectHttpMessageConverter;
+
+@Configuration
+public class WebConfiguration implements WebMvcConfigurer {
+
+    private final MeterRegistry meterRegistry;
+
+    public WebConfiguration(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+        converters.add(0, new StoredObjectHttpMessageConverter(meterRegistry));
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(new RequestStatementMetricsInterceptor(meterRegistry));
+    }
+
+    // the paths of the endpoints that move file bytes; listing, search and user management are not limited, and the
+    // filter itself lets the status, presign, signed URL and thumbnail endpoints under these paths through
+    @Bean
+    @ConditionalOnProperty(name = "admission.enabled", havingValue = "true", matchIfMissing = true)
+    public FilterRegistrationBean<AdmissionControlFilter> admissionControlFilter(
+            @Value("${admission.user.requests-per-second:20}") double requestsPerSecond,
+            @Value("${admission.user.burst:40}") int burst,
+            @Value("${admission.user.max-concurrent:8}") int maxConcurrentPerUser,
+            @Value("${admission.max-inflight-bytes:536870912}") long maxInFlightBytes,
+            @Value("${admission.unknown-size-reservation-bytes:2097152}") long unknownSizeReservation,
+            @Value("${admission.max-tracked-users:100000}") long maxTrackedUsers,
+            @Value("${admission.idle-timeout-seconds:600}") long idleTimeoutSeconds) {
+        FilterRegistrationBean<AdmissionControlFilter> registration = new FilterRegistrationBean<>(
+                new AdmissionControlFilter(meterRegistry, requestsPerSecond, burst, maxConcurrentPerUser,
+                        maxInFlightBytes, unknownSizeReservation, maxTrackedUsers, Duration.ofSeconds(idleTimeoutSeconds)));
+        registration.addUrlPatterns("/upload", "/upload/*", "/uploads/*", "/download/*", "/archive");
+        return registration;
+    }
+}
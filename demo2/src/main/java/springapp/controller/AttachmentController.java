@@ -0,0 +1,47 @@
+package springapp.controller;
+
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import springapp.service.DeletionService;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+// deleting attachments: one at once, or many as a background job to poll
+@RestController
+@RequestMapping("/attachments")
+public class AttachmentController {
+
+    private final DeletionService deletionService;
+
+    public AttachmentController(DeletionService deletionService) {
+        this.deletionService = deletionService;
+    }
+
+    @DeleteMapping("/{attachmentId}")
+    public ResponseEntity<Object> deleteAttachment(@PathVariable Long attachmentId,
+            @RequestParam(value = "userId", required = false) Long userId) {
+        return deletionService.deleteAttachment(attachmentId, userId);
+    }
+
+    // all of a user's attachments, or only the listed attachmentIds, or those last updated before a date (of every
+    // user when no userId is given)
+    @DeleteMapping
+    public ResponseEntity<Object> deleteAttachments(
+            @RequestParam(value = "userId", required = false) Long userId,
+            @RequestParam(value = "attachmentIds", required = false) List<Long> attachmentIds,
+            @RequestParam(value = "before", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime before) {
+        return deletionService.startDelete(userId, attachmentIds, before);
+    }
+
+    @GetMapping("/delete-jobs/{jobId}")
+    public ResponseEntity<Object> getDeleteJob(@PathVariable String jobId) {
+        return deletionService.getJob(jobId);
+    }
+
+    @DeleteMapping("/delete-jobs/{jobId}")
+    public ResponseEntity<Object> cancelDeleteJob(@PathVariable String jobId) {
+        return deletionService.cancelJob(jobId);
+    }
+}
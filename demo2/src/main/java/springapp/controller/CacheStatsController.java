@@ -0,0 +1,34 @@
+package springapp.controller;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import springapp.service.MetadataCache;
+import springapp.storage.CachingObjectStorage;
+
+@RestController
+public class CacheStatsController {
+
+    private final ObjectProvider<CachingObjectStorage> storageCache;
+    private final MetadataCache metadataCache;
+
+    public CacheStatsController(ObjectProvider<CachingObjectStorage> storageCache, MetadataCache metadataCache) {
+        this.storageCache = storageCache;
+        this.metadataCache = metadataCache;
+    }
+
+    //cache counters---------------------------------------------------------------------------------------------------------------------------
+    @GetMapping("/cache/stats")
+    public ResponseEntity<Object> cacheStats() {
+        Map<String, Object> response = new LinkedHashMap<>();
+        CachingObjectStorage cache = storageCache.getIfAvailable();
+        response.put("storage", cache != null ? cache.stats() : "disabled");
+        response.put("metadata", metadataCache.stats());
+        return ResponseEntity.ok(response);
+    }
+}
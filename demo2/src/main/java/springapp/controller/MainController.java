@@ -1,71 +1,225 @@
-package springapp.controller;
-
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.ResponseEntity;
-import org.springframework.core.io.Resource;
-import org.springframework.http.HttpStatus;
-import org.springframework.web.bind.annotation.*;
-import org.springframework.web.multipart.MaxUploadSizeExceededException;
-import org.springframework.web.multipart.MultipartFile;
-import springapp.model.UserAttachment;
-import springapp.repository.AttachmentRepository;
-import springapp.service.DemoService;
-import java.io.IOException;
-import java.util.List;
-import java.util.Map;
-import java.util.Optional;
-
-@RestController
-@RequestMapping
-public class MainController {
-
-    private final DemoService s3Service;
-    private final AttachmentRepository attachmentRepo;
-
-    public MainController(DemoService s3Service,AttachmentRepository attachmentRepo) {
-        this.s3Service = s3Service;
-		this.attachmentRepo = attachmentRepo;
-    }
-    //uploading file----------------------------------------------------------------------------------------------------------------
-    @PostMapping("/upload")
-    public ResponseEntity<String> uploadFile(@RequestParam("file") MultipartFile file, @RequestParam(value = "userId",required = false) Long userId) {
-        try {
-            String message = s3Service.uploadFileAndCreateAttachment(file, userId);
-            return new ResponseEntity<>(message, HttpStatus.OK);
-        } catch (Exception e) {
-            return new ResponseEntity<>(e.getMessage(), HttpStatus.BAD_REQUEST);
-        }
-    }
-    @RestControllerAdvice
-	public class GlobalExceptionHandler {
- 
-	    @ExceptionHandler(MaxUploadSizeExceededException.class)
-	    public ResponseEntity<String> handleFileSizeLimitExceeded(MaxUploadSizeExceededException ex) {
-	        return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("File size exceeds the 5 MB of limit");
-	    }
-	}
-   //list of files------------------------------------------------------------------------------------------------------------------------
-    @GetMapping("/list")
-    public ResponseEntity<Object> listFiles(
-            @RequestParam(required = false) Long userId,
-            @RequestParam(required = false) Integer page,
-            @RequestParam(required = false) Integer size) {
-        return s3Service.getFiles(userId, page, size);
-    }
-
-    //downloading files-----------------------------------------------------------------------------------------------------------------------
-    @GetMapping("/download/{filename}")
-    public ResponseEntity<byte[]> downloadFile(
-            @PathVariable String filename,
-            @RequestParam(value = "userId", required = true) Long userId,
-            @RequestParam(value = "attachmentId", required = true) Long attachmentId) {
-
-        try {
-            return s3Service.downloadFileForUser(filename, userId, attachmentId);
-        } catch (Exception e) {
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                    .body(("Internal server error: " + e.getMessage()).getBytes());
-        }
-    }
-
-}
+package springapp.controller;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
+import org.springframework.web.multipart.MultipartFile;
+import springapp.model.UserAttachment;
+import springapp.repository.AttachmentRepository;
+import springapp.service.ArchiveService;
+import springapp.service.AsyncUploadService;
+import springapp.service.BatchUploadService;
+import springapp.service.DemoService;
+import springapp.service.DirectTransferService;
+import springapp.service.SearchService;
+import springapp.service.ThumbnailService;
+import springapp.service.UploadBuffersBusyException;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+@RestController
+@RequestMapping
+public class MainController {
+
+    private final DemoService s3Service;
+    private final AttachmentRepository attachmentRepo;
+    private final BatchUploadService batchUploadService;
+    private final ArchiveService archiveService;
+    private final AsyncUploadService asyncUploadService;
+    private final DirectTransferService directTransferService;
+    private final ThumbnailService thumbnailService;
+    private final SearchService searchService;
+
+    public MainController(DemoService s3Service,AttachmentRepository attachmentRepo, BatchUploadService batchUploadService,
+                          ArchiveService archiveService, AsyncUploadService asyncUploadService,
+                          DirectTransferService directTransferService, ThumbnailService thumbnailService,
+                          SearchService searchService) {
+        this.s3Service = s3Service;
+		this.attachmentRepo = attachmentRepo;
+        this.batchUploadService = batchUploadService;
+        this.archiveService = archiveService;
+        this.asyncUploadService = asyncUploadService;
+        this.directTransferService = directTransferService;
+        this.thumbnailService = thumbnailService;
+        this.searchService = searchService;
+    }
+    //uploading file----------------------------------------------------------------------------------------------------------------
+    @PostMapping("/upload")
+    public ResponseEntity<String> uploadFile(@RequestParam("file") MultipartFile file, @RequestParam(value = "userId",required = false) Long userId) {
+        try {
+            String message = s3Service.uploadFileAndCreateAttachment(file, userId);
+            return new ResponseEntity<>(message, HttpStatus.OK);
+        } catch (Exception e) {
+            return new ResponseEntity<>(e.getMessage(), HttpStatus.BAD_REQUEST);
+        }
+    }
+    //uploading without waiting for storage--------------------------------------------------------------------------------------------------
+    // answers 202 once the file is spooled; the status URL tells when it is STORED or FAILED
+    @PostMapping("/upload/async")
+    public ResponseEntity<Object> uploadFileAsync(@RequestParam("file") MultipartFile file,
+            @RequestParam(value = "userId", required = false) Long userId) {
+        return asyncUploadService.accept(file, userId);
+    }
+
+    @GetMapping("/upload/status/{attachmentId}")
+    public ResponseEntity<Object> uploadStatus(@PathVariable Long attachmentId,
+            @RequestParam(value = "userId", required = false) Long userId) {
+        return asyncUploadService.getStatus(attachmentId, userId);
+    }
+    //uploading straight to S3-------------------------------------------------------------------------------------------------------------
+    // answers with a presigned PUT URL; the row is STORED only once complete has seen the object
+    @PostMapping("/upload/direct")
+    public ResponseEntity<Object> requestDirectUpload(@RequestParam("fileName") String fileName,
+            @RequestParam("fileType") String fileType,
+            @RequestParam(value = "size", required = false) Long size,
+            @RequestParam(value = "userId", required = false) Long userId) {
+        return directTransferService.requestUpload(userId, fileName, fileType, size);
+    }
+
+    @PostMapping("/upload/direct/{attachmentId}/complete")
+    public ResponseEntity<Object> completeDirectUpload(@PathVariable Long attachmentId,
+            @RequestParam(value = "userId", required = false) Long userId) {
+        return directTransferService.completeUpload(attachmentId, userId);
+    }
+    //uploading several files in one request------------------------------------------------------------------------------------------------
+    @PostMapping("/upload/batch")
+    public ResponseEntity<Object> uploadFiles(@RequestParam(value = "files", required = false) List<MultipartFile> files,
+            @RequestParam(value = "userId", required = false) Long userId) {
+        return batchUploadService.uploadBatch(files, userId);
+    }
+    //streaming upload for large files---------------------------------------------------------------------------------------------------
+    // the raw request body is the file, so it bypasses multipart spooling and the multipart size limits
+    @PostMapping("/upload/stream")
+    public ResponseEntity<String> uploadLargeFile(HttpServletRequest request,
+            @RequestParam("fileName") String fileName,
+            @RequestParam(value = "userId", required = false) Long userId) {
+        try {
+            String message = s3Service.uploadStreamAndCreateAttachment(request.getInputStream(), fileName, request.getContentType(), userId);
+            return new ResponseEntity<>(message, HttpStatus.OK);
+        } catch (UploadBuffersBusyException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, "5")
+                    .body(e.getMessage());
+        } catch (Exception e) {
+            return new ResponseEntity<>(e.getMessage(), HttpStatus.BAD_REQUEST);
+        }
+    }
+    @RestControllerAdvice
+	public class GlobalExceptionHandler {
+ 
+	    @ExceptionHandler(MaxUploadSizeExceededException.class)
+	    public ResponseEntity<String> handleFileSizeLimitExceeded(MaxUploadSizeExceededException ex) {
+	        return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("File size exceeds the 5 MB of limit");
+	    }
+	}
+   //list of files------------------------------------------------------------------------------------------------------------------------
+    @GetMapping("/list")
+    public ResponseEntity<Object> listFiles(
+            @RequestParam(required = false) Long userId,
+            @RequestParam(required = false) Integer page,
+            @RequestParam(required = false) Integer size,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "false") boolean includeTotal) {
+        // cursor mode: pass an empty cursor for the first page, then the nextCursor of each response
+        if (cursor != null) {
+            return s3Service.getFilesAfter(userId, cursor, size, includeTotal);
+        }
+        return s3Service.getFiles(userId, page, size);
+    }
+
+    // the whole listing as one JSON document, written while rows are read
+    @GetMapping("/list/stream")
+    public void streamFiles(@RequestParam(required = false) Long userId, HttpServletResponse response) throws IOException {
+        if (userId != null && userId < 1) {
+            response.sendError(HttpStatus.BAD_REQUEST.value(), "userId should be positive");
+            return;
+        }
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        s3Service.streamFiles(userId, response.getOutputStream());
+    }
+
+    //searching files by name-----------------------------------------------------------------------------------------------------------------
+    // mode: prefix (default), contains or similar
+    @GetMapping("/search")
+    public ResponseEntity<Object> searchFiles(
+            @RequestParam(required = false) Long userId,
+            @RequestParam(value = "q", required = false) String query,
+            @RequestParam(required = false) String mode,
+            @RequestParam(required = false) Integer page,
+            @RequestParam(required = false) Integer size) {
+        return searchService.search(userId, query, mode, page, size);
+    }
+
+    //downloading several files as one ZIP---------------------------------------------------------------------------------------------------
+    // all of the user's files, or only the listed attachmentIds, or those last updated between from and to
+    @GetMapping("/archive")
+    public void downloadArchive(
+            @RequestParam(value = "userId", required = false) Long userId,
+            @RequestParam(value = "attachmentIds", required = false) List<Long> attachmentIds,
+            @RequestParam(value = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(value = "to", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+            HttpServletResponse response) throws IOException {
+        ArchiveService.Archive archive;
+        try {
+            archive = archiveService.prepare(userId, attachmentIds, from, to);
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpStatus.BAD_REQUEST.value(), e.getMessage());
+            return;
+        }
+        if (archive == null) {
+            response.sendError(HttpStatus.NOT_FOUND.value(), "No attachments found for the specified userId");
+            return;
+        }
+        response.setContentType("application/zip");
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION,
+                ContentDisposition.attachment().filename(archive.getFileName()).build().toString());
+        archive.writeTo(response.getOutputStream());
+    }
+
+    //downloading files-----------------------------------------------------------------------------------------------------------------------
+    @GetMapping("/download/{filename}")
+    public ResponseEntity<Object> downloadFile(
+            @PathVariable String filename,
+            @RequestParam(value = "userId", required = true) Long userId,
+            @RequestParam(value = "attachmentId", required = true) Long attachmentId,
+            @RequestHeader HttpHeaders requestHeaders) {
+
+        try {
+            return s3Service.downloadFileForUser(filename, userId, attachmentId, requestHeaders);
+        } catch (Exception e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(("Internal server error: " + e.getMessage()).getBytes());
+        }
+    }
+
+    // same checks as a download, but answers with a presigned GET URL instead of the file
+    @GetMapping("/download/{filename}/url")
+    public ResponseEntity<Object> downloadUrl(
+            @PathVariable String filename,
+            @RequestParam(value = "userId", required = true) Long userId,
+            @RequestParam(value = "attachmentId", required = true) Long attachmentId) {
+        return directTransferService.requestDownload(filename, userId, attachmentId);
+    }
+
+    // a scaled-down JPEG or PNG, see the thumbnails of each /list entry; cacheable for as long as the attachment lives
+    @GetMapping("/download/{filename}/thumbnail")
+    public ResponseEntity<Object> downloadThumbnail(
+            @PathVariable String filename,
+            @RequestParam(value = "userId", required = true) Long userId,
+            @RequestParam(value = "attachmentId", required = true) Long attachmentId,
+            @RequestParam(value = "size", required = false) Integer size) {
+        return thumbnailService.download(filename, userId, attachmentId, size);
+    }
+
+}
@@ -0,0 +1,32 @@
+package springapp.controller;
+
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import springapp.service.ReconciliationService;
+
+// comparing storage with the database as a background job to poll; repair=false only reports
+@RestController
+@RequestMapping("/reconcile")
+public class ReconciliationController {
+
+    private final ReconciliationService reconciliationService;
+
+    public ReconciliationController(ReconciliationService reconciliationService) {
+        this.reconciliationService = reconciliationService;
+    }
+
+    @PostMapping
+    public ResponseEntity<Object> startReconcile(@RequestParam(value = "repair", defaultValue = "false") boolean repair) {
+        return reconciliationService.startReconcile(repair);
+    }
+
+    @GetMapping("/{jobId}")
+    public ResponseEntity<Object> getReconcileJob(@PathVariable String jobId) {
+        return reconciliationService.getJob(jobId);
+    }
+
+    @DeleteMapping("/{jobId}")
+    public ResponseEntity<Object> cancelReconcileJob(@PathVariable String jobId) {
+        return reconciliationService.cancelJob(jobId);
+    }
+}
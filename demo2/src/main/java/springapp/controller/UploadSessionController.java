@@ -0,0 +1,77 @@
+package springapp.controller;
+
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import springapp.service.UploadSessionService;
+
+// resumable uploads: create a session, PUT chunks in any order, check what arrived, then complete
+@RestController
+@RequestMapping("/uploads")
+public class UploadSessionController {
+
+    private final UploadSessionService uploadSessionService;
+
+    public UploadSessionController(UploadSessionService uploadSessionService) {
+        this.uploadSessionService = uploadSessionService;
+    }
+
+    @PostMapping
+    public ResponseEntity<Object> createSession(
+            @RequestParam(value = "userId", required = false) Long userId,
+            @RequestParam("fileName") String fileName,
+            @RequestParam("fileType") String fileType,
+            @RequestParam(value = "totalSize", required = false) Long totalSize) {
+        try {
+            return uploadSessionService.createSession(userId, fileName, fileType, totalSize);
+        } catch (Exception e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(e.getMessage());
+        }
+    }
+
+    @PutMapping("/{sessionId}/chunks/{partNumber}")
+    public ResponseEntity<Object> uploadChunk(
+            @PathVariable String sessionId,
+            @PathVariable int partNumber,
+            @RequestParam(value = "userId", required = false) Long userId,
+            HttpServletRequest request) {
+        if (request.getContentLengthLong() < 0) {
+            return ResponseEntity.status(HttpStatus.LENGTH_REQUIRED).body("Content-Length is required for chunks");
+        }
+        try {
+            return uploadSessionService.uploadChunk(sessionId, userId, partNumber, request.getInputStream(), request.getContentLengthLong());
+        } catch (Exception e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(e.getMessage());
+        }
+    }
+
+    @GetMapping("/{sessionId}")
+    public ResponseEntity<Object> getSession(
+            @PathVariable String sessionId,
+            @RequestParam(value = "userId", required = false) Long userId) {
+        return uploadSessionService.getSession(sessionId, userId);
+    }
+
+    @PostMapping("/{sessionId}/complete")
+    public ResponseEntity<Object> completeSession(
+            @PathVariable String sessionId,
+            @RequestParam(value = "userId", required = false) Long userId) {
+        try {
+            return uploadSessionService.completeSession(sessionId, userId);
+        } catch (Exception e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(e.getMessage());
+        }
+    }
+
+    @DeleteMapping("/{sessionId}")
+    public ResponseEntity<Object> abortSession(
+            @PathVariable String sessionId,
+            @RequestParam(value = "userId", required = false) Long userId) {
+        try {
+            return uploadSessionService.abortSession(sessionId, userId);
+        } catch (Exception e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(e.getMessage());
+        }
+    }
+}
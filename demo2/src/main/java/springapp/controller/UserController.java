@@ -1,37 +1,55 @@
-package springapp.controller;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestBody;
-import org.springframework.web.bind.annotation.RestController;
-
-import springapp.model.User;
-import springapp.repository.UserRespository;
-import springapp.service.UserService;
-
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.http.HttpStatus;
-import org.springframework.http.ResponseEntity;
-import org.springframework.web.bind.annotation.ExceptionHandler;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestBody;
-import org.springframework.web.bind.annotation.RestController;
-
-@RestController
-public class UserController {
-
-    @Autowired
-    private UserService userService;
-
-    @PostMapping("addUser")
-    public ResponseEntity<Object> saveUser(@RequestBody User user) {
-        try {
-            // Save user after validation
-            User savedUser = userService.saveUser(user);
-            return new ResponseEntity<>(savedUser, HttpStatus.CREATED);
-        } catch (IllegalArgumentException e) {
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
-        }
-    }
-}
-
-
-
+package springapp.controller;
+
+import springapp.model.User;
+import springapp.service.UserImportService;
+import springapp.service.UserService;
+
+import java.io.IOException;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+public class UserController {
+
+    private static final MediaType TEXT_CSV = MediaType.parseMediaType("text/csv");
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private UserImportService userImportService;
+
+    @PostMapping("addUser")
+    public ResponseEntity<Object> saveUser(@RequestBody User user) {
+        try {
+            // Save user after validation
+            User savedUser = userService.saveUser(user);
+            return new ResponseEntity<>(savedUser, HttpStatus.CREATED);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+        }
+    }
+
+    // many users in one request: one row per line, answered with an NDJSON report of rejected rows and a summary line
+    @PostMapping(value = "importUsers", consumes = {"application/x-ndjson", "text/csv"})
+    public void importUsers(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        UserImportService.Format format = MediaType.parseMediaType(request.getContentType()).isCompatibleWith(TEXT_CSV)
+                ? UserImportService.Format.CSV
+                : UserImportService.Format.NDJSON;
+        response.setContentType("application/x-ndjson");
+        userImportService.importUsers(request.getInputStream(), format, response.getOutputStream());
+    }
+}
+
+
+
@@ -0,0 +1,5 @@
+package springapp.model;
+
+// what a download checks before it touches storage: owner, name, state and where the bytes live
+public record AttachmentOwnership(Long id, Long userId, String fileName, AttachmentStatus status, String blobHash) {
+}
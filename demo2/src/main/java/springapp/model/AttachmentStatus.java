@@ -0,0 +1,12 @@
+package springapp.model;
+
+public enum AttachmentStatus {
+
+    // row exists but its object is still being written, hidden from listing and download
+    UPLOADING,
+    // accepted by /upload/async and spooled locally, waiting for an outbox worker to store it
+    PENDING,
+    STORED,
+    // the outbox gave up after its last retry
+    FAILED
+}
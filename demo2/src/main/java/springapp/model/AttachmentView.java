@@ -0,0 +1,23 @@
+package springapp.model;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+// what /list returns per attachment, selected column by column so no entity or owning user is loaded;
+// blobHash is only there to resolve the storage key
+public record AttachmentView(Long id, String fileName, String fileType, Long userId, LocalDateTime lastUpdatedOn,
+                             @JsonIgnore String blobHash, @JsonIgnore String thumbnails) {
+
+    // the sizes that /download/{filename}/thumbnail serves, so a gallery never has to fetch the original
+    @JsonProperty("thumbnails")
+    public List<Integer> thumbnailSizes() {
+        if (thumbnails == null || thumbnails.isEmpty()) {
+            return List.of();
+        }
+        return Arrays.stream(thumbnails.split(",")).map(Integer::valueOf).toList();
+    }
+}
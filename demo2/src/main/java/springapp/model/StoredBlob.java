@@ -0,0 +1,68 @@
+package springapp.model;
+
+
+import java.time.LocalDateTime;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+
+// one stored object per distinct content, shared by every attachment with the same bytes; the row goes away with
+// its last reference. Rows are only written through the native statements in StoredBlobRepository.
+@Entity
+public class StoredBlob {
+
+    // lowercase hex SHA-256 of the content
+    @Id
+    @Column(length = 64)
+    private String hash;
+
+    private long size;
+    private int refCount;
+
+    // false until the object has been written; a second uploader of the same bytes writes it too rather than
+    // pointing at an object that may never arrive
+    private boolean stored;
+
+    private LocalDateTime createdOn;
+
+	public String getHash() {
+		return hash;
+	}
+
+	public void setHash(String hash) {
+		this.hash = hash;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public void setSize(long size) {
+		this.size = size;
+	}
+
+	public int getRefCount() {
+		return refCount;
+	}
+
+	public void setRefCount(int refCount) {
+		this.refCount = refCount;
+	}
+
+	public boolean isStored() {
+		return stored;
+	}
+
+	public void setStored(boolean stored) {
+		this.stored = stored;
+	}
+
+	public LocalDateTime getCreatedOn() {
+		return createdOn;
+	}
+
+	public void setCreatedOn(LocalDateTime createdOn) {
+		this.createdOn = createdOn;
+	}
+}
@@ -0,0 +1,137 @@
+package springapp.model;
+
+
+import java.time.LocalDateTime;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+
+// one spooled upload still to be written to storage; inserted in the same transaction as its attachment row
+// and deleted in the same transaction that marks the attachment STORED
+@Entity
+@Table(indexes = {
+        @Index(name = "idx_upload_outbox_due", columnList = "node, status, next_attempt_at"),
+        @Index(name = "idx_upload_outbox_attachment", columnList = "attachment_id")
+})
+public class UploadOutboxEntry {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    private Long attachmentId;
+
+    // the spool file is local to the instance that accepted the upload, so only that node drains the entry
+    private String node;
+    private String spoolPath;
+    private long size;
+    private String fileType;
+
+    @Enumerated(EnumType.STRING)
+    private UploadOutboxStatus status;
+
+    private int attempts;
+
+    // earliest time of the next attempt; a claim pushes it out by the lease, so a crashed worker's entries come back
+    private LocalDateTime nextAttemptAt;
+
+    @Column(length = 1000)
+    private String lastError;
+
+    private LocalDateTime createdOn;
+
+	public Long getId() {
+		return id;
+	}
+
+	public void setId(Long id) {
+		this.id = id;
+	}
+
+	public Long getAttachmentId() {
+		return attachmentId;
+	}
+
+	public void setAttachmentId(Long attachmentId) {
+		this.attachmentId = attachmentId;
+	}
+
+	public String getNode() {
+		return node;
+	}
+
+	public void setNode(String node) {
+		this.node = node;
+	}
+
+	public String getSpoolPath() {
+		return spoolPath;
+	}
+
+	public void setSpoolPath(String spoolPath) {
+		this.spoolPath = spoolPath;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public void setSize(long size) {
+		this.size = size;
+	}
+
+	public String getFileType() {
+		return fileType;
+	}
+
+	public void setFileType(String fileType) {
+		this.fileType = fileType;
+	}
+
+	public UploadOutboxStatus getStatus() {
+		return status;
+	}
+
+	public void setStatus(UploadOutboxStatus status) {
+		this.status = status;
+	}
+
+	public int getAttempts() {
+		return attempts;
+	}
+
+	public void setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
+
+	public LocalDateTime getNextAttemptAt() {
+		return nextAttemptAt;
+	}
+
+	public void setNextAttemptAt(LocalDateTime nextAttemptAt) {
+		this.nextAttemptAt = nextAttemptAt;
+	}
+
+	public String getLastError() {
+		return lastError;
+	}
+
+	public void setLastError(String lastError) {
+		this.lastError = lastError;
+	}
+
+	public LocalDateTime getCreatedOn() {
+		return createdOn;
+	}
+
+	public void setCreatedOn(LocalDateTime createdOn) {
+		this.createdOn = createdOn;
+	}
+}
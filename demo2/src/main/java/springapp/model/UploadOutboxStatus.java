@@ -0,0 +1,8 @@
+package springapp.model;
+
+public enum UploadOutboxStatus {
+
+    PENDING,
+    // out of retries; kept for inspection, the attachment is FAILED as well
+    FAILED
+}
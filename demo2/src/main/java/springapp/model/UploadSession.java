@@ -0,0 +1,129 @@
+package springapp.model;
+
+
+import java.time.LocalDateTime;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.JoinColumn;
+import jakarta.persistence.ManyToOne;
+import jakarta.persistence.Table;
+
+@Entity
+// deleting attachments removes their sessions first
+@Table(indexes = @Index(name = "idx_upload_session_attachment", columnList = "attachment_id"))
+public class UploadSession {
+
+    // random UUID, the session id is the only handle a client needs to resume
+    @Id
+    private String id;
+
+    private Long userId;
+
+    @ManyToOne
+    @JoinColumn(name = "attachment_id")
+    private UserAttachment attachment;
+
+    private String objectKey;
+    private String s3UploadId;
+    private long totalSize;
+    private long chunkSize;
+    private int partCount;
+
+    @Enumerated(EnumType.STRING)
+    private UploadSessionStatus status;
+
+    private LocalDateTime createdOn;
+    private LocalDateTime lastUpdatedOn;
+
+	public String getId() {
+		return id;
+	}
+
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	public Long getUserId() {
+		return userId;
+	}
+
+	public void setUserId(Long userId) {
+		this.userId = userId;
+	}
+
+	public UserAttachment getAttachment() {
+		return attachment;
+	}
+
+	public void setAttachment(UserAttachment attachment) {
+		this.attachment = attachment;
+	}
+
+	public String getObjectKey() {
+		return objectKey;
+	}
+
+	public void setObjectKey(String objectKey) {
+		this.objectKey = objectKey;
+	}
+
+	public String getS3UploadId() {
+		return s3UploadId;
+	}
+
+	public void setS3UploadId(String s3UploadId) {
+		this.s3UploadId = s3UploadId;
+	}
+
+	public long getTotalSize() {
+		return totalSize;
+	}
+
+	public void setTotalSize(long totalSize) {
+		this.totalSize = totalSize;
+	}
+
+	public long getChunkSize() {
+		return chunkSize;
+	}
+
+	public void setChunkSize(long chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	public int getPartCount() {
+		return partCount;
+	}
+
+	public void setPartCount(int partCount) {
+		this.partCount = partCount;
+	}
+
+	public UploadSessionStatus getStatus() {
+		return status;
+	}
+
+	public void setStatus(UploadSessionStatus status) {
+		this.status = status;
+	}
+
+	public LocalDateTime getCreatedOn() {
+		return createdOn;
+	}
+
+	public void setCreatedOn(LocalDateTime createdOn) {
+		this.createdOn = createdOn;
+	}
+
+	public LocalDateTime getLastUpdatedOn() {
+		return lastUpdatedOn;
+	}
+
+	public void setLastUpdatedOn(LocalDateTime lastUpdatedOn) {
+		this.lastUpdatedOn = lastUpdatedOn;
+	}
+}
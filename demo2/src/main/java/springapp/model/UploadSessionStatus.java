@@ -0,0 +1,11 @@
+package springapp.model;
+
+public enum UploadSessionStatus {
+
+    OPEN,
+    // claimed by a complete call while storage assembles the parts
+    COMPLETING,
+    COMPLETED,
+    ABORTED,
+    EXPIRED
+}
@@ -1,91 +1,184 @@
-package springapp.model;
-
-
-import java.time.LocalDate;
-import java.time.LocalDateTime;
-
-import jakarta.persistence.Entity;
-import jakarta.persistence.GeneratedValue;
-import jakarta.persistence.GenerationType;
-import jakarta.persistence.Id;
-import jakarta.persistence.JoinColumn;
-import jakarta.persistence.ManyToOne;
-import lombok.AllArgsConstructor;
-import lombok.Data;
-import lombok.NoArgsConstructor;
-
-@Entity
-public class UserAttachment {
-
-    @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
-    private Long id;
-    private String fileName;
-    private String fileType;
-
-    @ManyToOne
-    @JoinColumn(name = "user_id")
-    private User user;
-    
-    private LocalDateTime lastUpdatedOn;
-
-	public Long getId() {
-		return id;
-	}
-
-	public void setId(Long id) {
-		this.id = id;
-	}
-
-	
-	
-
-	public String getFileName() {
-		return fileName;
-	}
-
-	public void setFileName(String fileName) {
-		this.fileName = fileName;
-	}
-
-	public String getFileType() {
-		return fileType;
-	}
-
-	public void setFileType(String fileType) {
-		this.fileType = fileType;
-	}
-
-	public User getUser() {
-		return user;
-	}
-
-	public void setUser(User user) {
-		this.user = user;
-	}
-
-	public LocalDateTime getLastUpdatedOn() {
-		return lastUpdatedOn;
-	}
-
-	public void setLastUpdatedOn(LocalDateTime lastUpdatedOn) {
-		this.lastUpdatedOn = lastUpdatedOn;
-	}
-
-	public UserAttachment(Long id, String attachmentId, String fileName, String fileType, User user,
-			LocalDateTime lastUpdatedOn) {
-		
-		this.id = id;
-		
-		this.fileName = fileName;
-		this.fileType = fileType;
-		this.user = user;
-		this.lastUpdatedOn = lastUpdatedOn;
-	}
-
-	public UserAttachment() {
-		super();
-	}  
-}
-
-
+package springapp.model;
+
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.FetchType;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.JoinColumn;
+import jakarta.persistence.ManyToOne;
+import jakarta.persistence.SequenceGenerator;
+
+import org.hibernate.annotations.ColumnDefault;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Entity
+// its indexes, including the two matching the keyset order of /list, are built concurrently by AttachmentIndexInitializer
+public class UserAttachment {
+
+    // pooled sequence: one nextval hands out 50 ids, and unlike IDENTITY it lets Hibernate batch the inserts
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "user_attachment_seq")
+    @SequenceGenerator(name = "user_attachment_seq", sequenceName = "user_attachment_seq", allocationSize = 50)
+    private Long id;
+    private String fileName;
+    private String fileType;
+
+    // only the owner id is needed on the hot paths, which the proxy answers without a select
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "user_id")
+    private User user;
+    
+    private LocalDateTime lastUpdatedOn;
+
+    // SHA-256 of the content when it lives in a shared blob; null for objects stored under their own key
+    @Column(length = 64)
+    private String blobHash;
+
+    // existing rows predate the column, the default marks them as stored
+    @Enumerated(EnumType.STRING)
+    @Column(length = 16)
+    @ColumnDefault("'STORED'")
+    private AttachmentStatus status = AttachmentStatus.STORED;
+
+    // edge lengths of the generated thumbnails, e.g. "128,512"; empty when the image could not be read, null until
+    // the thumbnail pipeline has seen the row (and for everything that is not a JPEG or PNG)
+    @Column(length = 64)
+    private String thumbnails;
+
+    // failed thumbnail attempts so far, null for none, and when the sweep may try again; past the limit the row gets
+    // empty thumbnails instead
+    private Integer thumbnailAttempts;
+    private LocalDateTime thumbnailRetryOn;
+
+    // direct uploads only: the size the client announced, checked when it completes, and when its presigned URL
+    // expires, after which a row still UPLOADING is swept
+    private Long expectedSize;
+    private LocalDateTime uploadExpiresOn;
+
+	public Long getId() {
+		return id;
+	}
+
+	public void setId(Long id) {
+		this.id = id;
+	}
+
+	
+	
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public void setFileName(String fileName) {
+		this.fileName = fileName;
+	}
+
+	public String getFileType() {
+		return fileType;
+	}
+
+	public void setFileType(String fileType) {
+		this.fileType = fileType;
+	}
+
+	public User getUser() {
+		return user;
+	}
+
+	public void setUser(User user) {
+		this.user = user;
+	}
+
+	public LocalDateTime getLastUpdatedOn() {
+		return lastUpdatedOn;
+	}
+
+	public void setLastUpdatedOn(LocalDateTime lastUpdatedOn) {
+		this.lastUpdatedOn = lastUpdatedOn;
+	}
+
+	public String getBlobHash() {
+		return blobHash;
+	}
+
+	public void setBlobHash(String blobHash) {
+		this.blobHash = blobHash;
+	}
+
+	public AttachmentStatus getStatus() {
+		return status;
+	}
+
+	public void setStatus(AttachmentStatus status) {
+		this.status = status;
+	}
+
+	public String getThumbnails() {
+		return thumbnails;
+	}
+
+	public void setThumbnails(String thumbnails) {
+		this.thumbnails = thumbnails;
+	}
+
+	public Integer getThumbnailAttempts() {
+		return thumbnailAttempts;
+	}
+
+	public void setThumbnailAttempts(Integer thumbnailAttempts) {
+		this.thumbnailAttempts = thumbnailAttempts;
+	}
+
+	public LocalDateTime getThumbnailRetryOn() {
+		return thumbnailRetryOn;
+	}
+
+	public void setThumbnailRetryOn(LocalDateTime thumbnailRetryOn) {
+		this.thumbnailRetryOn = thumbnailRetryOn;
+	}
+
+	public Long getExpectedSize() {
+		return expectedSize;
+	}
+
+	public void setExpectedSize(Long expectedSize) {
+		this.expectedSize = expectedSize;
+	}
+
+	public LocalDateTime getUploadExpiresOn() {
+		return uploadExpiresOn;
+	}
+
+	public void setUploadExpiresOn(LocalDateTime uploadExpiresOn) {
+		this.uploadExpiresOn = uploadExpiresOn;
+	}
+
+	public UserAttachment(Long id, String attachmentId, String fileName, String fileType, User user,
+			LocalDateTime lastUpdatedOn) {
+		
+		this.id = id;
+		
+		this.fileName = fileName;
+		this.fileType = fileType;
+		this.user = user;
+		this.lastUpdatedOn = lastUpdatedOn;
+	}
+
+	public UserAttachment() {
+		super();
+	}  
+}
+
+
@@ -1,21 +1,167 @@
-package springapp.repository;
-
-import org.springframework.data.jpa.repository.JpaRepository;
-
-import java.util.List;
-
-import org.springframework.data.domain.Page;
-import org.springframework.data.domain.Pageable;
-
-import springapp.model.UserAttachment;
-
-public interface AttachmentRepository extends JpaRepository<UserAttachment, Long> {
-
-    // Method to find files uploaded by a specific user (without pagination)
-	Page<UserAttachment> findByUserId(Long userId, Pageable pageable);
-
-    // Method to find a file by its name (existing functionality)
-    UserAttachment findByFileName(String filename);
-    List<UserAttachment> findByFileNameStartingWith(String fileName);
-}
-
+package springapp.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
+
+import springapp.model.AttachmentOwnership;
+import springapp.model.AttachmentStatus;
+import springapp.model.AttachmentView;
+import springapp.model.UserAttachment;
+
+public interface AttachmentRepository extends JpaRepository<UserAttachment, Long> {
+
+	// slim listing row, see AttachmentView
+	String VIEW = "select new springapp.model.AttachmentView(a.id, a.fileName, a.fileType, a.user.id, a.lastUpdatedOn, a.blobHash, a.thumbnails) from UserAttachment a";
+
+    // Method to find files uploaded by a specific user (without pagination)
+	Page<UserAttachment> findByUserId(Long userId, Pageable pageable);
+
+    // listing only shows attachments whose object has been stored; a.user.id is the foreign key column, no join
+	@Query(value = VIEW + " where a.status = :status",
+			countQuery = "select count(a) from UserAttachment a where a.status = :status")
+	Page<AttachmentView> findViewsByStatus(@Param("status") AttachmentStatus status, Pageable pageable);
+
+	@Query(value = VIEW + " where a.user.id = :userId and a.status = :status",
+			countQuery = "select count(a) from UserAttachment a where a.user.id = :userId and a.status = :status")
+	Page<AttachmentView> findViewsByUserIdAndStatus(@Param("userId") Long userId,
+			@Param("status") AttachmentStatus status, Pageable pageable);
+
+    // keyset pages for /list?cursor=, newest first; a List result with a limit runs no COUNT query.
+    // The row-value comparison is what lets Postgres seek straight into the (user_id, last_updated_on, id) index
+	@Query(VIEW + " where a.status = :status order by a.lastUpdatedOn desc, a.id desc")
+	List<AttachmentView> findFirstKeysetPage(@Param("status") AttachmentStatus status, Pageable limit);
+
+	@Query(VIEW + " where a.status = :status"
+			+ " and (a.lastUpdatedOn, a.id) < (:lastUpdatedOn, :id) order by a.lastUpdatedOn desc, a.id desc")
+	List<AttachmentView> findKeysetPageAfter(@Param("status") AttachmentStatus status,
+			@Param("lastUpdatedOn") LocalDateTime lastUpdatedOn, @Param("id") Long id, Pageable limit);
+
+	@Query(VIEW + " where a.user.id = :userId and a.status = :status"
+			+ " order by a.lastUpdatedOn desc, a.id desc")
+	List<AttachmentView> findFirstKeysetPageByUserId(@Param("userId") Long userId,
+			@Param("status") AttachmentStatus status, Pageable limit);
+
+	@Query(VIEW + " where a.user.id = :userId and a.status = :status"
+			+ " and (a.lastUpdatedOn, a.id) < (:lastUpdatedOn, :id) order by a.lastUpdatedOn desc, a.id desc")
+	List<AttachmentView> findKeysetPageByUserIdAfter(@Param("userId") Long userId,
+			@Param("status") AttachmentStatus status, @Param("lastUpdatedOn") LocalDateTime lastUpdatedOn,
+			@Param("id") Long id, Pageable limit);
+
+	// the read-only ones run in a read-only transaction of their own when called outside one, so that with a replica
+	// configured they are served there
+
+	// archive selection: seeks below (lastUpdatedOn, id), which for the first page is the end of the date range
+	@Transactional(readOnly = true)
+	@Query(VIEW + " where a.user.id = :userId and a.status = :status and a.lastUpdatedOn >= :from"
+			+ " and (a.lastUpdatedOn, a.id) < (:lastUpdatedOn, :id) order by a.lastUpdatedOn desc, a.id desc")
+	List<AttachmentView> findArchivePage(@Param("userId") Long userId, @Param("status") AttachmentStatus status,
+			@Param("from") LocalDateTime from, @Param("lastUpdatedOn") LocalDateTime lastUpdatedOn,
+			@Param("id") Long id, Pageable limit);
+
+	@Transactional(readOnly = true)
+	@Query(VIEW + " where a.user.id = :userId and a.status = :status and a.id in :ids"
+			+ " order by a.lastUpdatedOn desc, a.id desc")
+	List<AttachmentView> findViewsByUserIdAndIds(@Param("userId") Long userId,
+			@Param("status") AttachmentStatus status, @Param("ids") List<Long> ids);
+
+	// whole listing for /list/stream; needs a surrounding transaction and is read through a JDBC cursor
+	@Query(VIEW + " where a.status = :status order by a.lastUpdatedOn desc, a.id desc")
+	@QueryHints({
+			@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "500"),
+			@QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true")
+	})
+	Stream<AttachmentView> streamViews(@Param("status") AttachmentStatus status);
+
+	@Query(VIEW + " where a.user.id = :userId and a.status = :status order by a.lastUpdatedOn desc, a.id desc")
+	@QueryHints({
+			@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "500"),
+			@QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true")
+	})
+	Stream<AttachmentView> streamViewsByUserId(@Param("userId") Long userId, @Param("status") AttachmentStatus status);
+
+	// download check: one primary key lookup, the owner's id read from the foreign key column without a join
+	@Query("select new springapp.model.AttachmentOwnership(a.id, a.user.id, a.fileName, a.status, a.blobHash)"
+			+ " from UserAttachment a where a.id = :id")
+	Optional<AttachmentOwnership> findOwnershipById(@Param("id") Long id);
+
+	// stored images the thumbnail pipeline has not seen yet, oldest first, leaving out those waiting to be retried
+	// after a failure; the literals match the partial index idx_user_attachment_thumbnail_backlog, so the sweep does
+	// not scan the table
+	@Query(VIEW + " where a.thumbnails is null and a.status = springapp.model.AttachmentStatus.STORED"
+			+ " and a.fileType in ('image/jpeg', 'image/png') and (a.thumbnailRetryOn is null or a.thumbnailRetryOn <= :now)"
+			+ " order by a.id")
+	List<AttachmentView> findThumbnailBacklog(@Param("now") LocalDateTime now, Pageable limit);
+
+	// a direct upload becomes STORED once; 0 when another call completed it first, or the sweep removed it
+	@Transactional
+	@Modifying
+	@Query("update UserAttachment a set a.status = springapp.model.AttachmentStatus.STORED, a.lastUpdatedOn = :now"
+			+ " where a.id = :id and a.status = springapp.model.AttachmentStatus.UPLOADING")
+	int markUploadStored(@Param("id") Long id, @Param("now") LocalDateTime now);
+
+	@Transactional
+	@Modifying
+	@Query("update UserAttachment a set a.thumbnails = :thumbnails where a.id = :id")
+	int setThumbnails(@Param("id") Long id, @Param("thumbnails") String thumbnails);
+
+	// counts a failed thumbnail attempt and holds the row back from the sweep until retryOn
+	@Transactional
+	@Modifying
+	@Query("update UserAttachment a set a.thumbnailAttempts = coalesce(a.thumbnailAttempts, 0) + 1,"
+			+ " a.thumbnailRetryOn = :retryOn where a.id = :id and a.thumbnails is null")
+	int recordThumbnailFailure(@Param("id") Long id, @Param("retryOn") LocalDateTime retryOn);
+
+	// a row that failed maxAttempts times gets empty thumbnails, which takes it out of the backlog for good
+	@Transactional
+	@Modifying
+	@Query("update UserAttachment a set a.thumbnails = '' where a.id = :id and a.thumbnails is null"
+			+ " and a.thumbnailAttempts >= :maxAttempts")
+	int giveUpThumbnails(@Param("id") Long id, @Param("maxAttempts") int maxAttempts);
+
+	// /search: ids of one page of a user's stored attachments, fetched as views afterwards. Each condition repeats
+	// the predicate and expression of its index in idx_user_attachment_name_prefix or _trgm, so the planner can use it
+	@Transactional(readOnly = true)
+	@Query(value = "select a.id from user_attachment a where a.user_id = :userId and a.status = 'STORED'"
+			+ " and lower(a.file_name) collate \"C\" like :prefix order by lower(a.file_name) collate \"C\", a.id"
+			+ " limit :limit offset :offset", nativeQuery = true)
+	List<Long> searchIdsByPrefix(@Param("userId") Long userId, @Param("prefix") String prefix,
+			@Param("limit") int limit, @Param("offset") long offset);
+
+	@Transactional(readOnly = true)
+	@Query(value = "select a.id from user_attachment a where a.user_id = :userId and a.status = 'STORED'"
+			+ " and a.file_name ilike :pattern order by a.last_updated_on desc, a.id desc"
+			+ " limit :limit offset :offset", nativeQuery = true)
+	List<Long> searchIdsByPattern(@Param("userId") Long userId, @Param("pattern") String pattern,
+			@Param("limit") int limit, @Param("offset") long offset);
+
+	// pg_trgm similarity above its threshold (0.3 by default), best match first
+	@Transactional(readOnly = true)
+	@Query(value = "select a.id from user_attachment a where a.user_id = :userId and a.status = 'STORED'"
+			+ " and a.file_name % :query order by similarity(a.file_name, :query) desc, a.id"
+			+ " limit :limit offset :offset", nativeQuery = true)
+	List<Long> searchIdsBySimilarity(@Param("userId") Long userId, @Param("query") String query,
+			@Param("limit") int limit, @Param("offset") long offset);
+
+	long countByStatus(AttachmentStatus status);
+	long countByUserIdAndStatus(Long userId, AttachmentStatus status);
+
+    // Method to find a file by its name (existing functionality)
+    UserAttachment findByFileName(String filename);
+    List<UserAttachment> findByFileNameStartingWith(String fileName);
+}
+
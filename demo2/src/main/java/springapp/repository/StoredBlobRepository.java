@@ -0,0 +1,39 @@
+package springapp.repository;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import springapp.model.StoredBlob;
+
+// reference counts only change through single statements, so concurrent uploads of the same bytes never lose an update
+public interface StoredBlobRepository extends JpaRepository<StoredBlob, String> {
+
+    // takes a reference, creating the row on first sight; returns whether the object is already in storage
+    @Transactional
+    @Query(value = "insert into stored_blob (hash, size, ref_count, stored, created_on) values (:hash, :size, 1, false, now())"
+            + " on conflict (hash) do update set ref_count = stored_blob.ref_count + 1 returning stored", nativeQuery = true)
+    boolean acquire(@Param("hash") String hash, @Param("size") long size);
+
+    @Transactional
+    @Modifying
+    @Query(value = "update stored_blob set stored = true where hash = :hash", nativeQuery = true)
+    int markStored(@Param("hash") String hash);
+
+    @Transactional
+    @Modifying
+    @Query(value = "update stored_blob set ref_count = ref_count - 1 where hash = :hash", nativeQuery = true)
+    int release(@Param("hash") String hash);
+
+    // locks an unreferenced row so no upload can take a reference while its object is being deleted
+    @Query(value = "select hash from stored_blob where hash = :hash and ref_count <= 0 for update", nativeQuery = true)
+    String lockUnreferenced(@Param("hash") String hash);
+
+    @Query(value = "select hash from stored_blob where hash in :hashes and ref_count <= 0 for update", nativeQuery = true)
+    List<String> lockUnreferenced(@Param("hashes") Collection<String> hashes);
+}
@@ -0,0 +1,21 @@
+package springapp.repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import springapp.model.UploadOutboxEntry;
+
+public interface UploadOutboxRepository extends JpaRepository<UploadOutboxEntry, Long> {
+
+    // due entries of this node; rows another worker holds are skipped instead of waited for. Call inside a transaction
+    @Query(value = "select * from upload_outbox_entry where node = :node and status = 'PENDING' and next_attempt_at <= :now"
+            + " order by next_attempt_at limit :limit for update skip locked", nativeQuery = true)
+    List<UploadOutboxEntry> claimDue(@Param("node") String node, @Param("now") LocalDateTime now, @Param("limit") int limit);
+
+    Optional<UploadOutboxEntry> findByAttachmentId(Long attachmentId);
+}
@@ -0,0 +1,24 @@
+package springapp.repository;
+
+import java.util.List;
+import java.util.Optional;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import springapp.model.UploadSessionPart;
+
+public interface UploadSessionPartRepository extends JpaRepository<UploadSessionPart, Long> {
+
+    List<UploadSessionPart> findBySessionIdOrderByPartNumber(String sessionId);
+
+    Optional<UploadSessionPart> findBySessionIdAndPartNumber(String sessionId, int partNumber);
+
+    @Transactional
+    @Modifying
+    @Query("delete from UploadSessionPart p where p.sessionId = :sessionId")
+    int deleteBySessionId(@Param("sessionId") String sessionId);
+}
@@ -0,0 +1,38 @@
+package springapp.repository;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import springapp.model.UploadSession;
+import springapp.model.UploadSessionStatus;
+
+public interface UploadSessionRepository extends JpaRepository<UploadSession, String> {
+
+    // sessions nobody has touched since the cutoff, for the sweeper: a page at a time in id order, starting after the
+    // last id of the previous page, so sessions a run could not close are not read again by the same run
+    @Query("select s from UploadSession s where s.status in :statuses and s.lastUpdatedOn < :cutoff and s.id > :after"
+            + " order by s.id")
+    List<UploadSession> findExpired(@Param("statuses") Collection<UploadSessionStatus> statuses,
+                                    @Param("cutoff") LocalDateTime cutoff, @Param("after") String after, Pageable limit);
+
+    // bumps the activity timestamp without loading the row, chunks for one session arrive concurrently
+    @Transactional
+    @Modifying
+    @Query("update UploadSession s set s.lastUpdatedOn = :now where s.id = :id")
+    int touch(@Param("id") String id, @Param("now") LocalDateTime now);
+
+    // moves a session on only if it is still in the expected state, so concurrent calls cannot both act on it
+    @Transactional
+    @Modifying
+    @Query("update UploadSession s set s.status = :to, s.lastUpdatedOn = :now where s.id = :id and s.status = :from")
+    int updateStatus(@Param("id") String id, @Param("from") UploadSessionStatus from, @Param("to") UploadSessionStatus to,
+                     @Param("now") LocalDateTime now);
+}
@@ -1,18 +1,31 @@
-package springapp.repository;
-
-import org.springframework.data.jpa.repository.JpaRepository;
-import springapp.model.User;
-
-public interface UserRespository extends JpaRepository<User, Long> {
-
-    // Custom query method to check for username existence, case-insensitive
-    boolean existsByUsernameIgnoreCase(String username);
-
-    // Custom query method to check for email existence, case-insensitive
-    boolean existsByEmailIgnoreCase(String email);
-    
-    User findByUsernameIgnoreCase(String username);
-    User findByEmailIgnoreCase(String email);
-
-
-}
+package springapp.repository;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import springapp.model.User;
+
+public interface UserRespository extends JpaRepository<User, Long> {
+
+    // Custom query method to check for username existence, case-insensitive
+    boolean existsByUsernameIgnoreCase(String username);
+
+    // Custom query method to check for email existence, case-insensitive
+    boolean existsByEmailIgnoreCase(String email);
+    
+    // lower() rather than the derived upper(), so the lookups use the unique indexes on lower(username) and lower(email)
+    @Query("select u from User u where lower(u.username) = lower(:username)")
+    User findByUsernameIgnoreCase(@Param("username") String username);
+    @Query("select u from User u where lower(u.email) = lower(:email)")
+    User findByEmailIgnoreCase(@Param("email") String email);
+
+    // every existing user a batch of imported rows can collide with, in one round trip; arguments are already lower case
+    @Query("select u from User u where lower(u.username) in :usernames or lower(u.email) in :emails")
+    List<User> findByLowerUsernamesOrLowerEmails(@Param("usernames") Collection<String> usernames,
+                                                 @Param("emails") Collection<String> emails);
+
+
+}
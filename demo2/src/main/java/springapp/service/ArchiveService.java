@@ -0,0 +1,276 @@
+package springapp.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StreamUtils;
+import springapp.model.AttachmentStatus;
+import springapp.model.AttachmentView;
+import springapp.repository.AttachmentRepository;
+import springapp.storage.ObjectStorage;
+import springapp.storage.StorageException;
+import springapp.storage.StoredObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams a user's attachments as one ZIP archive.
+ *
+ * Rows are read in keyset pages, and the next few objects are fetched from storage in parallel while the
+ * current entry is written. A prefetch buffers at most prefetchBytes of its object; a smaller object is held
+ * whole and, for already compressed types, written as a STORED entry, and a larger one keeps its storage stream
+ * open and is copied through as the entry is written. Memory per archive is therefore about
+ * prefetchWindow * prefetchBytes, whatever the number or size of the files.
+ */
+@Service
+public class ArchiveService {
+
+    private static final int PAGE_SIZE = 200;
+    private static final int MAX_ATTACHMENT_IDS = 1000;
+    private static final LocalDateTime EARLIEST = LocalDateTime.of(1970, 1, 1, 0, 0);
+    private static final LocalDateTime LATEST = LocalDateTime.of(9999, 12, 31, 23, 59, 59);
+
+    // deflating these only costs CPU
+    private static final Set<String> COMPRESSED_TYPES = Set.of(
+            "image/jpeg",
+            "image/png",
+            "application/vnd.openxmlformats-officedocument.wordprocessingml.document",
+            "application/zip");
+
+    private final ObjectStorage storage;
+    private final DemoService demoService;
+    private final AttachmentRepository attachmentRepo;
+    private final int prefetchWindow;
+    private final int prefetchBytes;
+    private final ExecutorService prefetchExecutor;
+
+    public ArchiveService(ObjectStorage storage, DemoService demoService, AttachmentRepository attachmentRepo,
+                          @Value("${archive.prefetch-window:4}") int prefetchWindow,
+                          @Value("${archive.prefetch-bytes:1048576}") int prefetchBytes,
+                          @Value("${archive.prefetch-threads:16}") int prefetchThreads) {
+        this.storage = storage;
+        this.demoService = demoService;
+        this.attachmentRepo = attachmentRepo;
+        this.prefetchWindow = prefetchWindow;
+        this.prefetchBytes = prefetchBytes;
+        this.prefetchExecutor = Executors.newFixedThreadPool(prefetchThreads, new CustomizableThreadFactory("archive-prefetch-"));
+    }
+
+    /**
+     * Checks the request and selects what goes into the archive. Returns null when nothing matches, so the caller
+     * can still answer 404 before any byte of the archive is written.
+     *
+     * @throws IllegalArgumentException for an invalid user, id list or date range
+     */
+    public Archive prepare(Long userId, List<Long> attachmentIds, LocalDateTime from, LocalDateTime to) {
+        demoService.validateUser(userId);
+        if (attachmentIds != null && attachmentIds.size() > MAX_ATTACHMENT_IDS) {
+            throw new IllegalArgumentException("At most " + MAX_ATTACHMENT_IDS + " attachment ids per archive.");
+        }
+        if (from != null && to != null && from.isAfter(to)) {
+            throw new IllegalArgumentException("from should not be after to");
+        }
+        Iterator<AttachmentView> rows = attachmentIds != null && !attachmentIds.isEmpty()
+                ? attachmentRepo.findViewsByUserIdAndIds(userId, AttachmentStatus.STORED, attachmentIds).iterator()
+                : new PageIterator(userId, from != null ? from : EARLIEST, to != null ? to : LATEST);
+        if (!rows.hasNext()) {
+            return null;
+        }
+        return new Archive("attachments-" + userId + ".zip", rows);
+    }
+
+    // one archive being written; single use
+    public class Archive {
+
+        private final String fileName;
+        private final Iterator<AttachmentView> rows;
+
+        private Archive(String fileName, Iterator<AttachmentView> rows) {
+            this.fileName = fileName;
+            this.rows = rows;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        /**
+         * Writes the whole archive. Objects that cannot be read are left out and listed in an errors.txt entry at
+         * the end, because by then the response status has long been sent.
+         */
+        public void writeTo(OutputStream outputStream) throws IOException {
+            Deque<CompletableFuture<Prefetched>> window = new ArrayDeque<>(prefetchWindow);
+            List<String> errors = new ArrayList<>();
+            // the container owns the response stream; closing the zip only finishes it and frees the deflater
+            try (ZipOutputStream zip = new ZipOutputStream(StreamUtils.nonClosing(outputStream))) {
+                while (window.size() < prefetchWindow && rows.hasNext()) {
+                    window.add(prefetch(rows.next()));
+                }
+                while (!window.isEmpty()) {
+                    CompletableFuture<Prefetched> next = window.poll();
+                    // top the window up first, so the next objects arrive while this entry is written
+                    if (rows.hasNext()) {
+                        window.add(prefetch(rows.next()));
+                    }
+                    Prefetched prefetched;
+                    try {
+                        prefetched = next.join();
+                    } catch (CompletionException e) {
+                        Throwable cause = e.getCause() != null ? e.getCause() : e;
+                        errors.add(cause.getMessage());
+                        continue;
+                    }
+                    writeEntry(zip, prefetched);
+                }
+                if (!errors.isEmpty()) {
+                    zip.setLevel(Deflater.DEFAULT_COMPRESSION);
+                    zip.putNextEntry(new ZipEntry("errors.txt"));
+                    zip.write(String.join("\n", errors).getBytes(StandardCharsets.UTF_8));
+                    zip.closeEntry();
+                }
+            } finally {
+                // the client may have gone away mid-archive; release whatever is still held open
+                for (CompletableFuture<Prefetched> pending : window) {
+                    pending.thenAccept(Prefetched::close);
+                }
+            }
+        }
+    }
+
+    private CompletableFuture<Prefetched> prefetch(AttachmentView view) {
+        String key = DemoService.objectKey(view.id(), view.fileName());
+        String storageKey = DemoService.storageKey(view.id(), view.fileName(), view.blobHash());
+        return CompletableFuture.supplyAsync(() -> {
+            StoredObject object = null;
+            try {
+                object = storage.get(storageKey, null);
+                byte[] head = object.getContent().readNBytes(prefetchBytes);
+                if (head.length == object.getContentLength()) {
+                    object.close();
+                    return new Prefetched(view, key, head, null);
+                }
+                return new Prefetched(view, key, head, object);
+            } catch (IOException | RuntimeException e) {
+                if (object != null) {
+                    closeQuietly(object);
+                }
+                throw new StorageException(key + ": " + e.getMessage(), e);
+            }
+        }, prefetchExecutor);
+    }
+
+    private static void writeEntry(ZipOutputStream zip, Prefetched prefetched) throws IOException {
+        AttachmentView view = prefetched.view();
+        ZipEntry entry = new ZipEntry(prefetched.key());
+        if (view.lastUpdatedOn() != null) {
+            entry.setTimeLocal(view.lastUpdatedOn());
+        }
+        boolean compressed = view.fileType() != null && COMPRESSED_TYPES.contains(view.fileType());
+        try {
+            if (compressed && prefetched.rest() == null) {
+                // fully buffered, so size and CRC are known up front as STORED requires
+                CRC32 crc = new CRC32();
+                crc.update(prefetched.head());
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(prefetched.head().length);
+                entry.setCompressedSize(prefetched.head().length);
+                entry.setCrc(crc.getValue());
+            } else {
+                // a streamed entry cannot be STORED without knowing its CRC; level 0 deflate only frames the bytes
+                entry.setMethod(ZipEntry.DEFLATED);
+                zip.setLevel(compressed ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+            }
+            zip.putNextEntry(entry);
+            zip.write(prefetched.head());
+            if (prefetched.rest() != null) {
+                prefetched.rest().getContent().transferTo(zip);
+            }
+            zip.closeEntry();
+        } finally {
+            prefetched.close();
+        }
+    }
+
+    private record Prefetched(AttachmentView view, String key, byte[] head, StoredObject rest) {
+
+        void close() {
+            if (rest != null) {
+                closeQuietly(rest);
+            }
+        }
+    }
+
+    private static void closeQuietly(StoredObject object) {
+        try {
+            object.close();
+        } catch (IOException ignored) {
+            // nothing left to read from it
+        }
+    }
+
+    // walks the user's stored attachments newest first, one keyset page at a time
+    private class PageIterator implements Iterator<AttachmentView> {
+
+        private final Long userId;
+        private final LocalDateTime from;
+        private LocalDateTime lastUpdatedOn;
+        private long lastId = Long.MAX_VALUE;
+        private Iterator<AttachmentView> page = List.<AttachmentView>of().iterator();
+        private boolean exhausted;
+
+        PageIterator(Long userId, LocalDateTime from, LocalDateTime to) {
+            this.userId = userId;
+            this.from = from;
+            this.lastUpdatedOn = to;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!page.hasNext() && !exhausted) {
+                List<AttachmentView> rows = attachmentRepo.findArchivePage(userId, AttachmentStatus.STORED, from,
+                        lastUpdatedOn, lastId, PageRequest.of(0, PAGE_SIZE));
+                exhausted = rows.size() < PAGE_SIZE;
+                if (!rows.isEmpty()) {
+                    AttachmentView last = rows.get(rows.size() - 1);
+                    lastUpdatedOn = last.lastUpdatedOn();
+                    lastId = last.id();
+                }
+                page = rows.iterator();
+            }
+            return page.hasNext();
+        }
+
+        @Override
+        public AttachmentView next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.next();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        prefetchExecutor.shutdown();
+    }
+}
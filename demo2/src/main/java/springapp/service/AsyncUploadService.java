@@ -0,0 +1,310 @@
+package springapp.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.multipart.MultipartFile;
+import springapp.model.AttachmentStatus;
+import springapp.model.UploadOutboxEntry;
+import springapp.model.UploadOutboxStatus;
+import springapp.model.User;
+import springapp.model.UserAttachment;
+import springapp.repository.AttachmentRepository;
+import springapp.repository.UploadOutboxRepository;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Uploads acknowledged before they reach storage. The request only spools the file to local disk and, in one
+ * transaction, inserts the PENDING attachment and its outbox entry; it answers 202 with a status URL.
+ *
+ * Outbox workers on this node claim due entries in batches with FOR UPDATE SKIP LOCKED, store them as blobs in
+ * parallel and then apply all outcomes in one transaction: STORED rows lose their outbox entry, failures are
+ * retried with exponential backoff and jitter, and after the last attempt the attachment becomes FAILED.
+ */
+@Service
+public class AsyncUploadService {
+
+    private static final int MAX_ERROR_LENGTH = 1000;
+
+    private final BlobService blobService;
+    private final DemoService demoService;
+    private final AttachmentRepository attachmentRepo;
+    private final UploadOutboxRepository outboxRepo;
+    private final TransactionTemplate transactionTemplate;
+    private final MetadataCache metadataCache;
+    private final ApplicationEventPublisher eventPublisher;
+    private final ExecutorService workerExecutor;
+    private final Path spoolDir;
+    private final String node;
+
+    @Value("${upload.outbox.batch-size:32}")
+    private int batchSize;
+
+    @Value("${upload.outbox.max-attempts:8}")
+    private int maxAttempts;
+
+    @Value("${upload.outbox.backoff-ms:1000}")
+    private long backoffMillis;
+
+    @Value("${upload.outbox.max-backoff-ms:300000}")
+    private long maxBackoffMillis;
+
+    // how long a claimed entry stays invisible to other workers; must outlast storing one batch
+    @Value("${upload.outbox.lease-ms:600000}")
+    private long leaseMillis;
+
+    public AsyncUploadService(BlobService blobService, DemoService demoService, AttachmentRepository attachmentRepo,
+                              UploadOutboxRepository outboxRepo, TransactionTemplate transactionTemplate,
+                              MetadataCache metadataCache, ApplicationEventPublisher eventPublisher,
+                              @Value("${upload.spool.dir:./data/spool}") String spoolDir,
+                              @Value("${upload.spool.node-id:}") String node,
+                              @Value("${upload.outbox.workers:4}") int workers) throws IOException {
+        this.blobService = blobService;
+        this.demoService = demoService;
+        this.attachmentRepo = attachmentRepo;
+        this.outboxRepo = outboxRepo;
+        this.transactionTemplate = transactionTemplate;
+        this.metadataCache = metadataCache;
+        this.eventPublisher = eventPublisher;
+        this.workerExecutor = Executors.newFixedThreadPool(workers, new CustomizableThreadFactory("outbox-worker-"));
+        this.spoolDir = Path.of(spoolDir).toAbsolutePath().normalize();
+        Files.createDirectories(this.spoolDir);
+        this.node = node.isEmpty() ? hostName() : node;
+    }
+
+    //accepting an upload---------------------------------------------------------------------------------------------------------------------
+    public ResponseEntity<Object> accept(MultipartFile file, Long userId) {
+        String fileName = file.getOriginalFilename();
+        String fileType = file.getContentType();
+        User user;
+        try {
+            user = demoService.validateUpload(userId, fileName, fileType);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+        }
+
+        // usually a rename of the container's temp file, not a copy
+        Path spoolFile = spoolDir.resolve(UUID.randomUUID().toString());
+        try {
+            file.transferTo(spoolFile);
+        } catch (IOException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Problem spooling file: " + e.getMessage());
+        }
+
+        UserAttachment attachment;
+        try {
+            attachment = transactionTemplate.execute(status -> {
+                UserAttachment row = new UserAttachment();
+                row.setFileName(fileName);
+                row.setFileType(fileType);
+                row.setLastUpdatedOn(LocalDateTime.now());
+                row.setUser(user);
+                row.setStatus(AttachmentStatus.PENDING);
+                row = attachmentRepo.save(row);
+
+                UploadOutboxEntry entry = new UploadOutboxEntry();
+                entry.setAttachmentId(row.getId());
+                entry.setNode(node);
+                entry.setSpoolPath(spoolFile.toString());
+                entry.setSize(file.getSize());
+                entry.setFileType(fileType);
+                entry.setStatus(UploadOutboxStatus.PENDING);
+                entry.setNextAttemptAt(LocalDateTime.now());
+                entry.setCreatedOn(LocalDateTime.now());
+                outboxRepo.save(entry);
+                return row;
+            });
+        } catch (RuntimeException e) {
+            deleteSpoolFile(spoolFile.toString());
+            throw e;
+        }
+
+        URI statusUrl = URI.create("/upload/status/" + attachment.getId() + "?userId=" + userId);
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("attachmentId", attachment.getId());
+        response.put("fileName", fileName);
+        response.put("status", attachment.getStatus());
+        response.put("statusUrl", statusUrl.toString());
+        return ResponseEntity.status(HttpStatus.ACCEPTED).location(statusUrl).body(response);
+    }
+
+    //checking an upload----------------------------------------------------------------------------------------------------------------------
+    public ResponseEntity<Object> getStatus(Long attachmentId, Long userId) {
+        if (userId == null || userId < 1) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Enter a valid userId");
+        }
+        Optional<UserAttachment> attachment = attachmentRepo.findById(attachmentId);
+        if (attachment.isEmpty() || !attachment.get().getUser().getId().equals(userId)) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("No attachment " + attachmentId + " for User ID " + userId);
+        }
+
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("attachmentId", attachmentId);
+        response.put("fileName", attachment.get().getFileName());
+        response.put("status", attachment.get().getStatus());
+        if (attachment.get().getStatus() == AttachmentStatus.PENDING || attachment.get().getStatus() == AttachmentStatus.FAILED) {
+            outboxRepo.findByAttachmentId(attachmentId).ifPresent(entry -> {
+                response.put("attempts", entry.getAttempts());
+                response.put("lastError", entry.getLastError());
+            });
+        }
+        return ResponseEntity.ok(response);
+    }
+
+    //draining the outbox---------------------------------------------------------------------------------------------------------------------
+    @Scheduled(fixedDelayString = "${upload.outbox.poll-interval-ms:500}")
+    public void drainOutbox() {
+        List<UploadOutboxEntry> claimed;
+        // a full batch means more are probably due, so keep going until one comes back short
+        do {
+            claimed = claim();
+            if (!claimed.isEmpty()) {
+                process(claimed);
+            }
+        } while (claimed.size() == batchSize);
+    }
+
+    private List<UploadOutboxEntry> claim() {
+        return transactionTemplate.execute(status -> {
+            LocalDateTime now = LocalDateTime.now();
+            List<UploadOutboxEntry> due = outboxRepo.claimDue(node, now, batchSize);
+            for (UploadOutboxEntry entry : due) {
+                entry.setAttempts(entry.getAttempts() + 1);
+                entry.setNextAttemptAt(now.plus(Duration.ofMillis(leaseMillis)));
+            }
+            return due;
+        });
+    }
+
+    private record Outcome(UploadOutboxEntry entry, String blobHash, Exception failure) {
+    }
+
+    private void process(List<UploadOutboxEntry> entries) {
+        List<CompletableFuture<Outcome>> running = new ArrayList<>(entries.size());
+        for (UploadOutboxEntry entry : entries) {
+            running.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    String hash = blobService.store(new FileSystemResource(entry.getSpoolPath()), entry.getSize(), entry.getFileType());
+                    return new Outcome(entry, hash, null);
+                } catch (Exception e) {
+                    return new Outcome(entry, null, e);
+                }
+            }, workerExecutor));
+        }
+        List<Outcome> outcomes = new ArrayList<>(entries.size());
+        for (CompletableFuture<Outcome> outcome : running) {
+            outcomes.add(outcome.join());
+        }
+
+        // every outcome of the batch in one transaction; the updates go out as JDBC batches
+        List<String> orphanedBlobs = new ArrayList<>();
+        List<String> finishedSpoolFiles = new ArrayList<>();
+        transactionTemplate.executeWithoutResult(status -> {
+            Map<Long, UploadOutboxEntry> currentEntries = new HashMap<>();
+            outboxRepo.findAllById(outcomes.stream().map(outcome -> outcome.entry().getId()).toList())
+                    .forEach(entry -> currentEntries.put(entry.getId(), entry));
+            Map<Long, UserAttachment> attachments = new HashMap<>();
+            attachmentRepo.findAllById(outcomes.stream().map(outcome -> outcome.entry().getAttachmentId()).toList())
+                    .forEach(row -> attachments.put(row.getId(), row));
+
+            for (Outcome outcome : outcomes) {
+                UploadOutboxEntry entry = currentEntries.get(outcome.entry().getId());
+                Optional<UserAttachment> attachment = Optional.ofNullable(attachments.get(outcome.entry().getAttachmentId()));
+                if (entry == null || attachment.isEmpty()) {
+                    // the attachment went away while it was being stored
+                    if (outcome.blobHash() != null) {
+                        orphanedBlobs.add(outcome.blobHash());
+                    }
+                    if (entry != null) {
+                        outboxRepo.delete(entry);
+                    }
+                    finishedSpoolFiles.add(outcome.entry().getSpoolPath());
+                } else if (outcome.failure() == null) {
+                    attachment.get().setBlobHash(outcome.blobHash());
+                    attachment.get().setStatus(AttachmentStatus.STORED);
+                    eventPublisher.publishEvent(AttachmentStoredEvent.of(attachment.get()));
+                    outboxRepo.delete(entry);
+                    finishedSpoolFiles.add(entry.getSpoolPath());
+                } else {
+                    entry.setLastError(truncate(outcome.failure().getMessage()));
+                    if (entry.getAttempts() >= maxAttempts) {
+                        entry.setStatus(UploadOutboxStatus.FAILED);
+                        attachment.get().setStatus(AttachmentStatus.FAILED);
+                        finishedSpoolFiles.add(entry.getSpoolPath());
+                    } else {
+                        entry.setNextAttemptAt(LocalDateTime.now().plus(backoff(entry.getAttempts())));
+                    }
+                }
+            }
+        });
+        for (Outcome outcome : outcomes) {
+            metadataCache.invalidateAttachment(outcome.entry().getAttachmentId());
+        }
+        for (String hash : orphanedBlobs) {
+            blobService.release(hash);
+        }
+        finishedSpoolFiles.forEach(AsyncUploadService::deleteSpoolFile);
+    }
+
+    // base * 2^(attempt-1), capped, with up to 50% jitter so entries that failed together do not retry together
+    private Duration backoff(int attempt) {
+        long delay = backoffMillis << Math.min(attempt - 1, 20);
+        delay = Math.min(delay, maxBackoffMillis);
+        delay -= ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        return Duration.ofMillis(delay);
+    }
+
+    private static String truncate(String message) {
+        if (message == null) {
+            return null;
+        }
+        return message.length() <= MAX_ERROR_LENGTH ? message : message.substring(0, MAX_ERROR_LENGTH);
+    }
+
+    private static void deleteSpoolFile(String spoolPath) {
+        try {
+            Files.deleteIfExists(Path.of(spoolPath));
+        } catch (IOException e) {
+            // a leftover spool file only costs disk space
+        }
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "localhost";
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workerExecutor.shutdown();
+    }
+}
@@ -0,0 +1,13 @@
+package springapp.service;
+
+import springapp.model.UserAttachment;
+
+// published whenever an attachment becomes STORED, whichever way it was uploaded; listeners that do work of their
+// own (thumbnails) hear it after the commit
+public record AttachmentStoredEvent(Long attachmentId, String fileName, String fileType, String blobHash) {
+
+    static AttachmentStoredEvent of(UserAttachment attachment) {
+        return new AttachmentStoredEvent(attachment.getId(), attachment.getFileName(), attachment.getFileType(),
+                attachment.getBlobHash());
+    }
+}
@@ -0,0 +1,168 @@
+package springapp.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+import springapp.model.User;
+import springapp.model.UserAttachment;
+import springapp.repository.AttachmentRepository;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Many files in one request: the user is looked up once, the files are stored as blobs in parallel on a pool
+ * shared by all batch requests, and the attachment rows go to the database in JDBC batches (ids come from the
+ * pooled sequence, so no insert has to round-trip for its key).
+ *
+ * Every file gets its own result; a file that fails validation or storage does not fail the others.
+ */
+@Service
+public class BatchUploadService {
+
+    private final BlobService blobService;
+    private final DemoService demoService;
+    private final AttachmentRepository attachmentRepo;
+    private final int maxFiles;
+    private final ExecutorService putExecutor;
+    private final ApplicationEventPublisher eventPublisher;
+
+    public BatchUploadService(BlobService blobService, DemoService demoService, AttachmentRepository attachmentRepo,
+                              ApplicationEventPublisher eventPublisher,
+                              @Value("${upload.batch.max-files:100}") int maxFiles,
+                              @Value("${upload.batch.concurrency:8}") int concurrency) {
+        this.blobService = blobService;
+        this.demoService = demoService;
+        this.attachmentRepo = attachmentRepo;
+        this.eventPublisher = eventPublisher;
+        this.maxFiles = maxFiles;
+        this.putExecutor = Executors.newFixedThreadPool(concurrency, new CustomizableThreadFactory("batch-put-"));
+    }
+
+    //uploading several files-----------------------------------------------------------------------------------------------------------------
+    public ResponseEntity<Object> uploadBatch(List<MultipartFile> files, Long userId) {
+        User user;
+        try {
+            user = demoService.validateUser(userId);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+        }
+        if (files == null || files.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("No files were sent.");
+        }
+        if (files.size() > maxFiles) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("At most " + maxFiles + " files per batch.");
+        }
+
+        // one result per file, in request order
+        List<Map<String, Object>> results = new ArrayList<>(files.size());
+        List<UserAttachment> attachments = new ArrayList<>(files.size());
+        List<MultipartFile> accepted = new ArrayList<>(files.size());
+        List<Map<String, Object>> acceptedResults = new ArrayList<>(files.size());
+        LocalDateTime now = LocalDateTime.now();
+        for (MultipartFile file : files) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("fileName", file.getOriginalFilename());
+            results.add(result);
+            try {
+                DemoService.validateFile(file.getOriginalFilename(), file.getContentType());
+            } catch (IllegalArgumentException e) {
+                result.put("status", "rejected");
+                result.put("message", e.getMessage());
+                continue;
+            }
+            UserAttachment attachment = new UserAttachment();
+            attachment.setFileName(file.getOriginalFilename());
+            attachment.setFileType(file.getContentType());
+            attachment.setLastUpdatedOn(now);
+            attachment.setUser(user);
+            attachments.add(attachment);
+            accepted.add(file);
+            acceptedResults.add(result);
+        }
+
+        if (!attachments.isEmpty()) {
+            storeAll(attachments, accepted, acceptedResults);
+        }
+
+        int uploaded = 0;
+        for (Map<String, Object> result : results) {
+            if ("uploaded".equals(result.get("status"))) {
+                uploaded++;
+            }
+        }
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("userId", userId);
+        response.put("uploaded", uploaded);
+        response.put("failed", files.size() - uploaded);
+        response.put("files", results);
+        return ResponseEntity.status(uploaded > 0 ? HttpStatus.OK : HttpStatus.BAD_REQUEST).body(response);
+    }
+
+    private void storeAll(List<UserAttachment> attachments, List<MultipartFile> files, List<Map<String, Object>> results) {
+        // duplicates of stored blobs finish after hashing; new content is written in parallel
+        List<CompletableFuture<String>> blobs = new ArrayList<>(attachments.size());
+        for (MultipartFile file : files) {
+            blobs.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return blobService.store(file);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, putExecutor));
+        }
+
+        List<UserAttachment> stored = new ArrayList<>(attachments.size());
+        List<Map<String, Object>> storedResults = new ArrayList<>(attachments.size());
+        for (int i = 0; i < attachments.size(); i++) {
+            Map<String, Object> result = results.get(i);
+            try {
+                attachments.get(i).setBlobHash(blobs.get(i).join());
+                stored.add(attachments.get(i));
+                storedResults.add(result);
+            } catch (RuntimeException e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                result.put("status", "failed");
+                result.put("message", "Problem storing file: " + cause.getMessage());
+            }
+        }
+        if (stored.isEmpty()) {
+            return;
+        }
+
+        // one transaction, inserts flushed as JDBC batches
+        try {
+            stored = attachmentRepo.saveAll(stored);
+        } catch (RuntimeException e) {
+            for (int i = 0; i < stored.size(); i++) {
+                blobService.release(stored.get(i).getBlobHash());
+                storedResults.get(i).put("status", "failed");
+                storedResults.get(i).put("message", "Problem saving attachment: " + e.getMessage());
+            }
+            return;
+        }
+        for (int i = 0; i < stored.size(); i++) {
+            storedResults.get(i).put("status", "uploaded");
+            storedResults.get(i).put("attachmentId", stored.get(i).getId());
+            eventPublisher.publishEvent(AttachmentStoredEvent.of(stored.get(i)));
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        putExecutor.shutdown();
+    }
+}
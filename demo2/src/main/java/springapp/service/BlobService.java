@@ -0,0 +1,147 @@
+package springapp.service;
+
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.multipart.MultipartFile;
+import springapp.repository.StoredBlobRepository;
+import springapp.storage.ObjectStorage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Content-addressed storage for uploaded files. An upload is hashed once while reading the spooled file; the
+ * SHA-256 is both the blob key and the checksum storage verifies the PUT against. When a blob with that hash is
+ * already stored the upload only takes another reference and nothing is sent to storage.
+ */
+@Service
+public class BlobService {
+
+    private static final String KEY_PREFIX = "blobs/";
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final ObjectStorage storage;
+    private final StoredBlobRepository blobRepo;
+    private final TransactionTemplate transactionTemplate;
+    private final JdbcTemplate jdbcTemplate;
+
+    public BlobService(ObjectStorage storage, StoredBlobRepository blobRepo, TransactionTemplate transactionTemplate,
+                       JdbcTemplate jdbcTemplate) {
+        this.storage = storage;
+        this.blobRepo = blobRepo;
+        this.transactionTemplate = transactionTemplate;
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    // storage key of a blob
+    public static String blobKey(String hash) {
+        return KEY_PREFIX + hash;
+    }
+
+    /**
+     * Takes a reference to the blob holding the file's bytes, writing the object first if it is not stored yet,
+     * and returns the blob hash. Every successful call must eventually be matched by {@link #release}.
+     */
+    public String store(MultipartFile file) throws IOException {
+        return store(file, file.getSize(), file.getContentType());
+    }
+
+    // same for content that is already on local disk or in memory, e.g. a spooled upload; it is read twice
+    public String store(InputStreamSource content, long size, String contentType) throws IOException {
+        byte[] digest = sha256(content);
+        String hash = HexFormat.of().formatHex(digest);
+        if (blobRepo.acquire(hash, size)) {
+            return hash;
+        }
+        try (InputStream inputStream = content.getInputStream()) {
+            storage.put(blobKey(hash), inputStream, size, contentType, digest);
+        } catch (IOException | RuntimeException e) {
+            try {
+                release(hash);
+            } catch (RuntimeException releaseFailure) {
+                e.addSuppressed(releaseFailure);
+            }
+            throw e;
+        }
+        blobRepo.markStored(hash);
+        return hash;
+    }
+
+    // drops a reference; the last one deletes the object and its row
+    public void release(String hash) {
+        blobRepo.release(hash);
+        transactionTemplate.executeWithoutResult(status -> {
+            // the row lock makes a concurrent upload of the same bytes wait, then insert a fresh row and write again
+            if (blobRepo.lockUnreferenced(hash) != null) {
+                storage.delete(blobKey(hash));
+                blobRepo.deleteById(hash);
+            }
+        });
+    }
+
+    /**
+     * {@link #release} for many references at once, one per element (a hash may repeat): the counts drop in one JDBC
+     * batch, and the blobs left without references are deleted with batched storage deletes. Returns the number of
+     * blob objects that could not be deleted; their rows stay, unreferenced, for a later cleanup.
+     */
+    public int releaseAll(Collection<String> hashes) {
+        if (hashes.isEmpty()) {
+            return 0;
+        }
+        Map<String, Integer> references = new LinkedHashMap<>();
+        for (String hash : hashes) {
+            references.merge(hash, 1, Integer::sum);
+        }
+        List<Object[]> decrements = new ArrayList<>(references.size());
+        references.forEach((hash, count) -> decrements.add(new Object[] {count, hash}));
+        jdbcTemplate.batchUpdate("update stored_blob set ref_count = ref_count - ? where hash = ?", decrements);
+        return deleteUnreferenced(references.keySet());
+    }
+
+    // deletes those of the blobs that no attachment refers to any more, objects first; returns the objects that
+    // could not be deleted
+    public int deleteUnreferenced(Collection<String> hashes) {
+        Integer failures = transactionTemplate.execute(status -> {
+            List<String> unreferenced = blobRepo.lockUnreferenced(hashes);
+            Set<String> failedKeys = new HashSet<>();
+            for (int from = 0; from < unreferenced.size(); from += ObjectStorage.MAX_DELETE_BATCH) {
+                List<String> keys = unreferenced.subList(from, Math.min(from + ObjectStorage.MAX_DELETE_BATCH, unreferenced.size()))
+                        .stream().map(BlobService::blobKey).toList();
+                failedKeys.addAll(storage.deleteAll(keys));
+            }
+            List<String> deleted = unreferenced.stream().filter(hash -> !failedKeys.contains(blobKey(hash))).toList();
+            blobRepo.deleteAllByIdInBatch(deleted);
+            return failedKeys.size();
+        });
+        return failures == null ? 0 : failures;
+    }
+
+    private static byte[] sha256(InputStreamSource content) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        try (InputStream inputStream = content.getInputStream()) {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return digest.digest();
+    }
+}
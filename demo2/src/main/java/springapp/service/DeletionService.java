@@ -0,0 +1,309 @@
+package springapp.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import springapp.model.AttachmentOwnership;
+import springapp.model.AttachmentStatus;
+import springapp.repository.AttachmentRepository;
+import springapp.storage.ObjectStorage;
+import springapp.storage.StorageException;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.net.URI;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes attachments: one at a time while the caller waits, or in bulk (all of a user's, a list of ids, everything
+ * last updated before a date) as a background job whose progress can be polled.
+ *
+ * Either way rows go in chunks, each in its own short transaction: one chunk of ids is selected by keyset, and its
+ * upload sessions, outbox entries and attachment rows are removed with one statement each, the last returning what
+ * it deleted. Only after the commit are objects removed, with batched deletes of up to 1000 keys, and blob
+ * references released, so no remaining row ever points at a missing object. Objects that fail to delete are
+ * counted and left behind for reconciliation.
+ *
+ * Rows that are still being uploaded (UPLOADING, PENDING) are skipped.
+ */
+@Service
+public class DeletionService {
+
+    private static final int MAX_IDS_PER_REQUEST = 10_000;
+
+    public enum JobStatus {
+        RUNNING, COMPLETED, CANCELLED, FAILED
+    }
+
+    // progress of one bulk delete, read by the status endpoint while the worker updates it
+    public static final class DeleteJob {
+
+        private final String id;
+        private final Map<String, Object> criteria;
+        private final LocalDateTime startedOn = LocalDateTime.now();
+        private final AtomicLong attachmentsDeleted = new AtomicLong();
+        private final AtomicLong objectFailures = new AtomicLong();
+        private volatile JobStatus status = JobStatus.RUNNING;
+        private volatile boolean cancelRequested;
+        private volatile LocalDateTime finishedOn;
+        private volatile String error;
+
+        private DeleteJob(String id, Map<String, Object> criteria) {
+            this.id = id;
+            this.criteria = criteria;
+        }
+
+        private Map<String, Object> describe() {
+            Map<String, Object> body = new LinkedHashMap<>();
+            body.put("jobId", id);
+            body.put("status", status);
+            body.put("criteria", criteria);
+            body.put("attachmentsDeleted", attachmentsDeleted.get());
+            body.put("objectFailures", objectFailures.get());
+            body.put("startedOn", startedOn);
+            body.put("finishedOn", finishedOn);
+            if (error != null) {
+                body.put("error", error);
+            }
+            return body;
+        }
+    }
+
+    private record DeletedRow(Long id, String fileName, String blobHash, String thumbnails) {
+    }
+
+    private record ChunkResult(int attachments, int objectFailures) {
+    }
+
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final AttachmentRepository attachmentRepo;
+    private final ObjectStorage storage;
+    private final BlobService blobService;
+    private final MetadataCache metadataCache;
+    private final ExecutorService jobExecutor;
+    // finished jobs stay visible for a day
+    private final Cache<String, DeleteJob> jobs = Caffeine.newBuilder()
+            .expireAfterWrite(Duration.ofDays(1))
+            .build();
+
+    @Value("${delete.chunk-size:1000}")
+    private int chunkSize;
+
+    public DeletionService(NamedParameterJdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate,
+                           AttachmentRepository attachmentRepo, ObjectStorage storage, BlobService blobService,
+                           MetadataCache metadataCache, @Value("${delete.workers:2}") int workers) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.attachmentRepo = attachmentRepo;
+        this.storage = storage;
+        this.blobService = blobService;
+        this.metadataCache = metadataCache;
+        this.jobExecutor = Executors.newFixedThreadPool(workers, new CustomizableThreadFactory("delete-job-"));
+    }
+
+    //deleting one attachment-----------------------------------------------------------------------------------------------------------------
+    public ResponseEntity<Object> deleteAttachment(Long attachmentId, Long userId) {
+        if (userId == null || userId < 1) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Enter a valid userId");
+        }
+        Optional<AttachmentOwnership> attachment = attachmentRepo.findOwnershipById(attachmentId);
+        if (attachment.isEmpty() || !attachment.get().userId().equals(userId)) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("No attachment " + attachmentId + " for User ID " + userId);
+        }
+        AttachmentStatus status = attachment.get().status();
+        if (status == AttachmentStatus.UPLOADING || status == AttachmentStatus.PENDING) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body("Attachment ID " + attachmentId + " is still being uploaded");
+        }
+
+        ChunkResult result = deleteChunk(List.of(attachmentId));
+        if (result.attachments() == 0) {
+            // deleted by someone else in the meantime
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("No attachment " + attachmentId + " for User ID " + userId);
+        }
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("attachmentId", attachmentId);
+        response.put("fileName", attachment.get().fileName());
+        response.put("deleted", true);
+        response.put("objectFailures", result.objectFailures());
+        return ResponseEntity.ok(response);
+    }
+
+    //deleting in bulk------------------------------------------------------------------------------------------------------------------------
+    // answers 202 at once; the status URL reports progress
+    public ResponseEntity<Object> startDelete(Long userId, List<Long> attachmentIds, LocalDateTime before) {
+        if (userId == null && before == null) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Enter a userId, a before date or both");
+        }
+        if (userId != null && userId < 1) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("userId should be positive");
+        }
+        if (attachmentIds != null && attachmentIds.size() > MAX_IDS_PER_REQUEST) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("At most " + MAX_IDS_PER_REQUEST + " attachmentIds per request");
+        }
+
+        Map<String, Object> criteria = new LinkedHashMap<>();
+        criteria.put("userId", userId);
+        criteria.put("attachmentIds", attachmentIds);
+        criteria.put("before", before);
+        DeleteJob job = new DeleteJob(UUID.randomUUID().toString(), criteria);
+        jobs.put(job.id, job);
+        jobExecutor.execute(() -> run(job, userId, attachmentIds, before));
+
+        URI statusUrl = URI.create("/attachments/delete-jobs/" + job.id);
+        Map<String, Object> response = job.describe();
+        response.put("statusUrl", statusUrl.toString());
+        return ResponseEntity.status(HttpStatus.ACCEPTED).location(statusUrl).body(response);
+    }
+
+    public ResponseEntity<Object> getJob(String jobId) {
+        DeleteJob job = jobs.getIfPresent(jobId);
+        if (job == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("No delete job " + jobId);
+        }
+        return ResponseEntity.ok(job.describe());
+    }
+
+    // stops after the chunk in progress; what is deleted stays deleted
+    public ResponseEntity<Object> cancelJob(String jobId) {
+        DeleteJob job = jobs.getIfPresent(jobId);
+        if (job == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("No delete job " + jobId);
+        }
+        job.cancelRequested = true;
+        return ResponseEntity.ok(job.describe());
+    }
+
+    private void run(DeleteJob job, Long userId, List<Long> attachmentIds, LocalDateTime before) {
+        try {
+            LocalDateTime lastUpdatedOn = null;
+            Long lastId = null;
+            while (!job.cancelRequested) {
+                List<Object[]> chunk = selectChunk(userId, attachmentIds, before, lastUpdatedOn, lastId);
+                if (chunk.isEmpty()) {
+                    break;
+                }
+                Object[] last = chunk.get(chunk.size() - 1);
+                lastId = (Long) last[0];
+                lastUpdatedOn = (LocalDateTime) last[1];
+
+                ChunkResult result = deleteChunk(chunk.stream().map(row -> (Long) row[0]).toList());
+                job.attachmentsDeleted.addAndGet(result.attachments());
+                job.objectFailures.addAndGet(result.objectFailures());
+                if (chunk.size() < chunkSize) {
+                    break;
+                }
+            }
+            job.status = job.cancelRequested ? JobStatus.CANCELLED : JobStatus.COMPLETED;
+        } catch (RuntimeException e) {
+            job.error = e.getMessage();
+            job.status = JobStatus.FAILED;
+        } finally {
+            job.finishedOn = LocalDateTime.now();
+        }
+    }
+
+    // the next chunk, newest first, seeking below the previous one through the (user_id, last_updated_on, id) or
+    // (last_updated_on, id) index just like /list
+    private List<Object[]> selectChunk(Long userId, List<Long> attachmentIds, LocalDateTime before,
+                                       LocalDateTime lastUpdatedOn, Long lastId) {
+        StringBuilder sql = new StringBuilder("select id, last_updated_on from user_attachment"
+                + " where status in ('STORED', 'FAILED') and last_updated_on is not null");
+        MapSqlParameterSource params = new MapSqlParameterSource("limit", chunkSize);
+        if (userId != null) {
+            sql.append(" and user_id = :userId");
+            params.addValue("userId", userId);
+        }
+        if (attachmentIds != null) {
+            if (attachmentIds.isEmpty()) {
+                return List.of();
+            }
+            sql.append(" and id in (:ids)");
+            params.addValue("ids", attachmentIds);
+        }
+        if (before != null) {
+            sql.append(" and last_updated_on < :before");
+            params.addValue("before", Timestamp.valueOf(before));
+        }
+        if (lastId != null) {
+            sql.append(" and (last_updated_on, id) < (:lastUpdatedOn, :lastId)");
+            params.addValue("lastUpdatedOn", Timestamp.valueOf(lastUpdatedOn));
+            params.addValue("lastId", lastId);
+        }
+        sql.append(" order by last_updated_on desc, id desc limit :limit");
+        return jdbcTemplate.query(sql.toString(), params, (rs, rowNum) -> new Object[] {
+                rs.getLong("id"), rs.getTimestamp("last_updated_on").toLocalDateTime()});
+    }
+
+    private ChunkResult deleteChunk(List<Long> ids) {
+        MapSqlParameterSource params = new MapSqlParameterSource("ids", ids);
+        List<DeletedRow> deleted = transactionTemplate.execute(status -> {
+            jdbcTemplate.update("delete from upload_session_part where session_id in"
+                    + " (select id from upload_session where attachment_id in (:ids))", params);
+            jdbcTemplate.update("delete from upload_session where attachment_id in (:ids)", params);
+            jdbcTemplate.update("delete from upload_outbox_entry where attachment_id in (:ids)", params);
+            return jdbcTemplate.query("delete from user_attachment where id in (:ids) and status in ('STORED', 'FAILED')"
+                    + " returning id, file_name, blob_hash, thumbnails", params, (rs, rowNum) -> new DeletedRow(
+                    rs.getLong("id"), rs.getString("file_name"), rs.getString("blob_hash"), rs.getString("thumbnails")));
+        });
+        if (deleted == null || deleted.isEmpty()) {
+            return new ChunkResult(0, 0);
+        }
+
+        List<String> keys = new ArrayList<>();
+        List<String> blobHashes = new ArrayList<>();
+        for (DeletedRow row : deleted) {
+            metadataCache.invalidateAttachment(row.id());
+            if (row.blobHash() != null) {
+                blobHashes.add(row.blobHash());
+            } else {
+                keys.add(DemoService.objectKey(row.id(), row.fileName()));
+            }
+            if (row.thumbnails() != null && !row.thumbnails().isEmpty()) {
+                for (String size : row.thumbnails().split(",")) {
+                    keys.add(ThumbnailService.thumbnailKey(row.id(), row.fileName(), Integer.parseInt(size)));
+                }
+            }
+        }
+
+        int failures = 0;
+        for (int from = 0; from < keys.size(); from += ObjectStorage.MAX_DELETE_BATCH) {
+            List<String> batch = keys.subList(from, Math.min(from + ObjectStorage.MAX_DELETE_BATCH, keys.size()));
+            try {
+                failures += storage.deleteAll(batch).size();
+            } catch (StorageException e) {
+                failures += batch.size();
+            }
+        }
+        try {
+            failures += blobService.releaseAll(blobHashes);
+        } catch (StorageException e) {
+            // the references are already dropped; unreferenced blobs are left for reconciliation
+            failures += blobHashes.size();
+        }
+        return new ChunkResult(deleted.size(), failures);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        jobExecutor.shutdown();
+    }
+}
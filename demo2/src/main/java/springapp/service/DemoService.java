@@ -1,198 +1,523 @@
-package springapp.service;
-
-import org.springframework.beans.factory.annotation.Value;
-import org.springframework.core.io.InputStreamResource;
-import org.springframework.core.io.Resource;
-import org.springframework.data.domain.Page;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
-import org.springframework.data.domain.Sort;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpStatus;
-import org.springframework.http.ResponseEntity;
-import org.springframework.stereotype.Service;
-import org.springframework.web.multipart.MultipartFile;
-import software.amazon.awssdk.core.sync.RequestBody;
-import software.amazon.awssdk.services.s3.model.*;
-import springapp.model.User;
-import springapp.model.UserAttachment;
-import springapp.repository.AttachmentRepository;
-import springapp.repository.UserRespository;
-import software.amazon.awssdk.services.s3.S3Client;
-
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.time.LocalDateTime;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Optional;
-
-@Service
-public class DemoService {
-
-    private final S3Client s3Client;
-    private final UserRespository userRepository;
-    private final AttachmentRepository attachmentRepo;
-
-    @Value("${aws.s3.bucket.name}")
-    private String bucketName;
-
-    public DemoService(S3Client s3Client, UserRespository userRepository, AttachmentRepository attachmentRepo) {
-        this.s3Client = s3Client;
-        this.userRepository = userRepository;
-        this.attachmentRepo = attachmentRepo;
-    }
-    //uploading file------------------------------------------------------------------------------------------------------------------------
-    public String uploadFileAndCreateAttachment(MultipartFile file, Long userId) throws IOException {
-        if (userId == null) {
-            throw new IllegalArgumentException("Enter userId");
-        }
-        if (userId < 1) {
-            throw new IllegalArgumentException("Enter a valid userId");
-        }
-
-        Optional<User> userOptional = userRepository.findById(userId);
-        if (!userOptional.isPresent()) {
-            throw new IllegalArgumentException("Invalid User ID.");
-        }
-
-        String fileName = file.getOriginalFilename();
-        if (fileName == null || fileName.isEmpty()) {
-            throw new IllegalArgumentException("Invalid file name.");
-        }
-
-        String fileType = file.getContentType();
-        if (!fileType.equals("image/jpeg") && 
-            !fileType.equals("image/png") && 
-            !fileType.equals("application/vnd.openxmlformats-officedocument.wordprocessingml.document")) {
-            throw new IllegalArgumentException("Invalid file type. Enter only JPG, PNG, and DOCX files.");
-        }
-
-        UserAttachment attachment = new UserAttachment();
-        attachment.setFileName(fileName);
-        attachment.setFileType(fileType);
-        attachment.setLastUpdatedOn(LocalDateTime.now());
-        attachment.setUser(userOptional.get());
-
-        // Save attachment first to get the generated attachmentId
-        attachment = attachmentRepo.save(attachment);
-        Long attachmentId = attachment.getId(); 
-        String s3FileName = attachmentId + "_" + fileName;
-        try (var inputStream = file.getInputStream()) {
-            PutObjectRequest putObjectRequest = PutObjectRequest.builder()
-                    .bucket(bucketName)
-                    .key(s3FileName)
-                    .build();
-            s3Client.putObject(putObjectRequest, RequestBody.fromInputStream(inputStream, file.getSize()));
-        }
-
-        return "File uploaded successfully. Attachment ID: " + attachmentId+ " and filename "+fileName;
-    }
-
-
-    //list with pagination and sorting------------------------------------------------------------------------------------------------------------------
-    public ResponseEntity<Object> getFiles(Long userId, Integer page, Integer size) {
-        if (page == null || page < 1) {
-            page = 1;
-        }
-        if (size == null || size < 1) {
-            size = 15;
-        }
-
-        Pageable pageable = PageRequest.of(page - 1, size, Sort.by(Sort.Order.desc("lastUpdatedOn")));
-        Page<UserAttachment> userAttachments;
-
-        if (userId == null) {
-            userAttachments = attachmentRepo.findAll(pageable);
-        } else {
-            if (userId < 1) {
-                return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("userId should be positive");
-            }
-
-            userAttachments = attachmentRepo.findByUserId(userId, pageable);
-
-            if (userAttachments.isEmpty()) {
-                return ResponseEntity.status(HttpStatus.NOT_FOUND).body("No attachments found for the specified userId");
-            }
-        }
-
-        long totalFiles = userAttachments.getTotalElements();
-        int filesReceived = userAttachments.getNumberOfElements();
-        int totalPages = userAttachments.getTotalPages();
-        int remainingFiles = (int) Math.max(totalFiles - (page * size), 0); 
-
-        Map<String, Object> response = new LinkedHashMap<>();
-        response.put("totalFiles", totalFiles);
-        response.put("filesReceived", filesReceived);
-        response.put("currentPage", page);
-        response.put("totalPages", totalPages);
-        response.put("remainingFiles", remainingFiles);
-        response.put("files", userAttachments.getContent());
-
-        return ResponseEntity.ok(response);
-    }
-
-    //downloading file---------------------------------------------------------------------------------------------------------------------------------
-    public ResponseEntity<byte[]> downloadFileForUser(String filename, Long userId, Long attachmentId) {
-        if (userId == null) {
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                    .body("You did not enter userId. Please enter userId to download the file.".getBytes());
-        }
-        if (userId < 1) {
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                    .body("UserId should not be a negative value".getBytes());
-        }
-        if (attachmentId == null) {
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                    .body("You did not enter attachmentId. Please enter attachmentId to download the file.".getBytes());
-        }
-        if (attachmentId < 1) {
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                    .body("AttachmentId should be a positive value".getBytes());
-        }
-
-        Optional<UserAttachment> userAttachmentOptional = attachmentRepo.findById(attachmentId);
-
-        if (userAttachmentOptional.isEmpty()) {
-            return ResponseEntity.status(HttpStatus.NOT_FOUND)
-                    .body(("Attachment ID " + attachmentId + " does not exist").getBytes());
-        }
-
-        UserAttachment userAttachment = userAttachmentOptional.get();
-
-        if (!userAttachment.getUser().getId().equals(userId) || !userAttachment.getFileName().equals(filename)) {
-            return ResponseEntity.status(HttpStatus.FORBIDDEN)
-                    .body(("No matching file found for User ID " + userId + " with the filename: " + filename +
-                            " and attachment ID: " + attachmentId).getBytes());
-        }
-
-        String s3FileName = attachmentId + "_" + filename;
-
-        try (InputStream inputStream = s3Client.getObject(
-                GetObjectRequest.builder()
-                        .bucket(bucketName)
-                        .key(s3FileName)
-                        .build())) {
-
-            byte[] fileContent = inputStream.readAllBytes();
-
-            HttpHeaders headers = new HttpHeaders();
-            headers.add("Content-Disposition", "attachment; filename=" + s3FileName);
-            headers.add("Content-Type", "application/octet-stream");
-
-            return ResponseEntity.ok()
-                    .headers(headers)
-                    .body(fileContent);
-        } catch (S3Exception e) {
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                    .body(("Problem retrieving file from S3: " + e.awsErrorDetails().errorMessage()).getBytes());
-        } catch (IOException e) {
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                    .body(("Internal server error: " + e.getMessage()).getBytes());
-        }
-    }
-
-}
+package springapp.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.multipart.MultipartFile;
+import springapp.model.AttachmentOwnership;
+import springapp.model.AttachmentStatus;
+import springapp.model.AttachmentView;
+import springapp.model.User;
+import springapp.model.UserAttachment;
+import springapp.repository.AttachmentRepository;
+import springapp.repository.UserRespository;
+import springapp.storage.InvalidRangeException;
+import springapp.storage.ObjectMetadata;
+import springapp.storage.ObjectNotFoundException;
+import springapp.storage.ObjectStorage;
+import springapp.storage.StorageException;
+import springapp.storage.StoredObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+@Service
+public class DemoService {
+
+    private static final int MAX_KEYSET_PAGE_SIZE = 1000;
+
+    private final ObjectStorage storage;
+    private final UserRespository userRepository;
+    private final AttachmentRepository attachmentRepo;
+    private final MultipartStreamUploader multipartUploader;
+    private final BlobService blobService;
+    private final ObjectMapper objectMapper;
+    private final MetadataCache metadataCache;
+    private final ApplicationEventPublisher eventPublisher;
+
+    public DemoService(ObjectStorage storage, UserRespository userRepository, AttachmentRepository attachmentRepo,
+                       MultipartStreamUploader multipartUploader, BlobService blobService, ObjectMapper objectMapper,
+                       MetadataCache metadataCache, ApplicationEventPublisher eventPublisher) {
+        this.storage = storage;
+        this.userRepository = userRepository;
+        this.attachmentRepo = attachmentRepo;
+        this.multipartUploader = multipartUploader;
+        this.blobService = blobService;
+        this.objectMapper = objectMapper;
+        this.metadataCache = metadataCache;
+        this.eventPublisher = eventPublisher;
+    }
+    //uploading file------------------------------------------------------------------------------------------------------------------------
+    public String uploadFileAndCreateAttachment(MultipartFile file, Long userId) throws IOException {
+        String fileName = file.getOriginalFilename();
+        String fileType = file.getContentType();
+        User user = validateUpload(userId, fileName, fileType);
+
+        UserAttachment attachment = new UserAttachment();
+        attachment.setFileName(fileName);
+        attachment.setFileType(fileType);
+        attachment.setLastUpdatedOn(LocalDateTime.now());
+        attachment.setUser(user);
+
+        // the bytes go to a shared content-addressed blob first, a duplicate only takes another reference
+        String blobHash = blobService.store(file);
+        attachment.setBlobHash(blobHash);
+        try {
+            attachment = attachmentRepo.save(attachment);
+        } catch (RuntimeException e) {
+            blobService.release(blobHash);
+            throw e;
+        }
+        Long attachmentId = attachment.getId();
+        eventPublisher.publishEvent(AttachmentStoredEvent.of(attachment));
+
+        return "File uploaded successfully. Attachment ID: " + attachmentId+ " and filename "+fileName;
+    }
+
+    //streaming upload for large files------------------------------------------------------------------------------------------------------
+    public String uploadStreamAndCreateAttachment(InputStream inputStream, String fileName, String fileType, Long userId) throws IOException {
+        User user = validateUpload(userId, fileName, fileType);
+
+        UserAttachment attachment = new UserAttachment();
+        attachment.setFileName(fileName);
+        attachment.setFileType(fileType);
+        attachment.setLastUpdatedOn(LocalDateTime.now());
+        attachment.setUser(user);
+        attachment.setStatus(AttachmentStatus.UPLOADING);
+
+        attachment = attachmentRepo.save(attachment);
+        Long attachmentId = attachment.getId();
+        String s3FileName = objectKey(attachmentId, fileName);
+        try {
+            multipartUploader.upload(s3FileName, fileType, inputStream);
+        } catch (IOException | RuntimeException e) {
+            // the multipart upload has already been aborted, so drop the row that would point at nothing
+            attachmentRepo.delete(attachment);
+            metadataCache.invalidateAttachment(attachmentId);
+            throw e;
+        }
+
+        attachment.setStatus(AttachmentStatus.STORED);
+        attachmentRepo.save(attachment);
+        metadataCache.invalidateAttachment(attachmentId);
+        eventPublisher.publishEvent(AttachmentStoredEvent.of(attachment));
+
+        return "File uploaded successfully. Attachment ID: " + attachmentId+ " and filename "+fileName;
+    }
+
+    // storage key of an attachment's own object, also the name it is downloaded under
+    static String objectKey(Long attachmentId, String fileName) {
+        return attachmentId + "_" + fileName;
+    }
+
+    // where an attachment's bytes live: its shared blob, or its own object for streamed and session uploads
+    static String storageKey(Long attachmentId, String fileName, String blobHash) {
+        return blobHash != null ? BlobService.blobKey(blobHash) : objectKey(attachmentId, fileName);
+    }
+
+    User validateUpload(Long userId, String fileName, String fileType) {
+        User user = validateUser(userId);
+        validateFile(fileName, fileType);
+        return user;
+    }
+
+    User validateUser(Long userId) {
+        if (userId == null) {
+            throw new IllegalArgumentException("Enter userId");
+        }
+        if (userId < 1) {
+            throw new IllegalArgumentException("Enter a valid userId");
+        }
+
+        // existence comes from the cache; callers only need the user to reference it, so no row is loaded
+        if (!metadataCache.userExists(userId)) {
+            throw new IllegalArgumentException("Invalid User ID.");
+        }
+        return userRepository.getReferenceById(userId);
+    }
+
+    static void validateFile(String fileName, String fileType) {
+        if (fileName == null || fileName.isEmpty()) {
+            throw new IllegalArgumentException("Invalid file name.");
+        }
+
+        if (fileType == null ||
+            !fileType.equals("image/jpeg") && 
+            !fileType.equals("image/png") && 
+            !fileType.equals("application/vnd.openxmlformats-officedocument.wordprocessingml.document")) {
+            throw new IllegalArgumentException("Invalid file type. Enter only JPG, PNG, and DOCX files.");
+        }
+    }
+
+
+    //list with pagination and sorting------------------------------------------------------------------------------------------------------------------
+    @Transactional(readOnly = true)
+    public ResponseEntity<Object> getFiles(Long userId, Integer page, Integer size) {
+        if (page == null || page < 1) {
+            page = 1;
+        }
+        if (size == null || size < 1) {
+            size = 15;
+        }
+
+        Pageable pageable = PageRequest.of(page - 1, size, Sort.by(Sort.Order.desc("lastUpdatedOn")));
+        Page<AttachmentView> userAttachments;
+
+        if (userId == null) {
+            userAttachments = attachmentRepo.findViewsByStatus(AttachmentStatus.STORED, pageable);
+        } else {
+            if (userId < 1) {
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("userId should be positive");
+            }
+
+            userAttachments = attachmentRepo.findViewsByUserIdAndStatus(userId, AttachmentStatus.STORED, pageable);
+
+            if (userAttachments.isEmpty()) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).body("No attachments found for the specified userId");
+            }
+        }
+
+        long totalFiles = userAttachments.getTotalElements();
+        int filesReceived = userAttachments.getNumberOfElements();
+        int totalPages = userAttachments.getTotalPages();
+        int remainingFiles = (int) Math.max(totalFiles - (page * size), 0); 
+
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("totalFiles", totalFiles);
+        response.put("filesReceived", filesReceived);
+        response.put("currentPage", page);
+        response.put("totalPages", totalPages);
+        response.put("remainingFiles", remainingFiles);
+        response.put("files", userAttachments.getContent());
+
+        return ResponseEntity.ok(response);
+    }
+
+    //listing with a continuation token----------------------------------------------------------------------------------------------------
+    // seeks past the last row of the previous page instead of skipping OFFSET rows, so every page costs the same;
+    // the total is only counted when asked for
+    @Transactional(readOnly = true)
+    public ResponseEntity<Object> getFilesAfter(Long userId, String cursor, Integer size, boolean includeTotal) {
+        if (size == null || size < 1) {
+            size = 15;
+        }
+        size = Math.min(size, MAX_KEYSET_PAGE_SIZE);
+        if (userId != null && userId < 1) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("userId should be positive");
+        }
+
+        KeysetPosition after = null;
+        if (cursor != null && !cursor.isEmpty()) {
+            after = decodeCursor(cursor);
+            if (after == null) {
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Invalid cursor");
+            }
+        }
+
+        // one extra row tells whether another page exists
+        Pageable limit = PageRequest.of(0, size + 1);
+        List<AttachmentView> rows;
+        if (userId == null) {
+            rows = after == null
+                    ? attachmentRepo.findFirstKeysetPage(AttachmentStatus.STORED, limit)
+                    : attachmentRepo.findKeysetPageAfter(AttachmentStatus.STORED, after.lastUpdatedOn(), after.id(), limit);
+        } else {
+            rows = after == null
+                    ? attachmentRepo.findFirstKeysetPageByUserId(userId, AttachmentStatus.STORED, limit)
+                    : attachmentRepo.findKeysetPageByUserIdAfter(userId, AttachmentStatus.STORED, after.lastUpdatedOn(), after.id(), limit);
+            if (rows.isEmpty() && after == null) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).body("No attachments found for the specified userId");
+            }
+        }
+
+        boolean hasMore = rows.size() > size;
+        List<AttachmentView> files = hasMore ? rows.subList(0, size) : rows;
+
+        Map<String, Object> response = new LinkedHashMap<>();
+        if (includeTotal) {
+            response.put("totalFiles", userId == null
+                    ? attachmentRepo.countByStatus(AttachmentStatus.STORED)
+                    : attachmentRepo.countByUserIdAndStatus(userId, AttachmentStatus.STORED));
+        }
+        response.put("filesReceived", files.size());
+        response.put("nextCursor", hasMore ? encodeCursor(files.get(files.size() - 1)) : null);
+        response.put("files", files);
+
+        return ResponseEntity.ok(response);
+    }
+
+    private record KeysetPosition(LocalDateTime lastUpdatedOn, Long id) {
+    }
+
+    // opaque to clients: base64url of "<lastUpdatedOn>|<id>" of the last row returned
+    private static String encodeCursor(AttachmentView last) {
+        String position = last.lastUpdatedOn() + "|" + last.id();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static KeysetPosition decodeCursor(String cursor) {
+        try {
+            String position = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int separator = position.indexOf('|');
+            if (separator < 0) {
+                return null;
+            }
+            return new KeysetPosition(LocalDateTime.parse(position.substring(0, separator)),
+                    Long.parseLong(position.substring(separator + 1)));
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    //streaming the whole listing-----------------------------------------------------------------------------------------------------------
+    // rows come off a JDBC cursor and go straight into the JSON writer, so memory stays flat however many there are;
+    // the transaction keeps the cursor open while the response is written
+    @Transactional(readOnly = true)
+    public long streamFiles(Long userId, OutputStream outputStream) throws IOException {
+        long filesReceived = 0;
+        try (Stream<AttachmentView> rows = userId == null
+                ? attachmentRepo.streamViews(AttachmentStatus.STORED)
+                : attachmentRepo.streamViewsByUserId(userId, AttachmentStatus.STORED);
+             JsonGenerator json = objectMapper.getFactory().createGenerator(outputStream)) {
+            // the servlet container owns the response stream
+            json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            json.writeStartObject();
+            json.writeArrayFieldStart("files");
+            for (Iterator<AttachmentView> iterator = rows.iterator(); iterator.hasNext(); ) {
+                json.writeObject(iterator.next());
+                filesReceived++;
+            }
+            json.writeEndArray();
+            json.writeNumberField("filesReceived", filesReceived);
+            json.writeEndObject();
+        }
+        return filesReceived;
+    }
+
+    //downloading file---------------------------------------------------------------------------------------------------------------------------------
+    public ResponseEntity<Object> downloadFileForUser(String filename, Long userId, Long attachmentId,
+                                                      HttpHeaders requestHeaders) {
+        DownloadCheck check = checkDownload(filename, userId, attachmentId);
+        if (check.rejection() != null) {
+            return check.rejection();
+        }
+        AttachmentOwnership userAttachment = check.attachment();
+
+        String s3FileName = objectKey(attachmentId, filename);
+        String storageKey = storageKey(attachmentId, filename, userAttachment.blobHash());
+
+        List<HttpRange> ranges = parseRanges(requestHeaders);
+        List<String> ifNoneMatch = parseIfNoneMatch(requestHeaders);
+        long ifModifiedSince = parseDate(requestHeaders, HttpHeaders.IF_MODIFIED_SINCE);
+        String ifRange = ranges.isEmpty() ? null : requestHeaders.getFirst(HttpHeaders.IF_RANGE);
+
+        // validators are checked against a HEAD first, so a revalidation that ends in 304 never opens
+        // an object stream; plain downloads skip the HEAD and take the validators from the GET itself
+        if (!ifNoneMatch.isEmpty() || ifModifiedSince != -1 || ifRange != null) {
+            ObjectMetadata head;
+            try {
+                head = storage.head(storageKey);
+            } catch (StorageException e) {
+                return storageError(e);
+            }
+
+            if (isNotModified(head, ifNoneMatch, ifModifiedSince)) {
+                HttpHeaders headers = new HttpHeaders();
+                headers.setETag(head.etag());
+                headers.setLastModified(head.lastModified());
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                        .headers(headers)
+                        .build();
+            }
+            if (ifRange != null && !ifRangeMatches(head, ifRange)) {
+                ranges = List.of();
+            }
+        }
+
+        // multiple ranges would need a multipart/byteranges body; the whole object is sent instead
+        boolean partial = ranges.size() == 1;
+
+        StoredObject storedObject;
+        try {
+            storedObject = storage.get(storageKey, partial ? ranges.get(0) : null);
+        } catch (InvalidRangeException e) {
+            return rangeNotSatisfiable(e.getObjectLength());
+        } catch (StorageException e) {
+            return storageError(e);
+        }
+
+        ObjectMetadata metadata = storedObject.getMetadata();
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Content-Disposition", "attachment; filename=" + s3FileName);
+        headers.add("Content-Type", "application/octet-stream");
+        headers.add(HttpHeaders.ACCEPT_RANGES, "bytes");
+        headers.setContentLength(storedObject.getContentLength());
+        headers.setETag(metadata.etag());
+        headers.setLastModified(metadata.lastModified());
+        if (storedObject.isPartial()) {
+            headers.add(HttpHeaders.CONTENT_RANGE, storedObject.getContentRange());
+        }
+
+        // the open object is written to the servlet output by StoredObjectHttpMessageConverter, in fixed-size
+        // chunks or by channel transfer, so a download never holds the whole object on the heap
+        return ResponseEntity.status(storedObject.isPartial() ? HttpStatus.PARTIAL_CONTENT : HttpStatus.OK)
+                .headers(headers)
+                .body(storedObject);
+    }
+
+    // the outcome of checkDownload: the attachment it resolved, or the error response to send instead. Callers use
+    // this attachment rather than looking it up again, which a concurrent delete could have removed by then
+    record DownloadCheck(AttachmentOwnership attachment, ResponseEntity<Object> rejection) {
+
+        static DownloadCheck rejected(ResponseEntity<Object> rejection) {
+            return new DownloadCheck(null, rejection);
+        }
+    }
+
+    // what every download checks before it touches storage
+    DownloadCheck checkDownload(String filename, Long userId, Long attachmentId) {
+        if (userId == null) {
+            return DownloadCheck.rejected(ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body("You did not enter userId. Please enter userId to download the file.".getBytes()));
+        }
+        if (userId < 1) {
+            return DownloadCheck.rejected(ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body("UserId should not be a negative value".getBytes()));
+        }
+        if (attachmentId == null) {
+            return DownloadCheck.rejected(ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body("You did not enter attachmentId. Please enter attachmentId to download the file.".getBytes()));
+        }
+        if (attachmentId < 1) {
+            return DownloadCheck.rejected(ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body("AttachmentId should be a positive value".getBytes()));
+        }
+
+        Optional<AttachmentOwnership> userAttachmentOptional = metadataCache.attachment(attachmentId);
+
+        if (userAttachmentOptional.isEmpty()) {
+            return DownloadCheck.rejected(ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(("Attachment ID " + attachmentId + " does not exist").getBytes()));
+        }
+
+        AttachmentOwnership userAttachment = userAttachmentOptional.get();
+
+        if (!userAttachment.userId().equals(userId) || !userAttachment.fileName().equals(filename)) {
+            return DownloadCheck.rejected(ResponseEntity.status(HttpStatus.FORBIDDEN)
+                    .body(("No matching file found for User ID " + userId + " with the filename: " + filename +
+                            " and attachment ID: " + attachmentId).getBytes()));
+        }
+
+        if (userAttachment.status() == AttachmentStatus.FAILED) {
+            return DownloadCheck.rejected(ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(("Upload of attachment ID " + attachmentId + " failed").getBytes()));
+        }
+        if (userAttachment.status() != AttachmentStatus.STORED) {
+            return DownloadCheck.rejected(ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(("Attachment ID " + attachmentId + " is still being uploaded").getBytes()));
+        }
+
+        return new DownloadCheck(userAttachment, null);
+    }
+
+    private ResponseEntity<Object> rangeNotSatisfiable(long objectLength) {
+        HttpHeaders headers = new HttpHeaders();
+        if (objectLength >= 0) {
+            headers.add(HttpHeaders.CONTENT_RANGE, "bytes */" + objectLength);
+        }
+        return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                .headers(headers)
+                .body("Requested range is not satisfiable".getBytes());
+    }
+
+    private ResponseEntity<Object> storageError(StorageException e) {
+        if (e instanceof ObjectNotFoundException) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(("File is missing from storage: " + e.getMessage()).getBytes());
+        }
+        return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                .body(("Problem retrieving file from storage: " + e.getMessage()).getBytes());
+    }
+
+    private boolean isNotModified(ObjectMetadata head, List<String> ifNoneMatch, long ifModifiedSince) {
+        // If-None-Match takes precedence over If-Modified-Since (RFC 9110 13.2.2)
+        if (!ifNoneMatch.isEmpty()) {
+            String etag = stripWeakPrefix(head.etag());
+            for (String candidate : ifNoneMatch) {
+                if ("*".equals(candidate) || stripWeakPrefix(candidate).equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        // HTTP dates have second precision, S3 timestamps may not
+        return head.lastModified().getEpochSecond() <= ifModifiedSince / 1000;
+    }
+
+    private boolean ifRangeMatches(ObjectMetadata head, String ifRange) {
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // If-Range requires a strong comparison, so weak validators never match
+            return ifRange.equals(head.etag());
+        }
+        try {
+            long date = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+            return head.lastModified().getEpochSecond() == date;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    private static String stripWeakPrefix(String etag) {
+        return etag != null && etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    // malformed validator and Range headers are ignored, as RFC 9110 allows, rather than failing the download
+    private static List<HttpRange> parseRanges(HttpHeaders requestHeaders) {
+        try {
+            return requestHeaders.getRange();
+        } catch (IllegalArgumentException e) {
+            return List.of();
+        }
+    }
+
+    private static List<String> parseIfNoneMatch(HttpHeaders requestHeaders) {
+        try {
+            return requestHeaders.getIfNoneMatch();
+        } catch (IllegalArgumentException e) {
+            return List.of();
+        }
+    }
+
+    private static long parseDate(HttpHeaders requestHeaders, String headerName) {
+        try {
+            return requestHeaders.getFirstDate(headerName);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+}
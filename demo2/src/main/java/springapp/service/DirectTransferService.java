@@ -0,0 +1,263 @@
+package springapp.service;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
+import software.amazon.awssdk.services.s3.presigner.model.PresignedGetObjectRequest;
+import software.amazon.awssdk.services.s3.presigner.model.PresignedPutObjectRequest;
+import software.amazon.awssdk.services.s3.presigner.model.PutObjectPresignRequest;
+import springapp.model.AttachmentOwnership;
+import springapp.model.AttachmentStatus;
+import springapp.model.User;
+import springapp.model.UserAttachment;
+import springapp.repository.AttachmentRepository;
+import springapp.storage.ObjectMetadata;
+import springapp.storage.ObjectNotFoundException;
+import springapp.storage.ObjectStorage;
+import springapp.storage.StorageException;
+
+/**
+ * Uploads and downloads that move the bytes between the client and S3 directly. The app still makes every check
+ * it makes for a proxied transfer, then hands out a short-lived presigned URL instead of the bytes.
+ *
+ * A direct upload creates its row as UPLOADING, under the per-attachment key, with the announced size and the time
+ * its URL expires. The row only becomes STORED when the client calls complete and a HEAD shows an object of the
+ * announced size and type; that step is one conditional update, so concurrent completes store it once. Rows never
+ * completed are swept some time after their URL expired, with whatever object did get uploaded. Direct uploads are
+ * not deduplicated into blobs, since the app never sees their content.
+ */
+@Service
+public class DirectTransferService {
+
+    private final ObjectProvider<S3Presigner> presigner;
+    private final DemoService demoService;
+    private final AttachmentRepository attachmentRepo;
+    private final ObjectStorage storage;
+    private final MetadataCache metadataCache;
+    private final ApplicationEventPublisher eventPublisher;
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+    private final String bucketName;
+    private final Duration ttl;
+
+    @Value("${storage.presign.max-upload-bytes:5368709120}")
+    private long maxUploadBytes;
+
+    @Value("${storage.presign.sweep-batch-size:1000}")
+    private int sweepBatchSize;
+
+    public DirectTransferService(ObjectProvider<S3Presigner> presigner, DemoService demoService,
+                                 AttachmentRepository attachmentRepo, ObjectStorage storage, MetadataCache metadataCache,
+                                 ApplicationEventPublisher eventPublisher, NamedParameterJdbcTemplate jdbcTemplate,
+                                 @Value("${aws.s3.bucket.name}") String bucketName,
+                                 @Value("${storage.presign.ttl-seconds:900}") long ttlSeconds) {
+        this.presigner = presigner;
+        this.demoService = demoService;
+        this.attachmentRepo = attachmentRepo;
+        this.storage = storage;
+        this.metadataCache = metadataCache;
+        this.eventPublisher = eventPublisher;
+        this.jdbcTemplate = jdbcTemplate;
+        this.bucketName = bucketName;
+        this.ttl = Duration.ofSeconds(ttlSeconds);
+    }
+
+    //handing out an upload URL---------------------------------------------------------------------------------------------------------------
+    public ResponseEntity<Object> requestUpload(Long userId, String fileName, String fileType, Long size) {
+        S3Presigner signer = presigner.getIfAvailable();
+        if (signer == null) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Direct transfers need an s3 storage backend");
+        }
+        User user;
+        try {
+            user = demoService.validateUpload(userId, fileName, fileType);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+        }
+        if (size == null || size < 0) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Enter the size of the file in bytes");
+        }
+        if (size > maxUploadBytes) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body("File size exceeds the " + maxUploadBytes + " bytes of a direct upload; use /uploads");
+        }
+
+        UserAttachment attachment = new UserAttachment();
+        attachment.setFileName(fileName);
+        attachment.setFileType(fileType);
+        attachment.setLastUpdatedOn(LocalDateTime.now());
+        attachment.setUser(user);
+        attachment.setStatus(AttachmentStatus.UPLOADING);
+        attachment.setExpectedSize(size);
+        attachment.setUploadExpiresOn(LocalDateTime.now().plus(ttl));
+        attachment = attachmentRepo.save(attachment);
+
+        // content type and length are signed, so the PUT must send exactly these headers
+        PutObjectRequest put = PutObjectRequest.builder()
+                .bucket(bucketName)
+                .key(DemoService.objectKey(attachment.getId(), fileName))
+                .contentType(fileType)
+                .contentLength(size)
+                .build();
+        PresignedPutObjectRequest presigned = signer.presignPutObject(PutObjectPresignRequest.builder()
+                .signatureDuration(ttl)
+                .putObjectRequest(put)
+                .build());
+
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("attachmentId", attachment.getId());
+        response.put("fileName", fileName);
+        response.put("status", attachment.getStatus());
+        response.put("method", presigned.httpRequest().method().name());
+        response.put("uploadUrl", presigned.url().toString());
+        response.put("headers", presigned.signedHeaders());
+        response.put("expiresAt", presigned.expiration());
+        response.put("completeUrl", "/upload/direct/" + attachment.getId() + "/complete?userId=" + userId);
+        return ResponseEntity.ok(response);
+    }
+
+    //confirming an upload--------------------------------------------------------------------------------------------------------------------
+    public ResponseEntity<Object> completeUpload(Long attachmentId, Long userId) {
+        if (userId == null || userId < 1) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Enter a valid userId");
+        }
+        Optional<UserAttachment> found = attachmentRepo.findById(attachmentId);
+        if (found.isEmpty() || !found.get().getUser().getId().equals(userId)) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("No attachment " + attachmentId + " for User ID " + userId);
+        }
+        UserAttachment attachment = found.get();
+        // completing twice is harmless, e.g. when the client retries after a lost response
+        if (attachment.getStatus() == AttachmentStatus.STORED) {
+            return ResponseEntity.ok(completed(attachment, null));
+        }
+        if (attachment.getStatus() != AttachmentStatus.UPLOADING) {
+            return ResponseEntity.status(HttpStatus.CONFLICT)
+                    .body("Attachment ID " + attachmentId + " is " + attachment.getStatus() + ", not a direct upload");
+        }
+
+        ObjectMetadata head;
+        try {
+            head = storage.head(DemoService.objectKey(attachmentId, attachment.getFileName()));
+        } catch (ObjectNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT)
+                    .body("The file of attachment ID " + attachmentId + " has not been uploaded yet");
+        } catch (StorageException e) {
+            return ResponseEntity.status(HttpStatus.BAD_GATEWAY).body("Problem checking the uploaded file: " + e.getMessage());
+        }
+        // the URL signs both, so a mismatch means the object did not come through it; the client may PUT again
+        if (attachment.getExpectedSize() != null && head.contentLength() != attachment.getExpectedSize()) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body("The uploaded file has " + head.contentLength()
+                    + " bytes, " + attachment.getExpectedSize() + " were announced");
+        }
+        if (head.contentType() != null && !head.contentType().equalsIgnoreCase(attachment.getFileType())) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body("The uploaded file has type " + head.contentType()
+                    + ", " + attachment.getFileType() + " was announced");
+        }
+
+        if (attachmentRepo.markUploadStored(attachmentId, LocalDateTime.now()) == 0) {
+            // a concurrent complete got there first, or the sweep removed the row
+            Optional<UserAttachment> current = attachmentRepo.findById(attachmentId);
+            if (current.isPresent() && current.get().getStatus() == AttachmentStatus.STORED) {
+                return ResponseEntity.ok(completed(current.get(), head.contentLength()));
+            }
+            return ResponseEntity.status(HttpStatus.CONFLICT)
+                    .body("Attachment ID " + attachmentId + " is no longer waiting for its upload");
+        }
+        attachment.setStatus(AttachmentStatus.STORED);
+        metadataCache.invalidateAttachment(attachmentId);
+        eventPublisher.publishEvent(AttachmentStoredEvent.of(attachment));
+        return ResponseEntity.ok(completed(attachment, head.contentLength()));
+    }
+
+    private static Map<String, Object> completed(UserAttachment attachment, Long size) {
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("attachmentId", attachment.getId());
+        response.put("fileName", attachment.getFileName());
+        response.put("status", attachment.getStatus());
+        if (size != null) {
+            response.put("size", size);
+        }
+        return response;
+    }
+
+    //sweeping abandoned uploads-------------------------------------------------------------------------------------------------------------
+    // a PUT begun just before its URL expired may still be running, so rows get one more ttl before they go
+    @Scheduled(fixedDelayString = "${storage.presign.sweep-interval-ms:300000}")
+    public void sweepExpiredUploads() {
+        MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("cutoff", Timestamp.valueOf(LocalDateTime.now().minus(ttl)))
+                .addValue("limit", sweepBatchSize);
+        List<String> keys;
+        do {
+            keys = new ArrayList<>();
+            List<String> batch = keys;
+            // each batch is one statement, so a complete racing the sweep either stores the row or finds it gone
+            jdbcTemplate.query("delete from user_attachment where id in (select id from user_attachment"
+                    + " where status = 'UPLOADING' and upload_expires_on < :cutoff limit :limit)"
+                    + " and status = 'UPLOADING' returning id, file_name", params, rs -> {
+                metadataCache.invalidateAttachment(rs.getLong("id"));
+                batch.add(DemoService.objectKey(rs.getLong("id"), rs.getString("file_name")));
+            });
+            if (!keys.isEmpty()) {
+                try {
+                    storage.deleteAll(keys);
+                } catch (StorageException e) {
+                    // objects left behind are orphans that reconciliation removes
+                }
+            }
+        } while (keys.size() == sweepBatchSize);
+    }
+
+    //handing out a download URL--------------------------------------------------------------------------------------------------------------
+    public ResponseEntity<Object> requestDownload(String filename, Long userId, Long attachmentId) {
+        S3Presigner signer = presigner.getIfAvailable();
+        if (signer == null) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Direct transfers need an s3 storage backend");
+        }
+        DemoService.DownloadCheck check = demoService.checkDownload(filename, userId, attachmentId);
+        if (check.rejection() != null) {
+            return check.rejection();
+        }
+        AttachmentOwnership attachment = check.attachment();
+
+        GetObjectRequest get = GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(DemoService.storageKey(attachmentId, filename, attachment.blobHash()))
+                .responseContentDisposition(ContentDisposition.attachment()
+                        .filename(DemoService.objectKey(attachmentId, filename))
+                        .build()
+                        .toString())
+                .build();
+        PresignedGetObjectRequest presigned = signer.presignGetObject(GetObjectPresignRequest.builder()
+                .signatureDuration(ttl)
+                .getObjectRequest(get)
+                .build());
+
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("attachmentId", attachmentId);
+        response.put("fileName", filename);
+        response.put("url", presigned.url().toString());
+        response.put("expiresAt", presigned.expiration());
+        return ResponseEntity.ok(response);
+    }
+}
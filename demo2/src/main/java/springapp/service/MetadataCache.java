@@ -0,0 +1,111 @@
+package springapp.service;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import springapp.model.AttachmentOwnership;
+import springapp.model.AttachmentStatus;
+import springapp.repository.AttachmentRepository;
+import springapp.repository.UserRespository;
+
+/**
+ * Bounded in-process cache of the metadata checked on every upload and download: which user ids exist, and who
+ * owns an attachment under which name. Both are size-bounded and expire after ttl, which also caps how long another
+ * instance's change can go unseen here.
+ *
+ * Only facts that do not change on their own are cached: a user that exists, and an attachment that is STORED.
+ * Writes that touch either still invalidate the entry.
+ */
+@Component
+public class MetadataCache {
+
+    private final UserRespository userRepository;
+    private final AttachmentRepository attachmentRepo;
+    private final Cache<Long, Boolean> users;
+    private final Cache<Long, AttachmentOwnership> attachments;
+    // attachment lookups are download traffic, which a read replica may serve; user lookups also gate uploads and
+    // stay on the primary
+    private final TransactionTemplate readOnlyTransaction;
+
+    public MetadataCache(UserRespository userRepository, AttachmentRepository attachmentRepo,
+                         PlatformTransactionManager transactionManager,
+                         @Value("${metadata.cache.max-users:100000}") long maxUsers,
+                         @Value("${metadata.cache.max-attachments:100000}") long maxAttachments,
+                         @Value("${metadata.cache.ttl-seconds:300}") long ttlSeconds) {
+        this.userRepository = userRepository;
+        this.attachmentRepo = attachmentRepo;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.users = Caffeine.newBuilder()
+                .maximumSize(maxUsers)
+                .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+                .recordStats()
+                .build();
+        this.attachments = Caffeine.newBuilder()
+                .maximumSize(maxAttachments)
+                .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+                .recordStats()
+                .build();
+    }
+
+    public boolean userExists(Long userId) {
+        if (users.getIfPresent(userId) != null) {
+            return true;
+        }
+        // an unknown id is not remembered, so a user created on another instance is found at once
+        boolean exists = userRepository.existsById(userId);
+        if (exists) {
+            users.put(userId, Boolean.TRUE);
+        }
+        return exists;
+    }
+
+    public Optional<AttachmentOwnership> attachment(Long attachmentId) {
+        AttachmentOwnership cached = attachments.getIfPresent(attachmentId);
+        if (cached != null) {
+            return Optional.of(cached);
+        }
+        Optional<AttachmentOwnership> ownership = readOnlyTransaction.execute(status -> attachmentRepo.findOwnershipById(attachmentId));
+        // rows still being uploaded change state, so they are read again until they are STORED
+        ownership.filter(row -> row.status() == AttachmentStatus.STORED)
+                .ifPresent(row -> attachments.put(attachmentId, row));
+        return ownership;
+    }
+
+    public void invalidateUser(Long userId) {
+        users.invalidate(userId);
+    }
+
+    public void invalidateAttachment(Long attachmentId) {
+        attachments.invalidate(attachmentId);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("users", stats(users));
+        body.put("attachments", stats(attachments));
+        return body;
+    }
+
+    private static Map<String, Object> stats(Cache<Long, ?> cache) {
+        CacheStats stats = cache.stats();
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("entries", cache.estimatedSize());
+        body.put("hits", stats.hitCount());
+        body.put("misses", stats.missCount());
+        body.put("hitRate", stats.hitRate());
+        body.put("evictions", stats.evictionCount());
+        return body;
+    }
+}
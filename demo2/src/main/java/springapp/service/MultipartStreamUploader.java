@@ -0,0 +1,182 @@
+package springapp.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import springapp.storage.ObjectStorage;
+import springapp.storage.UploadedPart;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams an input of unknown length into object storage as a multipart upload.
+ *
+ * Parts are read into buffers taken from a pool shared by all uploads and sent in parallel; a reader
+ * that finds the pool empty waits until an in-flight part completes, so heap use is capped at
+ * bufferCount * partSize no matter how many uploads run or how large they are. The wait is bounded: when no
+ * buffer frees up in time the upload fails with UploadBuffersBusyException instead of holding its request
+ * thread indefinitely.
+ */
+@Component
+public class MultipartStreamUploader {
+
+    // S3 rejects any part but the last one below 5 MiB
+    private static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    private final ObjectStorage storage;
+    private final int partSize;
+    private final Semaphore bufferPermits;
+    private final long bufferWaitMillis;
+    private final ConcurrentLinkedQueue<byte[]> freeBuffers = new ConcurrentLinkedQueue<>();
+    private final ExecutorService partExecutor;
+
+    public MultipartStreamUploader(ObjectStorage storage,
+                                   @Value("${upload.multipart.part-size:8388608}") int partSize,
+                                   @Value("${upload.multipart.buffer-count:8}") int bufferCount,
+                                   @Value("${upload.multipart.concurrency:4}") int concurrency,
+                                   @Value("${upload.multipart.buffer-wait-ms:30000}") long bufferWaitMillis) {
+        if (partSize < MIN_PART_SIZE) {
+            throw new IllegalArgumentException("upload.multipart.part-size must be at least " + MIN_PART_SIZE + " bytes");
+        }
+        this.storage = storage;
+        this.partSize = partSize;
+        this.bufferPermits = new Semaphore(bufferCount);
+        this.bufferWaitMillis = bufferWaitMillis;
+        this.partExecutor = Executors.newFixedThreadPool(concurrency, new CustomizableThreadFactory("part-upload-"));
+    }
+
+    /**
+     * Uploads everything remaining in the stream under the given key and returns the number of bytes written.
+     * On failure the multipart upload is aborted before the exception is rethrown.
+     */
+    public long upload(String key, String contentType, InputStream inputStream) throws IOException {
+        byte[] buffer = acquireBuffer();
+        int length;
+        String uploadId;
+        try {
+            length = inputStream.readNBytes(buffer, 0, partSize);
+            if (length < partSize) {
+                // fits in one part, a plain PUT saves the create/complete round trips
+                storage.put(key, new ByteArrayInputStream(buffer, 0, length), length, contentType);
+                releaseBuffer(buffer);
+                return length;
+            }
+            uploadId = storage.createMultipartUpload(key, contentType);
+        } catch (IOException | RuntimeException e) {
+            releaseBuffer(buffer);
+            throw e;
+        }
+
+        List<CompletableFuture<UploadedPart>> parts = new ArrayList<>();
+        long totalBytes = 0;
+        try {
+            int partNumber = 1;
+            while (true) {
+                totalBytes += length;
+                parts.add(uploadPart(key, uploadId, partNumber++, buffer, length));
+                buffer = null;
+                if (anyFailed(parts)) {
+                    // stop reading, the join below surfaces the failure
+                    break;
+                }
+
+                buffer = acquireBuffer();
+                length = inputStream.readNBytes(buffer, 0, partSize);
+                if (length == 0) {
+                    releaseBuffer(buffer);
+                    buffer = null;
+                    break;
+                }
+            }
+
+            List<UploadedPart> uploadedParts = new ArrayList<>(parts.size());
+            for (CompletableFuture<UploadedPart> part : parts) {
+                uploadedParts.add(part.join());
+            }
+            storage.completeMultipartUpload(key, uploadId, uploadedParts);
+            return totalBytes;
+        } catch (IOException | RuntimeException e) {
+            if (buffer != null) {
+                releaseBuffer(buffer);
+            }
+            abort(key, uploadId, parts);
+            if (e instanceof CompletionException && e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    // the part stream wraps the pooled buffer without copying; a ByteArrayInputStream can be reset for retries
+    private CompletableFuture<UploadedPart> uploadPart(String key, String uploadId, int partNumber, byte[] buffer, int length) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                String etag = storage.uploadPart(key, uploadId, partNumber, new ByteArrayInputStream(buffer, 0, length), length);
+                return new UploadedPart(partNumber, etag);
+            } finally {
+                releaseBuffer(buffer);
+            }
+        }, partExecutor);
+    }
+
+    private void abort(String key, String uploadId, List<CompletableFuture<UploadedPart>> parts) {
+        // let in-flight parts settle first, a part that lands after the abort would be stored and billed
+        for (CompletableFuture<UploadedPart> part : parts) {
+            try {
+                part.join();
+            } catch (RuntimeException ignored) {
+                // the failure that matters is the one being rethrown by upload()
+            }
+        }
+        try {
+            storage.abortMultipartUpload(key, uploadId);
+        } catch (RuntimeException ignored) {
+            // on S3 a bucket lifecycle rule for incomplete uploads is the backstop
+        }
+    }
+
+    private static boolean anyFailed(List<CompletableFuture<UploadedPart>> parts) {
+        for (CompletableFuture<UploadedPart> part : parts) {
+            if (part.isCompletedExceptionally()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private byte[] acquireBuffer() throws IOException {
+        try {
+            if (!bufferPermits.tryAcquire(bufferWaitMillis, TimeUnit.MILLISECONDS)) {
+                throw new UploadBuffersBusyException(bufferWaitMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an upload buffer");
+        }
+        byte[] buffer = freeBuffers.poll();
+        return buffer != null ? buffer : new byte[partSize];
+    }
+
+    private void releaseBuffer(byte[] buffer) {
+        freeBuffers.offer(buffer);
+        bufferPermits.release();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        partExecutor.shutdown();
+    }
+}
@@ -0,0 +1,553 @@
+package springapp.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import springapp.storage.ObjectListing;
+import springapp.storage.ObjectNotFoundException;
+import springapp.storage.ObjectStorage;
+import springapp.storage.ObjectSummary;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Compares what is in storage with what the database says should be there, and reports or repairs the differences:
+ * stored attachments or thumbnails whose object is missing, blobs that are missing or no longer referenced, and
+ * objects nothing accounts for, e.g. left behind by a crash or a failed delete.
+ *
+ * The key space is cut into prefix partitions (the first two characters of an attachment key, the first hash digit
+ * of a blob key) that are scanned in parallel. Each partition is a merge join of two sorted streams read a page at a
+ * time: the bucket listing, and the rows in the same key order, by keyset over an index on the key expression. Memory
+ * stays constant however many keys there are.
+ *
+ * Both streams move while uploads go on, so nothing is judged on the scan alone: a missing object is looked up again
+ * before it is reported, and an object is only an orphan when it is older than the grace period.
+ */
+@Service
+public class ReconciliationService {
+
+    private static final String HEX_DIGITS = "0123456789abcdef";
+    private static final String BLOB_PREFIX = BlobService.blobKey("");
+    // the attachment object key as the database orders it: by code point, as the bucket listing does
+    private static final String OBJECT_KEY = "(id::text || '_' || file_name) collate \"C\"";
+
+    public enum JobStatus {
+        RUNNING, COMPLETED, CANCELLED, FAILED
+    }
+
+    public enum Difference {
+        // a stored attachment's own object is missing
+        MISSING_OBJECT,
+        // a thumbnail recorded on an attachment is missing
+        MISSING_THUMBNAIL,
+        // a stored blob with references has no object
+        MISSING_BLOB,
+        // a blob object's size differs from its row
+        BLOB_SIZE_MISMATCH,
+        // a blob row no attachment refers to any more, left by a failed release
+        UNREFERENCED_BLOB,
+        // an object no row accounts for
+        ORPHAN_OBJECT
+    }
+
+    // progress of one reconciliation, read by the status endpoint while the partitions update it
+    public static final class ReconcileJob {
+
+        private final String id;
+        private final boolean repair;
+        private final int partitions;
+        private final int maxSamples;
+        private final LocalDateTime startedOn = LocalDateTime.now();
+        private final AtomicInteger partitionsDone = new AtomicInteger();
+        private final AtomicLong objectsListed = new AtomicLong();
+        private final AtomicLong rowsRead = new AtomicLong();
+        private final AtomicLong repaired = new AtomicLong();
+        private final Map<Difference, AtomicLong> differences = new EnumMap<>(Difference.class);
+        private final List<Map<String, Object>> samples = new ArrayList<>();
+        private volatile JobStatus status = JobStatus.RUNNING;
+        private volatile boolean cancelRequested;
+        private volatile LocalDateTime finishedOn;
+        private volatile String error;
+
+        private ReconcileJob(String id, boolean repair, int partitions, int maxSamples) {
+            this.id = id;
+            this.repair = repair;
+            this.partitions = partitions;
+            this.maxSamples = maxSamples;
+            for (Difference difference : Difference.values()) {
+                differences.put(difference, new AtomicLong());
+            }
+        }
+
+        private void found(Difference difference, String key, Long attachmentId) {
+            differences.get(difference).incrementAndGet();
+            synchronized (samples) {
+                if (samples.size() < maxSamples) {
+                    Map<String, Object> sample = new LinkedHashMap<>();
+                    sample.put("difference", difference);
+                    sample.put("key", key);
+                    if (attachmentId != null) {
+                        sample.put("attachmentId", attachmentId);
+                    }
+                    samples.add(sample);
+                }
+            }
+        }
+
+        private Map<String, Object> describe() {
+            Map<String, Object> body = new LinkedHashMap<>();
+            body.put("jobId", id);
+            body.put("status", status);
+            body.put("repair", repair);
+            body.put("partitions", partitions);
+            body.put("partitionsDone", partitionsDone.get());
+            body.put("objectsListed", objectsListed.get());
+            body.put("rowsRead", rowsRead.get());
+            Map<Difference, Long> counts = new EnumMap<>(Difference.class);
+            differences.forEach((difference, count) -> counts.put(difference, count.get()));
+            body.put("differences", counts);
+            body.put("repaired", repaired.get());
+            synchronized (samples) {
+                body.put("samples", List.copyOf(samples));
+            }
+            body.put("startedOn", startedOn);
+            body.put("finishedOn", finishedOn);
+            if (error != null) {
+                body.put("error", error);
+            }
+            return body;
+        }
+    }
+
+    // a run of keys listed by prefix; the rows of the same keys lie in [lower, upper) of the partition's key column
+    private record Partition(String prefix, boolean blobs, String lower, String upper) {
+    }
+
+    // one key the database expects, or allows, in storage; ifMissing is null when the object may be absent
+    private record Expected(String key, Difference ifMissing, Long attachmentId, String blobHash, long size,
+                            boolean unreferenced) {
+    }
+
+    // the keys of one row, in key order; rowKey is where the next page starts after it
+    private record Row(String rowKey, List<Expected> expected) {
+    }
+
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final ObjectStorage storage;
+    private final BlobService blobService;
+    private final MetadataCache metadataCache;
+    private final ExecutorService jobExecutor;
+    private final ExecutorService partitionExecutor;
+    private final List<Partition> partitions = partitions();
+    private final AtomicReference<ReconcileJob> running = new AtomicReference<>();
+    // finished jobs stay visible for a day
+    private final Cache<String, ReconcileJob> jobs = Caffeine.newBuilder()
+            .expireAfterWrite(Duration.ofDays(1))
+            .build();
+
+    @Value("${reconcile.page-size:1000}")
+    private int pageSize;
+
+    @Value("${reconcile.grace-minutes:60}")
+    private long graceMinutes;
+
+    @Value("${reconcile.max-samples:100}")
+    private int maxSamples;
+
+    public ReconciliationService(NamedParameterJdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate,
+                                 ObjectStorage storage, BlobService blobService, MetadataCache metadataCache,
+                                 @Value("${reconcile.parallelism:8}") int parallelism) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.storage = storage;
+        this.blobService = blobService;
+        this.metadataCache = metadataCache;
+        this.jobExecutor = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("reconcile-job-"));
+        this.partitionExecutor = Executors.newFixedThreadPool(parallelism, new CustomizableThreadFactory("reconcile-"));
+    }
+
+    // attachment keys start with a positive id and blob keys with blobs/ and a hex digit; keys of any other shape
+    // were not written by this app and are left alone
+    private static List<Partition> partitions() {
+        List<Partition> partitions = new ArrayList<>();
+        for (char first = '1'; first <= '9'; first++) {
+            for (char second : "0123456789_".toCharArray()) {
+                String prefix = "" + first + second;
+                partitions.add(new Partition(prefix, false, prefix, successor(prefix)));
+            }
+        }
+        // hex digits sort alike in every collation, so the blob rows are read in primary key order
+        for (char digit : HEX_DIGITS.toCharArray()) {
+            String prefix = String.valueOf(digit);
+            partitions.add(new Partition(BLOB_PREFIX + prefix, true, prefix, successor(prefix)));
+        }
+        return List.copyOf(partitions);
+    }
+
+    // the first string after every string starting with the prefix
+    private static String successor(String prefix) {
+        return prefix.substring(0, prefix.length() - 1) + (char) (prefix.charAt(prefix.length() - 1) + 1);
+    }
+
+    //starting and following a job------------------------------------------------------------------------------------------------------------
+    // answers 202 at once; the status URL reports progress. Only one job runs at a time
+    public ResponseEntity<Object> startReconcile(boolean repair) {
+        ReconcileJob job = new ReconcileJob(UUID.randomUUID().toString(), repair, partitions.size(), maxSamples);
+        if (!running.compareAndSet(null, job)) {
+            return ResponseEntity.status(HttpStatus.CONFLICT)
+                    .body("Reconciliation job " + running.get().id + " is still running");
+        }
+        jobs.put(job.id, job);
+        jobExecutor.execute(() -> run(job));
+
+        URI statusUrl = URI.create("/reconcile/" + job.id);
+        Map<String, Object> response = job.describe();
+        response.put("statusUrl", statusUrl.toString());
+        return ResponseEntity.status(HttpStatus.ACCEPTED).location(statusUrl).body(response);
+    }
+
+    public ResponseEntity<Object> getJob(String jobId) {
+        ReconcileJob job = jobs.getIfPresent(jobId);
+        if (job == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("No reconciliation job " + jobId);
+        }
+        return ResponseEntity.ok(job.describe());
+    }
+
+    // stops every partition after the page in progress; what is repaired stays repaired
+    public ResponseEntity<Object> cancelJob(String jobId) {
+        ReconcileJob job = jobs.getIfPresent(jobId);
+        if (job == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("No reconciliation job " + jobId);
+        }
+        job.cancelRequested = true;
+        return ResponseEntity.ok(job.describe());
+    }
+
+    private void run(ReconcileJob job) {
+        try {
+            List<CompletableFuture<Void>> scans = new ArrayList<>(partitions.size());
+            for (Partition partition : partitions) {
+                scans.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        reconcile(job, partition);
+                    } catch (RuntimeException e) {
+                        // the other partitions go on; the job ends FAILED
+                        job.error = "Partition " + partition.prefix() + ": " + e.getMessage();
+                    }
+                    job.partitionsDone.incrementAndGet();
+                }, partitionExecutor));
+            }
+            CompletableFuture.allOf(scans.toArray(new CompletableFuture[0])).join();
+            job.status = job.error != null ? JobStatus.FAILED
+                    : job.cancelRequested ? JobStatus.CANCELLED : JobStatus.COMPLETED;
+        } catch (RuntimeException e) {
+            job.error = e.getMessage();
+            job.status = JobStatus.FAILED;
+        } finally {
+            job.finishedOn = LocalDateTime.now();
+            running.set(null);
+        }
+    }
+
+    //merging one partition--------------------------------------------------------------------------------------------------------------------
+    private void reconcile(ReconcileJob job, Partition partition) {
+        Instant graceCutoff = Instant.now().minus(Duration.ofMinutes(graceMinutes));
+        Iterator<ObjectSummary> objects = new ObjectCursor(job, partition.prefix());
+        Iterator<Expected> expectations = new ExpectedCursor(job,
+                after -> partition.blobs() ? blobRows(partition, after) : attachmentRows(partition, after));
+        List<String> orphans = new ArrayList<>();
+        List<String> unreferenced = new ArrayList<>();
+
+        ObjectSummary object = objects.hasNext() ? objects.next() : null;
+        Expected expected = expectations.hasNext() ? expectations.next() : null;
+        while ((object != null || expected != null) && !job.cancelRequested) {
+            int order = object == null ? 1 : expected == null ? -1 : compareKeys(object.key(), expected.key());
+            if (order == 0) {
+                matched(job, expected, object, unreferenced);
+            } else if (order < 0) {
+                if (object.lastModified() == null || object.lastModified().isBefore(graceCutoff)) {
+                    job.found(Difference.ORPHAN_OBJECT, object.key(), null);
+                    orphans.add(object.key());
+                }
+            } else {
+                missing(job, expected, unreferenced);
+            }
+            if (order <= 0) {
+                object = objects.hasNext() ? objects.next() : null;
+            }
+            if (order >= 0) {
+                expected = expectations.hasNext() ? expectations.next() : null;
+            }
+            if (orphans.size() == ObjectStorage.MAX_DELETE_BATCH) {
+                deleteOrphans(job, orphans);
+            }
+            if (unreferenced.size() == ObjectStorage.MAX_DELETE_BATCH) {
+                deleteUnreferenced(job, unreferenced);
+            }
+        }
+        deleteOrphans(job, orphans);
+        deleteUnreferenced(job, unreferenced);
+    }
+
+    private void matched(ReconcileJob job, Expected expected, ObjectSummary object, List<String> unreferenced) {
+        if (expected.unreferenced()) {
+            job.found(Difference.UNREFERENCED_BLOB, expected.key(), null);
+            unreferenced.add(expected.blobHash());
+        } else if (expected.size() >= 0 && expected.size() != object.size()) {
+            // the key is the content hash, so there is nothing to repair it from; reported only
+            job.found(Difference.BLOB_SIZE_MISMATCH, expected.key(), null);
+        }
+    }
+
+    private void missing(ReconcileJob job, Expected expected, List<String> unreferenced) {
+        if (expected.unreferenced()) {
+            job.found(Difference.UNREFERENCED_BLOB, expected.key(), null);
+            unreferenced.add(expected.blobHash());
+            return;
+        }
+        // the listing may have passed the key before the object was written
+        if (expected.ifMissing() == null || exists(expected.key())) {
+            return;
+        }
+        job.found(expected.ifMissing(), expected.key(), expected.attachmentId());
+        if (job.repair && repairMissing(expected)) {
+            job.repaired.incrementAndGet();
+        }
+    }
+
+    private boolean exists(String key) {
+        try {
+            storage.head(key);
+            return true;
+        } catch (ObjectNotFoundException e) {
+            return false;
+        }
+    }
+
+    // code point order, which is the UTF-8 byte order of the bucket listing and of the "C" collation; String.compareTo
+    // orders by UTF-16 unit and disagrees above U+FFFF
+    static int compareKeys(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int x = a.codePointAt(i);
+            int y = b.codePointAt(j);
+            if (x != y) {
+                return Integer.compare(x, y);
+            }
+            i += Character.charCount(x);
+            j += Character.charCount(y);
+        }
+        return Boolean.compare(i < a.length(), j < b.length());
+    }
+
+    //reading the two sides--------------------------------------------------------------------------------------------------------------------
+    private final class ObjectCursor implements Iterator<ObjectSummary> {
+
+        private final ReconcileJob job;
+        private final String prefix;
+        private Iterator<ObjectSummary> page = Collections.emptyIterator();
+        private String continuationToken;
+        private boolean lastPage;
+
+        private ObjectCursor(ReconcileJob job, String prefix) {
+            this.job = job;
+            this.prefix = prefix;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!page.hasNext() && !lastPage) {
+                ObjectListing listing = storage.list(prefix, continuationToken, pageSize);
+                job.objectsListed.addAndGet(listing.objects().size());
+                page = listing.objects().iterator();
+                continuationToken = listing.nextContinuationToken();
+                lastPage = continuationToken == null;
+            }
+            return page.hasNext();
+        }
+
+        @Override
+        public ObjectSummary next() {
+            hasNext();
+            return page.next();
+        }
+    }
+
+    private final class ExpectedCursor implements Iterator<Expected> {
+
+        private final ReconcileJob job;
+        private final Function<String, List<Row>> nextPage;
+        private Iterator<Expected> page = Collections.emptyIterator();
+        private String after;
+        private boolean lastPage;
+
+        private ExpectedCursor(ReconcileJob job, Function<String, List<Row>> nextPage) {
+            this.job = job;
+            this.nextPage = nextPage;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!page.hasNext() && !lastPage) {
+                List<Row> rows = nextPage.apply(after);
+                job.rowsRead.addAndGet(rows.size());
+                lastPage = rows.size() < pageSize;
+                if (!rows.isEmpty()) {
+                    after = rows.get(rows.size() - 1).rowKey();
+                }
+                page = rows.stream().flatMap(row -> row.expected().stream()).iterator();
+            }
+            return page.hasNext();
+        }
+
+        @Override
+        public Expected next() {
+            hasNext();
+            return page.next();
+        }
+    }
+
+    // every attachment in the partition, in object key order. A row's thumbnail keys extend its own key, and no other
+    // row's key can, so they sort right after it
+    private List<Row> attachmentRows(Partition partition, String after) {
+        MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("after", after != null ? after : partition.lower())
+                .addValue("upper", partition.upper())
+                .addValue("limit", pageSize);
+        return jdbcTemplate.query("select id, file_name, status, blob_hash, thumbnails, " + OBJECT_KEY + " as object_key"
+                + " from user_attachment where " + OBJECT_KEY + " > :after and " + OBJECT_KEY + " < :upper"
+                + " order by " + OBJECT_KEY + " limit :limit", params, (rs, rowNum) -> {
+            long id = rs.getLong("id");
+            String key = rs.getString("object_key");
+            String status = rs.getString("status");
+            List<Expected> expected = new ArrayList<>();
+            if (rs.getString("blob_hash") == null) {
+                // an UPLOADING row's object may or may not be there yet; other rows never have one
+                if ("STORED".equals(status)) {
+                    expected.add(new Expected(key, Difference.MISSING_OBJECT, id, null, -1, false));
+                } else if ("UPLOADING".equals(status)) {
+                    expected.add(new Expected(key, null, id, null, -1, false));
+                }
+            }
+            String thumbnails = rs.getString("thumbnails");
+            if (thumbnails != null && !thumbnails.isEmpty()) {
+                List<String> thumbnailKeys = new ArrayList<>();
+                for (String size : thumbnails.split(",")) {
+                    thumbnailKeys.add(ThumbnailService.thumbnailKey(id, rs.getString("file_name"), Integer.parseInt(size)));
+                }
+                thumbnailKeys.sort(ReconciliationService::compareKeys);
+                for (String thumbnailKey : thumbnailKeys) {
+                    expected.add(new Expected(thumbnailKey, Difference.MISSING_THUMBNAIL, id, null, -1, false));
+                }
+            }
+            return new Row(key, expected);
+        });
+    }
+
+    // every blob in the partition, in hash order. A blob still being written may have no object yet
+    private List<Row> blobRows(Partition partition, String after) {
+        MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("after", after != null ? after : partition.lower())
+                .addValue("upper", partition.upper())
+                .addValue("limit", pageSize);
+        return jdbcTemplate.query("select hash, size, ref_count, stored from stored_blob"
+                + " where hash > :after and hash < :upper order by hash limit :limit", params, (rs, rowNum) -> {
+            String hash = rs.getString("hash");
+            String key = BlobService.blobKey(hash);
+            Expected expected;
+            if (rs.getInt("ref_count") <= 0) {
+                expected = new Expected(key, null, null, hash, -1, true);
+            } else if (rs.getBoolean("stored")) {
+                expected = new Expected(key, Difference.MISSING_BLOB, null, hash, rs.getLong("size"), false);
+            } else {
+                expected = new Expected(key, null, null, hash, -1, false);
+            }
+            return new Row(hash, List.of(expected));
+        });
+    }
+
+    //repairing--------------------------------------------------------------------------------------------------------------------------------
+    private boolean repairMissing(Expected expected) {
+        MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("id", expected.attachmentId())
+                .addValue("hash", expected.blobHash());
+        switch (expected.ifMissing()) {
+            case MISSING_OBJECT -> {
+                // nothing to download any more; the owner sees it as FAILED and can delete or upload it again
+                int updated = jdbcTemplate.update("update user_attachment set status = 'FAILED'"
+                        + " where id = :id and status = 'STORED' and blob_hash is null", params);
+                metadataCache.invalidateAttachment(expected.attachmentId());
+                return updated > 0;
+            }
+            case MISSING_THUMBNAIL -> {
+                // the thumbnail sweep makes them again
+                return jdbcTemplate.update("update user_attachment set thumbnails = null where id = :id", params) > 0;
+            }
+            case MISSING_BLOB -> {
+                // the next upload of the same bytes writes the object again instead of only taking a reference
+                List<Long> failed = transactionTemplate.execute(status -> {
+                    jdbcTemplate.update("update stored_blob set stored = false where hash = :hash", params);
+                    return jdbcTemplate.queryForList("update user_attachment set status = 'FAILED'"
+                            + " where blob_hash = :hash and status = 'STORED' returning id", params, Long.class);
+                });
+                if (failed != null) {
+                    failed.forEach(metadataCache::invalidateAttachment);
+                }
+                return true;
+            }
+            default -> {
+                return false;
+            }
+        }
+    }
+
+    private void deleteOrphans(ReconcileJob job, List<String> orphans) {
+        if (job.repair && !orphans.isEmpty()) {
+            job.repaired.addAndGet(orphans.size() - storage.deleteAll(orphans).size());
+        }
+        orphans.clear();
+    }
+
+    private void deleteUnreferenced(ReconcileJob job, List<String> hashes) {
+        if (job.repair && !hashes.isEmpty()) {
+            job.repaired.addAndGet(hashes.size() - blobService.deleteUnreferenced(hashes));
+        }
+        hashes.clear();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        jobExecutor.shutdown();
+        partitionExecutor.shutdown();
+    }
+}
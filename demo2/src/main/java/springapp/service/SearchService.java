@@ -0,0 +1,125 @@
+package springapp.service;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+import springapp.model.AttachmentStatus;
+import springapp.model.AttachmentView;
+import springapp.repository.AttachmentRepository;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Filename search within one user's stored attachments:
+ * - prefix: case-insensitive, in name order, a seek into the "C" collated name index;
+ * - contains: case-insensitive substring, newest first, narrowed by the trigram index;
+ * - similar: pg_trgm similarity, best match first, for misspelled names.
+ *
+ * Pages are counted from 1 and never counted in total: one row more than the page is read to tell whether another
+ * page follows. The matching ids are found first and then read as views by primary key, in the order found.
+ */
+@Service
+public class SearchService {
+
+    private static final int DEFAULT_PAGE_SIZE = 15;
+    private static final int MAX_PAGE_SIZE = 100;
+    private static final int MAX_QUERY_LENGTH = 255;
+
+    private final AttachmentRepository attachmentRepo;
+
+    public SearchService(AttachmentRepository attachmentRepo) {
+        this.attachmentRepo = attachmentRepo;
+    }
+
+    //searching by file name------------------------------------------------------------------------------------------------------------------
+    public ResponseEntity<Object> search(Long userId, String query, String mode, Integer page, Integer size) {
+        if (userId == null || userId < 1) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Enter a valid userId");
+        }
+        if (query == null || query.isBlank()) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Enter the file name to search for");
+        }
+        if (query.length() > MAX_QUERY_LENGTH) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Search text is longer than " + MAX_QUERY_LENGTH + " characters");
+        }
+        if (page == null || page < 1) {
+            page = 1;
+        }
+        if (size == null || size < 1) {
+            size = DEFAULT_PAGE_SIZE;
+        }
+        size = Math.min(size, MAX_PAGE_SIZE);
+        long offset = (long) (page - 1) * size;
+
+        List<Long> ids;
+        try {
+            ids = switch (mode == null ? "prefix" : mode) {
+                case "prefix" -> attachmentRepo.searchIdsByPrefix(userId,
+                        escapeLike(query.toLowerCase(Locale.ROOT)) + "%", size + 1, offset);
+                case "contains" -> attachmentRepo.searchIdsByPattern(userId,
+                        "%" + escapeLike(query) + "%", size + 1, offset);
+                case "similar" -> attachmentRepo.searchIdsBySimilarity(userId, query, size + 1, offset);
+                default -> null;
+            };
+        } catch (DataAccessException e) {
+            if ("similar".equals(mode)) {
+                // the pg_trgm extension could not be installed, see AttachmentIndexInitializer
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Similarity search is not available on this database");
+            }
+            throw e;
+        }
+        if (ids == null) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("mode should be prefix, contains or similar");
+        }
+
+        boolean hasNext = ids.size() > size;
+        if (hasNext) {
+            ids = ids.subList(0, size);
+        }
+        List<AttachmentView> files = ids.isEmpty() ? List.of() : inOrder(ids, userId);
+
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("query", query);
+        response.put("mode", mode == null ? "prefix" : mode);
+        response.put("filesReceived", files.size());
+        response.put("currentPage", page);
+        response.put("hasNextPage", hasNext);
+        response.put("files", files);
+        return ResponseEntity.ok(response);
+    }
+
+    private List<AttachmentView> inOrder(List<Long> ids, Long userId) {
+        Map<Long, AttachmentView> byId = new HashMap<>();
+        for (AttachmentView view : attachmentRepo.findViewsByUserIdAndIds(userId, AttachmentStatus.STORED, ids)) {
+            byId.put(view.id(), view);
+        }
+        List<AttachmentView> files = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            AttachmentView view = byId.get(id);
+            // gone between the two reads
+            if (view != null) {
+                files.add(view);
+            }
+        }
+        return files;
+    }
+
+    // the text is matched literally, so LIKE wildcards in it are escaped with Postgres' default escape character
+    private static String escapeLike(String text) {
+        StringBuilder escaped = new StringBuilder(text.length() + 8);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' || c == '%' || c == '_') {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,312 @@
+package springapp.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Pageable;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+import springapp.model.AttachmentView;
+import springapp.repository.AttachmentRepository;
+import springapp.storage.ObjectMetadata;
+import springapp.storage.ObjectNotFoundException;
+import springapp.storage.ObjectStorage;
+import springapp.storage.StorageException;
+import springapp.storage.StoredObject;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Thumbnails of stored JPEG and PNG attachments, so a gallery can draw a listing page without downloading the
+ * originals. Each is scaled to fit a square of one of the configured edge lengths, kept in the source format and
+ * stored next to the original object; the sizes made are recorded on the attachment and listed by /list.
+ *
+ * Work runs on a small pool with a bounded queue, after the upload that stored the image has committed. Whatever
+ * the queue turns away, or a restart loses, is picked up by a periodic sweep over attachments without thumbnails.
+ * An attachment whose object is missing, or that cannot be decoded, gets empty thumbnails and is not tried again;
+ * one that fails otherwise is retried after a delay, and given up on the same way after a few attempts, so broken
+ * rows never fill the sweep's batch.
+ */
+@Service
+public class ThumbnailService {
+
+    private static final Set<String> IMAGE_TYPES = Set.of("image/jpeg", "image/png");
+
+    private final ObjectStorage storage;
+    private final AttachmentRepository attachmentRepo;
+    private final DemoService demoService;
+    private final ThreadPoolExecutor executor;
+    // ids queued or being worked on, so an upload and the sweep never make the same thumbnails twice
+    private final Set<Long> inFlight = ConcurrentHashMap.newKeySet();
+    private final int[] sizes;
+    private final String sizeList;
+    private final CacheControl cacheControl;
+    private final Counter generated;
+    private final Counter unreadable;
+    private final Counter failed;
+    private final Counter missing;
+
+    @Value("${thumbnail.max-source-pixels:100000000}")
+    private long maxSourcePixels;
+
+    @Value("${thumbnail.sweep-batch-size:100}")
+    private int sweepBatchSize;
+
+    @Value("${thumbnail.max-attempts:5}")
+    private int maxAttempts;
+
+    @Value("${thumbnail.retry-delay-ms:600000}")
+    private long retryDelayMillis;
+
+    public ThumbnailService(ObjectStorage storage, AttachmentRepository attachmentRepo, DemoService demoService,
+                            MeterRegistry meterRegistry,
+                            @Value("${thumbnail.sizes:128,512}") int[] sizes,
+                            @Value("${thumbnail.workers:2}") int workers,
+                            @Value("${thumbnail.queue-capacity:1000}") int queueCapacity,
+                            @Value("${thumbnail.cache-max-age-seconds:31536000}") long cacheMaxAgeSeconds) {
+        this.storage = storage;
+        this.attachmentRepo = attachmentRepo;
+        this.demoService = demoService;
+        this.sizes = Arrays.stream(sizes).sorted().distinct().toArray();
+        this.sizeList = Arrays.stream(this.sizes).mapToObj(String::valueOf).collect(Collectors.joining(","));
+        this.executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new CustomizableThreadFactory("thumbnail-"));
+        // an attachment id never gets other content, so its thumbnails can be cached for good
+        this.cacheControl = CacheControl.maxAge(Duration.ofSeconds(cacheMaxAgeSeconds)).cachePrivate().immutable();
+        this.generated = outcomeCounter(meterRegistry, "generated");
+        this.unreadable = outcomeCounter(meterRegistry, "unreadable");
+        this.failed = outcomeCounter(meterRegistry, "failed");
+        this.missing = outcomeCounter(meterRegistry, "missing");
+    }
+
+    private static Counter outcomeCounter(MeterRegistry registry, String outcome) {
+        return Counter.builder("thumbnails.attachments")
+                .description("Attachments the thumbnail pipeline has worked on")
+                .tag("outcome", outcome)
+                .register(registry);
+    }
+
+    // storage key of one thumbnail, beside the attachment's own object key
+    static String thumbnailKey(Long attachmentId, String fileName, int size) {
+        return DemoService.objectKey(attachmentId, fileName) + ".thumb-" + size;
+    }
+
+    //queueing work---------------------------------------------------------------------------------------------------------------------------
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onStored(AttachmentStoredEvent event) {
+        if (IMAGE_TYPES.contains(event.fileType())) {
+            submit(event.attachmentId(), event.fileName(), event.fileType(), event.blobHash());
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${thumbnail.sweep-interval-ms:60000}")
+    public void sweep() {
+        for (AttachmentView row : attachmentRepo.findThumbnailBacklog(LocalDateTime.now(), Pageable.ofSize(sweepBatchSize))) {
+            if (!submit(row.id(), row.fileName(), row.fileType(), row.blobHash())) {
+                return;
+            }
+        }
+    }
+
+    // false when the queue is full; the row keeps no thumbnails and a later sweep tries again
+    private boolean submit(Long attachmentId, String fileName, String fileType, String blobHash) {
+        if (!inFlight.add(attachmentId)) {
+            return true;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    generate(attachmentId, fileName, fileType, blobHash);
+                } catch (RuntimeException e) {
+                    // storage trouble most likely; a later sweep tries again once the delay has passed
+                    failed.increment();
+                    recordFailure(attachmentId);
+                } finally {
+                    inFlight.remove(attachmentId);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(attachmentId);
+            return false;
+        }
+    }
+
+    private void recordFailure(Long attachmentId) {
+        try {
+            attachmentRepo.recordThumbnailFailure(attachmentId, LocalDateTime.now().plus(Duration.ofMillis(retryDelayMillis)));
+            attachmentRepo.giveUpThumbnails(attachmentId, maxAttempts);
+        } catch (RuntimeException e) {
+            // the database is unavailable as well; the row stays in the backlog as it was
+        }
+    }
+
+    //making thumbnails-----------------------------------------------------------------------------------------------------------------------
+    private void generate(Long attachmentId, String fileName, String fileType, String blobHash) {
+        BufferedImage source;
+        try (StoredObject original = storage.get(DemoService.storageKey(attachmentId, fileName, blobHash), null);
+             ImageInputStream in = ImageIO.createImageInputStream(original.getContent())) {
+            source = decode(in);
+        } catch (ObjectNotFoundException e) {
+            // the object is gone: either the attachment was deleted since it was queued, and the update below finds
+            // no row, or its upload never stored it, and the row is taken out of the backlog
+            attachmentRepo.setThumbnails(attachmentId, "");
+            missing.increment();
+            return;
+        } catch (IIOException e) {
+            source = null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (source == null) {
+            // not a readable image after all; recorded so the sweep does not try again
+            attachmentRepo.setThumbnails(attachmentId, "");
+            unreadable.increment();
+            return;
+        }
+
+        boolean png = "image/png".equals(fileType);
+        for (int size : sizes) {
+            byte[] bytes = encode(scale(source, size, png), png ? "png" : "jpeg");
+            storage.put(thumbnailKey(attachmentId, fileName, size), new ByteArrayInputStream(bytes), bytes.length, fileType);
+        }
+        if (attachmentRepo.setThumbnails(attachmentId, sizeList) == 0) {
+            // the attachment went away meanwhile, so nothing refers to these
+            for (int size : sizes) {
+                storage.delete(thumbnailKey(attachmentId, fileName, size));
+            }
+        }
+        generated.increment();
+    }
+
+    // reads the header first: oversized images are refused, and large ones are decoded subsampled to about twice
+    // the largest thumbnail, so a full-size photo is never held on the heap
+    private BufferedImage decode(ImageInputStream in) throws IOException {
+        if (in == null) {
+            return null;
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) {
+            return null;
+        }
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(in, true, true);
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+            if ((long) width * height > maxSourcePixels) {
+                return null;
+            }
+            int step = Math.max(1, Math.max(width, height) / (2 * sizes[sizes.length - 1]));
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(step, step, 0, 0);
+            return reader.read(0, param);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    // fits the image into a size x size square, never enlarging it; halving first keeps bilinear sampling smooth
+    private static BufferedImage scale(BufferedImage source, int size, boolean png) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        double ratio = Math.min(1.0, (double) size / Math.max(width, height));
+        int targetWidth = Math.max(1, (int) Math.round(width * ratio));
+        int targetHeight = Math.max(1, (int) Math.round(height * ratio));
+
+        BufferedImage current = source;
+        do {
+            width = Math.max(targetWidth, width / 2);
+            height = Math.max(targetHeight, height / 2);
+            // JPEG has no alpha channel, PNG keeps its transparency
+            BufferedImage next = new BufferedImage(width, height, png ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = next.createGraphics();
+            try {
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.drawImage(current, 0, 0, width, height, null);
+            } finally {
+                graphics.dispose();
+            }
+            current = next;
+        } while (width != targetWidth || height != targetHeight);
+        return current;
+    }
+
+    private static byte[] encode(BufferedImage image, String format) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(image, format, out);
+        } catch (IOException e) {
+            throw new IllegalStateException("Problem encoding thumbnail: " + e.getMessage(), e);
+        }
+        return out.toByteArray();
+    }
+
+    //downloading a thumbnail-----------------------------------------------------------------------------------------------------------------
+    public ResponseEntity<Object> download(String filename, Long userId, Long attachmentId, Integer size) {
+        int edge = size != null ? size : sizes[0];
+        if (Arrays.binarySearch(sizes, edge) < 0) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body(("Thumbnail size should be one of " + sizeList).getBytes());
+        }
+        DemoService.DownloadCheck check = demoService.checkDownload(filename, userId, attachmentId);
+        if (check.rejection() != null) {
+            return check.rejection();
+        }
+
+        StoredObject thumbnail;
+        try {
+            thumbnail = storage.get(thumbnailKey(attachmentId, filename, edge), null);
+        } catch (ObjectNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(("No thumbnail of attachment ID " + attachmentId + " yet").getBytes());
+        } catch (StorageException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(("Problem retrieving thumbnail from storage: " + e.getMessage()).getBytes());
+        }
+
+        ObjectMetadata metadata = thumbnail.getMetadata();
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(HttpHeaders.CONTENT_TYPE, metadata.contentType() != null ? metadata.contentType() : "application/octet-stream");
+        headers.setContentLength(thumbnail.getContentLength());
+        headers.setETag(metadata.etag());
+        headers.setLastModified(metadata.lastModified());
+        headers.setCacheControl(cacheControl);
+        return ResponseEntity.ok().headers(headers).body(thumbnail);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
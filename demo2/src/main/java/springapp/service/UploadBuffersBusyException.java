@@ -0,0 +1,11 @@
+package springapp.service;
+
+import java.io.IOException;
+
+// every pooled upload buffer stayed in use for the whole wait; the upload endpoint answers 503 with Retry-After
+public class UploadBuffersBusyException extends IOException {
+
+    public UploadBuffersBusyException(long waitMillis) {
+        super("No upload buffer became free within " + waitMillis + " ms, the server is busy with other uploads");
+    }
+}
@@ -0,0 +1,393 @@
+package springapp.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.Pageable;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import springapp.model.AttachmentStatus;
+import springapp.model.UploadSession;
+import springapp.model.UploadSessionPart;
+import springapp.model.UploadSessionStatus;
+import springapp.model.User;
+import springapp.model.UserAttachment;
+import springapp.repository.AttachmentRepository;
+import springapp.repository.UploadSessionPartRepository;
+import springapp.repository.UploadSessionRepository;
+import springapp.storage.ObjectNotFoundException;
+import springapp.storage.ObjectStorage;
+import springapp.storage.StorageException;
+import springapp.storage.UploadedPart;
+
+import java.io.InputStream;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Resumable uploads: a session reserves the attachment row and opens a multipart upload in storage, every chunk
+ * is one multipart part, and finishing the session completes the upload and marks the attachment stored.
+ * Chunks can be sent in any order, in parallel and more than once; the last PUT of a part number wins.
+ */
+@Service
+public class UploadSessionService {
+
+    private static final long MIN_CHUNK_SIZE = 5L * 1024 * 1024;
+    private static final int MAX_PARTS = 10_000;
+
+    private final ObjectStorage storage;
+    private final DemoService demoService;
+    private final AttachmentRepository attachmentRepo;
+    private final UploadSessionRepository sessionRepo;
+    private final UploadSessionPartRepository partRepo;
+    private final MetadataCache metadataCache;
+    private final ApplicationEventPublisher eventPublisher;
+    private final TransactionTemplate transactionTemplate;
+
+    @Value("${upload.session.chunk-size:8388608}")
+    private long defaultChunkSize;
+
+    @Value("${upload.session.ttl-hours:24}")
+    private long sessionTtlHours;
+
+    @Value("${upload.session.sweep-batch-size:100}")
+    private int sweepBatchSize;
+
+    public UploadSessionService(ObjectStorage storage, DemoService demoService, AttachmentRepository attachmentRepo,
+                                UploadSessionRepository sessionRepo, UploadSessionPartRepository partRepo,
+                                MetadataCache metadataCache, ApplicationEventPublisher eventPublisher,
+                                TransactionTemplate transactionTemplate) {
+        this.storage = storage;
+        this.demoService = demoService;
+        this.attachmentRepo = attachmentRepo;
+        this.sessionRepo = sessionRepo;
+        this.partRepo = partRepo;
+        this.metadataCache = metadataCache;
+        this.eventPublisher = eventPublisher;
+        this.transactionTemplate = transactionTemplate;
+    }
+
+    //creating a session----------------------------------------------------------------------------------------------------------------------
+    public ResponseEntity<Object> createSession(Long userId, String fileName, String fileType, Long totalSize) {
+        User user;
+        try {
+            user = demoService.validateUpload(userId, fileName, fileType);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+        }
+        if (totalSize == null || totalSize < 1) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("totalSize should be positive");
+        }
+
+        // S3 allows at most 10,000 parts, so very large files get a larger chunk size
+        long chunkSize = Math.max(Math.max(defaultChunkSize, MIN_CHUNK_SIZE), (totalSize + MAX_PARTS - 1) / MAX_PARTS);
+        int partCount = (int) ((totalSize + chunkSize - 1) / chunkSize);
+
+        UserAttachment attachment = new UserAttachment();
+        attachment.setFileName(fileName);
+        attachment.setFileType(fileType);
+        attachment.setLastUpdatedOn(LocalDateTime.now());
+        attachment.setUser(user);
+        attachment.setStatus(AttachmentStatus.UPLOADING);
+        attachment = attachmentRepo.save(attachment);
+
+        String objectKey = DemoService.objectKey(attachment.getId(), fileName);
+        String s3UploadId;
+        try {
+            s3UploadId = storage.createMultipartUpload(objectKey, fileType);
+        } catch (RuntimeException e) {
+            attachmentRepo.delete(attachment);
+            throw e;
+        }
+
+        LocalDateTime now = LocalDateTime.now();
+        UploadSession session = new UploadSession();
+        session.setId(UUID.randomUUID().toString());
+        session.setUserId(user.getId());
+        session.setAttachment(attachment);
+        session.setObjectKey(objectKey);
+        session.setS3UploadId(s3UploadId);
+        session.setTotalSize(totalSize);
+        session.setChunkSize(chunkSize);
+        session.setPartCount(partCount);
+        session.setStatus(UploadSessionStatus.OPEN);
+        session.setCreatedOn(now);
+        session.setLastUpdatedOn(now);
+        sessionRepo.save(session);
+
+        return ResponseEntity.status(HttpStatus.CREATED).body(describe(session, List.of()));
+    }
+
+    //uploading a chunk-----------------------------------------------------------------------------------------------------------------------
+    public ResponseEntity<Object> uploadChunk(String sessionId, Long userId, int partNumber, InputStream inputStream, long contentLength) {
+        Optional<UploadSession> sessionOptional = sessionRepo.findById(sessionId);
+        ResponseEntity<Object> rejection = checkOpenSession(sessionOptional, sessionId, userId);
+        if (rejection != null) {
+            return rejection;
+        }
+        UploadSession session = sessionOptional.get();
+
+        if (partNumber < 1 || partNumber > session.getPartCount()) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body("Chunk number should be between 1 and " + session.getPartCount());
+        }
+        long expectedSize = partNumber < session.getPartCount()
+                ? session.getChunkSize()
+                : session.getTotalSize() - (long) (partNumber - 1) * session.getChunkSize();
+        if (contentLength != expectedSize) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body("Chunk " + partNumber + " should be " + expectedSize + " bytes, received " + contentLength);
+        }
+
+        String etag = storage.uploadPart(session.getObjectKey(), session.getS3UploadId(), partNumber, inputStream, contentLength);
+
+        recordPart(sessionId, partNumber, contentLength, etag);
+        sessionRepo.touch(sessionId, LocalDateTime.now());
+
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("sessionId", sessionId);
+        body.put("partNumber", partNumber);
+        body.put("offset", (long) (partNumber - 1) * session.getChunkSize());
+        body.put("size", contentLength);
+        return ResponseEntity.ok(body);
+    }
+
+    private void recordPart(String sessionId, int partNumber, long size, String etag) {
+        UploadSessionPart part = partRepo.findBySessionIdAndPartNumber(sessionId, partNumber)
+                .orElseGet(UploadSessionPart::new);
+        part.setSessionId(sessionId);
+        part.setPartNumber(partNumber);
+        part.setSize(size);
+        part.setEtag(etag);
+        try {
+            partRepo.save(part);
+        } catch (DataIntegrityViolationException e) {
+            // the same chunk was retried concurrently and the other request inserted first; storage keeps
+            // whichever body finished last, so record this ETag over the other one
+            UploadSessionPart existing = partRepo.findBySessionIdAndPartNumber(sessionId, partNumber).orElseThrow();
+            existing.setSize(size);
+            existing.setEtag(etag);
+            partRepo.save(existing);
+        }
+    }
+
+    //session status--------------------------------------------------------------------------------------------------------------------------
+    public ResponseEntity<Object> getSession(String sessionId, Long userId) {
+        Optional<UploadSession> sessionOptional = sessionRepo.findById(sessionId);
+        ResponseEntity<Object> rejection = checkSession(sessionOptional, sessionId, userId);
+        if (rejection != null) {
+            return rejection;
+        }
+        UploadSession session = sessionOptional.get();
+        return ResponseEntity.ok(describe(session, partRepo.findBySessionIdOrderByPartNumber(sessionId)));
+    }
+
+    //finishing a session---------------------------------------------------------------------------------------------------------------------
+    // storage assembles the parts outside any transaction, as the outbox does: the session is claimed as COMPLETING
+    // first so a concurrent complete or abort finds it no longer open, and the rows are finished in a short
+    // transaction afterwards
+    public ResponseEntity<Object> completeSession(String sessionId, Long userId) {
+        Optional<UploadSession> sessionOptional = sessionRepo.findById(sessionId);
+        ResponseEntity<Object> rejection = checkOpenSession(sessionOptional, sessionId, userId);
+        if (rejection != null) {
+            return rejection;
+        }
+        UploadSession session = sessionOptional.get();
+        if (sessionRepo.updateStatus(sessionId, UploadSessionStatus.OPEN, UploadSessionStatus.COMPLETING, LocalDateTime.now()) == 0) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body("Upload session " + sessionId + " is no longer open");
+        }
+
+        List<UploadSessionPart> parts = partRepo.findBySessionIdOrderByPartNumber(sessionId);
+        if (parts.size() != session.getPartCount()) {
+            sessionRepo.updateStatus(sessionId, UploadSessionStatus.COMPLETING, UploadSessionStatus.OPEN, LocalDateTime.now());
+            Map<String, Object> body = describe(session, parts);
+            body.put("message", "Upload is missing " + (session.getPartCount() - parts.size()) + " chunk(s)");
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(body);
+        }
+
+        List<UploadedPart> uploadedParts = new ArrayList<>(parts.size());
+        for (UploadSessionPart part : parts) {
+            uploadedParts.add(new UploadedPart(part.getPartNumber(), part.getEtag()));
+        }
+        try {
+            storage.completeMultipartUpload(session.getObjectKey(), session.getS3UploadId(), uploadedParts);
+        } catch (RuntimeException e) {
+            // the multipart upload is still open in storage, so the client can fix the chunks and try again
+            sessionRepo.updateStatus(sessionId, UploadSessionStatus.COMPLETING, UploadSessionStatus.OPEN, LocalDateTime.now());
+            throw e;
+        }
+
+        UserAttachment attachment = finish(session);
+        if (attachment == null) {
+            return ResponseEntity.status(HttpStatus.CONFLICT)
+                    .body("Attachment of upload session " + sessionId + " was deleted while it was completing");
+        }
+        return ResponseEntity.ok("File uploaded successfully. Attachment ID: " + attachment.getId() + " and filename " + attachment.getFileName());
+    }
+
+    // marks the attachment stored and the session completed once storage holds the object; null when the
+    // attachment was deleted meanwhile, in which case the object is removed again
+    private UserAttachment finish(UploadSession session) {
+        Long attachmentId = session.getAttachment().getId();
+        UserAttachment attachment = transactionTemplate.execute(status -> {
+            LocalDateTime now = LocalDateTime.now();
+            sessionRepo.updateStatus(session.getId(), UploadSessionStatus.COMPLETING, UploadSessionStatus.COMPLETED, now);
+            partRepo.deleteBySessionId(session.getId());
+            if (attachmentRepo.markUploadStored(attachmentId, now) == 0) {
+                return null;
+            }
+            UserAttachment stored = attachmentRepo.findById(attachmentId).orElseThrow();
+            eventPublisher.publishEvent(AttachmentStoredEvent.of(stored));
+            return stored;
+        });
+        metadataCache.invalidateAttachment(attachmentId);
+        if (attachment == null) {
+            try {
+                storage.delete(session.getObjectKey());
+            } catch (StorageException e) {
+                // left for reconciliation to find as an orphan
+            }
+        }
+        return attachment;
+    }
+
+    //abandoning a session--------------------------------------------------------------------------------------------------------------------
+    public ResponseEntity<Object> abortSession(String sessionId, Long userId) {
+        Optional<UploadSession> sessionOptional = sessionRepo.findById(sessionId);
+        ResponseEntity<Object> rejection = checkOpenSession(sessionOptional, sessionId, userId);
+        if (rejection != null) {
+            return rejection;
+        }
+        if (!close(sessionOptional.get(), UploadSessionStatus.OPEN, UploadSessionStatus.ABORTED)) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body("Upload session " + sessionId + " is no longer open");
+        }
+        return ResponseEntity.ok("Upload session " + sessionId + " aborted");
+    }
+
+    // reaps sessions that stopped receiving chunks so their parts stop accruing storage charges, and sessions left
+    // COMPLETING by a crash between storage and the database. They are read a page at a time, so a backlog after an
+    // outage is not loaded at once. Each one is closed on its own, so a storage error only leaves that session for
+    // the next run
+    @Scheduled(fixedDelayString = "${upload.session.sweep-interval-ms:600000}")
+    public void sweepExpiredSessions() {
+        LocalDateTime cutoff = LocalDateTime.now().minusHours(sessionTtlHours);
+        List<UploadSessionStatus> statuses = List.of(UploadSessionStatus.OPEN, UploadSessionStatus.COMPLETING);
+        String after = "";
+        List<UploadSession> page;
+        do {
+            page = sessionRepo.findExpired(statuses, cutoff, after, Pageable.ofSize(sweepBatchSize));
+            for (UploadSession session : page) {
+                try {
+                    if (session.getStatus() == UploadSessionStatus.COMPLETING && completedInStorage(session)) {
+                        finish(session);
+                    } else {
+                        close(session, session.getStatus(), UploadSessionStatus.EXPIRED);
+                    }
+                } catch (RuntimeException e) {
+                    // retried on the next run
+                }
+                after = session.getId();
+            }
+        } while (page.size() == sweepBatchSize);
+    }
+
+    private boolean completedInStorage(UploadSession session) {
+        try {
+            storage.head(session.getObjectKey());
+            return true;
+        } catch (ObjectNotFoundException e) {
+            return false;
+        }
+    }
+
+    // aborting is idempotent, so it runs first and outside the transaction; if it fails the rows stay as they were
+    private boolean close(UploadSession session, UploadSessionStatus from, UploadSessionStatus status) {
+        storage.abortMultipartUpload(session.getObjectKey(), session.getS3UploadId());
+        Long attachmentId = transactionTemplate.execute(tx -> {
+            UploadSession current = sessionRepo.findById(session.getId()).orElse(null);
+            if (current == null || current.getStatus() != from) {
+                return null;
+            }
+            partRepo.deleteBySessionId(current.getId());
+            UserAttachment attachment = current.getAttachment();
+            current.setAttachment(null);
+            current.setStatus(status);
+            current.setLastUpdatedOn(LocalDateTime.now());
+            sessionRepo.save(current);
+            if (attachment == null) {
+                return null;
+            }
+            attachmentRepo.delete(attachment);
+            return attachment.getId();
+        });
+        if (attachmentId == null) {
+            return false;
+        }
+        metadataCache.invalidateAttachment(attachmentId);
+        return true;
+    }
+
+    private ResponseEntity<Object> checkSession(Optional<UploadSession> sessionOptional, String sessionId, Long userId) {
+        if (userId == null || userId < 1) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Enter a valid userId");
+        }
+        if (sessionOptional.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Upload session " + sessionId + " does not exist");
+        }
+        if (!sessionOptional.get().getUserId().equals(userId)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN)
+                    .body("Upload session " + sessionId + " does not belong to User ID " + userId);
+        }
+        return null;
+    }
+
+    private ResponseEntity<Object> checkOpenSession(Optional<UploadSession> sessionOptional, String sessionId, Long userId) {
+        ResponseEntity<Object> rejection = checkSession(sessionOptional, sessionId, userId);
+        if (rejection == null && sessionOptional.get().getStatus() != UploadSessionStatus.OPEN) {
+            return ResponseEntity.status(HttpStatus.CONFLICT)
+                    .body("Upload session " + sessionId + " is " + sessionOptional.get().getStatus());
+        }
+        return rejection;
+    }
+
+    private Map<String, Object> describe(UploadSession session, List<UploadSessionPart> parts) {
+        long receivedBytes = 0;
+        List<Map<String, Object>> receivedChunks = new ArrayList<>(parts.size());
+        boolean[] received = new boolean[session.getPartCount() + 1];
+        for (UploadSessionPart part : parts) {
+            Map<String, Object> chunk = new LinkedHashMap<>();
+            chunk.put("partNumber", part.getPartNumber());
+            chunk.put("offset", (long) (part.getPartNumber() - 1) * session.getChunkSize());
+            chunk.put("size", part.getSize());
+            receivedChunks.add(chunk);
+            receivedBytes += part.getSize();
+            received[part.getPartNumber()] = true;
+        }
+        List<Integer> missingChunks = new ArrayList<>();
+        for (int partNumber = 1; partNumber <= session.getPartCount(); partNumber++) {
+            if (!received[partNumber]) {
+                missingChunks.add(partNumber);
+            }
+        }
+
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("sessionId", session.getId());
+        body.put("attachmentId", session.getAttachment() != null ? session.getAttachment().getId() : null);
+        body.put("status", session.getStatus());
+        body.put("totalSize", session.getTotalSize());
+        body.put("chunkSize", session.getChunkSize());
+        body.put("chunkCount", session.getPartCount());
+        body.put("receivedBytes", receivedBytes);
+        body.put("receivedChunks", receivedChunks);
+        body.put("missingChunks", missingChunks);
+        return body;
+    }
+}
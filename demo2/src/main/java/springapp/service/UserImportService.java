@@ -0,0 +1,346 @@
+package springapp.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import springapp.model.User;
+import springapp.repository.UserRespository;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bulk user import from NDJSON or CSV. The input is read line by line and handled in batches of batchSize rows;
+ * each batch costs one lookup of the users it can collide with and one batched upsert, in its own transaction.
+ * Only the current batch is held in memory, and rejected rows are written to the report as soon as their batch is
+ * done, so neither grows with the input.
+ *
+ * Rows follow the /addUser rules: UserValidator, then the same outcome saveUser gives when the rows are sent one
+ * after another. A known username takes the new email, a known email under another username is rejected.
+ */
+@Service
+public class UserImportService {
+
+    public enum Format {
+        NDJSON,
+        CSV
+    }
+
+    private final UserRespository userRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final ObjectMapper objectMapper;
+    private final int batchSize;
+
+    public UserImportService(UserRespository userRepository, JdbcTemplate jdbcTemplate,
+                             TransactionTemplate transactionTemplate, ObjectMapper objectMapper,
+                             @Value("${users.import.batch-size:500}") int batchSize) {
+        this.userRepository = userRepository;
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.objectMapper = objectMapper;
+        this.batchSize = batchSize;
+    }
+
+    private record Row(long line, String username, String email) {
+    }
+
+    // a user as this batch leaves it
+    private static final class Account {
+
+        private final String username;
+        private String email;
+
+        Account(String username, String email) {
+            this.username = username;
+            this.email = email;
+        }
+    }
+
+    private static final class Counts {
+
+        private long rows;
+        private long inserted;
+        private long updated;
+        private long failed;
+    }
+
+    //importing users---------------------------------------------------------------------------------------------------------------------------
+    /**
+     * Imports every row of the input and writes one NDJSON line per rejected row to the report, followed by a
+     * summary line. Rows of batches that were already written stay imported if a later batch fails.
+     */
+    public void importUsers(InputStream input, Format format, OutputStream report) throws IOException {
+        Counts counts = new Counts();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        try (JsonGenerator json = objectMapper.getFactory().createGenerator(report)) {
+            // the servlet container owns the response stream
+            json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            // every report line ends with its own newline
+            json.setRootValueSeparator(null);
+            RowParser parser = format == Format.CSV ? new CsvRowParser() : new JsonRowParser();
+            List<Row> batch = new ArrayList<>(batchSize);
+            long lineNumber = 0;
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                lineNumber++;
+                if (line.isBlank()) {
+                    continue;
+                }
+                Row row;
+                try {
+                    row = parser.parse(lineNumber, line);
+                } catch (IllegalArgumentException e) {
+                    counts.rows++;
+                    writeError(json, lineNumber, null, e.getMessage(), counts);
+                    continue;
+                }
+                if (row == null) {
+                    continue;
+                }
+                counts.rows++;
+                batch.add(row);
+                if (batch.size() == batchSize) {
+                    importBatch(batch, json, counts);
+                    batch.clear();
+                    json.flush();
+                }
+            }
+            if (!batch.isEmpty()) {
+                importBatch(batch, json, counts);
+            }
+
+            json.writeStartObject();
+            json.writeNumberField("rows", counts.rows);
+            json.writeNumberField("inserted", counts.inserted);
+            json.writeNumberField("updated", counts.updated);
+            json.writeNumberField("failed", counts.failed);
+            json.writeEndObject();
+            json.writeRaw('\n');
+        }
+    }
+
+    private void importBatch(List<Row> batch, JsonGenerator json, Counts counts) throws IOException {
+        List<Row> valid = new ArrayList<>(batch.size());
+        for (Row row : batch) {
+            try {
+                UserValidator.validate(row.username(), row.email());
+                valid.add(row);
+            } catch (IllegalArgumentException e) {
+                writeError(json, row.line(), row.username(), e.getMessage(), counts);
+            }
+        }
+        if (valid.isEmpty()) {
+            return;
+        }
+
+        Map<Row, String> rejected = new LinkedHashMap<>();
+        try {
+            transactionTemplate.executeWithoutResult(status -> upsert(valid, rejected, counts));
+        } catch (DataAccessException e) {
+            // a concurrent write took one of the names between lookup and upsert, or the batch moved an email from
+            // one user to another in an order the unique index rejects; redo the rows one at a time
+            rejected.clear();
+            for (Row row : valid) {
+                try {
+                    transactionTemplate.executeWithoutResult(status -> upsert(List.of(row), rejected, counts));
+                } catch (DataAccessException rowFailure) {
+                    rejected.put(row, "Could not import user: " + rowFailure.getMostSpecificCause().getMessage());
+                }
+            }
+        }
+        for (Map.Entry<Row, String> entry : rejected.entrySet()) {
+            writeError(json, entry.getKey().line(), entry.getKey().username(), entry.getValue(), counts);
+        }
+    }
+
+    // counts only change once the statement went through, so a retried batch is not counted twice
+    private void upsert(List<Row> rows, Map<Row, String> rejected, Counts counts) {
+        Set<String> usernames = new LinkedHashSet<>();
+        Set<String> emails = new LinkedHashSet<>();
+        for (Row row : rows) {
+            usernames.add(lower(row.username()));
+            emails.add(lower(row.email()));
+        }
+        Map<String, Account> byUsername = new HashMap<>();
+        Map<String, Account> byEmail = new HashMap<>();
+        for (User user : userRepository.findByLowerUsernamesOrLowerEmails(usernames, emails)) {
+            Account account = new Account(user.getUsername(), user.getEmail());
+            byUsername.put(lower(user.getUsername()), account);
+            byEmail.put(lower(user.getEmail()), account);
+        }
+
+        // the rows in order, as saveUser would take them; the final state of each touched user is written once
+        Map<String, Account> changed = new LinkedHashMap<>();
+        long inserted = 0;
+        long updated = 0;
+        for (Row row : rows) {
+            String username = lower(row.username());
+            String email = lower(row.email());
+            Account existingByUsername = byUsername.get(username);
+            Account existingByEmail = byEmail.get(email);
+            if (existingByUsername != null && existingByEmail != null) {
+                rejected.put(row, "this user already exists with this email so you can update your email.");
+            } else if (existingByUsername != null) {
+                byEmail.remove(lower(existingByUsername.email));
+                existingByUsername.email = row.email();
+                byEmail.put(email, existingByUsername);
+                changed.put(username, existingByUsername);
+                updated++;
+            } else if (existingByEmail != null) {
+                rejected.put(row, "Email already exists with another user. Please change your email.");
+            } else {
+                Account account = new Account(row.username(), row.email());
+                byUsername.put(username, account);
+                byEmail.put(email, account);
+                changed.put(username, account);
+                inserted++;
+            }
+        }
+        if (changed.isEmpty()) {
+            return;
+        }
+
+        // one statement per user, sent as a JDBC batch the driver rewrites into multi-row inserts
+        List<Object[]> arguments = new ArrayList<>(changed.size());
+        for (Account account : changed.values()) {
+            arguments.add(new Object[]{account.username, account.email});
+        }
+        jdbcTemplate.batchUpdate("insert into users (username, email) values (?, ?)"
+                + " on conflict ((lower(username))) do update set email = excluded.email", arguments);
+        counts.inserted += inserted;
+        counts.updated += updated;
+    }
+
+    private static void writeError(JsonGenerator json, long line, String username, String error, Counts counts)
+            throws IOException {
+        counts.failed++;
+        json.writeStartObject();
+        json.writeNumberField("line", line);
+        if (username != null) {
+            json.writeStringField("username", username);
+        }
+        json.writeStringField("error", error);
+        json.writeEndObject();
+        json.writeRaw('\n');
+    }
+
+    private static String lower(String value) {
+        return value.toLowerCase(Locale.ROOT);
+    }
+
+    //parsing rows------------------------------------------------------------------------------------------------------------------------------
+    private interface RowParser {
+
+        // null for a line that holds no row, such as a CSV header
+        Row parse(long line, String text);
+    }
+
+    // one JSON object per line: {"username": "...", "email": "..."}
+    private class JsonRowParser implements RowParser {
+
+        @Override
+        public Row parse(long line, String text) {
+            JsonNode node;
+            try {
+                node = objectMapper.readTree(text);
+            } catch (JsonProcessingException e) {
+                throw new IllegalArgumentException("Malformed JSON: " + e.getOriginalMessage());
+            }
+            if (node == null || !node.isObject()) {
+                throw new IllegalArgumentException("Expected a JSON object per line.");
+            }
+            return new Row(line, text(node, "username"), text(node, "email"));
+        }
+
+        private static String text(JsonNode node, String field) {
+            JsonNode value = node.get(field);
+            return value == null || value.isNull() ? null : value.asText();
+        }
+    }
+
+    // username and email columns, in that order unless the first line is a header naming them
+    private static class CsvRowParser implements RowParser {
+
+        private boolean first = true;
+        private int usernameColumn = 0;
+        private int emailColumn = 1;
+
+        @Override
+        public Row parse(long line, String text) {
+            List<String> fields = splitCsv(text);
+            if (first) {
+                first = false;
+                int username = indexOfIgnoreCase(fields, "username");
+                int email = indexOfIgnoreCase(fields, "email");
+                if (username >= 0 && email >= 0) {
+                    usernameColumn = username;
+                    emailColumn = email;
+                    return null;
+                }
+            }
+            if (fields.size() <= Math.max(usernameColumn, emailColumn)) {
+                throw new IllegalArgumentException("Expected a username and an email column.");
+            }
+            return new Row(line, fields.get(usernameColumn), fields.get(emailColumn));
+        }
+
+        private static int indexOfIgnoreCase(List<String> fields, String name) {
+            for (int i = 0; i < fields.size(); i++) {
+                if (fields.get(i).trim().equalsIgnoreCase(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // RFC 4180 fields of one line: quoted fields may hold commas and doubled quotes, but not line breaks
+        private static List<String> splitCsv(String text) {
+            List<String> fields = new ArrayList<>(2);
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (quoted) {
+                    if (c == '"' && i + 1 < text.length() && text.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else if (c == '"') {
+                        quoted = false;
+                    } else {
+                        field.append(c);
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else {
+                    field.append(c);
+                }
+            }
+            if (quoted) {
+                throw new IllegalArgumentException("Unterminated quoted field.");
+            }
+            fields.add(field.toString());
+            return fields;
+        }
+    }
+}
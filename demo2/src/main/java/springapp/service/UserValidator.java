@@ -0,0 +1,164 @@
+package springapp.service;
+
+import org.springframework.util.StringUtils;
+
+/**
+ * Username and email rules for /addUser, checked in one pass over each string without regular expressions.
+ * The checks run in the order they always have, so an input breaking several rules still gets the same message.
+ */
+public final class UserValidator {
+
+    private static final int MIN_USERNAME_LENGTH = 3;
+    private static final int MAX_USERNAME_LENGTH = 20;
+    private static final int MAX_EMAIL_LENGTH = 254;
+
+    private UserValidator() {
+    }
+
+    /**
+     * @throws IllegalArgumentException with the message of the first rule that is broken
+     */
+    public static void validate(String username, String email) {
+        if (!StringUtils.hasText(username)) {
+            throw new IllegalArgumentException("Username cannot be empty.");
+        }
+
+        if (!StringUtils.hasText(email)) {
+            throw new IllegalArgumentException("Email cannot be empty.");
+        }
+
+        if (username.length() < MIN_USERNAME_LENGTH || username.length() > MAX_USERNAME_LENGTH) {
+            throw new IllegalArgumentException("Username must be between 3 and 20 characters.");
+        }
+
+        validateEmail(email);
+        validateUsername(username);
+    }
+
+    //email-------------------------------------------------------------------------------------------------------------------------------------
+    // a well formed address is letter [A-Za-z0-9._%+-]* @ [A-Za-z0-9.-]+ . [A-Za-z]{2,}, so it already has no
+    // whitespace, one '@', a dot in the domain and no leading digit; those older checks cannot fail after this one
+    private static void validateEmail(String email) {
+        int length = email.length();
+        if (!isAsciiLetter(email.charAt(0))) {
+            throw new IllegalArgumentException("Invalid email format.");
+        }
+
+        int at = -1;
+        int lastDot = -1;
+        int lastNonLetter = -1;
+        boolean repeating = false;
+        boolean consecutiveDots = false;
+        int run = 1;
+        for (int i = 1; i < length; i++) {
+            char c = email.charAt(i);
+            char previous = email.charAt(i - 1);
+            if (at < 0) {
+                if (c == '@') {
+                    at = i;
+                } else if (!isLocalPartChar(c)) {
+                    throw new IllegalArgumentException("Invalid email format.");
+                }
+            } else {
+                if (!isDomainChar(c)) {
+                    throw new IllegalArgumentException("Invalid email format.");
+                }
+                if (c == '.') {
+                    lastDot = i;
+                }
+                if (!isAsciiLetter(c)) {
+                    lastNonLetter = i;
+                }
+            }
+            run = c == previous ? run + 1 : 1;
+            repeating |= run >= 3;
+            consecutiveDots |= c == '.' && previous == '.';
+        }
+        // the domain needs something before its last dot and two or more letters after it, and nothing else
+        if (at < 0 || lastDot < at + 2 || lastNonLetter != lastDot || length - lastDot - 1 < 2) {
+            throw new IllegalArgumentException("Invalid email format.");
+        }
+
+        if (length > MAX_EMAIL_LENGTH) {
+            throw new IllegalArgumentException("Email is too long. Maximum length is 254 characters.");
+        }
+
+        if (repeating) {
+            throw new IllegalArgumentException("Email cannot contain sequential repeating characters (e.g., 'aaa').");
+        }
+
+        if (consecutiveDots) {
+            throw new IllegalArgumentException("Email cannot have consecutive dots (e.g., 'john..doe@example.com').");
+        }
+    }
+
+    //username----------------------------------------------------------------------------------------------------------------------------------
+    // a username that starts with a letter can be neither all digits nor start with '_', so of those two older
+    // checks only the trailing underscore is left.
+    // The older special character and repeating character checks were ".*"-wrapped regexes, and '.' does not match
+    // line terminators. With one terminator, the terminator is itself the special character found. With two or
+    // more, neither regex can match the whole string, so both checks pass and the username goes on to the start
+    // check, which like the old one accepts any Unicode letter.
+    private static void validateUsername(String username) {
+        int length = username.length();
+        boolean space = false;
+        boolean special = false;
+        boolean repeating = false;
+        int lineTerminators = 0;
+        int run = 0;
+        for (int i = 0; i < length; i++) {
+            char c = username.charAt(i);
+            if (c == ' ') {
+                space = true;
+            } else if (!isAsciiLetter(c) && !isAsciiDigit(c) && c != '_') {
+                special = true;
+            }
+            if (isLineTerminator(c)) {
+                lineTerminators++;
+            }
+            run = i > 0 && c == username.charAt(i - 1) ? run + 1 : 1;
+            repeating |= run >= 3;
+        }
+
+        if (space) {
+            throw new IllegalArgumentException("Username cannot contain spaces.");
+        }
+
+        if (lineTerminators == 0 ? special : lineTerminators == 1) {
+            throw new IllegalArgumentException("Username cannot contain special characters.");
+        }
+
+        if (!Character.isLetter(username.charAt(0))) {
+            throw new IllegalArgumentException("Username must start with a letter.");
+        }
+
+        if (repeating && lineTerminators == 0) {
+            throw new IllegalArgumentException("Username cannot contain sequential repeating characters (e.g., 'aaa').");
+        }
+
+        if (username.charAt(length - 1) == '_') {
+            throw new IllegalArgumentException("Username cannot start or end with an underscore.");
+        }
+    }
+
+    private static boolean isAsciiLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isAsciiDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    // the characters java.util.regex does not match with '.'
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private static boolean isLocalPartChar(char c) {
+        return isAsciiLetter(c) || isAsciiDigit(c) || c == '.' || c == '_' || c == '%' || c == '+' || c == '-';
+    }
+
+    private static boolean isDomainChar(char c) {
+        return isAsciiLetter(c) || isAsciiDigit(c) || c == '.' || c == '-';
+    }
+}
@@ -0,0 +1,508 @@
+package springapp.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+import org.springframework.http.HttpRange;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+/**
+ * Read-through cache in front of another backend that keeps whole objects as files on local disk.
+ *
+ * The index is a Caffeine cache weighted by object size, so total disk use stays under maxBytes and
+ * eviction follows W-TinyLFU; evicted files are deleted by the removal listener. A miss fetches the object once:
+ * the first read starts copying the backend stream to a file, and it and every concurrent read of the key follow
+ * that file as it grows, so they wait only for bytes not copied yet. The file joins the cache only when the whole
+ * object came through; if the copy fails, each read fetches what it is missing from the backend. Range requests
+ * for uncached objects, and objects larger than maxEntryBytes, go to the backend alone.
+ *
+ * Files live in a directory the cache owns below the configured one, and only files named by the cache are
+ * ever deleted there.
+ */
+public class CachingObjectStorage implements ObjectStorage {
+
+    private static final String CACHE_SUBDIRECTORY = "objects";
+    private static final String FILE_SUFFIX = ".object";
+    private static final String PARTIAL_SUFFIX = ".partial";
+    // a hit served with sendfile is opened by name after the controller returns, so evicted files linger this long
+    private static final Executor DELAYED_DELETE = CompletableFuture.delayedExecutor(60, TimeUnit.SECONDS);
+    private static final ThreadFactory FILL_THREADS = Thread.ofVirtual().name("cache-fill-", 0).factory();
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private record CachedFile(Path path, ObjectMetadata metadata) {
+    }
+
+    private final ObjectStorage delegate;
+    private final Path cacheDir;
+    private final long maxEntryBytes;
+    private final Cache<String, CachedFile> files;
+    // keys seen to be too large, so they skip the fill attempt next time
+    private final Cache<String, Boolean> uncacheable;
+    // the fill under way per key; invalidate removes it, so a fill that started before a write is not cached
+    private final Map<String, Fill> filling = new ConcurrentHashMap<>();
+    private final AtomicLong bypassCount = new AtomicLong();
+    private final AtomicLong discardedFills = new AtomicLong();
+    private final AtomicLong joinedFills = new AtomicLong();
+
+    public CachingObjectStorage(ObjectStorage delegate, Path cacheDir, long maxBytes, long maxEntryBytes) {
+        this.delegate = delegate;
+        this.cacheDir = cacheDir.toAbsolutePath().normalize().resolve(CACHE_SUBDIRECTORY);
+        this.maxEntryBytes = maxEntryBytes;
+        // the index does not survive a restart, so files left by a previous run are orphans
+        clearCacheFiles(this.cacheDir);
+        this.files = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((String key, CachedFile file) -> (int) Math.min(Integer.MAX_VALUE, file.metadata().contentLength()))
+                .removalListener((String key, CachedFile file, RemovalCause cause) -> {
+                    if (file != null) {
+                        DELAYED_DELETE.execute(() -> deleteQuietly(file.path()));
+                    }
+                })
+                .recordStats()
+                .build();
+        this.uncacheable = Caffeine.newBuilder()
+                .maximumSize(10_000)
+                .build();
+    }
+
+    @Override
+    public StoredObject get(String key, HttpRange range) {
+        CachedFile cachedFile = files.getIfPresent(key);
+        if (cachedFile != null) {
+            try {
+                return open(key, cachedFile, range);
+            } catch (NoSuchFileException e) {
+                // evicted between lookup and open
+                files.invalidate(key);
+            } catch (IOException e) {
+                files.invalidate(key);
+                throw new StorageException("Cannot read cached copy of " + key + ": " + e.getMessage(), e);
+            }
+        }
+        if (range != null || uncacheable.getIfPresent(key) != null) {
+            bypassCount.incrementAndGet();
+            return delegate.get(key, range);
+        }
+
+        Fill fill = new Fill();
+        Fill running = filling.putIfAbsent(key, fill);
+        if (running != null) {
+            return join(key, running);
+        }
+        StoredObject storedObject;
+        try {
+            storedObject = delegate.get(key, null);
+        } catch (RuntimeException e) {
+            abandon(key, fill);
+            throw e;
+        }
+        if (storedObject.getContentLength() > maxEntryBytes) {
+            abandon(key, fill);
+            uncacheable.put(key, Boolean.TRUE);
+            bypassCount.incrementAndGet();
+            return storedObject;
+        }
+        Path partial = cacheDir.resolve(UUID.randomUUID() + PARTIAL_SUFFIX);
+        FileChannel channel;
+        try {
+            Files.createFile(partial);
+            channel = FileChannel.open(partial, StandardOpenOption.READ);
+        } catch (IOException e) {
+            abandon(key, fill);
+            deleteQuietly(partial);
+            return storedObject;
+        }
+        fill.start(storedObject.getMetadata(), partial);
+        FILL_THREADS.newThread(() -> copy(key, fill, storedObject, partial)).start();
+        return tail(key, fill, storedObject.getMetadata(), channel);
+    }
+
+    // another read of the key is filling the cache: follow its file instead of fetching the object again
+    private StoredObject join(String key, Fill fill) {
+        ObjectMetadata metadata = fill.awaitStart();
+        if (metadata == null) {
+            // the first read gave up before copying anything, e.g. the object is too large
+            return delegate.get(key, null);
+        }
+        FileChannel channel;
+        try {
+            channel = fill.openChannel();
+        } catch (IOException e) {
+            // a fill that failed has deleted its file
+            return delegate.get(key, null);
+        }
+        joinedFills.incrementAndGet();
+        return tail(key, fill, metadata, channel);
+    }
+
+    private StoredObject tail(String key, Fill fill, ObjectMetadata metadata, FileChannel channel) {
+        return new StoredObject(metadata, metadata.contentLength(), null,
+                new TailingInputStream(key, fill, metadata, channel));
+    }
+
+    private void abandon(String key, Fill fill) {
+        filling.remove(key, fill);
+        fill.finish(false, null);
+    }
+
+    // copies the whole object to the partial file, however fast the readers following it are; a complete copy joins
+    // the cache unless the key was written meanwhile
+    private void copy(String key, Fill fill, StoredObject source, Path partial) {
+        ObjectMetadata metadata = source.getMetadata();
+        long copied = 0;
+        try (source; OutputStream out = Files.newOutputStream(partial, StandardOpenOption.WRITE)) {
+            InputStream in = source.getContent();
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                copied += read;
+                fill.advance(copied);
+            }
+        } catch (IOException | RuntimeException e) {
+            copied = -1;
+        }
+
+        if (copied != metadata.contentLength()) {
+            filling.remove(key, fill);
+            deleteQuietly(partial);
+            discardedFills.incrementAndGet();
+            fill.finish(false, null);
+            return;
+        }
+        Path path = cacheDir.resolve(partial.getFileName().toString().replace(PARTIAL_SUFFIX, FILE_SUFFIX));
+        CachedFile cachedFile = new CachedFile(path, metadata);
+        try {
+            Files.move(partial, path, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            filling.remove(key, fill);
+            deleteQuietly(partial);
+            discardedFills.incrementAndGet();
+            // the readers still have the whole object in their open files
+            fill.finish(true, null);
+            return;
+        }
+        files.put(key, cachedFile);
+        // a write that came in meanwhile has already invalidated the key, so this copy must go as well
+        if (!filling.remove(key, fill)) {
+            files.asMap().remove(key, cachedFile);
+            discardedFills.incrementAndGet();
+        }
+        fill.finish(true, path);
+    }
+
+    @Override
+    public ObjectMetadata head(String key) {
+        CachedFile cachedFile = files.getIfPresent(key);
+        return cachedFile != null ? cachedFile.metadata() : delegate.head(key);
+    }
+
+    @Override
+    public void put(String key, InputStream content, long contentLength, String contentType) {
+        delegate.put(key, content, contentLength, contentType);
+        invalidate(key);
+    }
+
+    @Override
+    public void put(String key, InputStream content, long contentLength, String contentType, byte[] sha256) {
+        delegate.put(key, content, contentLength, contentType, sha256);
+        invalidate(key);
+    }
+
+    @Override
+    public void delete(String key) {
+        delegate.delete(key);
+        invalidate(key);
+    }
+
+    @Override
+    public List<String> deleteAll(List<String> keys) {
+        List<String> failed = delegate.deleteAll(keys);
+        keys.forEach(this::invalidate);
+        return failed;
+    }
+
+    @Override
+    public ObjectListing list(String prefix, String continuationToken, int maxKeys) {
+        return delegate.list(prefix, continuationToken, maxKeys);
+    }
+
+    @Override
+    public String createMultipartUpload(String key, String contentType) {
+        return delegate.createMultipartUpload(key, contentType);
+    }
+
+    @Override
+    public String uploadPart(String key, String uploadId, int partNumber, InputStream content, long contentLength) {
+        return delegate.uploadPart(key, uploadId, partNumber, content, contentLength);
+    }
+
+    @Override
+    public void completeMultipartUpload(String key, String uploadId, List<UploadedPart> parts) {
+        delegate.completeMultipartUpload(key, uploadId, parts);
+        invalidate(key);
+    }
+
+    @Override
+    public void abortMultipartUpload(String key, String uploadId) {
+        delegate.abortMultipartUpload(key, uploadId);
+    }
+
+    public void invalidate(String key) {
+        // also drops a fill under way, so a read that started before the write cannot cache the old bytes
+        filling.remove(key);
+        files.invalidate(key);
+        uncacheable.invalidate(key);
+    }
+
+    public Map<String, Object> stats() {
+        CacheStats stats = files.stats();
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("entries", files.estimatedSize());
+        body.put("hits", stats.hitCount());
+        body.put("misses", stats.missCount());
+        body.put("evictions", stats.evictionCount());
+        body.put("evictedBytes", stats.evictionWeight());
+        body.put("bypassed", bypassCount.get());
+        body.put("discardedFills", discardedFills.get());
+        body.put("joinedFills", joinedFills.get());
+        return body;
+    }
+
+    private StoredObject open(String key, CachedFile cachedFile, HttpRange range) throws IOException {
+        ObjectMetadata metadata = cachedFile.metadata();
+        long objectLength = metadata.contentLength();
+        FileChannel channel = FileChannel.open(cachedFile.path(), StandardOpenOption.READ);
+        if (range == null) {
+            return new FileStoredObject(metadata, objectLength, null, cachedFile.path(), channel, 0);
+        }
+        try {
+            long start = range.getRangeStart(objectLength);
+            long end = range.getRangeEnd(objectLength);
+            if (start > end) {
+                throw new IllegalArgumentException("empty range");
+            }
+            String contentRange = "bytes " + start + "-" + end + "/" + objectLength;
+            return new FileStoredObject(metadata, end - start + 1, contentRange, cachedFile.path(), channel, start);
+        } catch (IllegalArgumentException e) {
+            channel.close();
+            throw new InvalidRangeException(key, objectLength);
+        }
+    }
+
+    // keeps whatever else is in the directory; only files the cache names itself are deleted
+    private static void clearCacheFiles(Path directory) {
+        try {
+            Files.createDirectories(directory);
+            try (Stream<Path> paths = Files.list(directory)) {
+                paths.filter(path -> {
+                    String name = path.getFileName().toString();
+                    return name.endsWith(FILE_SUFFIX) || name.endsWith(PARTIAL_SUFFIX);
+                }).forEach(CachingObjectStorage::deleteQuietly);
+            }
+        } catch (IOException e) {
+            throw new StorageException("Cannot prepare cache directory " + directory, e);
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // swept on the next restart
+        }
+    }
+
+    // progress of one fill, shared by every read of the key while it runs
+    private static final class Fill {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private ObjectMetadata metadata;
+        private Path path;
+        private long copied;
+        private boolean started;
+        private boolean finished;
+        private boolean complete;
+
+        private void start(ObjectMetadata metadata, Path path) {
+            lock.lock();
+            try {
+                this.metadata = metadata;
+                this.path = path;
+                started = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void advance(long copied) {
+            lock.lock();
+            try {
+                this.copied = copied;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // path is where the file went when the copy was complete, null if it was removed
+        private void finish(boolean complete, Path path) {
+            lock.lock();
+            try {
+                this.complete = complete;
+                this.path = path;
+                finished = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // null when the fill was given up before it started
+        private ObjectMetadata awaitStart() {
+            lock.lock();
+            try {
+                while (!started && !finished) {
+                    changed.awaitUninterruptibly();
+                }
+                return metadata;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // the file is renamed when the fill completes, so it is opened under the lock
+        private FileChannel openChannel() throws IOException {
+            lock.lock();
+            try {
+                if (path == null) {
+                    throw new NoSuchFileException("the cache fill was discarded");
+                }
+                return FileChannel.open(path, StandardOpenOption.READ);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // bytes copied once there are more than position, or the fill is over; -1 when it failed before position
+        private long awaitBeyond(long position) throws InterruptedIOException {
+            lock.lock();
+            try {
+                while (copied <= position && !finished) {
+                    changed.await();
+                }
+                return copied > position || complete ? copied : -1;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the cache fill");
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // one read of a key being filled: follows the file as the copy grows, and if the fill fails, fetches the rest
+    // from the backend
+    private final class TailingInputStream extends InputStream {
+
+        private final String key;
+        private final Fill fill;
+        private final ObjectMetadata metadata;
+        private final FileChannel channel;
+        private StoredObject rest;
+        private long position;
+
+        private TailingInputStream(String key, Fill fill, ObjectMetadata metadata, FileChannel channel) {
+            this.key = key;
+            this.fill = fill;
+            this.metadata = metadata;
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= metadata.contentLength()) {
+                return -1;
+            }
+            if (rest == null) {
+                long copied = fill.awaitBeyond(position);
+                if (copied > position) {
+                    int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, copied - position)), position);
+                    if (read > 0) {
+                        position += read;
+                    }
+                    return read;
+                }
+                rest = fetchRest();
+            }
+            int read = rest.getContent().read(b, off, len);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        private StoredObject fetchRest() throws IOException {
+            StoredObject storedObject;
+            try {
+                storedObject = delegate.get(key, HttpRange.createByteRange(position));
+            } catch (StorageException e) {
+                throw new IOException("Cannot read the rest of " + key + ": " + e.getMessage(), e);
+            }
+            if (!Objects.equals(storedObject.getMetadata().etag(), metadata.etag())) {
+                storedObject.close();
+                throw new IOException(key + " changed while it was read");
+            }
+            return storedObject;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                channel.close();
+            } finally {
+                if (rest != null) {
+                    rest.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package springapp.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+
+// a slice of a file. StoredObjectHttpMessageConverter hands the path to the container's sendfile when it has it, so
+// the kernel copies the bytes; otherwise writeTo copies them through a small buffer like any other body
+class FileStoredObject extends StoredObject {
+
+    private final Path path;
+    private final FileChannel channel;
+    private final long position;
+
+    FileStoredObject(ObjectMetadata metadata, long contentLength, String contentRange, Path path, FileChannel channel,
+                     long position) throws IOException {
+        super(metadata, contentLength, contentRange,
+                new BoundedInputStream(Channels.newInputStream(channel.position(position)), contentLength));
+        this.path = path;
+        this.channel = channel;
+        this.position = position;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    long getPosition() {
+        return position;
+    }
+
+    // a servlet stream is no channel the JDK can transfer to directly, so this goes through its transfer buffer
+    @Override
+    public long writeTo(OutputStream outputStream) throws IOException {
+        WritableByteChannel target = Channels.newChannel(outputStream);
+        long end = position + getContentLength();
+        long offset = position;
+        while (offset < end) {
+            offset += channel.transferTo(offset, end - offset, target);
+        }
+        return getContentLength();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,297 @@
+package springapp.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import org.springframework.http.HttpRange;
+
+/**
+ * Stores each object as a file under a root directory, for development, on-prem installs and benchmarks
+ * without AWS. Writes go to a temporary file that is atomically renamed into place, so readers never see a
+ * partial object. Downloads are served with the container's sendfile where it has it (see
+ * StoredObjectHttpMessageConverter); since that reopens the file by name, a put or delete of the same key racing
+ * a download can fail that download.
+ */
+public class FileSystemObjectStorage implements ObjectStorage {
+
+    // in-progress multipart uploads live here, outside the key space
+    private static final String UPLOADS_DIR = ".multipart";
+    private static final String TEMP_PREFIX = ".tmp-";
+
+    private final Path root;
+    private final Path uploadsRoot;
+
+    public FileSystemObjectStorage(Path root) {
+        this.root = root.toAbsolutePath().normalize();
+        this.uploadsRoot = this.root.resolve(UPLOADS_DIR);
+        try {
+            Files.createDirectories(uploadsRoot);
+        } catch (IOException e) {
+            throw new StorageException("Cannot create storage directory " + this.root, e);
+        }
+    }
+
+    @Override
+    public void put(String key, InputStream content, long contentLength, String contentType) {
+        Path target = resolve(key);
+        try {
+            Files.createDirectories(target.getParent());
+            writeAtomically(target, content, contentLength);
+        } catch (IOException e) {
+            throw new StorageException("Cannot write " + key + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public StoredObject get(String key, HttpRange range) {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(resolve(key), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            throw new ObjectNotFoundException(key);
+        } catch (IOException e) {
+            throw new StorageException("Cannot read " + key + ": " + e.getMessage(), e);
+        }
+        try {
+            ObjectMetadata metadata = metadata(resolve(key), channel.size());
+            long objectLength = metadata.contentLength();
+            if (range == null) {
+                return new FileStoredObject(metadata, objectLength, null, resolve(key), channel, 0);
+            }
+            long start;
+            long end;
+            try {
+                start = range.getRangeStart(objectLength);
+                end = range.getRangeEnd(objectLength);
+            } catch (IllegalArgumentException e) {
+                throw new InvalidRangeException(key, objectLength);
+            }
+            if (start > end) {
+                throw new InvalidRangeException(key, objectLength);
+            }
+            String contentRange = "bytes " + start + "-" + end + "/" + objectLength;
+            return new FileStoredObject(metadata, end - start + 1, contentRange, resolve(key), channel, start);
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(channel);
+            if (e instanceof StorageException storageException) {
+                throw storageException;
+            }
+            throw new StorageException("Cannot read " + key + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public ObjectMetadata head(String key) {
+        Path path = resolve(key);
+        try {
+            return metadata(path, Files.size(path));
+        } catch (NoSuchFileException e) {
+            throw new ObjectNotFoundException(key);
+        } catch (IOException e) {
+            throw new StorageException("Cannot read " + key + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void delete(String key) {
+        try {
+            Files.deleteIfExists(resolve(key));
+        } catch (IOException e) {
+            throw new StorageException("Cannot delete " + key + ": " + e.getMessage(), e);
+        }
+    }
+
+    // walks the whole tree per page, which is fine for the object counts this backend is meant for
+    @Override
+    public ObjectListing list(String prefix, String continuationToken, int maxKeys) {
+        String keyPrefix = prefix == null ? "" : prefix;
+        List<ObjectSummary> page;
+        try (Stream<Path> paths = Files.walk(root)) {
+            page = paths
+                    .filter(path -> !path.startsWith(uploadsRoot))
+                    .filter(path -> !path.getFileName().toString().startsWith(TEMP_PREFIX))
+                    .filter(Files::isRegularFile)
+                    .map(this::summary)
+                    .filter(summary -> summary.key().startsWith(keyPrefix))
+                    .filter(summary -> continuationToken == null || summary.key().compareTo(continuationToken) > 0)
+                    .sorted(Comparator.comparing(ObjectSummary::key))
+                    .limit(maxKeys + 1L)
+                    .toList();
+        } catch (IOException | UncheckedIOException e) {
+            throw new StorageException("Cannot list " + keyPrefix + ": " + e.getMessage(), e);
+        }
+        if (page.size() <= maxKeys) {
+            return new ObjectListing(page, null);
+        }
+        List<ObjectSummary> objects = page.subList(0, maxKeys);
+        return new ObjectListing(objects, objects.get(objects.size() - 1).key());
+    }
+
+    @Override
+    public String createMultipartUpload(String key, String contentType) {
+        resolve(key);
+        String uploadId = UUID.randomUUID().toString();
+        try {
+            Files.createDirectories(uploadsRoot.resolve(uploadId));
+        } catch (IOException e) {
+            throw new StorageException("Cannot start upload of " + key + ": " + e.getMessage(), e);
+        }
+        return uploadId;
+    }
+
+    @Override
+    public String uploadPart(String key, String uploadId, int partNumber, InputStream content, long contentLength) {
+        Path uploadDir = uploadDir(key, uploadId);
+        try {
+            writeAtomically(uploadDir.resolve(partFileName(partNumber)), content, contentLength);
+        } catch (IOException e) {
+            throw new StorageException("Cannot write part " + partNumber + " of " + key + ": " + e.getMessage(), e);
+        }
+        // parts are identified by their number on disk, the ETag only has to be unique per write
+        return "\"" + Long.toHexString(contentLength) + "-" + Long.toHexString(System.nanoTime()) + "\"";
+    }
+
+    @Override
+    public void completeMultipartUpload(String key, String uploadId, List<UploadedPart> parts) {
+        Path uploadDir = uploadDir(key, uploadId);
+        Path target = resolve(key);
+        Path temp = null;
+        try {
+            Files.createDirectories(target.getParent());
+            temp = Files.createTempFile(target.getParent(), TEMP_PREFIX, null);
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                for (UploadedPart part : parts.stream().sorted(Comparator.comparingInt(UploadedPart::partNumber)).toList()) {
+                    try (FileChannel in = FileChannel.open(uploadDir.resolve(partFileName(part.partNumber())), StandardOpenOption.READ)) {
+                        long size = in.size();
+                        long transferred = 0;
+                        while (transferred < size) {
+                            transferred += in.transferTo(transferred, size - transferred, out);
+                        }
+                    }
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            temp = null;
+        } catch (NoSuchFileException e) {
+            throw new StorageException("Upload " + uploadId + " of " + key + " is missing a part", e);
+        } catch (IOException e) {
+            throw new StorageException("Cannot complete upload of " + key + ": " + e.getMessage(), e);
+        } finally {
+            deleteQuietly(temp);
+        }
+        deleteRecursively(uploadDir);
+    }
+
+    @Override
+    public void abortMultipartUpload(String key, String uploadId) {
+        Path uploadDir = uploadsRoot.resolve(uploadId).normalize();
+        if (uploadDir.getParent().equals(uploadsRoot)) {
+            deleteRecursively(uploadDir);
+        }
+    }
+
+    private void writeAtomically(Path target, InputStream content, long contentLength) throws IOException {
+        Path temp = Files.createTempFile(target.getParent(), TEMP_PREFIX, null);
+        try {
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE);
+                 ReadableByteChannel in = Channels.newChannel(content)) {
+                long written = 0;
+                while (written < contentLength) {
+                    long transferred = out.transferFrom(in, written, contentLength - written);
+                    if (transferred == 0) {
+                        throw new IOException("stream ended after " + written + " of " + contentLength + " bytes");
+                    }
+                    written += transferred;
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            temp = null;
+        } finally {
+            deleteQuietly(temp);
+        }
+    }
+
+    // keys come partly from user file names, so anything resolving outside the root is rejected
+    private Path resolve(String key) {
+        Path path = root.resolve(key).normalize();
+        if (!path.startsWith(root) || path.equals(root) || path.startsWith(uploadsRoot)) {
+            throw new StorageException("Invalid object key " + key);
+        }
+        return path;
+    }
+
+    private Path uploadDir(String key, String uploadId) {
+        resolve(key);
+        Path uploadDir = uploadsRoot.resolve(uploadId).normalize();
+        if (!uploadDir.getParent().equals(uploadsRoot) || !Files.isDirectory(uploadDir)) {
+            throw new StorageException("Upload " + uploadId + " of " + key + " does not exist");
+        }
+        return uploadDir;
+    }
+
+    private static String partFileName(int partNumber) {
+        return String.format("part-%05d", partNumber);
+    }
+
+    private ObjectSummary summary(Path path) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            String key = root.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/");
+            return new ObjectSummary(key, attributes.size(), attributes.lastModifiedTime().toInstant());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // size and modification time stand in for a content hash, the same scheme common web servers use
+    private static ObjectMetadata metadata(Path path, long size) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        String etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+        return new ObjectMetadata(size, null, etag, attributes.lastModifiedTime().toInstant());
+    }
+
+    private static void deleteRecursively(Path directory) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(FileSystemObjectStorage::deleteQuietly);
+        } catch (IOException | UncheckedIOException e) {
+            // leftovers are harmless, they are outside the key space
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        if (path == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (DirectoryNotEmptyException e) {
+            // raced with a concurrent write into the same directory
+        } catch (IOException e) {
+            // best effort cleanup
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing left to do
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package springapp.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.http.HttpRange;
+
+// keeps every object on the heap; meant for tests and benchmarks, not for real data
+public class InMemoryObjectStorage implements ObjectStorage {
+
+    private record MemoryObject(byte[] data, String contentType, String etag, Instant lastModified) {
+    }
+
+    private final NavigableMap<String, MemoryObject> objects = new ConcurrentSkipListMap<>();
+    private final Map<String, NavigableMap<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+    private final AtomicLong etagSequence = new AtomicLong();
+
+    @Override
+    public void put(String key, InputStream content, long contentLength, String contentType) {
+        objects.put(key, newObject(readFully(key, content, contentLength), contentType));
+    }
+
+    @Override
+    public StoredObject get(String key, HttpRange range) {
+        MemoryObject object = objects.get(key);
+        if (object == null) {
+            throw new ObjectNotFoundException(key);
+        }
+        ObjectMetadata metadata = metadata(object);
+        long length = object.data().length;
+        if (range == null) {
+            return new StoredObject(metadata, length, null, new ByteArrayInputStream(object.data()));
+        }
+        long start;
+        long end;
+        try {
+            start = range.getRangeStart(length);
+            end = range.getRangeEnd(length);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidRangeException(key, length);
+        }
+        if (start > end) {
+            throw new InvalidRangeException(key, length);
+        }
+        return new StoredObject(metadata, end - start + 1, "bytes " + start + "-" + end + "/" + length,
+                new ByteArrayInputStream(object.data(), (int) start, (int) (end - start + 1)));
+    }
+
+    @Override
+    public ObjectMetadata head(String key) {
+        MemoryObject object = objects.get(key);
+        if (object == null) {
+            throw new ObjectNotFoundException(key);
+        }
+        return metadata(object);
+    }
+
+    @Override
+    public void delete(String key) {
+        objects.remove(key);
+    }
+
+    @Override
+    public ObjectListing list(String prefix, String continuationToken, int maxKeys) {
+        String keyPrefix = prefix == null ? "" : prefix;
+        NavigableMap<String, MemoryObject> tail = continuationToken == null
+                ? objects.tailMap(keyPrefix, true)
+                : objects.tailMap(continuationToken, false);
+        List<ObjectSummary> page = new ArrayList<>();
+        for (Map.Entry<String, MemoryObject> entry : tail.entrySet()) {
+            if (!entry.getKey().startsWith(keyPrefix)) {
+                if (entry.getKey().compareTo(keyPrefix) > 0) {
+                    break;
+                }
+                continue;
+            }
+            if (page.size() == maxKeys) {
+                return new ObjectListing(page, page.get(page.size() - 1).key());
+            }
+            page.add(new ObjectSummary(entry.getKey(), entry.getValue().data().length, entry.getValue().lastModified()));
+        }
+        return new ObjectListing(page, null);
+    }
+
+    @Override
+    public String createMultipartUpload(String key, String contentType) {
+        String uploadId = UUID.randomUUID().toString();
+        uploads.put(uploadId, new ConcurrentSkipListMap<>());
+        return uploadId;
+    }
+
+    @Override
+    public String uploadPart(String key, String uploadId, int partNumber, InputStream content, long contentLength) {
+        NavigableMap<Integer, byte[]> parts = uploads.get(uploadId);
+        if (parts == null) {
+            throw new StorageException("Upload " + uploadId + " of " + key + " does not exist");
+        }
+        parts.put(partNumber, readFully(key, content, contentLength));
+        return "\"" + Long.toHexString(etagSequence.incrementAndGet()) + "\"";
+    }
+
+    @Override
+    public void completeMultipartUpload(String key, String uploadId, List<UploadedPart> parts) {
+        NavigableMap<Integer, byte[]> uploadedParts = uploads.remove(uploadId);
+        if (uploadedParts == null) {
+            throw new StorageException("Upload " + uploadId + " of " + key + " does not exist");
+        }
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (UploadedPart part : parts) {
+            byte[] bytes = uploadedParts.get(part.partNumber());
+            if (bytes == null) {
+                throw new StorageException("Upload " + uploadId + " of " + key + " is missing part " + part.partNumber());
+            }
+            data.writeBytes(bytes);
+        }
+        objects.put(key, newObject(data.toByteArray(), null));
+    }
+
+    @Override
+    public void abortMultipartUpload(String key, String uploadId) {
+        uploads.remove(uploadId);
+    }
+
+    private MemoryObject newObject(byte[] data, String contentType) {
+        String etag = "\"" + Long.toHexString(etagSequence.incrementAndGet()) + "\"";
+        return new MemoryObject(data, contentType, etag, Instant.now());
+    }
+
+    private static ObjectMetadata metadata(MemoryObject object) {
+        return new ObjectMetadata(object.data().length, object.contentType(), object.etag(), object.lastModified());
+    }
+
+    private static byte[] readFully(String key, InputStream content, long contentLength) {
+        try {
+            byte[] data = content.readNBytes((int) contentLength);
+            if (data.length != contentLength) {
+                throw new StorageException("Stream for " + key + " ended after " + data.length + " of " + contentLength + " bytes");
+            }
+            return data;
+        } catch (IOException e) {
+            throw new StorageException("Cannot read content for " + key + ": " + e.getMessage(), e);
+        }
+    }
+}
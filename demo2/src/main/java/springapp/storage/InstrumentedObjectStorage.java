@@ -0,0 +1,264 @@
+package springapp.storage;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.http.HttpRange;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Times every call into a backend as storage.requests, tagged with the operation and its outcome, and counts the
+ * bytes written to and read from it as storage.bytes. A get is timed until the object stream is open, i.e. time to
+ * first byte; reading the body is paid by whoever consumes it, and its bytes are counted as they are read, so a
+ * download cut short or a body closed unread only counts what actually came from the backend. File bodies are the
+ * exception: they are handed to the container's sendfile, which this cannot see, so they count whole when opened.
+ *
+ * Every timer and counter is registered up front, so a call only reads the clock and records into an existing meter.
+ */
+public class InstrumentedObjectStorage implements ObjectStorage {
+
+    private enum Operation {
+        PUT, GET, HEAD, DELETE, DELETE_BATCH, LIST, CREATE_MULTIPART, UPLOAD_PART, COMPLETE_MULTIPART, ABORT_MULTIPART
+    }
+
+    private enum Outcome {
+        SUCCESS, NOT_FOUND, INVALID_RANGE, ERROR
+    }
+
+    private final ObjectStorage delegate;
+    private final Timer[][] timers;
+    private final Counter bytesWritten;
+    private final Counter bytesRead;
+
+    public InstrumentedObjectStorage(ObjectStorage delegate, MeterRegistry registry, String backend) {
+        this.delegate = delegate;
+        this.timers = new Timer[Operation.values().length][Outcome.values().length];
+        for (Operation operation : Operation.values()) {
+            for (Outcome outcome : Outcome.values()) {
+                timers[operation.ordinal()][outcome.ordinal()] = Timer.builder("storage.requests")
+                        .description("Calls into the object store")
+                        .tag("backend", backend)
+                        .tag("operation", operation.name().toLowerCase(Locale.ROOT))
+                        .tag("outcome", outcome.name().toLowerCase(Locale.ROOT))
+                        .register(registry);
+            }
+        }
+        this.bytesWritten = Counter.builder("storage.bytes")
+                .description("Bytes moved to and from the object store")
+                .baseUnit("bytes")
+                .tag("backend", backend)
+                .tag("direction", "written")
+                .register(registry);
+        this.bytesRead = Counter.builder("storage.bytes")
+                .description("Bytes moved to and from the object store")
+                .baseUnit("bytes")
+                .tag("backend", backend)
+                .tag("direction", "read")
+                .register(registry);
+    }
+
+    @Override
+    public void put(String key, InputStream content, long contentLength, String contentType) {
+        long start = System.nanoTime();
+        try {
+            delegate.put(key, content, contentLength, contentType);
+        } catch (RuntimeException e) {
+            record(Operation.PUT, start, e);
+            throw e;
+        }
+        record(Operation.PUT, start, null);
+        bytesWritten.increment(contentLength);
+    }
+
+    @Override
+    public void put(String key, InputStream content, long contentLength, String contentType, byte[] sha256) {
+        long start = System.nanoTime();
+        try {
+            delegate.put(key, content, contentLength, contentType, sha256);
+        } catch (RuntimeException e) {
+            record(Operation.PUT, start, e);
+            throw e;
+        }
+        record(Operation.PUT, start, null);
+        bytesWritten.increment(contentLength);
+    }
+
+    @Override
+    public StoredObject get(String key, HttpRange range) {
+        long start = System.nanoTime();
+        StoredObject object;
+        try {
+            object = delegate.get(key, range);
+        } catch (RuntimeException e) {
+            record(Operation.GET, start, e);
+            throw e;
+        }
+        record(Operation.GET, start, null);
+        if (object instanceof FileStoredObject) {
+            bytesRead.increment(object.getContentLength());
+            return object;
+        }
+        return new StoredObject(object.getMetadata(), object.getContentLength(), object.getContentRange(),
+                new CountingInputStream(object.getContent(), bytesRead));
+    }
+
+    @Override
+    public ObjectMetadata head(String key) {
+        long start = System.nanoTime();
+        ObjectMetadata metadata;
+        try {
+            metadata = delegate.head(key);
+        } catch (RuntimeException e) {
+            record(Operation.HEAD, start, e);
+            throw e;
+        }
+        record(Operation.HEAD, start, null);
+        return metadata;
+    }
+
+    @Override
+    public void delete(String key) {
+        long start = System.nanoTime();
+        try {
+            delegate.delete(key);
+        } catch (RuntimeException e) {
+            record(Operation.DELETE, start, e);
+            throw e;
+        }
+        record(Operation.DELETE, start, null);
+    }
+
+    @Override
+    public List<String> deleteAll(List<String> keys) {
+        long start = System.nanoTime();
+        List<String> failed;
+        try {
+            failed = delegate.deleteAll(keys);
+        } catch (RuntimeException e) {
+            record(Operation.DELETE_BATCH, start, e);
+            throw e;
+        }
+        record(Operation.DELETE_BATCH, start, null);
+        return failed;
+    }
+
+    @Override
+    public ObjectListing list(String prefix, String continuationToken, int maxKeys) {
+        long start = System.nanoTime();
+        ObjectListing listing;
+        try {
+            listing = delegate.list(prefix, continuationToken, maxKeys);
+        } catch (RuntimeException e) {
+            record(Operation.LIST, start, e);
+            throw e;
+        }
+        record(Operation.LIST, start, null);
+        return listing;
+    }
+
+    @Override
+    public String createMultipartUpload(String key, String contentType) {
+        long start = System.nanoTime();
+        String uploadId;
+        try {
+            uploadId = delegate.createMultipartUpload(key, contentType);
+        } catch (RuntimeException e) {
+            record(Operation.CREATE_MULTIPART, start, e);
+            throw e;
+        }
+        record(Operation.CREATE_MULTIPART, start, null);
+        return uploadId;
+    }
+
+    @Override
+    public String uploadPart(String key, String uploadId, int partNumber, InputStream content, long contentLength) {
+        long start = System.nanoTime();
+        String etag;
+        try {
+            etag = delegate.uploadPart(key, uploadId, partNumber, content, contentLength);
+        } catch (RuntimeException e) {
+            record(Operation.UPLOAD_PART, start, e);
+            throw e;
+        }
+        record(Operation.UPLOAD_PART, start, null);
+        bytesWritten.increment(contentLength);
+        return etag;
+    }
+
+    @Override
+    public void completeMultipartUpload(String key, String uploadId, List<UploadedPart> parts) {
+        long start = System.nanoTime();
+        try {
+            delegate.completeMultipartUpload(key, uploadId, parts);
+        } catch (RuntimeException e) {
+            record(Operation.COMPLETE_MULTIPART, start, e);
+            throw e;
+        }
+        record(Operation.COMPLETE_MULTIPART, start, null);
+    }
+
+    @Override
+    public void abortMultipartUpload(String key, String uploadId) {
+        long start = System.nanoTime();
+        try {
+            delegate.abortMultipartUpload(key, uploadId);
+        } catch (RuntimeException e) {
+            record(Operation.ABORT_MULTIPART, start, e);
+            throw e;
+        }
+        record(Operation.ABORT_MULTIPART, start, null);
+    }
+
+    private void record(Operation operation, long start, RuntimeException failure) {
+        Outcome outcome = failure == null ? Outcome.SUCCESS
+                : failure instanceof ObjectNotFoundException ? Outcome.NOT_FOUND
+                : failure instanceof InvalidRangeException ? Outcome.INVALID_RANGE
+                : Outcome.ERROR;
+        timers[operation.ordinal()][outcome.ordinal()].record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    // adds the bytes that pass through to a counter; skipped bytes count too, since the backend still sends them
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private final Counter counter;
+
+        private CountingInputStream(InputStream in, Counter counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                counter.increment();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                counter.increment(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            if (skipped > 0) {
+                counter.increment(skipped);
+            }
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package springapp.storage;
+
+public class InvalidRangeException extends StorageException {
+
+    // -1 when the backend did not report the object length
+    private final long objectLength;
+
+    public InvalidRangeException(String key, long objectLength) {
+        super("Requested range is not satisfiable for " + key);
+        this.objectLength = objectLength;
+    }
+
+    public long getObjectLength() {
+        return objectLength;
+    }
+}
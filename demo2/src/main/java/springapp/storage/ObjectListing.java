@@ -0,0 +1,7 @@
+package springapp.storage;
+
+import java.util.List;
+
+// nextContinuationToken is null on the last page
+public record ObjectListing(List<ObjectSummary> objects, String nextContinuationToken) {
+}
@@ -0,0 +1,6 @@
+package springapp.storage;
+
+import java.time.Instant;
+
+public record ObjectMetadata(long contentLength, String contentType, String etag, Instant lastModified) {
+}
@@ -0,0 +1,8 @@
+package springapp.storage;
+
+public class ObjectNotFoundException extends StorageException {
+
+    public ObjectNotFoundException(String key) {
+        super("Object " + key + " does not exist");
+    }
+}
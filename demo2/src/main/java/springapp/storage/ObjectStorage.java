@@ -0,0 +1,64 @@
+package springapp.storage;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.http.HttpRange;
+
+/**
+ * Object store behind attachment uploads and downloads. Implementations are chosen with the
+ * storage.backend property: s3 (default), s3-async, filesystem or memory.
+ *
+ * Failures surface as {@link StorageException}; a missing key as {@link ObjectNotFoundException}.
+ */
+public interface ObjectStorage {
+
+    // the most keys one deleteAll call takes, S3's DeleteObjects limit
+    int MAX_DELETE_BATCH = 1000;
+
+    void put(String key, InputStream content, long contentLength, String contentType);
+
+    // sha256 is the raw digest of the content; backends that can have it verified on arrival send it along
+    default void put(String key, InputStream content, long contentLength, String contentType, byte[] sha256) {
+        put(key, content, contentLength, contentType);
+    }
+
+    // range is optional; when given, the returned object only carries the requested bytes
+    StoredObject get(String key, HttpRange range);
+
+    ObjectMetadata head(String key);
+
+    void delete(String key);
+
+    /**
+     * Deletes up to {@link #MAX_DELETE_BATCH} keys, in one request where the backend can. Keys that do not exist count
+     * as deleted. Returns the keys that could not be deleted, so one bad key does not fail the others; a failure of
+     * the whole call is thrown.
+     */
+    default List<String> deleteAll(List<String> keys) {
+        List<String> failed = new ArrayList<>();
+        for (String key : keys) {
+            try {
+                delete(key);
+            } catch (ObjectNotFoundException e) {
+                // already gone
+            } catch (StorageException e) {
+                failed.add(key);
+            }
+        }
+        return failed;
+    }
+
+    // keys in lexicographic order, continuationToken is null for the first page
+    ObjectListing list(String prefix, String continuationToken, int maxKeys);
+
+    String createMultipartUpload(String key, String contentType);
+
+    // returns the ETag the part has to be completed with
+    String uploadPart(String key, String uploadId, int partNumber, InputStream content, long contentLength);
+
+    void completeMultipartUpload(String key, String uploadId, List<UploadedPart> parts);
+
+    void abortMultipartUpload(String key, String uploadId);
+}
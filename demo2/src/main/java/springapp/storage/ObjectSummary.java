@@ -0,0 +1,6 @@
+package springapp.storage;
+
+import java.time.Instant;
+
+public record ObjectSummary(String key, long size, Instant lastModified) {
+}
@@ -0,0 +1,230 @@
+package springapp.storage;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.core.async.BlockingInputStreamAsyncRequestBody;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.*;
+
+/**
+ * S3 backend on the non-blocking client. Transfers run on the SDK's Netty event loops instead of one
+ * pooled connection thread each; the calling thread only waits on the returned future, which on a
+ * virtual thread unmounts it from its carrier for the duration of the round trip.
+ *
+ * Request bodies are pumped from the caller's InputStream through a blocking AsyncRequestBody, and
+ * downloads hand back a ResponseInputStream as soon as the response headers arrive, so neither
+ * direction buffers a whole object.
+ */
+public class S3AsyncObjectStorage implements ObjectStorage {
+
+    private final S3AsyncClient s3Client;
+    private final String bucketName;
+
+    public S3AsyncObjectStorage(S3AsyncClient s3Client, String bucketName) {
+        this.s3Client = s3Client;
+        this.bucketName = bucketName;
+    }
+
+    @Override
+    public void put(String key, InputStream content, long contentLength, String contentType) {
+        put(key, content, contentLength, contentType, null);
+    }
+
+    @Override
+    public void put(String key, InputStream content, long contentLength, String contentType, byte[] sha256) {
+        BlockingInputStreamAsyncRequestBody body = AsyncRequestBody.forBlockingInputStream(contentLength);
+        CompletableFuture<PutObjectResponse> response = s3Client.putObject(PutObjectRequest.builder()
+                        .bucket(bucketName)
+                        .key(key)
+                        .contentType(contentType)
+                        .contentLength(contentLength)
+                        .checksumSHA256(sha256 != null ? Base64.getEncoder().encodeToString(sha256) : null)
+                        .build(),
+                body);
+        writeBody(key, body, content, response);
+        join(key, response);
+    }
+
+    @Override
+    public StoredObject get(String key, HttpRange range) {
+        GetObjectRequest.Builder request = GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key);
+        if (range != null) {
+            request.range(HttpRange.toString(List.of(range)));
+        }
+        ResponseInputStream<GetObjectResponse> s3Object;
+        try {
+            // completes once the headers are in; the body streams as the caller reads it
+            s3Object = s3Client.getObject(request.build(), AsyncResponseTransformer.<GetObjectResponse>toBlockingInputStream()).join();
+        } catch (CompletionException e) {
+            if (range != null && e.getCause() instanceof S3Exception s3Exception
+                    && s3Exception.statusCode() == HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value()) {
+                throw new InvalidRangeException(key, objectLengthOrUnknown(key));
+            }
+            throw translate(key, e);
+        }
+        return S3ObjectStorage.toStoredObject(s3Object, range);
+    }
+
+    @Override
+    public ObjectMetadata head(String key) {
+        HeadObjectResponse response = join(key, s3Client.headObject(HeadObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .build()));
+        return new ObjectMetadata(response.contentLength(), response.contentType(), response.eTag(), response.lastModified());
+    }
+
+    @Override
+    public void delete(String key) {
+        join(key, s3Client.deleteObject(DeleteObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .build()));
+    }
+
+    @Override
+    public List<String> deleteAll(List<String> keys) {
+        if (keys.isEmpty()) {
+            return List.of();
+        }
+        List<ObjectIdentifier> objects = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            objects.add(ObjectIdentifier.builder().key(key).build());
+        }
+        DeleteObjectsResponse response = join(keys.size() + " keys from " + keys.get(0), s3Client.deleteObjects(
+                DeleteObjectsRequest.builder()
+                        .bucket(bucketName)
+                        .delete(Delete.builder().objects(objects).quiet(true).build())
+                        .build()));
+        List<String> failed = new ArrayList<>(response.errors().size());
+        for (S3Error error : response.errors()) {
+            failed.add(error.key());
+        }
+        return failed;
+    }
+
+    @Override
+    public ObjectListing list(String prefix, String continuationToken, int maxKeys) {
+        ListObjectsV2Response response = join(prefix, s3Client.listObjectsV2(ListObjectsV2Request.builder()
+                .bucket(bucketName)
+                .prefix(prefix)
+                .continuationToken(continuationToken)
+                .maxKeys(maxKeys)
+                .build()));
+        List<ObjectSummary> objects = new ArrayList<>(response.contents().size());
+        for (S3Object s3Object : response.contents()) {
+            objects.add(new ObjectSummary(s3Object.key(), s3Object.size(), s3Object.lastModified()));
+        }
+        return new ObjectListing(objects, response.isTruncated() ? response.nextContinuationToken() : null);
+    }
+
+    @Override
+    public String createMultipartUpload(String key, String contentType) {
+        return join(key, s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                        .bucket(bucketName)
+                        .key(key)
+                        .contentType(contentType)
+                        .build()))
+                .uploadId();
+    }
+
+    @Override
+    public String uploadPart(String key, String uploadId, int partNumber, InputStream content, long contentLength) {
+        BlockingInputStreamAsyncRequestBody body = AsyncRequestBody.forBlockingInputStream(contentLength);
+        CompletableFuture<UploadPartResponse> response = s3Client.uploadPart(UploadPartRequest.builder()
+                        .bucket(bucketName)
+                        .key(key)
+                        .uploadId(uploadId)
+                        .partNumber(partNumber)
+                        .contentLength(contentLength)
+                        .build(),
+                body);
+        writeBody(key, body, content, response);
+        return join(key, response).eTag();
+    }
+
+    @Override
+    public void completeMultipartUpload(String key, String uploadId, List<UploadedPart> parts) {
+        List<CompletedPart> completedParts = new ArrayList<>(parts.size());
+        for (UploadedPart part : parts) {
+            completedParts.add(CompletedPart.builder()
+                    .partNumber(part.partNumber())
+                    .eTag(part.etag())
+                    .build());
+        }
+        join(key, s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .uploadId(uploadId)
+                .multipartUpload(CompletedMultipartUpload.builder().parts(completedParts).build())
+                .build()));
+    }
+
+    @Override
+    public void abortMultipartUpload(String key, String uploadId) {
+        try {
+            s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .build()).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof NoSuchUploadException) {
+                // already gone, e.g. removed by a bucket lifecycle rule
+                return;
+            }
+            throw translate(key, e);
+        }
+    }
+
+    // feeds the stream on the calling thread; if the request already failed, report that instead of the write error
+    private void writeBody(String key, BlockingInputStreamAsyncRequestBody body, InputStream content, CompletableFuture<?> response) {
+        try {
+            body.writeInputStream(content);
+        } catch (RuntimeException e) {
+            if (response.isCompletedExceptionally()) {
+                join(key, response);
+            }
+            response.cancel(true);
+            throw new StorageException("Cannot send " + key + ": " + e.getMessage(), e);
+        }
+    }
+
+    private long objectLengthOrUnknown(String key) {
+        try {
+            return head(key).contentLength();
+        } catch (StorageException e) {
+            return -1;
+        }
+    }
+
+    private static <T> T join(String key, CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw translate(key, e);
+        }
+    }
+
+    private static StorageException translate(String key, CompletionException e) {
+        if (e.getCause() instanceof SdkException sdkException) {
+            return S3ObjectStorage.translate(key, sdkException);
+        }
+        Throwable cause = e.getCause() != null ? e.getCause() : e;
+        return new StorageException(cause.getMessage(), cause);
+    }
+}
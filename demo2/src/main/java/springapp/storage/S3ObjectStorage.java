@@ -0,0 +1,238 @@
+package springapp.storage;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.*;
+
+public class S3ObjectStorage implements ObjectStorage {
+
+    private final S3Client s3Client;
+    private final String bucketName;
+
+    public S3ObjectStorage(S3Client s3Client, String bucketName) {
+        this.s3Client = s3Client;
+        this.bucketName = bucketName;
+    }
+
+    @Override
+    public void put(String key, InputStream content, long contentLength, String contentType) {
+        put(key, content, contentLength, contentType, null);
+    }
+
+    // with a checksum S3 recomputes the SHA-256 on arrival and rejects the PUT if it differs
+    @Override
+    public void put(String key, InputStream content, long contentLength, String contentType, byte[] sha256) {
+        try {
+            s3Client.putObject(PutObjectRequest.builder()
+                            .bucket(bucketName)
+                            .key(key)
+                            .contentType(contentType)
+                            .checksumSHA256(sha256 != null ? Base64.getEncoder().encodeToString(sha256) : null)
+                            .build(),
+                    RequestBody.fromInputStream(content, contentLength));
+        } catch (SdkException e) {
+            throw translate(key, e);
+        }
+    }
+
+    @Override
+    public StoredObject get(String key, HttpRange range) {
+        GetObjectRequest.Builder request = GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key);
+        if (range != null) {
+            request.range(HttpRange.toString(List.of(range)));
+        }
+        ResponseInputStream<GetObjectResponse> s3Object;
+        try {
+            s3Object = s3Client.getObject(request.build());
+        } catch (S3Exception e) {
+            if (range != null && e.statusCode() == HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value()) {
+                throw new InvalidRangeException(key, objectLengthOrUnknown(key));
+            }
+            throw translate(key, e);
+        } catch (SdkException e) {
+            throw translate(key, e);
+        }
+
+        return toStoredObject(s3Object, range);
+    }
+
+    @Override
+    public ObjectMetadata head(String key) {
+        try {
+            HeadObjectResponse response = s3Client.headObject(HeadObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .build());
+            return new ObjectMetadata(response.contentLength(), response.contentType(), response.eTag(), response.lastModified());
+        } catch (SdkException e) {
+            throw translate(key, e);
+        }
+    }
+
+    @Override
+    public void delete(String key) {
+        try {
+            s3Client.deleteObject(DeleteObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .build());
+        } catch (SdkException e) {
+            throw translate(key, e);
+        }
+    }
+
+    // one DeleteObjects round trip; quiet mode makes S3 report only the keys it failed on
+    @Override
+    public List<String> deleteAll(List<String> keys) {
+        if (keys.isEmpty()) {
+            return List.of();
+        }
+        List<ObjectIdentifier> objects = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            objects.add(ObjectIdentifier.builder().key(key).build());
+        }
+        DeleteObjectsResponse response;
+        try {
+            response = s3Client.deleteObjects(DeleteObjectsRequest.builder()
+                    .bucket(bucketName)
+                    .delete(Delete.builder().objects(objects).quiet(true).build())
+                    .build());
+        } catch (SdkException e) {
+            throw translate(keys.size() + " keys from " + keys.get(0), e);
+        }
+        List<String> failed = new ArrayList<>(response.errors().size());
+        for (S3Error error : response.errors()) {
+            failed.add(error.key());
+        }
+        return failed;
+    }
+
+    @Override
+    public ObjectListing list(String prefix, String continuationToken, int maxKeys) {
+        try {
+            ListObjectsV2Response response = s3Client.listObjectsV2(ListObjectsV2Request.builder()
+                    .bucket(bucketName)
+                    .prefix(prefix)
+                    .continuationToken(continuationToken)
+                    .maxKeys(maxKeys)
+                    .build());
+            List<ObjectSummary> objects = new ArrayList<>(response.contents().size());
+            for (S3Object s3Object : response.contents()) {
+                objects.add(new ObjectSummary(s3Object.key(), s3Object.size(), s3Object.lastModified()));
+            }
+            return new ObjectListing(objects, response.isTruncated() ? response.nextContinuationToken() : null);
+        } catch (SdkException e) {
+            throw translate(prefix, e);
+        }
+    }
+
+    @Override
+    public String createMultipartUpload(String key, String contentType) {
+        try {
+            return s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                            .bucket(bucketName)
+                            .key(key)
+                            .contentType(contentType)
+                            .build())
+                    .uploadId();
+        } catch (SdkException e) {
+            throw translate(key, e);
+        }
+    }
+
+    @Override
+    public String uploadPart(String key, String uploadId, int partNumber, InputStream content, long contentLength) {
+        try {
+            return s3Client.uploadPart(UploadPartRequest.builder()
+                                    .bucket(bucketName)
+                                    .key(key)
+                                    .uploadId(uploadId)
+                                    .partNumber(partNumber)
+                                    .contentLength(contentLength)
+                                    .build(),
+                            RequestBody.fromInputStream(content, contentLength))
+                    .eTag();
+        } catch (SdkException e) {
+            throw translate(key, e);
+        }
+    }
+
+    @Override
+    public void completeMultipartUpload(String key, String uploadId, List<UploadedPart> parts) {
+        List<CompletedPart> completedParts = new ArrayList<>(parts.size());
+        for (UploadedPart part : parts) {
+            completedParts.add(CompletedPart.builder()
+                    .partNumber(part.partNumber())
+                    .eTag(part.etag())
+                    .build());
+        }
+        try {
+            s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(completedParts).build())
+                    .build());
+        } catch (SdkException e) {
+            throw translate(key, e);
+        }
+    }
+
+    @Override
+    public void abortMultipartUpload(String key, String uploadId) {
+        try {
+            s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .build());
+        } catch (NoSuchUploadException e) {
+            // already gone, e.g. removed by a bucket lifecycle rule
+        } catch (SdkException e) {
+            throw translate(key, e);
+        }
+    }
+
+    private long objectLengthOrUnknown(String key) {
+        try {
+            return head(key).contentLength();
+        } catch (StorageException e) {
+            return -1;
+        }
+    }
+
+    static StoredObject toStoredObject(ResponseInputStream<GetObjectResponse> s3Object, HttpRange range) {
+        GetObjectResponse response = s3Object.response();
+        // for a range S3 reports the whole length only inside Content-Range ("bytes 0-99/1234")
+        long objectLength = response.contentRange() != null
+                ? Long.parseLong(response.contentRange().substring(response.contentRange().lastIndexOf('/') + 1))
+                : response.contentLength();
+        ObjectMetadata metadata = new ObjectMetadata(objectLength, response.contentType(), response.eTag(), response.lastModified());
+        return new StoredObject(metadata, response.contentLength(), range != null ? response.contentRange() : null, s3Object);
+    }
+
+    static StorageException translate(String key, SdkException e) {
+        if (e instanceof S3Exception s3Exception && s3Exception.statusCode() == HttpStatus.NOT_FOUND.value()) {
+            return new ObjectNotFoundException(key);
+        }
+        // HEAD errors carry no body, so there may be no AWS error message to show
+        String message = e instanceof AwsServiceException serviceException && serviceException.awsErrorDetails() != null
+                && serviceException.awsErrorDetails().errorMessage() != null
+                ? serviceException.awsErrorDetails().errorMessage()
+                : e.getMessage();
+        return new StorageException(message, e);
+    }
+}
@@ -0,0 +1,68 @@
+package springapp.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An open object body. Must be closed; writing it through {@link StoredObjectHttpMessageConverter} does so.
+ */
+public class StoredObject implements Closeable {
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final ObjectMetadata metadata;
+    private final long contentLength;
+    private final String contentRange;
+    private final InputStream content;
+
+    /**
+     * @param metadata      metadata of the whole object
+     * @param contentLength bytes in this body, less than the object length for a range
+     * @param contentRange  "bytes first-last/length" for a range, null for the whole object
+     */
+    public StoredObject(ObjectMetadata metadata, long contentLength, String contentRange, InputStream content) {
+        this.metadata = metadata;
+        this.contentLength = contentLength;
+        this.contentRange = contentRange;
+        this.content = content;
+    }
+
+    public ObjectMetadata getMetadata() {
+        return metadata;
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public String getContentRange() {
+        return contentRange;
+    }
+
+    public boolean isPartial() {
+        return contentRange != null;
+    }
+
+    public InputStream getContent() {
+        return content;
+    }
+
+    // copies the body in fixed-size chunks; file-backed objects override this with a channel transfer
+    public long writeTo(OutputStream outputStream) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        long written = 0;
+        int read;
+        while ((read = content.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, read);
+            written += read;
+        }
+        return written;
+    }
+
+    @Override
+    public void close() throws IOException {
+        content.close();
+    }
+}
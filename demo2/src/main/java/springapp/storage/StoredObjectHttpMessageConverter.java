@@ -0,0 +1,90 @@
+package springapp.storage;
+
+import java.io.IOException;
+
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+// writes a StoredObject response body through StoredObject.writeTo and closes it; bytes sent count as
+// http.server.download.bytes, cache hits included. File-backed bodies (the file system backend and cache hits)
+// are handed to Tomcat's sendfile instead when the connector supports it, so they are copied by the kernel
+public class StoredObjectHttpMessageConverter extends AbstractHttpMessageConverter<StoredObject> {
+
+    // request attributes of Tomcat's sendfile support, the same ones its DefaultServlet sets
+    private static final String SENDFILE_SUPPORTED = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private final Counter bytesDownloaded;
+
+    public StoredObjectHttpMessageConverter(MeterRegistry registry) {
+        super(MediaType.ALL);
+        this.bytesDownloaded = Counter.builder("http.server.download.bytes")
+                .description("Attachment bytes sent to clients")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return StoredObject.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    public boolean canRead(Class<?> clazz, MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected StoredObject readInternal(Class<? extends StoredObject> clazz, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("StoredObject cannot be read from a request", inputMessage);
+    }
+
+    @Override
+    protected Long getContentLength(StoredObject storedObject, MediaType contentType) {
+        return storedObject.getContentLength();
+    }
+
+    @Override
+    protected void writeInternal(StoredObject storedObject, HttpOutputMessage outputMessage) throws IOException {
+        try (storedObject) {
+            if (storedObject instanceof FileStoredObject file && sendfile(file)) {
+                // the body is left empty; Tomcat opens the file by name and sends it once the response is committed
+                outputMessage.getBody().flush();
+                bytesDownloaded.increment(file.getContentLength());
+                return;
+            }
+            long written = storedObject.writeTo(outputMessage.getBody());
+            outputMessage.getBody().flush();
+            bytesDownloaded.increment(written);
+        }
+    }
+
+    private static boolean sendfile(FileStoredObject file) throws IOException {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (!(attributes instanceof ServletRequestAttributes servletAttributes)) {
+            return false;
+        }
+        HttpServletRequest request = servletAttributes.getRequest();
+        if (!Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED))) {
+            return false;
+        }
+        request.setAttribute(SENDFILE_FILENAME, file.getPath().toFile().getCanonicalPath());
+        request.setAttribute(SENDFILE_START, file.getPosition());
+        // exclusive
+        request.setAttribute(SENDFILE_END, file.getPosition() + file.getContentLength());
+        return true;
+    }
+}
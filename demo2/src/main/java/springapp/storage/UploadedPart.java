@@ -0,0 +1,4 @@
+package springapp.storage;
+
+public record UploadedPart(int partNumber, String etag) {
+}
@@ -0,0 +1,182 @@
+package springapp.config;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.FilterChain;
+
+class AdmissionControlFilterTest {
+
+    private static final long UNKNOWN_SIZE = 2;
+
+    private final MeterRegistry registry = new SimpleMeterRegistry();
+
+    private AdmissionControlFilter filter(double requestsPerSecond, int burst, int maxConcurrentPerUser,
+                                          long maxInFlightBytes, long maxTrackedUsers) {
+        return new AdmissionControlFilter(registry, requestsPerSecond, burst, maxConcurrentPerUser, maxInFlightBytes,
+                UNKNOWN_SIZE, maxTrackedUsers, Duration.ofMinutes(10));
+    }
+
+    @Test
+    void fullBucketAdmitsBurstThenRejectsWithRetryAfter() throws Exception {
+        AdmissionControlFilter filter = filter(0.5, 3, 100, Long.MAX_VALUE, 1000);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(200, send(filter, "userId=1", 0, null).getStatus());
+        }
+        MockHttpServletResponse rejected = send(filter, "userId=1", 0, null);
+
+        assertEquals(429, rejected.getStatus());
+        // the next token is two seconds away at half a request per second
+        assertEquals("2", rejected.getHeader(HttpHeaders.RETRY_AFTER));
+        assertEquals(1.0, outcome("rate_limited"));
+        assertEquals(3.0, outcome("admitted"));
+    }
+
+    @Test
+    void usersHaveTheirOwnBuckets() throws Exception {
+        AdmissionControlFilter filter = filter(0.001, 1, 100, Long.MAX_VALUE, 1000);
+
+        assertEquals(200, send(filter, "userId=1", 0, null).getStatus());
+        assertEquals(429, send(filter, "userId=1", 0, null).getStatus());
+        // another spelling of the same id shares the bucket
+        assertEquals(429, send(filter, "other=x&userId=001", 0, null).getStatus());
+        assertEquals(200, send(filter, "userId=2", 0, null).getStatus());
+    }
+
+    @Test
+    void requestsWithoutUserIdAreLimitedByAddress() throws Exception {
+        AdmissionControlFilter filter = filter(0.001, 1, 100, Long.MAX_VALUE, 1000);
+
+        assertEquals(200, send(filter, null, 0, null).getStatus());
+        assertEquals(429, send(filter, "userId=abc", 0, null).getStatus());
+        assertEquals(200, send(filter, "userId=1", 0, null).getStatus());
+    }
+
+    @Test
+    void runningTransfersAreLimitedPerUser() throws Exception {
+        AdmissionControlFilter filter = filter(1000, 1000, 1, Long.MAX_VALUE, 1000);
+        List<Integer> nested = new ArrayList<>();
+
+        MockHttpServletResponse outer = send(filter, "userId=1", 0, () -> {
+            nested.add(send(filter, "userId=1", 0, null).getStatus());
+            nested.add(send(filter, "userId=2", 0, null).getStatus());
+        });
+
+        assertEquals(200, outer.getStatus());
+        assertEquals(List.of(429, 200), nested);
+        assertEquals(1.0, outcome("concurrency_limited"));
+        // the finished transfer no longer counts
+        assertEquals(200, send(filter, "userId=1", 0, null).getStatus());
+    }
+
+    @Test
+    void concurrencyRejectionDoesNotUseUpAToken() throws Exception {
+        AdmissionControlFilter filter = filter(0.001, 2, 1, Long.MAX_VALUE, 1000);
+
+        send(filter, "userId=1", 0, () -> assertEquals(429, send(filter, "userId=1", 0, null).getStatus()));
+
+        assertEquals(200, send(filter, "userId=1", 0, null).getStatus());
+        assertEquals(429, send(filter, "userId=1", 0, null).getStatus());
+    }
+
+    @Test
+    void runningTransfersSurviveEvictionOfRateBuckets() throws Exception {
+        // room for a single rate bucket, so the other users push user 1's out while its transfer runs
+        AdmissionControlFilter filter = filter(1000, 1000, 1, Long.MAX_VALUE, 1);
+        List<Integer> nested = new ArrayList<>();
+
+        send(filter, "userId=1", 0, () -> {
+            for (int user = 2; user <= 200; user++) {
+                send(filter, "userId=" + user, 0, null);
+            }
+            nested.add(send(filter, "userId=1", 0, null).getStatus());
+        });
+
+        assertEquals(List.of(429), nested);
+        assertEquals(200, send(filter, "userId=1", 0, null).getStatus());
+    }
+
+    @Test
+    void bytesInFlightAreCappedAcrossUsers() throws Exception {
+        AdmissionControlFilter filter = filter(1000, 1000, 100, 100, 1000);
+        List<Integer> nested = new ArrayList<>();
+
+        send(filter, "userId=1", 80, () -> {
+            nested.add(send(filter, "userId=2", 50, null).getStatus());
+            nested.add(send(filter, "userId=2", 20, null).getStatus());
+            // no Content-Length reserves the configured estimate
+            nested.add(send(filter, "userId=3", 0, null).getStatus());
+        });
+
+        assertEquals(List.of(503, 200, 200), nested);
+        assertEquals(1.0, outcome("overloaded"));
+        assertEquals(0.0, registry.get("http.server.admission.inflight.bytes").gauge().value());
+    }
+
+    @Test
+    void transferLargerThanTheCapIsAdmittedOnItsOwn() throws Exception {
+        AdmissionControlFilter filter = filter(1000, 1000, 100, 100, 1000);
+
+        assertEquals(200, send(filter, "userId=1", 500, null).getStatus());
+    }
+
+    @Test
+    void endpointsThatMoveNoFileDataPassThrough() throws Exception {
+        AdmissionControlFilter filter = filter(0.001, 1, 1, 1, 1000);
+
+        for (String path : List.of("/upload/status/7", "/upload/direct", "/upload/direct/7/complete",
+                "/download/a.jpg/url", "/download/a.jpg/thumbnail", "/uploads/abc", "/uploads/abc/complete")) {
+            assertEquals(200, send(filter, path, "userId=1", 100, null).getStatus(), path);
+        }
+        assertEquals(0.0, outcome("admitted"));
+
+        assertEquals(200, send(filter, "/download/a.jpg", "userId=1", 0, null).getStatus());
+        assertEquals(429, send(filter, "/uploads/abc/chunks/1", "userId=1", 0, null).getStatus());
+    }
+
+    private interface Body {
+        void run() throws Exception;
+    }
+
+    private static MockHttpServletResponse send(AdmissionControlFilter filter, String query, int contentLength, Body body)
+            throws Exception {
+        return send(filter, "/upload", query, contentLength, body);
+    }
+
+    private static MockHttpServletResponse send(AdmissionControlFilter filter, String path, String query,
+                                                int contentLength, Body body) throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", path);
+        request.setQueryString(query);
+        request.setRemoteAddr("10.0.0.1");
+        if (contentLength > 0) {
+            request.setContent(new byte[contentLength]);
+        }
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        FilterChain chain = (req, res) -> {
+            if (body != null) {
+                try {
+                    body.run();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        filter.doFilter(request, response, chain);
+        return response;
+    }
+
+    private double outcome(String outcome) {
+        return registry.get("http.server.admission").tag("outcome", outcome).counter().count();
+    }
+}
@@ -0,0 +1,142 @@
+package springapp.config;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+// the drivers are mocks: the routing is checked against a mocked health check, the health check against a replica
+// whose lag query answers a given number of seconds
+class ReplicaRoutingDataSourceTest {
+
+    private final Connection primaryConnection = mock(Connection.class);
+    private final Connection replicaConnection = mock(Connection.class);
+    private DataSource primary;
+    private DataSource replica;
+    private ReplicaHealthCheck health;
+    private ReplicaRoutingDataSource routing;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        primary = mock(DataSource.class);
+        when(primary.getConnection()).thenReturn(primaryConnection);
+        replica = mock(DataSource.class);
+        when(replica.getConnection()).thenReturn(replicaConnection);
+        health = mock(ReplicaHealthCheck.class);
+        when(health.isUsable()).thenReturn(true);
+        routing = new ReplicaRoutingDataSource(primary, replica, health);
+    }
+
+    @AfterEach
+    void tearDown() {
+        TransactionSynchronizationManager.setCurrentTransactionReadOnly(false);
+    }
+
+    @Test
+    void readOnlyTransactionUsesTheReplica() throws Exception {
+        TransactionSynchronizationManager.setCurrentTransactionReadOnly(true);
+
+        assertSame(replicaConnection, routing.getConnection());
+        verify(primary, never()).getConnection();
+    }
+
+    @Test
+    void writeTransactionUsesThePrimary() throws Exception {
+        assertSame(primaryConnection, routing.getConnection());
+        verify(replica, never()).getConnection();
+    }
+
+    @Test
+    void unhealthyReplicaIsSkipped() throws Exception {
+        TransactionSynchronizationManager.setCurrentTransactionReadOnly(true);
+        when(health.isUsable()).thenReturn(false);
+
+        assertSame(primaryConnection, routing.getConnection());
+        verify(replica, never()).getConnection();
+    }
+
+    @Test
+    void replicaRefusingAConnectionFallsBackAndIsMarkedDown() throws Exception {
+        TransactionSynchronizationManager.setCurrentTransactionReadOnly(true);
+        when(replica.getConnection()).thenThrow(new SQLException("Connection refused"));
+
+        assertSame(primaryConnection, routing.getConnection());
+        verify(health).markDown();
+    }
+
+    @Test
+    void healthCheckFollowsTheReplayLag() throws Exception {
+        ReplicaHealthCheck check = new ReplicaHealthCheck(replicaReporting(0.5), 2.0, 1, new SimpleMeterRegistry());
+        // nothing goes to the replica before its first check
+        assertFalse(check.isUsable());
+
+        check.check();
+        assertTrue(check.isUsable());
+
+        check.markDown();
+        assertFalse(check.isUsable());
+    }
+
+    @Test
+    void laggingReplicaIsNotUsable() throws Exception {
+        MeterRegistry registry = new SimpleMeterRegistry();
+        ReplicaHealthCheck check = new ReplicaHealthCheck(replicaReporting(30.0), 2.0, 1, registry);
+
+        check.check();
+
+        assertFalse(check.isUsable());
+        assertEquals(30.0, registry.get("datasource.replica.lag").gauge().value());
+        assertEquals(0.0, registry.get("datasource.replica.usable").gauge().value());
+    }
+
+    @Test
+    void replicaThatStopsAnsweringIsTakenOut() throws Exception {
+        DataSource standby = replicaReporting(0.0);
+        ReplicaHealthCheck check = new ReplicaHealthCheck(standby, 2.0, 1, new SimpleMeterRegistry());
+        check.check();
+        assertTrue(check.isUsable());
+
+        when(standby.getConnection()).thenThrow(new SQLException("Connection refused"));
+        check.check();
+
+        assertFalse(check.isUsable());
+    }
+
+    // a replica whose lag query returns one row with the given seconds
+    private static DataSource replicaReporting(double lagSeconds) throws SQLException {
+        ResultSetMetaData metaData = mock(ResultSetMetaData.class);
+        when(metaData.getColumnCount()).thenReturn(1);
+        ResultSet resultSet = mock(ResultSet.class);
+        when(resultSet.getMetaData()).thenReturn(metaData);
+        when(resultSet.next()).thenReturn(true, false);
+        when(resultSet.getDouble(1)).thenReturn(lagSeconds);
+        Statement statement = mock(Statement.class);
+        when(statement.executeQuery(anyString())).thenReturn(resultSet);
+        Connection connection = mock(Connection.class);
+        when(connection.createStatement()).thenReturn(statement);
+        DataSource dataSource = mock(DataSource.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+        return dataSource;
+    }
+}
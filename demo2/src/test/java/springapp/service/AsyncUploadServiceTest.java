@@ -0,0 +1,293 @@
+package springapp.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import springapp.model.AttachmentStatus;
+import springapp.model.UploadOutboxEntry;
+import springapp.model.UploadOutboxStatus;
+import springapp.model.User;
+import springapp.model.UserAttachment;
+import springapp.repository.AttachmentRepository;
+import springapp.repository.UploadOutboxRepository;
+
+// user_attachment and upload_outbox_entry are maps the repositories are answered from, with claimDue filtering by
+// node, status and due time as the SQL does; the blob store reads the spool file and can be made to fail
+class AsyncUploadServiceTest {
+
+    private static final String NODE = "node-a";
+
+    @TempDir
+    Path spoolDir;
+
+    private final Map<Long, UserAttachment> attachments = new TreeMap<>();
+    private final Map<Long, UploadOutboxEntry> outbox = new TreeMap<>();
+    private final AtomicLong ids = new AtomicLong();
+    private final List<String> storedContents = new ArrayList<>();
+    private volatile RuntimeException storeFailure;
+    private volatile Runnable whileStoring;
+    private BlobService blobService;
+    private AttachmentRepository attachmentRepo;
+    private ApplicationEventPublisher eventPublisher;
+    private AsyncUploadService asyncUploadService;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        attachmentRepo = mock(AttachmentRepository.class);
+        when(attachmentRepo.save(any(UserAttachment.class))).thenAnswer(invocation -> {
+            UserAttachment row = invocation.getArgument(0);
+            row.setId(ids.incrementAndGet());
+            attachments.put(row.getId(), row);
+            return row;
+        });
+        when(attachmentRepo.findById(anyLong())).thenAnswer(invocation ->
+                Optional.ofNullable(attachments.get((Long) invocation.getArgument(0))));
+        when(attachmentRepo.findAllById(any())).thenAnswer(invocation ->
+                found(attachments, invocation.getArgument(0)));
+
+        UploadOutboxRepository outboxRepo = mock(UploadOutboxRepository.class);
+        when(outboxRepo.save(any(UploadOutboxEntry.class))).thenAnswer(invocation -> {
+            UploadOutboxEntry entry = invocation.getArgument(0);
+            if (entry.getId() == null) {
+                entry.setId(ids.incrementAndGet());
+            }
+            outbox.put(entry.getId(), entry);
+            return entry;
+        });
+        when(outboxRepo.claimDue(anyString(), any(LocalDateTime.class), eq(32))).thenAnswer(invocation -> {
+            String node = invocation.getArgument(0);
+            LocalDateTime now = invocation.getArgument(1);
+            return outbox.values().stream()
+                    .filter(entry -> entry.getNode().equals(node) && entry.getStatus() == UploadOutboxStatus.PENDING)
+                    .filter(entry -> !entry.getNextAttemptAt().isAfter(now))
+                    .sorted(Comparator.comparing(UploadOutboxEntry::getNextAttemptAt))
+                    .limit(32)
+                    .toList();
+        });
+        when(outboxRepo.findAllById(any())).thenAnswer(invocation -> found(outbox, invocation.getArgument(0)));
+        when(outboxRepo.findByAttachmentId(anyLong())).thenAnswer(invocation -> outbox.values().stream()
+                .filter(entry -> entry.getAttachmentId().equals(invocation.getArgument(0))).findFirst());
+        doAnswer(invocation -> outbox.remove(((UploadOutboxEntry) invocation.getArgument(0)).getId()))
+                .when(outboxRepo).delete(any(UploadOutboxEntry.class));
+
+        blobService = mock(BlobService.class);
+        when(blobService.store(any(InputStreamSource.class), anyLong(), anyString())).thenAnswer(invocation -> {
+            if (whileStoring != null) {
+                whileStoring.run();
+            }
+            if (storeFailure != null) {
+                throw storeFailure;
+            }
+            try (InputStream in = ((InputStreamSource) invocation.getArgument(0)).getInputStream()) {
+                String content = new String(in.readAllBytes());
+                synchronized (storedContents) {
+                    storedContents.add(content);
+                }
+                return "hash-" + content;
+            }
+        });
+
+        DemoService demoService = mock(DemoService.class);
+        when(demoService.validateUpload(anyLong(), anyString(), anyString())).thenAnswer(invocation -> {
+            User user = new User();
+            user.setId(invocation.getArgument(0));
+            return user;
+        });
+        eventPublisher = mock(ApplicationEventPublisher.class);
+
+        asyncUploadService = new AsyncUploadService(blobService, demoService, attachmentRepo, outboxRepo,
+                new TransactionTemplate(mock(PlatformTransactionManager.class)), mock(MetadataCache.class),
+                eventPublisher, spoolDir.toString(), NODE, 2);
+        ReflectionTestUtils.setField(asyncUploadService, "batchSize", 32);
+        ReflectionTestUtils.setField(asyncUploadService, "maxAttempts", 3);
+        ReflectionTestUtils.setField(asyncUploadService, "backoffMillis", 0L);
+        ReflectionTestUtils.setField(asyncUploadService, "maxBackoffMillis", 0L);
+        ReflectionTestUtils.setField(asyncUploadService, "leaseMillis", 600_000L);
+    }
+
+    @AfterEach
+    void tearDown() {
+        asyncUploadService.shutdown();
+    }
+
+    @Test
+    void acceptedUploadIsStoredByTheOutbox() throws Exception {
+        ResponseEntity<Object> accepted = accept("report.txt", "hello");
+
+        assertEquals(HttpStatus.ACCEPTED, accepted.getStatusCode());
+        long attachmentId = (Long) body(accepted).get("attachmentId");
+        assertEquals(AttachmentStatus.PENDING, attachments.get(attachmentId).getStatus());
+        assertEquals(1, outbox.size());
+        assertEquals(1, spoolFiles().size());
+
+        asyncUploadService.drainOutbox();
+
+        assertEquals(AttachmentStatus.STORED, attachments.get(attachmentId).getStatus());
+        assertEquals("hash-hello", attachments.get(attachmentId).getBlobHash());
+        assertTrue(outbox.isEmpty());
+        assertTrue(spoolFiles().isEmpty());
+        verify(eventPublisher).publishEvent(new AttachmentStoredEvent(attachmentId, "report.txt", "text/plain", "hash-hello"));
+        assertEquals(AttachmentStatus.STORED, body(asyncUploadService.getStatus(attachmentId, 7L)).get("status"));
+    }
+
+    @Test
+    void backendFailureIsRetriedThenMarksTheAttachmentFailed() throws Exception {
+        long attachmentId = (Long) body(accept("report.txt", "hello")).get("attachmentId");
+        storeFailure = new IllegalStateException("Storage is unavailable");
+
+        asyncUploadService.drainOutbox();
+
+        // the backoff is zero here, so every drain is another attempt
+        Map<String, Object> status = body(asyncUploadService.getStatus(attachmentId, 7L));
+        assertEquals(AttachmentStatus.PENDING, status.get("status"));
+        assertEquals(1, status.get("attempts"));
+        assertEquals("Storage is unavailable", status.get("lastError"));
+        assertEquals(1, spoolFiles().size());
+
+        asyncUploadService.drainOutbox();
+        asyncUploadService.drainOutbox();
+
+        assertEquals(AttachmentStatus.FAILED, attachments.get(attachmentId).getStatus());
+        UploadOutboxEntry entry = outbox.values().iterator().next();
+        assertEquals(UploadOutboxStatus.FAILED, entry.getStatus());
+        assertEquals(3, entry.getAttempts());
+        assertTrue(spoolFiles().isEmpty());
+
+        // a failed entry is not tried again
+        storeFailure = null;
+        asyncUploadService.drainOutbox();
+        assertEquals(AttachmentStatus.FAILED, attachments.get(attachmentId).getStatus());
+        assertTrue(storedContents.isEmpty());
+    }
+
+    @Test
+    void entriesLeftByAnEarlierRunAreDrained() throws Exception {
+        // claimed by a worker that died before finishing, its lease since run out
+        long expired = leftBehind(NODE, "expired", 1, LocalDateTime.now().minusSeconds(1));
+        // never claimed before the restart
+        long waiting = leftBehind(NODE, "waiting", 0, LocalDateTime.now().minusMinutes(5));
+        // still leased to a worker that may be running
+        long leased = leftBehind(NODE, "leased", 1, LocalDateTime.now().plusMinutes(5));
+        // spooled on another instance, whose disk this one cannot read
+        long elsewhere = leftBehind("node-b", "elsewhere", 0, LocalDateTime.now().minusMinutes(5));
+
+        asyncUploadService.drainOutbox();
+
+        assertEquals(AttachmentStatus.STORED, attachments.get(expired).getStatus());
+        assertEquals(AttachmentStatus.STORED, attachments.get(waiting).getStatus());
+        assertEquals(AttachmentStatus.PENDING, attachments.get(leased).getStatus());
+        assertEquals(AttachmentStatus.PENDING, attachments.get(elsewhere).getStatus());
+        assertEquals(List.of("expired", "waiting"), storedContents.stream().sorted().toList());
+        assertEquals(2, outbox.size());
+        assertEquals(2, spoolFiles().size());
+    }
+
+    @Test
+    void attachmentDeletedWhileStoringReleasesItsBlob() throws Exception {
+        long attachmentId = (Long) body(accept("report.txt", "hello")).get("attachmentId");
+        whileStoring = () -> attachments.remove(attachmentId);
+
+        asyncUploadService.drainOutbox();
+
+        verify(blobService).release("hash-hello");
+        assertTrue(outbox.isEmpty());
+        assertTrue(spoolFiles().isEmpty());
+    }
+
+    @Test
+    void spoolFileIsRemovedWhenTheUploadIsNotRecorded() throws Exception {
+        doThrow(new IllegalStateException("Database is down")).when(attachmentRepo).save(any(UserAttachment.class));
+
+        assertThrows(IllegalStateException.class, () -> accept("report.txt", "hello"));
+
+        assertTrue(spoolFiles().isEmpty());
+        assertTrue(outbox.isEmpty());
+    }
+
+    private ResponseEntity<Object> accept(String fileName, String content) {
+        return asyncUploadService.accept(new MockMultipartFile("file", fileName, "text/plain", content.getBytes()), 7L);
+    }
+
+    // an attachment and its outbox entry as an earlier process left them, with the spool file still on disk
+    private long leftBehind(String node, String content, int attempts, LocalDateTime nextAttemptAt) throws IOException {
+        UserAttachment attachment = new UserAttachment();
+        attachment.setFileName(content + ".txt");
+        attachment.setFileType("text/plain");
+        attachment.setStatus(AttachmentStatus.PENDING);
+        attachmentRepo.save(attachment);
+        Path spoolFile = Files.writeString(spoolDir.resolve(content), content);
+
+        UploadOutboxEntry entry = new UploadOutboxEntry();
+        entry.setAttachmentId(attachment.getId());
+        entry.setNode(node);
+        entry.setSpoolPath(spoolFile.toString());
+        entry.setSize(content.length());
+        entry.setFileType("text/plain");
+        entry.setStatus(UploadOutboxStatus.PENDING);
+        entry.setAttempts(attempts);
+        entry.setNextAttemptAt(nextAttemptAt);
+        entry.setCreatedOn(LocalDateTime.now().minusMinutes(10));
+        entry.setId(ids.incrementAndGet());
+        outbox.put(entry.getId(), entry);
+        return attachment.getId();
+    }
+
+    private List<Path> spoolFiles() throws IOException {
+        try (Stream<Path> files = Files.list(spoolDir)) {
+            return files.toList();
+        }
+    }
+
+    private static <T> List<T> found(Map<Long, T> table, Iterable<Long> ids) {
+        List<T> rows = new ArrayList<>();
+        for (Long id : ids) {
+            T row = table.get(id);
+            if (row != null) {
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> body(ResponseEntity<Object> response) {
+        return (Map<String, Object>) response.getBody();
+    }
+}
@@ -0,0 +1,182 @@
+package springapp.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import springapp.repository.StoredBlobRepository;
+import springapp.storage.InMemoryObjectStorage;
+import springapp.storage.ObjectNotFoundException;
+import springapp.storage.StorageException;
+import springapp.storage.StoredObject;
+
+// the stored_blob statements are answered from a map that behaves like the table, so reference counting and
+// deduplication are checked against real object storage semantics
+class BlobServiceTest {
+
+    private static final class BlobRow {
+        int refCount;
+        boolean stored;
+    }
+
+    private final Map<String, BlobRow> table = new HashMap<>();
+    private StoredBlobRepository blobRepo;
+    private JdbcTemplate jdbcTemplate;
+    private TransactionTemplate transactionTemplate;
+    private InMemoryObjectStorage storage;
+    private BlobService blobService;
+
+    @BeforeEach
+    void setUp() {
+        blobRepo = mock(StoredBlobRepository.class);
+        when(blobRepo.acquire(anyString(), anyLong())).thenAnswer(invocation -> {
+            BlobRow row = table.computeIfAbsent(invocation.getArgument(0), hash -> new BlobRow());
+            row.refCount++;
+            return row.stored;
+        });
+        when(blobRepo.markStored(anyString())).thenAnswer(invocation -> {
+            table.get(invocation.<String>getArgument(0)).stored = true;
+            return 1;
+        });
+        when(blobRepo.release(anyString())).thenAnswer(invocation -> {
+            table.get(invocation.<String>getArgument(0)).refCount--;
+            return 1;
+        });
+        when(blobRepo.lockUnreferenced(anyString())).thenAnswer(invocation -> {
+            BlobRow row = table.get(invocation.<String>getArgument(0));
+            return row != null && row.refCount <= 0 ? invocation.getArgument(0) : null;
+        });
+        when(blobRepo.lockUnreferenced(any(Collection.class))).thenAnswer(invocation -> {
+            List<String> unreferenced = new ArrayList<>();
+            for (String hash : invocation.<Collection<String>>getArgument(0)) {
+                BlobRow row = table.get(hash);
+                if (row != null && row.refCount <= 0) {
+                    unreferenced.add(hash);
+                }
+            }
+            return unreferenced;
+        });
+        doAnswer(invocation -> table.remove(invocation.<String>getArgument(0)))
+                .when(blobRepo).deleteById(anyString());
+        doAnswer(invocation -> {
+            invocation.<Collection<String>>getArgument(0).forEach(table::remove);
+            return null;
+        }).when(blobRepo).deleteAllByIdInBatch(any());
+
+        jdbcTemplate = mock(JdbcTemplate.class);
+        when(jdbcTemplate.batchUpdate(eq("update stored_blob set ref_count = ref_count - ? where hash = ?"), anyList()))
+                .thenAnswer(invocation -> {
+                    List<Object[]> decrements = invocation.getArgument(1);
+                    for (Object[] decrement : decrements) {
+                        table.get((String) decrement[1]).refCount -= (Integer) decrement[0];
+                    }
+                    return new int[decrements.size()];
+                });
+
+        transactionTemplate = new TransactionTemplate(mock(PlatformTransactionManager.class));
+        storage = new InMemoryObjectStorage();
+        blobService = new BlobService(storage, blobRepo, transactionTemplate, jdbcTemplate);
+    }
+
+    @Test
+    void identicalContentIsStoredOnceUnderItsHash() throws Exception {
+        String first = blobService.store(content("same bytes"), 10, "text/plain");
+        String second = blobService.store(content("same bytes"), 10, "text/plain");
+
+        assertEquals(sha256Hex("same bytes"), first);
+        assertEquals(first, second);
+        assertEquals(2, table.get(first).refCount);
+        assertEquals(1, storage.list("blobs/", null, 100).objects().size());
+        try (StoredObject stored = storage.get(BlobService.blobKey(first), null)) {
+            assertEquals("same bytes", new String(stored.getContent().readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void differentContentGetsItsOwnBlob() throws Exception {
+        String first = blobService.store(content("one"), 3, "text/plain");
+        String second = blobService.store(content("two"), 3, "text/plain");
+
+        assertNotEquals(first, second);
+        assertEquals(2, storage.list("blobs/", null, 100).objects().size());
+    }
+
+    @Test
+    void objectIsDeletedWithTheLastReference() throws Exception {
+        String hash = blobService.store(content("shared"), 6, "text/plain");
+        blobService.store(content("shared"), 6, "text/plain");
+
+        blobService.release(hash);
+        assertEquals(1, table.get(hash).refCount);
+        storage.head(BlobService.blobKey(hash));
+
+        blobService.release(hash);
+        assertFalse(table.containsKey(hash));
+        assertThrows(ObjectNotFoundException.class, () -> storage.head(BlobService.blobKey(hash)));
+    }
+
+    @Test
+    void failedWriteDropsTheReferenceItTook() throws Exception {
+        InMemoryObjectStorage failing = new InMemoryObjectStorage() {
+            @Override
+            public void put(String key, InputStream content, long contentLength, String contentType) {
+                throw new StorageException("storage is down");
+            }
+        };
+        BlobService service = new BlobService(failing, blobRepo, transactionTemplate, jdbcTemplate);
+
+        assertThrows(StorageException.class, () -> service.store(content("lost"), 4, "text/plain"));
+        assertFalse(table.containsKey(sha256Hex("lost")));
+    }
+
+    @Test
+    void releaseAllCountsRepeatedHashesAndDeletesUnreferencedBlobs() throws Exception {
+        String kept = blobService.store(content("kept"), 4, "text/plain");
+        blobService.store(content("kept"), 4, "text/plain");
+        blobService.store(content("kept"), 4, "text/plain");
+        String dropped = blobService.store(content("dropped"), 7, "text/plain");
+        blobService.store(content("dropped"), 7, "text/plain");
+
+        int failures = blobService.releaseAll(List.of(kept, dropped, dropped));
+
+        assertEquals(0, failures);
+        assertEquals(2, table.get(kept).refCount);
+        assertFalse(table.containsKey(dropped));
+        assertEquals(1, storage.list("blobs/", null, 100).objects().size());
+        assertThrows(ObjectNotFoundException.class, () -> storage.head(BlobService.blobKey(dropped)));
+    }
+
+    private static ByteArrayResource content(String text) {
+        return new ByteArrayResource(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String sha256Hex(String text) throws Exception {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8)));
+    }
+}
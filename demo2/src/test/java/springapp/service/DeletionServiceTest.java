@@ -0,0 +1,295 @@
+package springapp.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Predicate;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import springapp.model.AttachmentOwnership;
+import springapp.model.AttachmentStatus;
+import springapp.repository.AttachmentRepository;
+import springapp.storage.InMemoryObjectStorage;
+import springapp.storage.ObjectStorage;
+
+// user_attachment is a list the select and delete statements are answered from, with the same filters, keyset order
+// and status guard as the SQL; rows reach the service through its own row mappers
+class DeletionServiceTest {
+
+    private static final class Row {
+        final Long id;
+        final Long userId;
+        final LocalDateTime lastUpdatedOn;
+        final AttachmentStatus status;
+        final String blobHash;
+        final String thumbnails;
+
+        Row(Long id, Long userId, LocalDateTime lastUpdatedOn, AttachmentStatus status, String blobHash, String thumbnails) {
+            this.id = id;
+            this.userId = userId;
+            this.lastUpdatedOn = lastUpdatedOn;
+            this.status = status;
+            this.blobHash = blobHash;
+            this.thumbnails = thumbnails;
+        }
+
+        String fileName() {
+            return "file-" + id + ".txt";
+        }
+    }
+
+    private static final LocalDateTime BASE = LocalDateTime.of(2024, 5, 1, 12, 0);
+
+    private final List<Row> table = new ArrayList<>();
+    private final List<Integer> deleteChunkSizes = new ArrayList<>();
+    private final List<Integer> objectBatchSizes = new ArrayList<>();
+    private InMemoryObjectStorage storage;
+    private AttachmentRepository attachmentRepo;
+    private BlobService blobService;
+    private DeletionService deletionService;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        NamedParameterJdbcTemplate jdbcTemplate = mock(NamedParameterJdbcTemplate.class);
+        when(jdbcTemplate.query(startsWith("select id, last_updated_on from user_attachment"), any(SqlParameterSource.class),
+                any(RowMapper.class))).thenAnswer(invocation -> {
+                    String sql = invocation.getArgument(0);
+                    SqlParameterSource params = invocation.getArgument(1);
+                    List<Row> chunk = table.stream()
+                            .filter(deletable())
+                            .filter(row -> !params.hasValue("userId") || row.userId.equals(params.getValue("userId")))
+                            .filter(row -> !params.hasValue("ids") || ((List<?>) params.getValue("ids")).contains(row.id))
+                            .filter(row -> !params.hasValue("before")
+                                    || row.lastUpdatedOn.isBefore(((Timestamp) params.getValue("before")).toLocalDateTime()))
+                            .filter(row -> !sql.contains("(last_updated_on, id) <") || before(row,
+                                    ((Timestamp) params.getValue("lastUpdatedOn")).toLocalDateTime(),
+                                    (Long) params.getValue("lastId")))
+                            .sorted(Comparator.comparing((Row row) -> row.lastUpdatedOn).thenComparing(row -> row.id).reversed())
+                            .limit((Integer) params.getValue("limit"))
+                            .toList();
+                    return map(chunk, invocation.getArgument(2));
+                });
+        when(jdbcTemplate.query(startsWith("delete from user_attachment"), any(SqlParameterSource.class), any(RowMapper.class)))
+                .thenAnswer(invocation -> {
+                    SqlParameterSource params = invocation.getArgument(1);
+                    List<?> ids = (List<?>) params.getValue("ids");
+                    deleteChunkSizes.add(ids.size());
+                    List<Row> deleted = table.stream().filter(deletable()).filter(row -> ids.contains(row.id)).toList();
+                    table.removeAll(deleted);
+                    return map(deleted, invocation.getArgument(2));
+                });
+
+        storage = new InMemoryObjectStorage() {
+            @Override
+            public List<String> deleteAll(List<String> keys) {
+                objectBatchSizes.add(keys.size());
+                return super.deleteAll(keys);
+            }
+        };
+        attachmentRepo = mock(AttachmentRepository.class);
+        blobService = mock(BlobService.class);
+        deletionService = new DeletionService(jdbcTemplate, new TransactionTemplate(mock(PlatformTransactionManager.class)),
+                attachmentRepo, storage, blobService, mock(MetadataCache.class), 1);
+        ReflectionTestUtils.setField(deletionService, "chunkSize", 3);
+    }
+
+    @AfterEach
+    void tearDown() {
+        deletionService.shutdown();
+    }
+
+    @Test
+    void bulkDeleteGoesInChunksNewestFirst() throws Exception {
+        for (long id = 1; id <= 10; id++) {
+            // pairs share a timestamp, so the keyset has to fall back to the id
+            add(id, 7L, BASE.plusMinutes(id / 2), AttachmentStatus.STORED, null, null);
+        }
+        add(11L, 7L, BASE, AttachmentStatus.UPLOADING, null, null);
+        add(12L, 7L, BASE, AttachmentStatus.PENDING, null, null);
+        add(13L, 8L, BASE, AttachmentStatus.STORED, null, null);
+
+        Map<String, Object> job = runJob(deletionService.startDelete(7L, null, null));
+
+        assertEquals(DeletionService.JobStatus.COMPLETED, job.get("status"));
+        assertEquals(10L, job.get("attachmentsDeleted"));
+        assertEquals(0L, job.get("objectFailures"));
+        assertEquals(List.of(3, 3, 3, 1), deleteChunkSizes);
+        // uploads in progress and other users' rows stay, with their objects
+        assertEquals(List.of(11L, 12L, 13L), table.stream().map(row -> row.id).toList());
+        assertEquals(List.of("11_file-11.txt", "12_file-12.txt", "13_file-13.txt"), objectKeys());
+    }
+
+    @Test
+    void bulkDeleteHonoursIdsAndDate() throws Exception {
+        for (long id = 1; id <= 6; id++) {
+            add(id, 7L, BASE.plusDays(id), AttachmentStatus.STORED, null, null);
+        }
+
+        Map<String, Object> job = runJob(deletionService.startDelete(7L, List.of(1L, 2L, 5L, 6L), BASE.plusDays(5)));
+
+        // 5 and 6 are too new, 3 and 4 were not asked for
+        assertEquals(2L, job.get("attachmentsDeleted"));
+        assertEquals(List.of(3L, 4L, 5L, 6L), table.stream().map(row -> row.id).toList());
+    }
+
+    @Test
+    void objectsAreDeletedInBatchesAndBlobsReleased() throws Exception {
+        ReflectionTestUtils.setField(deletionService, "chunkSize", 1000);
+        for (long id = 1; id <= 600; id++) {
+            // a blob-backed attachment keeps its own key only for the thumbnail
+            add(id, 7L, BASE, AttachmentStatus.FAILED, id % 2 == 0 ? "hash-" + id : null, "200");
+        }
+
+        Map<String, Object> job = runJob(deletionService.startDelete(7L, null, null));
+
+        assertEquals(600L, job.get("attachmentsDeleted"));
+        // 300 originals and 600 thumbnails, at most 1000 keys per request
+        assertEquals(List.of(900), objectBatchSizes);
+        assertTrue(objectKeys().isEmpty());
+        verify(blobService).releaseAll(argThat((List<String> hashes) -> hashes.size() == 300
+                && hashes.stream().allMatch(hash -> hash.startsWith("hash-"))));
+    }
+
+    @Test
+    void largeChunksSplitObjectDeletes() throws Exception {
+        ReflectionTestUtils.setField(deletionService, "chunkSize", 1000);
+        for (long id = 1; id <= 700; id++) {
+            add(id, 7L, BASE, AttachmentStatus.STORED, null, "200,400");
+        }
+
+        runJob(deletionService.startDelete(7L, null, null));
+
+        assertEquals(List.of(1000, 1000, 100), objectBatchSizes);
+        assertTrue(objectKeys().isEmpty());
+    }
+
+    @Test
+    void singleDeleteChecksOwnerAndState() {
+        add(1L, 7L, BASE, AttachmentStatus.STORED, null, null);
+        add(2L, 7L, BASE, AttachmentStatus.UPLOADING, null, null);
+        when(attachmentRepo.findOwnershipById(1L)).thenReturn(Optional.of(ownership(1L, 7L, AttachmentStatus.STORED)));
+        when(attachmentRepo.findOwnershipById(2L)).thenReturn(Optional.of(ownership(2L, 7L, AttachmentStatus.UPLOADING)));
+
+        assertEquals(HttpStatus.NOT_FOUND, deletionService.deleteAttachment(1L, 8L).getStatusCode());
+        assertEquals(HttpStatus.CONFLICT, deletionService.deleteAttachment(2L, 7L).getStatusCode());
+        assertEquals(HttpStatus.NOT_FOUND, deletionService.deleteAttachment(3L, 7L).getStatusCode());
+        assertEquals(2, table.size());
+
+        ResponseEntity<Object> deleted = deletionService.deleteAttachment(1L, 7L);
+
+        assertEquals(HttpStatus.OK, deleted.getStatusCode());
+        assertEquals(0, body(deleted).get("objectFailures"));
+        assertEquals(List.of(2L), table.stream().map(row -> row.id).toList());
+        assertEquals(List.of("2_file-2.txt"), objectKeys());
+    }
+
+    @Test
+    void singleDeleteRacingAnotherIsNotFound() {
+        when(attachmentRepo.findOwnershipById(1L)).thenReturn(Optional.of(ownership(1L, 7L, AttachmentStatus.STORED)));
+
+        // the row was removed between the ownership check and the delete
+        assertEquals(HttpStatus.NOT_FOUND, deletionService.deleteAttachment(1L, 7L).getStatusCode());
+    }
+
+    @Test
+    void bulkDeleteNeedsAUserOrADate() {
+        assertEquals(HttpStatus.BAD_REQUEST, deletionService.startDelete(null, List.of(1L), null).getStatusCode());
+        assertEquals(HttpStatus.BAD_REQUEST, deletionService.startDelete(-1L, null, null).getStatusCode());
+    }
+
+    private void add(Long id, Long userId, LocalDateTime lastUpdatedOn, AttachmentStatus status, String blobHash,
+                     String thumbnails) {
+        Row row = new Row(id, userId, lastUpdatedOn, status, blobHash, thumbnails);
+        table.add(row);
+        List<String> keys = new ArrayList<>();
+        if (blobHash == null) {
+            keys.add(DemoService.objectKey(id, row.fileName()));
+        }
+        if (thumbnails != null) {
+            for (String size : thumbnails.split(",")) {
+                keys.add(ThumbnailService.thumbnailKey(id, row.fileName(), Integer.parseInt(size)));
+            }
+        }
+        for (String key : keys) {
+            storage.put(key, new ByteArrayInputStream(new byte[1]), 1, "text/plain");
+        }
+    }
+
+    private List<String> objectKeys() {
+        return storage.list("", null, ObjectStorage.MAX_DELETE_BATCH).objects().stream()
+                .map(object -> object.key()).sorted().toList();
+    }
+
+    private Map<String, Object> runJob(ResponseEntity<Object> started) throws Exception {
+        assertEquals(HttpStatus.ACCEPTED, started.getStatusCode());
+        String jobId = (String) body(started).get("jobId");
+        for (int i = 0; i < 500; i++) {
+            Map<String, Object> job = body(deletionService.getJob(jobId));
+            if (job.get("status") != DeletionService.JobStatus.RUNNING) {
+                return job;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("delete job " + jobId + " did not finish");
+    }
+
+    private static Predicate<Row> deletable() {
+        return row -> row.status == AttachmentStatus.STORED || row.status == AttachmentStatus.FAILED;
+    }
+
+    private static boolean before(Row row, LocalDateTime lastUpdatedOn, Long id) {
+        int byTime = row.lastUpdatedOn.compareTo(lastUpdatedOn);
+        return byTime < 0 || byTime == 0 && row.id < id;
+    }
+
+    // runs the service's own row mapper over each row
+    private static List<Object> map(List<Row> rows, RowMapper<?> mapper) throws Exception {
+        List<Object> mapped = new ArrayList<>(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            Row row = rows.get(i);
+            ResultSet rs = mock(ResultSet.class);
+            when(rs.getLong("id")).thenReturn(row.id);
+            when(rs.getTimestamp("last_updated_on")).thenReturn(Timestamp.valueOf(row.lastUpdatedOn));
+            when(rs.getString("file_name")).thenReturn(row.fileName());
+            when(rs.getString("blob_hash")).thenReturn(row.blobHash);
+            when(rs.getString("thumbnails")).thenReturn(row.thumbnails);
+            mapped.add(mapper.mapRow(rs, i));
+        }
+        return mapped;
+    }
+
+    private static AttachmentOwnership ownership(Long id, Long userId, AttachmentStatus status) {
+        return new AttachmentOwnership(id, userId, "file-" + id + ".txt", status, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> body(ResponseEntity<Object> response) {
+        return (Map<String, Object>) response.getBody();
+    }
+}
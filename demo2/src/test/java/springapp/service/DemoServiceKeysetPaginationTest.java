@@ -0,0 +1,175 @@
+package springapp.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.domain.Pageable;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import springapp.model.AttachmentStatus;
+import springapp.model.AttachmentView;
+import springapp.repository.AttachmentRepository;
+import springapp.repository.UserRespository;
+import springapp.storage.InMemoryObjectStorage;
+
+// the keyset queries are answered from a sorted list the way Postgres would, so walking the cursors checks that
+// every row comes back exactly once, in order, also across rows that share a timestamp
+class DemoServiceKeysetPaginationTest {
+
+    private static final Comparator<AttachmentView> NEWEST_FIRST = Comparator
+            .comparing(AttachmentView::lastUpdatedOn).thenComparing(AttachmentView::id).reversed();
+
+    private final List<AttachmentView> rows = new ArrayList<>();
+    private AttachmentRepository attachmentRepo;
+    private DemoService demoService;
+
+    @BeforeEach
+    void setUp() {
+        LocalDateTime base = LocalDateTime.of(2024, 5, 1, 12, 0);
+        for (long id = 1; id <= 25; id++) {
+            // groups of three share a timestamp, so only the id tells them apart
+            rows.add(view(id, 7L, base.plusMinutes(id / 3)));
+        }
+        rows.add(view(100L, 8L, base));
+        rows.sort(NEWEST_FIRST);
+
+        attachmentRepo = mock(AttachmentRepository.class);
+        when(attachmentRepo.findFirstKeysetPageByUserId(any(), eq(AttachmentStatus.STORED), any()))
+                .thenAnswer(invocation -> page(row -> row.userId().equals(invocation.getArgument(0)),
+                        invocation.getArgument(2)));
+        when(attachmentRepo.findKeysetPageByUserIdAfter(any(), eq(AttachmentStatus.STORED), any(), any(), any()))
+                .thenAnswer(invocation -> page(row -> row.userId().equals(invocation.getArgument(0))
+                                && before(row, invocation.getArgument(2), invocation.getArgument(3)),
+                        invocation.getArgument(4)));
+        when(attachmentRepo.findFirstKeysetPage(eq(AttachmentStatus.STORED), any()))
+                .thenAnswer(invocation -> page(row -> true, invocation.getArgument(1)));
+        when(attachmentRepo.findKeysetPageAfter(eq(AttachmentStatus.STORED), any(), any(), any()))
+                .thenAnswer(invocation -> page(row -> before(row, invocation.getArgument(1), invocation.getArgument(2)),
+                        invocation.getArgument(3)));
+        when(attachmentRepo.countByUserIdAndStatus(7L, AttachmentStatus.STORED)).thenReturn(25L);
+
+        demoService = new DemoService(new InMemoryObjectStorage(), mock(UserRespository.class), attachmentRepo,
+                mock(MultipartStreamUploader.class), mock(BlobService.class), new ObjectMapper(),
+                mock(MetadataCache.class), mock(ApplicationEventPublisher.class));
+    }
+
+    @Test
+    void cursorsWalkEveryRowOnceInOrder() {
+        List<Long> seen = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            Map<String, Object> body = body(demoService.getFilesAfter(7L, cursor, 4, false));
+            List<AttachmentView> files = files(body);
+            files.forEach(file -> seen.add(file.id()));
+            cursor = (String) body.get("nextCursor");
+            pages++;
+        } while (cursor != null);
+
+        List<Long> expected = rows.stream().filter(row -> row.userId() == 7L).map(AttachmentView::id).toList();
+        assertEquals(expected, seen);
+        assertEquals(7, pages);
+    }
+
+    @Test
+    void allUsersAreListedWhenNoUserIsGiven() {
+        List<Long> seen = new ArrayList<>();
+        String cursor = null;
+        do {
+            Map<String, Object> body = body(demoService.getFilesAfter(null, cursor, 10, false));
+            files(body).forEach(file -> seen.add(file.id()));
+            cursor = (String) body.get("nextCursor");
+        } while (cursor != null);
+
+        assertEquals(rows.stream().map(AttachmentView::id).toList(), seen);
+    }
+
+    @Test
+    void lastPageHasNoCursor() {
+        Map<String, Object> body = body(demoService.getFilesAfter(7L, null, 25, false));
+
+        assertEquals(25, body.get("filesReceived"));
+        assertNull(body.get("nextCursor"));
+    }
+
+    @Test
+    void totalIsOnlyCountedWhenAskedFor() {
+        Map<String, Object> withoutTotal = body(demoService.getFilesAfter(7L, null, 5, false));
+        assertFalse(withoutTotal.containsKey("totalFiles"));
+        verify(attachmentRepo, never()).countByUserIdAndStatus(any(), any());
+
+        Map<String, Object> withTotal = body(demoService.getFilesAfter(7L, null, 5, true));
+        assertEquals(25L, withTotal.get("totalFiles"));
+        assertNotNull(withTotal.get("nextCursor"));
+    }
+
+    @Test
+    void pageSizeIsCapped() {
+        demoService.getFilesAfter(7L, null, 1_000_000, false);
+
+        // one row more than the capped page size, to tell whether another page exists
+        verify(attachmentRepo).findFirstKeysetPageByUserId(eq(7L), eq(AttachmentStatus.STORED),
+                argThat((Pageable limit) -> limit.getPageSize() == 1001));
+    }
+
+    @Test
+    void malformedCursorIsRejected() {
+        ResponseEntity<Object> response = demoService.getFilesAfter(7L, "not a cursor", 5, false);
+
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+    }
+
+    @Test
+    void userWithoutAttachmentsIsNotFound() {
+        ResponseEntity<Object> response = demoService.getFilesAfter(9L, null, 5, false);
+
+        assertEquals(HttpStatus.NOT_FOUND, response.getStatusCode());
+    }
+
+    private List<AttachmentView> page(Predicate<AttachmentView> filter, Pageable limit) {
+        return rows.stream().filter(filter).limit(limit.getPageSize()).toList();
+    }
+
+    // the row-value comparison (last_updated_on, id) < (:lastUpdatedOn, :id)
+    private static boolean before(AttachmentView row, LocalDateTime lastUpdatedOn, Long id) {
+        int byTime = row.lastUpdatedOn().compareTo(lastUpdatedOn);
+        return byTime < 0 || byTime == 0 && row.id() < id;
+    }
+
+    private static AttachmentView view(Long id, Long userId, LocalDateTime lastUpdatedOn) {
+        return new AttachmentView(id, "file-" + id + ".txt", "text/plain", userId, lastUpdatedOn, null, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> body(ResponseEntity<Object> response) {
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        return (Map<String, Object>) response.getBody();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<AttachmentView> files(Map<String, Object> body) {
+        return (List<AttachmentView>) body.get("files");
+    }
+}
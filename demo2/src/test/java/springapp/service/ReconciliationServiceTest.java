@@ -0,0 +1,385 @@
+package springapp.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.sql.ResultSet;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import springapp.service.ReconciliationService.Difference;
+import springapp.storage.InMemoryObjectStorage;
+import springapp.storage.ObjectListing;
+import springapp.storage.ObjectSummary;
+
+// user_attachment and stored_blob are lists the keyset queries and repair statements are answered from, in the same
+// code point key order as the SQL; the bucket is in memory, with every object dated a day back unless marked fresh
+class ReconciliationServiceTest {
+
+    private static final class Attachment {
+        final long id;
+        final String fileName;
+        String status;
+        final String blobHash;
+        String thumbnails;
+
+        Attachment(long id, String fileName, String status, String blobHash, String thumbnails) {
+            this.id = id;
+            this.fileName = fileName;
+            this.status = status;
+            this.blobHash = blobHash;
+            this.thumbnails = thumbnails;
+        }
+
+        String key() {
+            return DemoService.objectKey(id, fileName);
+        }
+    }
+
+    private static final class Blob {
+        final String hash;
+        final long size;
+        final int refCount;
+        boolean stored;
+
+        Blob(String hash, long size, int refCount, boolean stored) {
+            this.hash = hash;
+            this.size = size;
+            this.refCount = refCount;
+            this.stored = stored;
+        }
+    }
+
+    private final List<Attachment> attachments = new ArrayList<>();
+    private final List<Blob> blobs = new ArrayList<>();
+    // written within the grace period
+    private final Set<String> fresh = new HashSet<>();
+    // left out of the listing, as if written after the listing passed them
+    private final Set<String> unlisted = new HashSet<>();
+    private final List<String> unreferencedDeleted = new ArrayList<>();
+    private InMemoryObjectStorage storage;
+    private ReconciliationService reconciliationService;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        NamedParameterJdbcTemplate jdbcTemplate = mock(NamedParameterJdbcTemplate.class);
+        when(jdbcTemplate.query(startsWith("select id, file_name, status, blob_hash, thumbnails"),
+                any(SqlParameterSource.class), any(RowMapper.class))).thenAnswer(invocation -> {
+                    SqlParameterSource params = invocation.getArgument(1);
+                    List<Attachment> page = page(attachments, Attachment::key, params);
+                    return map(page, invocation.getArgument(2), ReconciliationServiceTest::attachmentResult);
+                });
+        when(jdbcTemplate.query(startsWith("select hash, size, ref_count, stored from stored_blob"),
+                any(SqlParameterSource.class), any(RowMapper.class))).thenAnswer(invocation -> {
+                    SqlParameterSource params = invocation.getArgument(1);
+                    List<Blob> page = page(blobs, blob -> blob.hash, params);
+                    return map(page, invocation.getArgument(2), ReconciliationServiceTest::blobResult);
+                });
+        when(jdbcTemplate.update(startsWith("update user_attachment set status = 'FAILED'"), any(SqlParameterSource.class)))
+                .thenAnswer(invocation -> {
+                    Attachment attachment = attachment(invocation.getArgument(1));
+                    if (!attachment.status.equals("STORED") || attachment.blobHash != null) {
+                        return 0;
+                    }
+                    attachment.status = "FAILED";
+                    return 1;
+                });
+        when(jdbcTemplate.update(startsWith("update user_attachment set thumbnails = null"), any(SqlParameterSource.class)))
+                .thenAnswer(invocation -> {
+                    attachment(invocation.getArgument(1)).thumbnails = null;
+                    return 1;
+                });
+        when(jdbcTemplate.update(startsWith("update stored_blob set stored = false"), any(SqlParameterSource.class)))
+                .thenAnswer(invocation -> {
+                    SqlParameterSource params = invocation.getArgument(1);
+                    blobs.stream().filter(blob -> blob.hash.equals(params.getValue("hash")))
+                            .forEach(blob -> blob.stored = false);
+                    return 1;
+                });
+        when(jdbcTemplate.queryForList(startsWith("update user_attachment set status = 'FAILED' where blob_hash"),
+                any(SqlParameterSource.class), eq(Long.class))).thenAnswer(invocation -> {
+                    SqlParameterSource params = invocation.getArgument(1);
+                    List<Long> failed = new ArrayList<>();
+                    for (Attachment attachment : attachments) {
+                        if (params.getValue("hash").equals(attachment.blobHash) && attachment.status.equals("STORED")) {
+                            attachment.status = "FAILED";
+                            failed.add(attachment.id);
+                        }
+                    }
+                    return failed;
+                });
+
+        storage = new InMemoryObjectStorage() {
+            @Override
+            public ObjectListing list(String prefix, String continuationToken, int maxKeys) {
+                ObjectListing listing = super.list(prefix, continuationToken, maxKeys);
+                List<ObjectSummary> objects = listing.objects().stream()
+                        .filter(object -> !unlisted.contains(object.key()))
+                        .map(object -> fresh.contains(object.key()) ? object : new ObjectSummary(object.key(),
+                                object.size(), object.lastModified().minus(Duration.ofDays(1))))
+                        .toList();
+                return new ObjectListing(objects, listing.nextContinuationToken());
+            }
+        };
+        BlobService blobService = mock(BlobService.class);
+        // the service reuses the list it passes, so the hashes are copied out
+        when(blobService.deleteUnreferenced(any())).thenAnswer(invocation -> {
+            unreferencedDeleted.addAll(invocation.getArgument(0));
+            return 0;
+        });
+        reconciliationService = new ReconciliationService(jdbcTemplate,
+                new TransactionTemplate(mock(PlatformTransactionManager.class)), storage, blobService,
+                mock(MetadataCache.class), 4);
+        ReflectionTestUtils.setField(reconciliationService, "pageSize", 1000);
+        ReflectionTestUtils.setField(reconciliationService, "graceMinutes", 60L);
+        ReflectionTestUtils.setField(reconciliationService, "maxSamples", 100);
+    }
+
+    @AfterEach
+    void tearDown() {
+        reconciliationService.shutdown();
+    }
+
+    @Test
+    void dryRunReportsEveryDifferenceAndChangesNothing() throws Exception {
+        addDifferences();
+
+        Map<String, Object> job = runJob(reconciliationService.startReconcile(false));
+
+        assertEquals(ReconciliationService.JobStatus.COMPLETED, job.get("status"));
+        assertEquals(Map.of(Difference.MISSING_OBJECT, 1L, Difference.MISSING_THUMBNAIL, 1L,
+                Difference.MISSING_BLOB, 1L, Difference.BLOB_SIZE_MISMATCH, 1L, Difference.UNREFERENCED_BLOB, 1L,
+                Difference.ORPHAN_OBJECT, 1L), job.get("differences"));
+        assertEquals(0L, job.get("repaired"));
+        assertEquals(6, ((List<?>) job.get("samples")).size());
+        assertEquals("STORED", attachment(12).status);
+        assertEquals("200,400", attachment(13).thumbnails);
+        assertEquals("STORED", attachment(15).status);
+        assertTrue(blob("b2").stored);
+        assertEquals(1, storage.list("16_", null, 10).objects().size());
+        assertTrue(unreferencedDeleted.isEmpty());
+    }
+
+    @Test
+    void repairFixesWhatItReported() throws Exception {
+        addDifferences();
+
+        Map<String, Object> job = runJob(reconciliationService.startReconcile(true));
+
+        assertEquals(ReconciliationService.JobStatus.COMPLETED, job.get("status"));
+        // the size mismatch is only reported, there is nothing to repair it from
+        assertEquals(5L, job.get("repaired"));
+        assertEquals("FAILED", attachment(12).status);
+        assertNull(attachment(13).thumbnails);
+        assertEquals("FAILED", attachment(15).status);
+        assertFalse(blob("b2").stored);
+        assertEquals("STORED", attachment(11).status);
+        assertEquals("STORED", attachment(14).status);
+        assertTrue(storage.list("16_", null, 10).objects().isEmpty());
+        assertEquals(List.of("c3"), unreferencedDeleted);
+
+        // a second pass finds what repairing could not fix, and the thumbnail of 13 that is no longer recorded
+        Map<String, Object> again = runJob(reconciliationService.startReconcile(false));
+        Map<?, ?> differences = (Map<?, ?>) again.get("differences");
+        assertEquals(1L, differences.get(Difference.BLOB_SIZE_MISMATCH));
+        assertEquals(0L, differences.get(Difference.MISSING_OBJECT));
+        assertEquals(0L, differences.get(Difference.MISSING_THUMBNAIL));
+        assertEquals(0L, differences.get(Difference.MISSING_BLOB));
+        assertEquals(1L, differences.get(Difference.ORPHAN_OBJECT));
+    }
+
+    @Test
+    void bothSidesArePagedInStep() throws Exception {
+        ReflectionTestUtils.setField(reconciliationService, "pageSize", 2);
+        // ids 100 to 129 fall into the partitions 10, 11 and 12
+        for (long id = 100; id < 130; id++) {
+            addAttachment(id, "f.jpg", "STORED", null, "200", true);
+        }
+        put("125_stray.bin", 1);
+
+        Map<String, Object> job = runJob(reconciliationService.startReconcile(false));
+
+        Map<?, ?> differences = (Map<?, ?>) job.get("differences");
+        assertEquals(1L, differences.get(Difference.ORPHAN_OBJECT));
+        assertEquals(0L, differences.get(Difference.MISSING_OBJECT));
+        assertEquals(0L, differences.get(Difference.MISSING_THUMBNAIL));
+        assertEquals(61L, job.get("objectsListed"));
+        assertEquals(30L, job.get("rowsRead"));
+    }
+
+    @Test
+    void objectsThatMayStillBeInFlightAreNotReported() throws Exception {
+        // an orphan inside the grace period may belong to an upload whose row is not committed yet
+        put("21_new.txt", 1);
+        fresh.add("21_new.txt");
+        // an upload in progress may or may not have its object yet
+        addAttachment(22, "up.txt", "UPLOADING", null, null, false);
+        // a blob still being written has no object yet
+        blobs.add(new Blob("e5", 3, 1, false));
+        // a stored attachment written after the listing passed its key
+        addAttachment(23, "late.txt", "STORED", null, null, true);
+        unlisted.add("23_late.txt");
+
+        Map<String, Object> job = runJob(reconciliationService.startReconcile(true));
+
+        Map<?, ?> differences = (Map<?, ?>) job.get("differences");
+        assertTrue(differences.values().stream().allMatch(count -> count.equals(0L)), differences.toString());
+        assertEquals(0L, job.get("repaired"));
+        assertEquals("STORED", attachment(23).status);
+    }
+
+    @Test
+    void onlyOneJobRunsAtATime() throws Exception {
+        ResponseEntity<Object> first = reconciliationService.startReconcile(false);
+        ResponseEntity<Object> second = reconciliationService.startReconcile(false);
+
+        // the first job may already be done on a fast machine, otherwise the second is turned away
+        assertTrue(second.getStatusCode() == HttpStatus.CONFLICT || second.getStatusCode() == HttpStatus.ACCEPTED);
+        runJob(first);
+        if (second.getStatusCode() == HttpStatus.ACCEPTED) {
+            runJob(second);
+        }
+        assertEquals(HttpStatus.NOT_FOUND, reconciliationService.getJob("no-such-job").getStatusCode());
+    }
+
+    // one of each difference, next to rows that are in order
+    private void addDifferences() {
+        addAttachment(11, "a.txt", "STORED", null, "200", true);
+        addAttachment(12, "b.txt", "STORED", null, null, false);
+        addAttachment(13, "c.jpg", "STORED", null, "200,400", true);
+        storage.delete(ThumbnailService.thumbnailKey(13L, "c.jpg", 400));
+        addAttachment(14, "d.txt", "STORED", "a1", null, false);
+        addBlob("a1", 3, 1, 3);
+        addAttachment(15, "e.txt", "STORED", "b2", null, false);
+        blobs.add(new Blob("b2", 3, 1, true));
+        addBlob("c3", 3, 0, 3);
+        addBlob("d4", 5, 1, 3);
+        put("16_old.txt", 1);
+    }
+
+    private void addAttachment(long id, String fileName, String status, String blobHash, String thumbnails,
+                               boolean withObjects) {
+        Attachment attachment = new Attachment(id, fileName, status, blobHash, thumbnails);
+        attachments.add(attachment);
+        if (!withObjects) {
+            return;
+        }
+        if (blobHash == null) {
+            put(attachment.key(), 1);
+        }
+        if (thumbnails != null) {
+            for (String size : thumbnails.split(",")) {
+                put(ThumbnailService.thumbnailKey(id, fileName, Integer.parseInt(size)), 1);
+            }
+        }
+    }
+
+    private void addBlob(String hash, long size, int refCount, int objectSize) {
+        blobs.add(new Blob(hash, size, refCount, true));
+        put(BlobService.blobKey(hash), objectSize);
+    }
+
+    private void put(String key, int size) {
+        storage.put(key, new ByteArrayInputStream(new byte[size]), size, "application/octet-stream");
+    }
+
+    private Attachment attachment(long id) {
+        return attachments.stream().filter(attachment -> attachment.id == id).findFirst().orElseThrow();
+    }
+
+    private Attachment attachment(SqlParameterSource params) {
+        return attachment((Long) params.getValue("id"));
+    }
+
+    private Blob blob(String hash) {
+        return blobs.stream().filter(blob -> blob.hash.equals(hash)).findFirst().orElseThrow();
+    }
+
+    // the rows whose key lies after :after and before :upper, in key order, at most :limit of them
+    private static <T> List<T> page(List<T> table, Function<T, String> key, SqlParameterSource params) {
+        String after = (String) params.getValue("after");
+        String upper = (String) params.getValue("upper");
+        return table.stream()
+                .filter(row -> ReconciliationService.compareKeys(key.apply(row), after) > 0)
+                .filter(row -> ReconciliationService.compareKeys(key.apply(row), upper) < 0)
+                .sorted((a, b) -> ReconciliationService.compareKeys(key.apply(a), key.apply(b)))
+                .limit((Integer) params.getValue("limit"))
+                .toList();
+    }
+
+    private interface ResultFactory<T> {
+        ResultSet result(T row) throws Exception;
+    }
+
+    // runs the service's own row mapper over each row
+    private static <T> List<Object> map(List<T> rows, RowMapper<?> mapper, ResultFactory<T> results) throws Exception {
+        List<Object> mapped = new ArrayList<>(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            mapped.add(mapper.mapRow(results.result(rows.get(i)), i));
+        }
+        return mapped;
+    }
+
+    private static ResultSet attachmentResult(Attachment attachment) throws Exception {
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.getLong("id")).thenReturn(attachment.id);
+        when(rs.getString("file_name")).thenReturn(attachment.fileName);
+        when(rs.getString("status")).thenReturn(attachment.status);
+        when(rs.getString("blob_hash")).thenReturn(attachment.blobHash);
+        when(rs.getString("thumbnails")).thenReturn(attachment.thumbnails);
+        when(rs.getString("object_key")).thenReturn(attachment.key());
+        return rs;
+    }
+
+    private static ResultSet blobResult(Blob blob) throws Exception {
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.getString("hash")).thenReturn(blob.hash);
+        when(rs.getLong("size")).thenReturn(blob.size);
+        when(rs.getInt("ref_count")).thenReturn(blob.refCount);
+        when(rs.getBoolean("stored")).thenReturn(blob.stored);
+        return rs;
+    }
+
+    private Map<String, Object> runJob(ResponseEntity<Object> started) throws Exception {
+        assertEquals(HttpStatus.ACCEPTED, started.getStatusCode());
+        String jobId = (String) body(started).get("jobId");
+        for (int i = 0; i < 500; i++) {
+            Map<String, Object> job = body(reconciliationService.getJob(jobId));
+            if (job.get("status") != ReconciliationService.JobStatus.RUNNING) {
+                return job;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("reconciliation job " + jobId + " did not finish");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> body(ResponseEntity<Object> response) {
+        return (Map<String, Object>) response.getBody();
+    }
+}
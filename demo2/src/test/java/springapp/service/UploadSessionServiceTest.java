@@ -0,0 +1,361 @@
+package springapp.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.domain.Pageable;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import springapp.model.AttachmentStatus;
+import springapp.model.UploadSession;
+import springapp.model.UploadSessionPart;
+import springapp.model.UploadSessionStatus;
+import springapp.model.User;
+import springapp.model.UserAttachment;
+import springapp.repository.AttachmentRepository;
+import springapp.repository.UploadSessionPartRepository;
+import springapp.repository.UploadSessionRepository;
+import springapp.storage.InMemoryObjectStorage;
+import springapp.storage.StorageException;
+import springapp.storage.StoredObject;
+import springapp.storage.UploadedPart;
+
+// the tables are maps the repositories are answered from; findById hands out a copy of the session, as a fresh
+// persistence context would, so two requests can both have read it OPEN. The transaction manager only tracks whether
+// a transaction is open, which the storage and the finishing statements check
+class UploadSessionServiceTest {
+
+    private static final long USER_ID = 7L;
+
+    private final Map<String, UploadSession> sessions = new TreeMap<>();
+    private final Map<Long, UserAttachment> attachments = new TreeMap<>();
+    private final List<UploadSessionPart> parts = new ArrayList<>();
+    private final AtomicLong ids = new AtomicLong();
+    private final List<Integer> sweepPages = new ArrayList<>();
+    private final List<String> outsideTransaction = new ArrayList<>();
+    private final List<String> insideTransaction = new ArrayList<>();
+    private final List<String> failingAborts = new ArrayList<>();
+    private boolean inTransaction;
+    private int completedUploads;
+    private Runnable beforeClaim;
+    private InMemoryObjectStorage storage;
+    private ApplicationEventPublisher eventPublisher;
+    private UploadSessionService uploadSessionService;
+
+    @BeforeEach
+    void setUp() {
+        UploadSessionRepository sessionRepo = mock(UploadSessionRepository.class);
+        when(sessionRepo.findById(anyString())).thenAnswer(invocation ->
+                Optional.ofNullable(sessions.get((String) invocation.getArgument(0))).map(UploadSessionServiceTest::copy));
+        when(sessionRepo.save(any(UploadSession.class))).thenAnswer(invocation -> {
+            UploadSession session = invocation.getArgument(0);
+            sessions.put(session.getId(), copy(session));
+            return session;
+        });
+        when(sessionRepo.touch(anyString(), any(LocalDateTime.class))).thenReturn(1);
+        when(sessionRepo.updateStatus(anyString(), any(UploadSessionStatus.class), any(UploadSessionStatus.class),
+                any(LocalDateTime.class))).thenAnswer(invocation -> {
+                    UploadSessionStatus from = invocation.getArgument(1);
+                    UploadSessionStatus to = invocation.getArgument(2);
+                    if (from == UploadSessionStatus.OPEN && to == UploadSessionStatus.COMPLETING && beforeClaim != null) {
+                        Runnable other = beforeClaim;
+                        beforeClaim = null;
+                        other.run();
+                    }
+                    if (to == UploadSessionStatus.COMPLETED) {
+                        (inTransaction ? insideTransaction : outsideTransaction).add("markSessionCompleted");
+                    }
+                    UploadSession session = sessions.get((String) invocation.getArgument(0));
+                    if (session == null || session.getStatus() != from) {
+                        return 0;
+                    }
+                    session.setStatus(to);
+                    session.setLastUpdatedOn(invocation.getArgument(3));
+                    return 1;
+                });
+        when(sessionRepo.findExpired(any(), any(LocalDateTime.class), anyString(), any(Pageable.class)))
+                .thenAnswer(invocation -> {
+                    Collection<?> statuses = invocation.getArgument(0);
+                    LocalDateTime cutoff = invocation.getArgument(1);
+                    String after = invocation.getArgument(2);
+                    Pageable limit = invocation.getArgument(3);
+                    List<UploadSession> page = sessions.values().stream()
+                            .filter(session -> statuses.contains(session.getStatus()))
+                            .filter(session -> session.getLastUpdatedOn().isBefore(cutoff))
+                            .filter(session -> session.getId().compareTo(after) > 0)
+                            .limit(limit.getPageSize())
+                            .map(UploadSessionServiceTest::copy)
+                            .toList();
+                    sweepPages.add(page.size());
+                    return page;
+                });
+
+        UploadSessionPartRepository partRepo = mock(UploadSessionPartRepository.class);
+        when(partRepo.findBySessionIdOrderByPartNumber(anyString())).thenAnswer(invocation -> parts.stream()
+                .filter(part -> part.getSessionId().equals(invocation.getArgument(0)))
+                .sorted(Comparator.comparingInt(UploadSessionPart::getPartNumber))
+                .toList());
+        when(partRepo.findBySessionIdAndPartNumber(anyString(), anyInt())).thenAnswer(invocation -> parts.stream()
+                .filter(part -> part.getSessionId().equals(invocation.getArgument(0))
+                        && part.getPartNumber() == (Integer) invocation.getArgument(1))
+                .findFirst());
+        when(partRepo.save(any(UploadSessionPart.class))).thenAnswer(invocation -> {
+            UploadSessionPart part = invocation.getArgument(0);
+            if (!parts.contains(part)) {
+                parts.add(part);
+            }
+            return part;
+        });
+        when(partRepo.deleteBySessionId(anyString())).thenAnswer(invocation -> {
+            parts.removeIf(part -> part.getSessionId().equals(invocation.getArgument(0)));
+            return 1;
+        });
+
+        AttachmentRepository attachmentRepo = mock(AttachmentRepository.class);
+        when(attachmentRepo.save(any(UserAttachment.class))).thenAnswer(invocation -> {
+            UserAttachment row = invocation.getArgument(0);
+            row.setId(ids.incrementAndGet());
+            attachments.put(row.getId(), row);
+            return row;
+        });
+        when(attachmentRepo.findById(anyLong())).thenAnswer(invocation ->
+                Optional.ofNullable(attachments.get((Long) invocation.getArgument(0))));
+        when(attachmentRepo.markUploadStored(anyLong(), any(LocalDateTime.class))).thenAnswer(invocation -> {
+            (inTransaction ? insideTransaction : outsideTransaction).add("markUploadStored");
+            UserAttachment row = attachments.get((Long) invocation.getArgument(0));
+            if (row == null || row.getStatus() != AttachmentStatus.UPLOADING) {
+                return 0;
+            }
+            row.setStatus(AttachmentStatus.STORED);
+            return 1;
+        });
+        doAnswer(invocation -> attachments.remove(((UserAttachment) invocation.getArgument(0)).getId()))
+                .when(attachmentRepo).delete(any(UserAttachment.class));
+
+        storage = new InMemoryObjectStorage() {
+            @Override
+            public void completeMultipartUpload(String key, String uploadId, List<UploadedPart> uploadedParts) {
+                (inTransaction ? insideTransaction : outsideTransaction).add("completeMultipartUpload");
+                completedUploads++;
+                super.completeMultipartUpload(key, uploadId, uploadedParts);
+            }
+
+            @Override
+            public void abortMultipartUpload(String key, String uploadId) {
+                if (failingAborts.contains(key)) {
+                    throw new StorageException("Storage is unavailable");
+                }
+                super.abortMultipartUpload(key, uploadId);
+            }
+        };
+
+        DemoService demoService = mock(DemoService.class);
+        when(demoService.validateUpload(anyLong(), anyString(), anyString())).thenAnswer(invocation -> {
+            User user = new User();
+            user.setId(invocation.getArgument(0));
+            return user;
+        });
+        eventPublisher = mock(ApplicationEventPublisher.class);
+        PlatformTransactionManager transactionManager = new PlatformTransactionManager() {
+            @Override
+            public TransactionStatus getTransaction(TransactionDefinition definition) {
+                inTransaction = true;
+                return new SimpleTransactionStatus();
+            }
+
+            @Override
+            public void commit(TransactionStatus status) {
+                inTransaction = false;
+            }
+
+            @Override
+            public void rollback(TransactionStatus status) {
+                inTransaction = false;
+            }
+        };
+
+        uploadSessionService = new UploadSessionService(storage, demoService, attachmentRepo, sessionRepo, partRepo,
+                mock(MetadataCache.class), eventPublisher, new TransactionTemplate(transactionManager));
+        ReflectionTestUtils.setField(uploadSessionService, "defaultChunkSize", 5L * 1024 * 1024);
+        ReflectionTestUtils.setField(uploadSessionService, "sessionTtlHours", 24L);
+        ReflectionTestUtils.setField(uploadSessionService, "sweepBatchSize", 2);
+    }
+
+    @Test
+    void completedSessionStoresTheAttachment() {
+        String sessionId = create("report.txt", 5);
+        assertEquals(HttpStatus.OK, upload(sessionId, 1, "hello").getStatusCode());
+
+        ResponseEntity<Object> completed = uploadSessionService.completeSession(sessionId, USER_ID);
+
+        assertEquals(HttpStatus.OK, completed.getStatusCode());
+        UploadSession session = sessions.get(sessionId);
+        assertEquals(UploadSessionStatus.COMPLETED, session.getStatus());
+        assertEquals(AttachmentStatus.STORED, attachments.get(session.getAttachment().getId()).getStatus());
+        assertTrue(parts.isEmpty());
+        assertArrayEquals("hello".getBytes(), read(session.getObjectKey()));
+        verify(eventPublisher).publishEvent(new AttachmentStoredEvent(session.getAttachment().getId(), "report.txt",
+                "text/plain", null));
+        // storage assembles the object outside any transaction, the rows are finished together in one
+        assertEquals(List.of("completeMultipartUpload"), outsideTransaction);
+        assertEquals(List.of("markSessionCompleted", "markUploadStored"), insideTransaction);
+    }
+
+    @Test
+    void concurrentCompletesOnlyOneProceeds() {
+        String sessionId = create("report.txt", 5);
+        upload(sessionId, 1, "hello");
+        // the second request reads the session OPEN as well, and claims it between the first one's read and claim
+        List<ResponseEntity<Object>> second = new ArrayList<>();
+        beforeClaim = () -> second.add(uploadSessionService.completeSession(sessionId, USER_ID));
+
+        ResponseEntity<Object> first = uploadSessionService.completeSession(sessionId, USER_ID);
+
+        assertEquals(HttpStatus.OK, second.get(0).getStatusCode());
+        assertEquals(HttpStatus.CONFLICT, first.getStatusCode());
+        assertEquals("Upload session " + sessionId + " is no longer open", first.getBody());
+        assertEquals(1, completedUploads);
+        assertEquals(UploadSessionStatus.COMPLETED, sessions.get(sessionId).getStatus());
+
+        // a complete arriving afterwards finds the session finished
+        assertEquals(HttpStatus.CONFLICT, uploadSessionService.completeSession(sessionId, USER_ID).getStatusCode());
+        assertEquals(1, completedUploads);
+    }
+
+    @Test
+    void completeWithMissingChunksReopensTheSession() {
+        String sessionId = create("report.bin", 6L * 1024 * 1024);
+
+        ResponseEntity<Object> completed = uploadSessionService.completeSession(sessionId, USER_ID);
+
+        assertEquals(HttpStatus.CONFLICT, completed.getStatusCode());
+        assertEquals(List.of(1, 2), body(completed).get("missingChunks"));
+        assertEquals(UploadSessionStatus.OPEN, sessions.get(sessionId).getStatus());
+        assertEquals(0, completedUploads);
+    }
+
+    @Test
+    void sweepClosesIdleSessionsAPageAtATime() {
+        List<String> idle = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            idle.add(create("idle-" + i + ".txt", 5));
+        }
+        String active = create("active.txt", 5);
+        // storage completed the upload, then the process died before the rows were finished
+        String crashedAfterStorage = create("crashed.txt", 5);
+        upload(crashedAfterStorage, 1, "hello");
+        UploadSession crashed = sessions.get(crashedAfterStorage);
+        crashed.setStatus(UploadSessionStatus.COMPLETING);
+        storage.completeMultipartUpload(crashed.getObjectKey(), crashed.getS3UploadId(), List.of(new UploadedPart(1, "")));
+        // the process died before storage completed it
+        String crashedBeforeStorage = create("stuck.txt", 5);
+        sessions.get(crashedBeforeStorage).setStatus(UploadSessionStatus.COMPLETING);
+        // storage fails to abort this one, so it stays for the next run
+        String unabortable = create("unabortable.txt", 5);
+        Long unabortableAttachmentId = sessions.get(unabortable).getAttachment().getId();
+        failingAborts.add(sessions.get(unabortable).getObjectKey());
+        for (UploadSession session : sessions.values()) {
+            if (!session.getId().equals(active)) {
+                session.setLastUpdatedOn(LocalDateTime.now().minusDays(2));
+            }
+        }
+
+        uploadSessionService.sweepExpiredSessions();
+
+        // eight expired sessions, two per page, and the empty page that ends the run
+        assertEquals(List.of(2, 2, 2, 2, 0), sweepPages);
+        for (String sessionId : idle) {
+            assertEquals(UploadSessionStatus.EXPIRED, sessions.get(sessionId).getStatus());
+            assertNull(sessions.get(sessionId).getAttachment());
+        }
+        assertEquals(UploadSessionStatus.OPEN, sessions.get(active).getStatus());
+        assertEquals(UploadSessionStatus.COMPLETED, sessions.get(crashedAfterStorage).getStatus());
+        assertEquals(AttachmentStatus.STORED, attachments.get(crashed.getAttachment().getId()).getStatus());
+        assertEquals(UploadSessionStatus.EXPIRED, sessions.get(crashedBeforeStorage).getStatus());
+        assertEquals(UploadSessionStatus.OPEN, sessions.get(unabortable).getStatus());
+        // only the sessions left open keep their attachment rows
+        assertEquals(3, attachments.size());
+
+        failingAborts.clear();
+        sweepPages.clear();
+        uploadSessionService.sweepExpiredSessions();
+
+        assertEquals(List.of(1), sweepPages);
+        assertEquals(UploadSessionStatus.EXPIRED, sessions.get(unabortable).getStatus());
+        assertFalse(attachments.containsKey(unabortableAttachmentId));
+    }
+
+    private String create(String fileName, long totalSize) {
+        ResponseEntity<Object> created = uploadSessionService.createSession(USER_ID, fileName, "text/plain", totalSize);
+        assertEquals(HttpStatus.CREATED, created.getStatusCode());
+        return (String) body(created).get("sessionId");
+    }
+
+    private ResponseEntity<Object> upload(String sessionId, int partNumber, String content) {
+        byte[] bytes = content.getBytes();
+        return uploadSessionService.uploadChunk(sessionId, USER_ID, partNumber, new ByteArrayInputStream(bytes),
+                bytes.length);
+    }
+
+    private byte[] read(String key) {
+        try (StoredObject object = storage.get(key, null)) {
+            return object.getContent().readAllBytes();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static UploadSession copy(UploadSession session) {
+        UploadSession copy = new UploadSession();
+        copy.setId(session.getId());
+        copy.setUserId(session.getUserId());
+        copy.setAttachment(session.getAttachment());
+        copy.setObjectKey(session.getObjectKey());
+        copy.setS3UploadId(session.getS3UploadId());
+        copy.setTotalSize(session.getTotalSize());
+        copy.setChunkSize(session.getChunkSize());
+        copy.setPartCount(session.getPartCount());
+        copy.setStatus(session.getStatus());
+        copy.setCreatedOn(session.getCreatedOn());
+        copy.setLastUpdatedOn(session.getLastUpdatedOn());
+        return copy;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> body(ResponseEntity<Object> response) {
+        return (Map<String, Object>) response.getBody();
+    }
+}
@@ -0,0 +1,226 @@
+package springapp.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import springapp.model.User;
+import springapp.repository.UserRespository;
+
+// the users table is a map keyed by lower(username) with a unique lower(email), and the batched upsert is applied to
+// it all or nothing, the way one transaction would
+class UserImportServiceTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Map<String, User> users = new LinkedHashMap<>();
+    private final List<List<Object[]>> upserts = new ArrayList<>();
+    // runs once before the next upsert, standing in for a request that writes between lookup and upsert
+    private Runnable concurrentWrite;
+    private UserRespository userRepository;
+    private JdbcTemplate jdbcTemplate;
+
+    @BeforeEach
+    void setUp() {
+        userRepository = mock(UserRespository.class);
+        when(userRepository.findByLowerUsernamesOrLowerEmails(anyCollection(), anyCollection())).thenAnswer(invocation -> {
+            Collection<String> usernames = invocation.getArgument(0);
+            Collection<String> emails = invocation.getArgument(1);
+            return users.values().stream()
+                    .filter(user -> usernames.contains(lower(user.getUsername())) || emails.contains(lower(user.getEmail())))
+                    .map(user -> new User(user.getId(), user.getUsername(), user.getEmail()))
+                    .toList();
+        });
+
+        jdbcTemplate = mock(JdbcTemplate.class);
+        when(jdbcTemplate.batchUpdate(startsWith("insert into users"), anyList())).thenAnswer(invocation -> {
+            if (concurrentWrite != null) {
+                concurrentWrite.run();
+                concurrentWrite = null;
+            }
+            List<Object[]> rows = invocation.getArgument(1);
+            Map<String, User> after = new LinkedHashMap<>(users);
+            for (Object[] row : rows) {
+                String username = (String) row[0];
+                String email = (String) row[1];
+                User existing = after.get(lower(username));
+                after.put(lower(username), new User(existing != null ? existing.getId() : (long) after.size() + 1,
+                        existing != null ? existing.getUsername() : username, email));
+                long owners = after.values().stream().filter(user -> lower(user.getEmail()).equals(lower(email))).count();
+                if (owners > 1) {
+                    throw new DuplicateKeyException("duplicate key value violates unique constraint \"ux_users_lower_email\"");
+                }
+            }
+            users.clear();
+            users.putAll(after);
+            upserts.add(rows);
+            return new int[rows.size()];
+        });
+    }
+
+    private UserImportService service(int batchSize) {
+        return new UserImportService(userRepository, jdbcTemplate,
+                new TransactionTemplate(mock(PlatformTransactionManager.class)), objectMapper, batchSize);
+    }
+
+    @Test
+    void csvHeaderPicksTheColumnsAndQuotedFieldsAreUnescaped() throws Exception {
+        List<JsonNode> report = importUsers(service(100), UserImportService.Format.CSV,
+                "email,username\n"
+                        + "\"alice@example.com\",alice\n"
+                        + "bob@example.com,\"bob\"\n"
+                        + "dave@example.com,\"da\"\"ve\"\n"
+                        + "erin@example.com,\"erin\n");
+
+        assertEquals("alice@example.com", users.get("alice").getEmail());
+        assertEquals("bob@example.com", users.get("bob").getEmail());
+        assertEquals(3, report.size());
+        // a line that cannot be parsed is reported at once, rows failing validation when their batch is imported
+        assertError(report.get(0), 5, "Unterminated quoted field.");
+        assertError(report.get(1), 4, "Username cannot contain special characters.");
+        assertEquals("da\"ve", report.get(1).get("username").asText());
+        assertSummary(report.get(2), 4, 2, 0, 2);
+    }
+
+    @Test
+    void csvWithoutHeaderIsUsernameThenEmail() throws Exception {
+        List<JsonNode> report = importUsers(service(100), UserImportService.Format.CSV,
+                "alice,alice@example.com\nbob\n");
+
+        assertEquals("alice@example.com", users.get("alice").getEmail());
+        assertError(report.get(0), 2, "Expected a username and an email column.");
+        assertSummary(report.get(1), 2, 1, 0, 1);
+    }
+
+    @Test
+    void ndjsonRowsAreParsedAndBadLinesReported() throws Exception {
+        List<JsonNode> report = importUsers(service(100), UserImportService.Format.NDJSON,
+                "{\"username\": \"alice\", \"email\": \"alice@example.com\"}\n"
+                        + "\n"
+                        + "{\"username\": \"bob\"\n"
+                        + "[1, 2]\n"
+                        + "{\"username\": \"carol\"}\n"
+                        + "{\"username\": \"dave\", \"email\": \"dave@example.com\", \"extra\": 1}\n");
+
+        assertEquals(List.of("alice", "dave"), new ArrayList<>(users.keySet()));
+        assertEquals(4, report.size());
+        assertEquals(3, report.get(0).get("line").asLong());
+        assertTrue(report.get(0).get("error").asText().startsWith("Malformed JSON: "));
+        assertError(report.get(1), 4, "Expected a JSON object per line.");
+        assertError(report.get(2), 5, "Email cannot be empty.");
+        assertSummary(report.get(3), 5, 2, 0, 3);
+    }
+
+    @Test
+    void existingUsersFollowTheAddUserRules() throws Exception {
+        users.put("alice", new User(1L, "alice", "alice@example.com"));
+        users.put("bob", new User(2L, "bob", "bob@example.com"));
+
+        List<JsonNode> report = importUsers(service(100), UserImportService.Format.CSV,
+                "ALICE,alice@new.example.com\n"
+                        + "carol,Bob@Example.com\n"
+                        + "Bob,BOB@example.com\n");
+
+        // a known username takes the new email and keeps its spelling
+        assertEquals("alice", users.get("alice").getUsername());
+        assertEquals("alice@new.example.com", users.get("alice").getEmail());
+        assertError(report.get(0), 2, "Email already exists with another user. Please change your email.");
+        assertError(report.get(1), 3, "this user already exists with this email so you can update your email.");
+        assertSummary(report.get(2), 3, 0, 1, 2);
+    }
+
+    @Test
+    void rowsOfOneBatchSeeEachOtherInOrder() throws Exception {
+        List<JsonNode> report = importUsers(service(100), UserImportService.Format.CSV,
+                "erin,erin@one.example.com\n"
+                        + "Erin,erin@two.example.com\n"
+                        + "frank,erin@one.example.com\n");
+
+        // the first row's email was moved by the second, so the third may take it
+        assertEquals("erin@two.example.com", users.get("erin").getEmail());
+        assertEquals("erin@one.example.com", users.get("frank").getEmail());
+        // one statement per touched user
+        assertEquals(1, upserts.size());
+        assertEquals(2, upserts.get(0).size());
+        assertSummary(report.get(0), 3, 2, 1, 0);
+    }
+
+    @Test
+    void inputIsUpsertedInBatches() throws Exception {
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < 5; i++) {
+            csv.append("user").append(i).append(",user").append(i).append("@example.com\n");
+        }
+
+        List<JsonNode> report = importUsers(service(2), UserImportService.Format.CSV, csv.toString());
+
+        assertEquals(3, upserts.size());
+        assertEquals(5, users.size());
+        assertSummary(report.get(0), 5, 5, 0, 0);
+    }
+
+    @Test
+    void batchThatHitsAConcurrentWriteIsRetriedRowByRow() throws Exception {
+        concurrentWrite = () -> users.put("zed", new User(9L, "zed", "grace@example.com"));
+
+        List<JsonNode> report = importUsers(service(100), UserImportService.Format.CSV,
+                "frank,frank@example.com\n"
+                        + "grace,grace@example.com\n");
+
+        assertEquals("frank@example.com", users.get("frank").getEmail());
+        assertEquals(List.of("zed", "frank"), new ArrayList<>(users.keySet()));
+        assertEquals(2, report.size());
+        assertError(report.get(0), 2, "Email already exists with another user. Please change your email.");
+        assertSummary(report.get(1), 2, 1, 0, 1);
+    }
+
+    private List<JsonNode> importUsers(UserImportService service, UserImportService.Format format, String input)
+            throws Exception {
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        service.importUsers(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), format, report);
+        List<JsonNode> lines = new ArrayList<>();
+        for (String line : report.toString(StandardCharsets.UTF_8).split("\n")) {
+            lines.add(objectMapper.readTree(line));
+        }
+        return lines;
+    }
+
+    private static void assertError(JsonNode line, long lineNumber, String error) {
+        assertEquals(lineNumber, line.get("line").asLong());
+        assertEquals(error, line.get("error").asText());
+    }
+
+    private static void assertSummary(JsonNode summary, long rows, long inserted, long updated, long failed) {
+        assertEquals(rows, summary.get("rows").asLong(), "rows");
+        assertEquals(inserted, summary.get("inserted").asLong(), "inserted");
+        assertEquals(updated, summary.get("updated").asLong(), "updated");
+        assertEquals(failed, summary.get("failed").asLong(), "failed");
+    }
+
+    private static String lower(String value) {
+        return value.toLowerCase(Locale.ROOT);
+    }
+}
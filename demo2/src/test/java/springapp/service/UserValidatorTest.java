@@ -0,0 +1,154 @@
+package springapp.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.util.StringUtils;
+
+// UserValidator has to give exactly the answers of the regex checks it replaced, which are kept below as they were
+// in UserService; every input is run through both and the messages compared
+class UserValidatorTest {
+
+    private static final List<String> USERNAMES = Arrays.asList(
+            "alice", "al", "abcdefghijklmnopqrstu", "abcdefghijklmnopqrst", "Bob_42", "bob__", "bob_", "_bob", "1bob",
+            "12345", "bo b", "bob!", "bobbb", "bOOOb", "a1_b2", "\u00e9ric", "\u00c9ric", "\u00e9bob\n\n", "bob\n", "bob\nx",
+            "\nbob", "bo\nb\n", "bo\r\nb", "bo\rb\r", "b\u0085o\u0085b", "b\u2028ob\u2029", "bo\u2028b", "a\n\nbbb",
+            "a\n\nb_", "a\n\n_", "\n\nabc", "\u00e9\n\nabc", "1\n\nabc", "_\n\nab", "a\n\n b", "a\tb\tc", "abc\t",
+            "   ", "a\u00a0b", "a\ud83d\ude00b", "a\ud83d\ude00\ud83d\ude00\ud83d\ude00\n\n", "x\u0660\u0661\u0662",
+            "a_b_c_d_e_f_g_h_i_j_", null, "");
+
+    private static final List<String> EMAILS = Arrays.asList(
+            "alice@example.com", "a@b.co", "a@.co", "a@bc", "a@b.c", "a@b.c1", "a@b.co.uk", "a@b-c.io", "a@b..com",
+            "a..b@example.com", "a.b@example.com", "aaa@example.com", "abbb@example.com", "ab@example.commm",
+            "1alice@example.com", "alice@@example.com", "ali ce@example.com", "alice@exa mple.com", "alice@example.com\n",
+            "\nalice@example.com", "alice\n@example.com", "alice@example.c\nom", "\u00e9lise@example.com", "alice@ex\u00e4mple.com",
+            "a%b+c-d_e@example.com", "a@example.", "a@example", "@example.com", "a@-.co", "a@a.b.c.de", "A@B.CO",
+            "a" + "b".repeat(240) + "@example.com", "a" + "bc".repeat(130) + "@example.com", "   ", null, "");
+
+    // characters the random inputs are drawn from, weighted towards the ones rules are about
+    private static final String ALPHABET = "abcAB01_.@-+% \n\r\t\u0085\u2028\u2029\u00e9\u00a0aab.";
+
+    @Test
+    void listedInputsGetTheLegacyAnswers() {
+        for (String username : USERNAMES) {
+            for (String email : EMAILS) {
+                assertSameAnswer(username, email);
+            }
+        }
+    }
+
+    @Test
+    void randomInputsGetTheLegacyAnswers() {
+        Random random = new Random(42);
+        for (int i = 0; i < 200_000; i++) {
+            String username = randomString(random, 25);
+            String email = randomString(random, 30);
+            assertSameAnswer(username, "alice@example.com");
+            assertSameAnswer("alice", email);
+            assertSameAnswer(username, email);
+        }
+    }
+
+    private static void assertSameAnswer(String username, String email) {
+        assertEquals(answer(() -> Legacy.validate(username, email)), answer(() -> UserValidator.validate(username, email)),
+                "username " + escape(username) + ", email " + escape(email));
+    }
+
+    // the message of the rule that failed, null when the user is valid
+    private static String answer(Runnable validation) {
+        try {
+            validation.run();
+            return null;
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+    }
+
+    private static String randomString(Random random, int maxLength) {
+        int length = random.nextInt(maxLength + 1);
+        StringBuilder value = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            // runs of one character, so the repeating rules get exercised
+            char c = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+            int repeat = random.nextInt(8) == 0 ? 3 : 1;
+            for (int j = 0; j < repeat && value.length() < length; j++) {
+                value.append(c);
+            }
+        }
+        return value.toString();
+    }
+
+    private static String escape(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder escaped = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            escaped.append(c >= ' ' && c < 0x7f ? String.valueOf(c) : String.format("\\u%04x", (int) c));
+        }
+        return escaped.append('"').toString();
+    }
+
+    // the checks of UserService before UserValidator, unchanged
+    private static final class Legacy {
+
+        static void validate(String username, String email) {
+            if (!StringUtils.hasText(username)) {
+                throw new IllegalArgumentException("Username cannot be empty.");
+            }
+            if (!StringUtils.hasText(email)) {
+                throw new IllegalArgumentException("Email cannot be empty.");
+            }
+            if (username.length() < 3 || username.length() > 20) {
+                throw new IllegalArgumentException("Username must be between 3 and 20 characters.");
+            }
+            if (!email.matches("^[A-Za-z][A-Za-z0-9._%+-]*@[A-Za-z0-9.-]+\\.[A-Za-z]{2,}$")) {
+                throw new IllegalArgumentException("Invalid email format.");
+            }
+            if (email.contains(" ")) {
+                throw new IllegalArgumentException("Email cannot contain whitespace.");
+            }
+            if (email.length() - email.replace("@", "").length() > 1) {
+                throw new IllegalArgumentException("Email cannot contain more than one '@' symbol.");
+            }
+            if (!email.substring(email.indexOf('@') + 1).contains(".")) {
+                throw new IllegalArgumentException("Email domain is invalid.");
+            }
+            if (email.length() > 254) {
+                throw new IllegalArgumentException("Email is too long. Maximum length is 254 characters.");
+            }
+            String localPart = email.split("@")[0];
+            if (localPart.length() > 0 && Character.isDigit(localPart.charAt(0))) {
+                throw new IllegalArgumentException("Email cannot start with a number.");
+            }
+            if (email.matches(".*(.)\\1{2,}.*")) {
+                throw new IllegalArgumentException("Email cannot contain sequential repeating characters (e.g., 'aaa').");
+            }
+            if (email.contains("..")) {
+                throw new IllegalArgumentException("Email cannot have consecutive dots (e.g., 'john..doe@example.com').");
+            }
+            if (username.contains(" ")) {
+                throw new IllegalArgumentException("Username cannot contain spaces.");
+            }
+            if (username.matches(".*[^a-zA-Z0-9_].*")) {
+                throw new IllegalArgumentException("Username cannot contain special characters.");
+            }
+            if (!Character.isLetter(username.charAt(0))) {
+                throw new IllegalArgumentException("Username must start with a letter.");
+            }
+            if (username.matches(".*(.)\\1{2,}.*")) {
+                throw new IllegalArgumentException("Username cannot contain sequential repeating characters (e.g., 'aaa').");
+            }
+            if (username.matches("\\d+")) {
+                throw new IllegalArgumentException("Username cannot contain only numbers.");
+            }
+            if (username.startsWith("_") || username.endsWith("_")) {
+                throw new IllegalArgumentException("Username cannot start or end with an underscore.");
+            }
+        }
+    }
+}
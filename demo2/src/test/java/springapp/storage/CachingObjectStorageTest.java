@@ -0,0 +1,182 @@
+package springapp.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpRange;
+
+// the backend's full reads can be held at the first byte, so a second read arrives while the first one's fill is
+// still running, and can fail part way, which the readers following the fill have to recover from
+class CachingObjectStorageTest {
+
+    private static final String KEY = "1_photo.jpg";
+
+    private final List<HttpRange> backendGets = Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch gate = new CountDownLatch(1);
+    private volatile boolean gated;
+    private volatile int failAfter = -1;
+    private byte[] data;
+    private ObjectStorage backend;
+    private CachingObjectStorage cache;
+
+    @TempDir
+    Path cacheDir;
+
+    @BeforeEach
+    void setUp() {
+        backend = new InMemoryObjectStorage() {
+            @Override
+            public StoredObject get(String key, HttpRange range) {
+                backendGets.add(range);
+                StoredObject object = super.get(key, range);
+                if (range != null) {
+                    return object;
+                }
+                return new StoredObject(object.getMetadata(), object.getContentLength(), null,
+                        new HeldStream(object.getContent()));
+            }
+        };
+        data = new byte[100_000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        backend.put(KEY, new ByteArrayInputStream(data), data.length, "image/jpeg");
+        cache = new CachingObjectStorage(backend, cacheDir, 1_000_000, 200_000);
+    }
+
+    @Test
+    void concurrentMissesShareOneBackendRead() throws Exception {
+        gated = true;
+        StoredObject first = cache.get(KEY, null);
+        StoredObject second = cache.get(KEY, null);
+        gate.countDown();
+
+        assertArrayEquals(data, readAll(first));
+        assertArrayEquals(data, readAll(second));
+        assertEquals(1, backendGets.size());
+        assertEquals(1L, cache.stats().get("joinedFills"));
+
+        await(() -> (Long) cache.stats().get("entries") == 1);
+        try (StoredObject hit = cache.get(KEY, null)) {
+            assertTrue(hit instanceof FileStoredObject);
+        }
+        assertEquals(1, backendGets.size());
+    }
+
+    @Test
+    void failedFillIsFinishedFromTheBackend() throws Exception {
+        gated = true;
+        failAfter = 30_000;
+        StoredObject first = cache.get(KEY, null);
+        StoredObject second = cache.get(KEY, null);
+        gate.countDown();
+
+        assertArrayEquals(data, readAll(first));
+        assertArrayEquals(data, readAll(second));
+        // each reader fetched only what the fill had not copied
+        assertEquals(3, backendGets.size());
+        assertNull(backendGets.get(0));
+        assertEquals(30_000L, backendGets.get(1).getRangeStart(data.length));
+        assertEquals(30_000L, backendGets.get(2).getRangeStart(data.length));
+
+        await(() -> (Long) cache.stats().get("discardedFills") == 1);
+        assertEquals(0L, cache.stats().get("entries"));
+    }
+
+    @Test
+    void fillOverlappingAWriteIsNotCached() throws Exception {
+        gated = true;
+        StoredObject stale = cache.get(KEY, null);
+        byte[] newer = "newer".getBytes();
+        cache.put(KEY, new ByteArrayInputStream(newer), newer.length, "image/jpeg");
+        gate.countDown();
+
+        // the read that started first still sees the object as it was
+        assertArrayEquals(data, readAll(stale));
+        await(() -> (Long) cache.stats().get("discardedFills") == 1);
+
+        gated = false;
+        assertArrayEquals(newer, readAll(cache.get(KEY, null)));
+        assertEquals(2, backendGets.size());
+    }
+
+    @Test
+    void largeObjectsAndRangesBypassTheCache() throws Exception {
+        CachingObjectStorage small = new CachingObjectStorage(backend, cacheDir.resolve("small"), 1_000_000, 50_000);
+
+        assertArrayEquals(data, readAll(small.get(KEY, null)));
+        assertArrayEquals(data, readAll(small.get(KEY, null)));
+        try (StoredObject range = small.get(KEY, HttpRange.createByteRange(10, 19))) {
+            assertEquals(10, range.getContentLength());
+        }
+
+        assertEquals(3L, small.stats().get("bypassed"));
+        assertEquals(0L, small.stats().get("entries"));
+        assertEquals(3, backendGets.size());
+    }
+
+    // the backend stream: waits for the gate before its first byte, and fails once failAfter bytes were read
+    private final class HeldStream extends FilterInputStream {
+
+        private long read;
+
+        private HeldStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (gated) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            if (failAfter >= 0) {
+                if (read >= failAfter) {
+                    throw new IOException("Connection reset");
+                }
+                len = (int) Math.min(len, failAfter - read);
+            }
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                read += n;
+            }
+            return n;
+        }
+    }
+
+    private static byte[] readAll(StoredObject object) throws IOException {
+        try (object) {
+            return object.getContent().readAllBytes();
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("condition not met within 5 seconds");
+            }
+            Thread.sleep(10);
+        }
+    }
+}
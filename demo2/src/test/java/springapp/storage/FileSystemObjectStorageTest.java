@@ -0,0 +1,118 @@
+package springapp.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FileSystemObjectStorageTest {
+
+    @TempDir
+    Path dir;
+
+    private Path root;
+    private FileSystemObjectStorage storage;
+
+    @BeforeEach
+    void setUp() {
+        root = dir.resolve("objects");
+        storage = new FileSystemObjectStorage(root);
+    }
+
+    @Test
+    void keysOutsideTheRootAreRejected() {
+        for (String key : List.of("../escape.txt", "1/../../escape.txt", "/etc/passwd", ".multipart/x", "", ".")) {
+            assertThrows(StorageException.class, () -> put(key, "x"), key);
+            assertThrows(StorageException.class, () -> storage.get(key, null), key);
+            assertThrows(StorageException.class, () -> storage.delete(key), key);
+            assertThrows(StorageException.class, () -> storage.createMultipartUpload(key, "text/plain"), key);
+        }
+        assertFalse(Files.exists(dir.resolve("escape.txt")));
+        // a key that only passes through a parent directory stays inside and is fine
+        put("1/../2_a.txt", "a");
+        assertEquals(1, storage.head("2_a.txt").contentLength());
+    }
+
+    @Test
+    void shortStreamLeavesNoObject() throws Exception {
+        InputStream content = new ByteArrayInputStream(new byte[40]);
+
+        assertThrows(StorageException.class, () -> storage.put("1_a.bin", content, 100, "application/octet-stream"));
+
+        assertThrows(ObjectNotFoundException.class, () -> storage.head("1_a.bin"));
+        assertEquals(List.of(), files());
+    }
+
+    @Test
+    void failedOverwriteKeepsTheOldObject() throws Exception {
+        put("1_a.txt", "old");
+        InputStream failing = new SequenceInputStream(new ByteArrayInputStream("new".getBytes()), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Connection reset");
+            }
+        });
+
+        assertThrows(StorageException.class, () -> storage.put("1_a.txt", failing, 10, "text/plain"));
+
+        try (StoredObject object = storage.get("1_a.txt", null)) {
+            assertArrayEquals("old".getBytes(), object.getContent().readAllBytes());
+        }
+        assertEquals(List.of("1_a.txt"), files());
+    }
+
+    @Test
+    void listPagesInKeyOrder() {
+        for (String key : List.of("2_b.txt", "1_c.txt", "1/nested.txt", "1_a.txt", "1_b.txt")) {
+            put(key, key);
+        }
+        // an upload in progress is outside the key space
+        storage.createMultipartUpload("1_d.txt", "text/plain");
+
+        List<String> keys = new ArrayList<>();
+        List<Integer> pageSizes = new ArrayList<>();
+        String token = null;
+        do {
+            ObjectListing page = storage.list("1", token, 2);
+            page.objects().forEach(object -> keys.add(object.key()));
+            pageSizes.add(page.objects().size());
+            token = page.nextContinuationToken();
+        } while (token != null);
+
+        assertEquals(List.of("1/nested.txt", "1_a.txt", "1_b.txt", "1_c.txt"), keys);
+        assertEquals(List.of(2, 2), pageSizes);
+        assertNull(storage.list("2", null, 2).nextContinuationToken());
+        assertEquals(5, storage.list(null, null, 10).objects().size());
+        assertEquals(12, storage.list(null, null, 10).objects().get(0).size());
+    }
+
+    private void put(String key, String content) {
+        byte[] bytes = content.getBytes();
+        storage.put(key, new ByteArrayInputStream(bytes), bytes.length, "text/plain");
+    }
+
+    // every regular file under the root except multipart uploads, so leftover temporary files show up too
+    private List<String> files() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            return paths.filter(Files::isRegularFile)
+                    .filter(path -> !path.startsWith(root.resolve(".multipart")))
+                    .map(path -> root.relativize(path).toString())
+                    .toList();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package springapp.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpRange;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class InstrumentedObjectStorageTest {
+
+    private final MeterRegistry registry = new SimpleMeterRegistry();
+    private final InstrumentedObjectStorage storage =
+            new InstrumentedObjectStorage(new InMemoryObjectStorage(), registry, "memory");
+
+    @Test
+    void readBytesAreCountedAsTheBodyIsRead() throws Exception {
+        byte[] data = new byte[10_000];
+        storage.put("1_a.bin", new ByteArrayInputStream(data), data.length, "application/octet-stream");
+        assertEquals(10_000.0, bytes("written"));
+
+        try (StoredObject object = storage.get("1_a.bin", null)) {
+            assertEquals(0.0, bytes("read"));
+            object.getContent().readNBytes(4_000);
+            assertEquals(4_000.0, bytes("read"));
+        }
+        // the rest was never read, so it does not count
+        assertEquals(4_000.0, bytes("read"));
+
+        try (StoredObject range = storage.get("1_a.bin", HttpRange.createByteRange(0, 99))) {
+            assertArrayEquals(new byte[100], range.getContent().readAllBytes());
+        }
+        assertEquals(4_100.0, bytes("read"));
+    }
+
+    private double bytes(String direction) {
+        return registry.get("storage.bytes").tag("direction", direction).counter().count();
+    }
+}